@@ -0,0 +1,243 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+
+/**
+ * Back-references for an {@link AccountIndex}: a mapping from account ID to
+ * the references to that account in the index. This makes it possible to
+ * find all references to an account without scanning the whole index.
+ *
+ * <p>The back-references are kept in memory. They are built from the
+ * in-memory table of the index (see {@link AccountRefTable}) on first use,
+ * by scanning all references once, and from then on they are
+ * kept up to date through {@link #refStored(String,String)} and
+ * {@link #refRemoved(String,String)}, which are called whenever a
+ * reference is stored in or removed from the index.
+ *
+ * <p>{@link AccountIndex#storeRef(Account)} does not report which
+ * reference it stored, so the realm determines it right after storing it
+ * and reports it through {@link #refStored(String,String)}.
+ *
+ * <p>Most accounts have a single reference per index, so for memory
+ * efficiency a single reference is stored as a <code>String</code> and only
+ * multiple references are stored as a <code>Set</code>.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+final class AccountBackReferences extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountBackReferences</code> object.
+    *
+    * @param index
+    *    the {@link AccountIndex}, cannot be <code>null</code>.
+    *
+    * @param table
+    *    the in-memory table of the index, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>index == null || table == null</code>.
+    */
+   AccountBackReferences(AccountIndex index, AccountRefTable table)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("index", index, "table", table);
+      _index = index;
+      _table = table;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The account index. Never <code>null</code>.
+    */
+   private final AccountIndex _index;
+
+   /**
+    * The in-memory table of the index. Never <code>null</code>.
+    */
+   private final AccountRefTable _table;
+
+   /**
+    * The references per account ID; each value is either a
+    * <code>String</code> or a <code>Set&lt;String&gt;</code>. Is
+    * <code>null</code> until the back-references have been built.
+    * All access is synchronized on this object.
+    */
+   private Map<String,Object> _refsByAccountID;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Builds the back-references by scanning all references in the table,
+    * unless this has been done before. Should be called while holding the
+    * lock on this object.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be loaded and the index could not be read.
+    */
+   private void ensureBuilt() throws ContentAccessException {
+      if (_refsByAccountID != null) {
+         return;
+      }
+
+      long                 start = System.currentTimeMillis();
+      Map<String,Object> refsMap = new HashMap<String,Object>();
+      int                  count = 0;
+      for (String ref : _table.getRefs()) {
+         String accountID = _table.lookupAccountID(ref);
+         if (accountID != null) {
+            add(refsMap, accountID, ref);
+            count++;
+         }
+      }
+      _refsByAccountID = refsMap;
+
+      long duration = System.currentTimeMillis() - start;
+      Utils.logDebug(_index.toString() + ": Built back-references for " + count + " references to " + refsMap.size() + " accounts in " + duration + " ms.");
+   }
+
+   /**
+    * Returns the references to the specified account. The result may
+    * include references that have since been removed by another process,
+    * so callers should verify them against the index.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    a new {@link Collection} of references, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the back-references had to be built and the index could not be
+    *    read.
+    */
+   synchronized Collection<String> getRefs(String accountID)
+   throws ContentAccessException {
+      ensureBuilt();
+
+      Object refs = _refsByAccountID.get(accountID);
+      if (refs == null) {
+         return new ArrayList<String>(0);
+      } else if (refs instanceof String) {
+         return new ArrayList<String>(Collections.singleton((String) refs));
+      } else {
+         return new ArrayList<String>(asSet(refs));
+      }
+   }
+
+   /**
+    * Registers that a reference to an account has been stored in the index.
+    * If the back-references have not been built yet, nothing is done, since
+    * building them will pick up the reference.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   synchronized void refStored(String ref, String accountID) {
+      if (_refsByAccountID != null) {
+         add(_refsByAccountID, accountID, ref);
+      }
+   }
+
+   /**
+    * Registers that a reference to an account has been removed from the
+    * index. If the back-references have not been built yet, nothing is
+    * done.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID the reference pointed to, should not be
+    *    <code>null</code>.
+    */
+   synchronized void refRemoved(String ref, String accountID) {
+      if (_refsByAccountID == null) {
+         return;
+      }
+
+      Object refs = _refsByAccountID.get(accountID);
+      if (ref.equals(refs)) {
+         _refsByAccountID.remove(accountID);
+      } else if (refs instanceof Set) {
+         Set<String> set = asSet(refs);
+         set.remove(ref);
+         if (set.size() == 1) {
+            _refsByAccountID.put(accountID, set.iterator().next());
+         }
+      }
+   }
+
+   /**
+    * Discards the back-references, for example after the index has been
+    * rebuilt. They are built again on next use.
+    */
+   synchronized void reset() {
+      _refsByAccountID = null;
+   }
+
+   /**
+    * Adds a reference to a back-reference map.
+    *
+    * @param refsMap
+    *    the map, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    */
+   private static void add(Map<String,Object> refsMap, String accountID, String ref) {
+      Object refs = refsMap.get(accountID);
+      if (refs == null) {
+         refsMap.put(accountID, ref);
+      } else if (refs instanceof String) {
+         if (! refs.equals(ref)) {
+            Set<String> set = new HashSet<String>(4);
+            set.add((String) refs);
+            set.add(ref);
+            refsMap.put(accountID, set);
+         }
+      } else {
+         asSet(refs).add(ref);
+      }
+   }
+
+   /**
+    * Casts a value from the back-reference map to a set.
+    *
+    * @param refs
+    *    the value, should be a <code>Set&lt;String&gt;</code>.
+    *
+    * @return
+    *    the set, never <code>null</code>.
+    */
+   @SuppressWarnings("unchecked")
+   private static Set<String> asSet(Object refs) {
+      return (Set<String>) refs;
+   }
+}
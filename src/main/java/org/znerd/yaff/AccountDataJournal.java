@@ -0,0 +1,969 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import org.znerd.yaff.activation.ByteArrayDataSource;
+import org.znerd.yaff.activation.XMLDataSource;
+import org.znerd.yaff.security.Key;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataSource;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+import org.xins.common.text.HexConverter;
+import org.xins.common.text.TextUtils;
+import org.xins.common.xml.Element;
+
+/**
+ * Journal of partial updates to account data files, for a realm. Instead of
+ * rewriting (and re-encrypting) the complete <code>AccountData.xml</code>
+ * file for every change, each change is written as a small journal entry
+ * that only contains the changed properties. The journal of an account is
+ * compacted into its account data file in the background: after
+ * {@value #MAX_ENTRIES} entries, or when the first pending entry is older
+ * than {@value #COMPACTION_DELAY} milliseconds. Compaction writes the most
+ * recent complete account data, so any number of changes results in a
+ * single rewrite.
+ *
+ * <p>Journal entries are stored in the directory
+ * <code>accounts/<em>id</em>/AccountDataJournal</code> of the database
+ * that holds the account data, one file per change, named after an
+ * increasing sequence number. They are encrypted with the key of the
+ * account, just like the account data file itself.
+ *
+ * <p>Until the journal of an account has been compacted, the most recent
+ * complete account data is held in memory and returned for every read of
+ * the account data file, in any data context (see
+ * {@link DataContext#setPendingContent(Database,String,DataSource)}), so
+ * reads never wait for a compaction. Entries left behind by an earlier run
+ * are only on disk; they are found the first time an account is used in
+ * this run, see {@link #recover(String,String,Key)}, and are then compacted
+ * in the background as well.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+final class AccountDataJournal extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of the journal directory within an account directory.
+    */
+   static final String DIRECTORY_NAME = "AccountDataJournal";
+
+   /**
+    * The number of pending journal entries for an account that triggers a
+    * compaction.
+    */
+   static final int MAX_ENTRIES = 16;
+
+   /**
+    * The maximum time a journal entry remains pending before it is
+    * compacted, in milliseconds (30 seconds).
+    */
+   static final long COMPACTION_DELAY = 30L * 1000L;
+
+   /**
+    * The number of locks that compactions and full writes are striped over.
+    */
+   private static final int LOCK_COUNT = 64;
+
+   /**
+    * The number of times writing a journal entry is attempted.
+    */
+   private static final int MAX_APPEND_ATTEMPTS = 3;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountDataJournal</code>.
+    *
+    * @param realm
+    *    the {@link Realm}, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>realm == null</code>.
+    */
+   AccountDataJournal(Realm realm) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("realm", realm);
+
+      _realm    = realm;
+      _sequence = new AtomicLong(System.currentTimeMillis() * 1000L);
+      _pending  = new HashMap<String,Pending>();
+      _checked  = new ConcurrentHashMap<String,Boolean>();
+      _sweeping = new AtomicBoolean();
+      _locks    = new Object[LOCK_COUNT];
+      for (int i = 0; i < LOCK_COUNT; i++) {
+         _locks[i] = new Object();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The realm. Never <code>null</code>.
+    */
+   private final Realm _realm;
+
+   /**
+    * The last journal sequence number used. Starts at the current time in
+    * microseconds, so sequence numbers increase across restarts.
+    */
+   private final AtomicLong _sequence;
+
+   /**
+    * The accounts with pending journal entries, indexed by database type
+    * and account ID (see {@link #pendingKey(String,DatabaseType)}).
+    * All access is synchronized on this map.
+    */
+   private final Map<String,Pending> _pending;
+
+   /**
+    * The IDs of the accounts whose journal directories have been checked for
+    * entries left behind by an earlier run, see
+    * {@link #recover(String,String,Key)}. Never <code>null</code>.
+    */
+   private final ConcurrentHashMap<String,Boolean> _checked;
+
+   /**
+    * Flag that indicates if a sweep for old pending entries is scheduled or
+    * in progress.
+    */
+   private final AtomicBoolean _sweeping;
+
+   /**
+    * The time of the last sweep, in milliseconds since the Epoch.
+    */
+   private volatile long _lastSweep;
+
+   /**
+    * The locks that order compactions and full writes per account.
+    * Never <code>null</code>.
+    */
+   private final Object[] _locks;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the lock that must be held while writing the complete account
+    * data file of the specified account, so that it is not overwritten by a
+    * compaction of older data.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    the lock object, never <code>null</code>.
+    */
+   Object getLock(String accountID) {
+      return _locks[(accountID.hashCode() & 0x7fffffff) % LOCK_COUNT];
+   }
+
+   /**
+    * Determines the path of the journal directory for an account.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    the path, relative to the realm, never <code>null</code>.
+    */
+   private static String getDirectoryPath(String accountID) {
+      return "accounts/" + accountID + '/' + DIRECTORY_NAME;
+   }
+
+   /**
+    * Determines the key in {@link #_pending} for an account.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @return
+    *    the key, never <code>null</code>.
+    */
+   private static String pendingKey(String accountID, DatabaseType dbType) {
+      return dbType.name() + '/' + accountID;
+   }
+
+   /**
+    * Appends a journal entry with the changed properties of an account and
+    * schedules the compaction of the journal.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @param dataPath
+    *    the path of the account data file, relative to the realm,
+    *    should not be <code>null</code>.
+    *
+    * @param snapshot
+    *    the complete account data after the change, to be written by the
+    *    compaction, should not be <code>null</code>.
+    *
+    * @param changes
+    *    the changed properties, by name; a <code>null</code> value indicates
+    *    a property that was removed; should not be <code>null</code>.
+    *
+    * @param fileStoreMode
+    *    the {@link FileStoreMode} for writing the account data file during
+    *    compaction, should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key}, or <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the journal entry could not be written.
+    */
+   void append(String             accountID,
+               DatabaseType       dbType,
+               String             dataPath,
+               DataSource         snapshot,
+               Map<String,String> changes,
+               FileStoreMode      fileStoreMode,
+               Key                key)
+   throws ContentAccessException {
+
+      // Serialize the changes
+      Element delta = new Element("AccountDataDelta");
+      delta.setAttribute("mode", fileStoreMode.name());
+      for (Map.Entry<String,String> change : changes.entrySet()) {
+         Element property = new Element("Property");
+         property.setAttribute("name", change.getKey());
+         if (change.getValue() != null) {
+            property.setAttribute("value", change.getValue());
+         }
+         delta.addChild(property);
+      }
+      String xml = delta.toString();
+
+      // Write the entry and register it while holding the lock of the
+      // account, so a compaction or full write does not slip in between
+      boolean due;
+      synchronized (getLock(accountID)) {
+
+         // Write the entry as a new file; retry with the next sequence
+         // number if the name is taken, for example after the clock was
+         // turned back
+         String               path = null;
+         FileExistsException exists = null;
+         for (int attempt = 0; path == null && attempt < MAX_APPEND_ATTEMPTS; attempt++) {
+            String  fileName = HexConverter.toHexString(_sequence.incrementAndGet()) + ".xml";
+            String candidate = getDirectoryPath(accountID) + '/' + fileName;
+            WriteBatch batch = _realm.newWriteBatch();
+            batch.createFile(dbType, candidate, ByteArrayDataSource.fromString(fileName, xml, "text/xml"), key);
+            try {
+               batch.commit();
+               path = candidate;
+            } catch (FileExistsException cause) {
+               exists = cause;
+            }
+         }
+         if (path == null) {
+            throw exists;
+         }
+
+         // Register the entry for compaction
+         synchronized (_pending) {
+            String   pendingKey = pendingKey(accountID, dbType);
+            Pending     pending = _pending.get(pendingKey);
+            if (pending == null) {
+               pending = new Pending(accountID, dbType);
+               _pending.put(pendingKey, pending);
+            }
+            pending._dataPath      = dataPath;
+            pending._snapshot      = snapshot;
+            pending._fileStoreMode = fileStoreMode;
+            pending._key           = key;
+            pending._entryPaths.add(path);
+            due = pending._entryPaths.size() >= MAX_ENTRIES;
+         }
+
+         // Reads of the account data file return the new data from now on
+         DataContext.setPendingContent(_realm.getDatabase(dbType), _realm.resolvePath(dataPath).getTranslatedPath(), snapshot);
+      }
+
+      if (due) {
+         scheduleCompaction(pendingKey(accountID, dbType));
+      } else {
+         scheduleSweepIfDue();
+      }
+   }
+
+   /**
+    * Determines the changed properties between the current account data of
+    * an account and the specified new account data, so the change can be
+    * appended to the journal instead of rewriting the account data file.
+    * The current account data is read like any other read of the account
+    * data file, so while the journal has entries, it is the data held in
+    * memory and no file is read or decrypted. Should be called while
+    * holding the lock returned by {@link #getLock(String)}, up to and
+    * including the call to
+    * {@link #append(String,DatabaseType,String,DataSource,Map,FileStoreMode,Key) append}.
+    *
+    * <p>The changes are only returned if applying them to the current
+    * account data results in exactly the new account data, so that a
+    * compaction from the files on disk (see
+    * {@link #recover(String,String,Key)}) reproduces it.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @param dataPath
+    *    the path of the account data file, relative to the realm,
+    *    should not be <code>null</code>.
+    *
+    * @param data
+    *    the new account data, should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key}, or <code>null</code>.
+    *
+    * @return
+    *    the changed properties, by name, possibly empty; a
+    *    <code>null</code> value indicates a property that was removed;
+    *    or <code>null</code> if the complete account data file must be
+    *    written, for example because it does not exist yet.
+    *
+    * @throws ContentAccessException
+    *    if the account data file or the journal could not be read.
+    */
+   Map<String,String> diff(String       accountID,
+                           DatabaseType dbType,
+                           String       dataPath,
+                           Element      data,
+                           Key          key)
+   throws ContentAccessException {
+
+      recover(accountID, dataPath, key);
+      XMLDataSource file;
+      try {
+         file = _realm.getXMLFile(dbType, dataPath, key);
+      } catch (NoSuchFileException cause) {
+         return null;
+      }
+
+      Element current = (Element) file.getXML().clone();
+
+      Map<String,String> oldValues = new HashMap<String,String>();
+      Map<String,String> newValues = new HashMap<String,String>();
+      Realm.readPropertyValues(current, oldValues);
+      Realm.readPropertyValues(data,    newValues);
+
+      Map<String,String> changes = new LinkedHashMap<String,String>();
+      for (String name : oldValues.keySet()) {
+         if (! newValues.containsKey(name)) {
+            changes.put(name, null);
+         }
+      }
+      for (Map.Entry<String,String> e : newValues.entrySet()) {
+         String value = e.getValue();
+         if (value == null) {
+            return null;
+         } else if (! value.equals(oldValues.get(e.getKey()))) {
+            changes.put(e.getKey(), value);
+         }
+      }
+
+      applyChanges(current, changes);
+      return current.equals(data) ? changes : null;
+   }
+
+   /**
+    * Reads the account data file of an account and applies the journal
+    * entries to it, one by one, in order.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @param dataPath
+    *    the path of the account data file, relative to the realm,
+    *    should not be <code>null</code>.
+    *
+    * @param entryPaths
+    *    the paths of the journal entries, in order,
+    *    should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key}, or <code>null</code>.
+    *
+    * @return
+    *    the resulting account data, as a new {@link Element}, or
+    *    <code>null</code> if the account data file does not exist.
+    *
+    * @throws ContentAccessException
+    *    if the account data file or a journal entry could not be read.
+    */
+   private Element replay(String           accountID,
+                          DatabaseType     dbType,
+                          String           dataPath,
+                          Iterable<String> entryPaths,
+                          Key              key)
+   throws ContentAccessException {
+
+      XMLDataSource file;
+      try {
+         file = _realm.getXMLFile(dbType, dataPath, key);
+      } catch (NoSuchFileException cause) {
+         return null;
+      }
+
+      Element data = (Element) file.getXML().clone();
+      for (String path : entryPaths) {
+         Map<String,String> changes = new LinkedHashMap<String,String>();
+         for (Element property : _realm.getXMLFile(dbType, path, key).getXML().getChildElements("Property")) {
+            changes.put(property.getAttribute("name"), property.getAttribute("value"));
+         }
+         applyChanges(data, changes);
+      }
+      return data;
+   }
+
+   /**
+    * Applies changed properties to account data. A changed property
+    * replaces the value of the existing property element with the same
+    * name; a new property is added at the end, as an element named like
+    * the existing property elements.
+    *
+    * @param data
+    *    the account data, should not be <code>null</code>.
+    *
+    * @param changes
+    *    the changed properties, by name; a <code>null</code> value indicates
+    *    a property that was removed; should not be <code>null</code>.
+    */
+   private static void applyChanges(Element data, Map<String,String> changes) {
+      for (Map.Entry<String,String> change : changes.entrySet()) {
+         String   name = change.getKey();
+         String  value = change.getValue();
+         Element found = null;
+         String  local = "Property";
+         for (Element child : data.getChildElements()) {
+            String childName = child.getAttribute("name");
+            if (! TextUtils.isEmpty(childName)) {
+               local = child.getLocalName();
+               if (childName.equals(name)) {
+                  found = child;
+                  break;
+               }
+            }
+         }
+
+         if (value == null) {
+            if (found != null) {
+               data.removeChild(found);
+            }
+         } else if (found == null) {
+            Element property = new Element(local);
+            property.setAttribute("name",  name);
+            property.setAttribute("value", value);
+            data.addChild(property);
+         } else if (found.getAttribute("value") != null) {
+            found.setAttribute("value", value);
+         } else {
+            found.setText(value);
+         }
+      }
+   }
+
+   /**
+    * Lists the paths of the journal entries of an account on disk, in the
+    * read and write directories of the database, in order.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @return
+    *    the paths of the entries, relative to the realm, in order,
+    *    never <code>null</code>.
+    */
+   private SortedSet<String> listEntries(String accountID, DatabaseType dbType) {
+      SortedSet<String> paths = new TreeSet<String>();
+      Database               db = _realm.getDataHub().getDatabase(dbType);
+      if (db == null) {
+         return paths;
+      }
+      String          directory = getDirectoryPath(accountID);
+      String         translated = _realm.translatePath(directory);
+      for (File dir : new File[] { db.getReadDir(), db.getWriteDir() }) {
+         String[] names = new File(dir, translated).list();
+         if (names != null) {
+            for (String name : names) {
+               String entry = stripVaultSuffix(name);
+               if (entry.length() == 20 && entry.endsWith(".xml") && Assertions.isValidAccountID(entry.substring(0, 16))) {
+                  paths.add(directory + '/' + entry);
+               }
+            }
+         }
+      }
+      return paths;
+   }
+
+   /**
+    * Removes the suffix of an encrypted file from a file name, if present.
+    *
+    * @param name
+    *    the file name, should not be <code>null</code>.
+    *
+    * @return
+    *    the name without the suffix, never <code>null</code>.
+    */
+   private static String stripVaultSuffix(String name) {
+      if (name.endsWith(DataContext.BINARY_VAULT_SUFFIX)) {
+         return name.substring(0, name.length() - DataContext.BINARY_VAULT_SUFFIX.length());
+      } else if (name.endsWith(DataContext.XML_VAULT_SUFFIX)) {
+         return name.substring(0, name.length() - DataContext.XML_VAULT_SUFFIX.length());
+      }
+      return name;
+   }
+
+   /**
+    * Discards the journal of an account, after the complete account data
+    * file has been written. Should be called while holding the lock
+    * returned by {@link #getLock(String)}.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @param encrypted
+    *    whether the journal entries are encrypted.
+    */
+   void discard(String accountID, DatabaseType dbType, boolean encrypted) {
+      Pending pending;
+      synchronized (_pending) {
+         pending = _pending.remove(pendingKey(accountID, dbType));
+      }
+      if (pending != null) {
+         clearPendingContent(pending, null);
+      }
+      deleteEntries(dbType, listEntries(accountID, dbType), encrypted);
+   }
+
+   /**
+    * Forgets the pending journal entries of an account that is being
+    * deleted, so that no compaction recreates its account data files.
+    * Waits for a compaction of the account that is in progress.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   void forget(String accountID) {
+
+      // Wait for a compaction in progress
+      synchronized (getLock(accountID)) {
+         List<Pending> forgotten = new ArrayList<Pending>();
+         synchronized (_pending) {
+            for (DatabaseType dbType : DatabaseType.values()) {
+               Pending pending = _pending.remove(pendingKey(accountID, dbType));
+               if (pending != null) {
+                  forgotten.add(pending);
+               }
+            }
+         }
+         for (Pending pending : forgotten) {
+            clearPendingContent(pending, null);
+         }
+         _checked.remove(accountID);
+      }
+   }
+
+   /**
+    * Deletes journal entries. Failures are logged and ignored; entries that
+    * remain are discarded by the next compaction or full write.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @param paths
+    *    the paths of the entries, should not be <code>null</code>.
+    *
+    * @param encrypted
+    *    whether the entries are encrypted.
+    */
+   private void deleteEntries(DatabaseType dbType, Iterable<String> paths, boolean encrypted) {
+      for (String path : paths) {
+         try {
+            _realm.deleteFileIfExists(dbType, path, encrypted);
+         } catch (ContentAccessException cause) {
+            Utils.logIgnoredException(cause);
+         }
+      }
+   }
+
+   /**
+    * Compacts the journal of an account right away: writes the most recent
+    * complete account data and deletes the journal entries it covers.
+    *
+    * @param pendingKey
+    *    the key of the account in {@link #_pending},
+    *    should not be <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the account data file could not be written; the journal entries
+    *    are then kept, and the compaction is retried after the next change.
+    */
+   private void compact(String pendingKey) throws ContentAccessException {
+      Pending pending;
+      synchronized (_pending) {
+         pending = _pending.get(pendingKey);
+      }
+      if (pending == null) {
+         return;
+      }
+
+      synchronized (getLock(pending._accountID)) {
+
+         // Take the pending state; a change that arrives from now on starts
+         // a new pending state, with a more recent snapshot
+         synchronized (_pending) {
+            if (_pending.get(pendingKey) != pending) {
+               return;
+            }
+            _pending.remove(pendingKey);
+         }
+
+         try {
+            _realm.storeFile(pending._dbType, pending._dataPath, pending._snapshot, pending._fileStoreMode, pending._key, Durability.SYNC);
+         } catch (ContentAccessException cause) {
+
+            // Put the entries back, unless a newer state exists
+            synchronized (_pending) {
+               Pending newer = _pending.get(pendingKey);
+               if (newer == null) {
+                  _pending.put(pendingKey, pending);
+               } else {
+                  newer._entryPaths.addAll(0, pending._entryPaths);
+               }
+            }
+            throw cause;
+         }
+
+         // The snapshot is the most recent complete account data, so it
+         // covers all entries on disk, including any left behind by an
+         // earlier run; reads can go to the file again
+         deleteEntries(pending._dbType, listEntries(pending._accountID, pending._dbType), pending._key != null);
+         clearPendingContent(pending, pending._snapshot);
+      }
+   }
+
+   /**
+    * Stops returning the account data held in memory for reads of the
+    * account data file of an account.
+    *
+    * @param pending
+    *    the pending state of the account, should not be <code>null</code>.
+    *
+    * @param snapshot
+    *    the account data that should no longer be returned, or
+    *    <code>null</code> to stop returning any account data.
+    */
+   private void clearPendingContent(Pending pending, DataSource snapshot) {
+      Database db = _realm.getDatabase(pending._dbType);
+      if (db != null && pending._dataPath != null) {
+         DataContext.clearPendingContent(db, _realm.resolvePath(pending._dataPath).getTranslatedPath(), snapshot);
+      }
+   }
+
+   /**
+    * Looks for journal entries of an account left behind by an earlier run,
+    * in all databases, unless this has been done before in this run. Such
+    * entries are not known in memory; they are applied to the account data
+    * file, one by one, and the result is held in memory and compacted in
+    * the background, just like the entries written in this run. After the
+    * first call for an account, this method returns right away.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dataPath
+    *    the path of the account data file, relative to the realm,
+    *    should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} of the account, or <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the journal or the account data file could not be read; the
+    *    check is then repeated on the next call.
+    */
+   void recover(String accountID, String dataPath, Key key)
+   throws ContentAccessException {
+      if (_checked.containsKey(accountID)) {
+         return;
+      }
+      synchronized (getLock(accountID)) {
+         if (! _checked.containsKey(accountID)) {
+            for (DatabaseType dbType : DatabaseType.values()) {
+               recover(accountID, dbType, dataPath, key);
+            }
+            _checked.put(accountID, Boolean.TRUE);
+         }
+      }
+   }
+
+   /**
+    * Looks for journal entries of an account left behind by an earlier run,
+    * in one database, and registers them for compaction in the background.
+    * Should be called while holding the lock returned by
+    * {@link #getLock(String)}.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
+    *
+    * @param dataPath
+    *    the path of the account data file, relative to the realm,
+    *    should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} of the account, or <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the journal or the account data file could not be read.
+    */
+   private void recover(String accountID, DatabaseType dbType, String dataPath, Key key)
+   throws ContentAccessException {
+      String pendingKey = pendingKey(accountID, dbType);
+      synchronized (_pending) {
+         if (_pending.containsKey(pendingKey)) {
+            return;
+         }
+      }
+
+      SortedSet<String> entryPaths = listEntries(accountID, dbType);
+      if (entryPaths.isEmpty()) {
+         return;
+      }
+
+      // Without an account data file the entries are stale, since a full
+      // write that deletes the file also discards the journal
+      Element data = replay(accountID, dbType, dataPath, entryPaths, key);
+      if (data == null) {
+         Utils.logWarning(_realm.toString() + ": Discarding " + entryPaths.size() + " account data journal entries of account " + TextUtils.quote(accountID) + " without account data file.");
+         deleteEntries(dbType, entryPaths, key != null);
+         return;
+      }
+
+      String        last = entryPaths.last();
+      String        mode = _realm.getXMLFile(dbType, last, key).getXML().getAttribute("mode");
+      FileStoreMode fileStoreMode;
+      try {
+         fileStoreMode = FileStoreMode.valueOf(mode);
+      } catch (RuntimeException cause) {
+         throw new TechnicalContentAccessException("Journal entry " + TextUtils.quote(last) + " has no valid file store mode.", cause);
+      }
+
+      Utils.logInfo(_realm.toString() + ": Found " + entryPaths.size() + " account data journal entries of account " + TextUtils.quote(accountID) + " left behind by an earlier run, compacting them in the background.");
+      DataSource snapshot = ByteArrayDataSource.fromString(Realm.ACCOUNT_DATA_FILE_NAME, data.toString(), "text/xml");
+      Pending     pending = new Pending(accountID, dbType);
+      pending._dataPath      = dataPath;
+      pending._snapshot      = snapshot;
+      pending._fileStoreMode = fileStoreMode;
+      pending._key           = key;
+      pending._entryPaths.addAll(entryPaths);
+      synchronized (_pending) {
+         _pending.put(pendingKey, pending);
+      }
+      DataContext.setPendingContent(_realm.getDatabase(dbType), _realm.resolvePath(dataPath).getTranslatedPath(), snapshot);
+      scheduleCompaction(pendingKey);
+   }
+
+   /**
+    * Compacts all journals right away, for example before shutdown.
+    * Failures are logged.
+    */
+   void compactAll() {
+      compactOlderThan(Long.MAX_VALUE);
+   }
+
+   /**
+    * Compacts the journals with pending entries older than the specified
+    * time. Failures are logged.
+    *
+    * @param time
+    *    the time, in milliseconds since the Epoch.
+    */
+   private void compactOlderThan(long time) {
+      List<String> keys = new ArrayList<String>();
+      synchronized (_pending) {
+         for (Map.Entry<String,Pending> e : _pending.entrySet()) {
+            if (e.getValue()._created < time) {
+               keys.add(e.getKey());
+            }
+         }
+      }
+
+      for (String key : keys) {
+         try {
+            compact(key);
+         } catch (Throwable exception) {
+            Utils.logError(_realm.toString() + ": Failed to compact account data journal " + TextUtils.quote(key) + '.', exception);
+         }
+      }
+   }
+
+   /**
+    * Schedules the compaction of the journal of an account in the
+    * background.
+    *
+    * @param pendingKey
+    *    the key of the account in {@link #_pending},
+    *    should not be <code>null</code>.
+    */
+   private void scheduleCompaction(final String pendingKey) {
+      IOExecutor.submit(new Callable<Object>() {
+         public Object call() {
+            try {
+               compact(pendingKey);
+            } catch (Throwable exception) {
+               Utils.logError(_realm.toString() + ": Failed to compact account data journal " + TextUtils.quote(pendingKey) + '.', exception);
+            }
+            return null;
+         }
+      });
+   }
+
+   /**
+    * Schedules a sweep that compacts all journals with entries older than
+    * {@link #COMPACTION_DELAY}, if no sweep was done for that long.
+    */
+   private void scheduleSweepIfDue() {
+      final long now = System.currentTimeMillis();
+      if (now - _lastSweep < COMPACTION_DELAY || ! _sweeping.compareAndSet(false, true)) {
+         return;
+      }
+
+      _lastSweep = now;
+      try {
+         IOExecutor.submit(new Callable<Object>() {
+            public Object call() {
+               try {
+                  compactOlderThan(now - COMPACTION_DELAY);
+               } finally {
+                  _sweeping.set(false);
+               }
+               return null;
+            }
+         });
+      } catch (RuntimeException cause) {
+         _sweeping.set(false);
+         Utils.logIgnoredException(cause);
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Pending journal entries of an account. Guarded by the
+    * {@link AccountDataJournal#_pending} map.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class Pending extends Object {
+
+      /**
+       * Constructs a new <code>Pending</code> object.
+       *
+       * @param accountID
+       *    the account ID, should not be <code>null</code>.
+       *
+       * @param dbType
+       *    the database type, should not be <code>null</code>.
+       */
+      Pending(String accountID, DatabaseType dbType) {
+         _accountID  = accountID;
+         _dbType     = dbType;
+         _created    = System.currentTimeMillis();
+         _entryPaths = new ArrayList<String>();
+      }
+
+      /**
+       * The account ID. Never <code>null</code>.
+       */
+      final String _accountID;
+
+      /**
+       * The database type. Never <code>null</code>.
+       */
+      final DatabaseType _dbType;
+
+      /**
+       * The time the first pending entry was written, in milliseconds since
+       * the Epoch.
+       */
+      final long _created;
+
+      /**
+       * The paths of the pending journal entries, in order.
+       * Never <code>null</code>.
+       */
+      final List<String> _entryPaths;
+
+      /**
+       * The path of the account data file. Never <code>null</code> once an
+       * entry has been added.
+       */
+      String _dataPath;
+
+      /**
+       * The most recent complete account data. Never <code>null</code>
+       * once an entry has been added.
+       */
+      DataSource _snapshot;
+
+      /**
+       * The file store mode for writing the account data file.
+       */
+      FileStoreMode _fileStoreMode;
+
+      /**
+       * The encryption key, or <code>null</code>.
+       */
+      Key _key;
+   }
+}
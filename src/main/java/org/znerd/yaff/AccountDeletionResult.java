@@ -0,0 +1,182 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.xins.common.MandatoryArgumentChecker;
+
+/**
+ * Result of deleting multiple accounts at once, see
+ * {@link Realm#deleteAccounts(java.util.Collection)}. For each requested
+ * account ID, exactly one of the following applies: the account was
+ * deleted, the account was not found, or deleting it failed.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class AccountDeletionResult extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountDeletionResult</code>. The collections
+    * are not copied.
+    *
+    * @param deletedAccountIDs
+    *    the IDs of the accounts that were deleted,
+    *    should not be <code>null</code>.
+    *
+    * @param notFoundAccountIDs
+    *    the IDs of the accounts that did not exist,
+    *    should not be <code>null</code>.
+    *
+    * @param failures
+    *    the first exception for each account that could not be deleted
+    *    completely, indexed by account ID, should not be <code>null</code>.
+    */
+   AccountDeletionResult(Set<String>           deletedAccountIDs,
+                         Set<String>           notFoundAccountIDs,
+                         Map<String,Exception> failures) {
+      _deletedAccountIDs  = Collections.unmodifiableSet(deletedAccountIDs);
+      _notFoundAccountIDs = Collections.unmodifiableSet(notFoundAccountIDs);
+      _failures           = Collections.unmodifiableMap(failures);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The IDs of the accounts that were deleted. Never <code>null</code>.
+    */
+   private final Set<String> _deletedAccountIDs;
+
+   /**
+    * The IDs of the accounts that did not exist. Never <code>null</code>.
+    */
+   private final Set<String> _notFoundAccountIDs;
+
+   /**
+    * The first exception for each account that could not be deleted
+    * completely, indexed by account ID. Never <code>null</code>.
+    */
+   private final Map<String,Exception> _failures;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines if the specified account was deleted.
+    *
+    * @param accountID
+    *    the account ID, as passed in the request,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the account was deleted,
+    *    <code>false</code> otherwise.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>.
+    */
+   public boolean isDeleted(String accountID) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("accountID", accountID);
+      return _deletedAccountIDs.contains(accountID);
+   }
+
+   /**
+    * Returns the IDs of all accounts that were deleted.
+    *
+    * @return
+    *    an unmodifiable {@link Set} of account IDs, in request order,
+    *    never <code>null</code>.
+    */
+   public Set<String> getDeletedAccountIDs() {
+      return _deletedAccountIDs;
+   }
+
+   /**
+    * Determines if the specified account did not exist. Any references to
+    * it have still been removed.
+    *
+    * @param accountID
+    *    the account ID, as passed in the request,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the account was not found,
+    *    <code>false</code> otherwise.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>.
+    */
+   public boolean isNotFound(String accountID) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("accountID", accountID);
+      return _notFoundAccountIDs.contains(accountID);
+   }
+
+   /**
+    * Returns the IDs of all accounts that did not exist.
+    *
+    * @return
+    *    an unmodifiable {@link Set} of account IDs, in request order,
+    *    never <code>null</code>.
+    */
+   public Set<String> getNotFoundAccountIDs() {
+      return _notFoundAccountIDs;
+   }
+
+   /**
+    * Returns the exception that caused the deletion of the specified account
+    * to fail. Deleting an account involves several steps; only the first
+    * failure is reported, but the remaining steps are still performed.
+    *
+    * @param accountID
+    *    the account ID, as passed in the request,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the exception, or <code>null</code> if the deletion did not fail.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>.
+    */
+   public Exception getFailure(String accountID)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("accountID", accountID);
+      return _failures.get(accountID);
+   }
+
+   /**
+    * Returns all failures.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from account ID to exception,
+    *    in request order, never <code>null</code>.
+    */
+   public Map<String,Exception> getFailures() {
+      return _failures;
+   }
+
+   /**
+    * Determines if the deletion failed for any of the accounts.
+    *
+    * @return
+    *    <code>true</code> if there is at least one failure,
+    *    <code>false</code> otherwise.
+    */
+   public boolean hasFailures() {
+      return ! _failures.isEmpty();
+   }
+
+   @Override
+   public String toString() {
+      return _deletedAccountIDs.size() + " accounts deleted, " + _notFoundAccountIDs.size() + " not found, " + _failures.size() + " failed";
+   }
+}
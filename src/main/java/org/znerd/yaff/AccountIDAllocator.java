@@ -0,0 +1,33 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+/**
+ * Strategy for generating the IDs of new accounts. An account ID consists
+ * of 16 lowercase hex digits, i.e. 64 bits.
+ *
+ * <p>Uniqueness is not guaranteed by the allocator itself; the realm checks
+ * each generated ID against the IDs of the existing accounts and generates
+ * another one on a collision.
+ *
+ * <p>Two implementations are available, selected by the
+ * <code>accountIDAllocator</code> attribute of the
+ * <code>&lt;Realm/&gt;</code> element: {@link RandomAccountIDAllocator}
+ * (<code>"random"</code>, the default) and
+ * {@link TimeOrderedAccountIDAllocator} (<code>"time-ordered"</code>).
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ *
+ * @see Realm#getAccountIDAllocator()
+ */
+public interface AccountIDAllocator {
+
+   /**
+    * Generates a new account ID. The ID is valid
+    * (see {@link Assertions#isValidAccountID(String)}), but it may already
+    * be in use.
+    *
+    * @return
+    *    the account ID, 16 lowercase hex digits, never <code>null</code>.
+    */
+   public String nextAccountID();
+}
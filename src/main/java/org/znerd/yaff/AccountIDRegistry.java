@@ -0,0 +1,416 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+
+/**
+ * In-memory registry of the IDs of all accounts in a realm. The registry is
+ * loaded from disk once, when the realm first needs it, and then updated by
+ * the realm as accounts are created and deleted, so counting and listing
+ * accounts does not touch the disk.
+ *
+ * <p>Accounts may also be added or removed outside the realm, for example
+ * by copying files into a database. To pick up such changes, the registry
+ * is reconciled with the disk periodically, at most once every
+ * reconciliation interval. The reconciliation is triggered by an access to
+ * the registry and is performed in the background by the
+ * {@link IOExecutor}. Changes made by the realm while a reconciliation is in
+ * progress take precedence over what the reconciliation finds.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+final class AccountIDRegistry extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default reconciliation interval, in milliseconds: 5 minutes.
+    */
+   static final long DEFAULT_RECONCILE_INTERVAL = 5L * 60L * 1000L;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountIDRegistry</code> and loads the account
+    * IDs from disk.
+    *
+    * @param realm
+    *    the {@link Realm} to register the account IDs of,
+    *    cannot be <code>null</code>.
+    *
+    * @param reconcileInterval
+    *    the minimum time between reconciliations, in milliseconds,
+    *    must be &gt;= <code>0L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>realm == null || reconcileInterval &lt; 0L</code>.
+    *
+    * @throws ContentAccessException
+    *    if the account IDs could not be loaded.
+    */
+   AccountIDRegistry(Realm realm, long reconcileInterval)
+   throws IllegalArgumentException, ContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("realm", realm);
+      if (reconcileInterval < 0L) {
+         throw new IllegalArgumentException("reconcileInterval (" + reconcileInterval + ") < 0L");
+      }
+
+      _realm             = realm;
+      _reconcileInterval = reconcileInterval;
+      _ids               = new ConcurrentHashMap<String,Boolean>();
+      _lock              = new Object();
+      _reconciling       = new AtomicBoolean();
+
+      reconcile();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The realm. Never <code>null</code>.
+    */
+   private final Realm _realm;
+
+   /**
+    * The minimum time between reconciliations, in milliseconds.
+    */
+   private final long _reconcileInterval;
+
+   /**
+    * The registered account IDs, as keys. Never <code>null</code>.
+    * Modifications are synchronized on {@link #_lock}.
+    */
+   private final ConcurrentHashMap<String,Boolean> _ids;
+
+   /**
+    * Lock for modifications of {@link #_ids} and {@link #_touched}.
+    * Never <code>null</code>.
+    */
+   private final Object _lock;
+
+   /**
+    * The account IDs added or removed by the realm since the current
+    * reconciliation started, or <code>null</code> if no reconciliation is in
+    * progress. Guarded by {@link #_lock}.
+    */
+   private Set<String> _touched;
+
+   /**
+    * Flag that indicates if a reconciliation is scheduled or in progress.
+    * Never <code>null</code>.
+    */
+   private final AtomicBoolean _reconciling;
+
+   /**
+    * The time the last reconciliation started, in milliseconds since the
+    * Epoch.
+    */
+   private volatile long _lastReconcile;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the number of registered accounts.
+    *
+    * @return
+    *    the number of accounts, always &gt;= 0.
+    */
+   int size() {
+      scheduleReconcileIfDue();
+      return _ids.size();
+   }
+
+   /**
+    * Returns a snapshot of the registered account IDs.
+    *
+    * @return
+    *    a new, modifiable {@link Collection} of account IDs,
+    *    never <code>null</code>.
+    */
+   Collection<String> getAccountIDs() {
+      scheduleReconcileIfDue();
+      return new HashSet<String>(_ids.keySet());
+   }
+
+   /**
+    * Returns a lazy view of one part of the registered account IDs. The
+    * account IDs are divided over the parts by hash code, so the parts are
+    * disjoint and together contain all account IDs. Iterating does not copy
+    * the account IDs; it is weakly consistent: account IDs added or removed
+    * during the iteration may or may not be returned.
+    *
+    * @param part
+    *    the index of the part, must be &gt;= 0 and &lt;
+    *    <code>partCount</code>.
+    *
+    * @param partCount
+    *    the number of parts, must be &gt;= 1.
+    *
+    * @return
+    *    an {@link Iterable} over the account IDs in the part,
+    *    never <code>null</code>.
+    */
+   Iterable<String> iterate(final int part, final int partCount) {
+      scheduleReconcileIfDue();
+      return new Iterable<String>() {
+         public Iterator<String> iterator() {
+            return new PartIterator(_ids.keySet().iterator(), part, partCount);
+         }
+      };
+   }
+
+   /**
+    * Divides the registered account IDs into parts of about the same size,
+    * in a single pass over the account IDs. Unlike
+    * {@link #iterate(int,int)}, which walks all account IDs for each part,
+    * this copies the account IDs; it is meant for scanning all accounts
+    * with multiple threads. Account IDs added or removed while dividing may
+    * or may not be included.
+    *
+    * @param partCount
+    *    the requested number of parts, must be &gt;= 1.
+    *
+    * @return
+    *    a new {@link List} of parts, each a new, non-empty {@link List} of
+    *    account IDs; empty if there are no accounts, never <code>null</code>.
+    */
+   List<List<String>> partition(int partCount) {
+      scheduleReconcileIfDue();
+
+      int            partSize = Math.max(1, (_ids.size() + partCount - 1) / partCount);
+      List<List<String>> parts = new ArrayList<List<String>>(partCount);
+      List<String>     current = null;
+      for (String accountID : _ids.keySet()) {
+         if (current == null || current.size() >= partSize) {
+            current = new ArrayList<String>(partSize);
+            parts.add(current);
+         }
+         current.add(accountID);
+      }
+      return parts;
+   }
+
+   /**
+    * Determines if an account ID is registered.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the account ID is registered,
+    *    <code>false</code> otherwise.
+    */
+   boolean contains(String accountID) {
+      return _ids.containsKey(accountID);
+   }
+
+   /**
+    * Registers an account ID, after the account has been created.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   void add(String accountID) {
+      synchronized (_lock) {
+         if (_touched != null) {
+            _touched.add(accountID);
+         }
+         _ids.put(accountID, Boolean.TRUE);
+      }
+   }
+
+   /**
+    * Unregisters an account ID, after the account has been deleted.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   void remove(String accountID) {
+      synchronized (_lock) {
+         if (_touched != null) {
+            _touched.add(accountID);
+         }
+         _ids.remove(accountID);
+      }
+   }
+
+   /**
+    * Schedules a reconciliation in the background, if the reconciliation
+    * interval has passed and no reconciliation is in progress yet.
+    */
+   private void scheduleReconcileIfDue() {
+      if (System.currentTimeMillis() - _lastReconcile < _reconcileInterval
+       || ! _reconciling.compareAndSet(false, true)) {
+         return;
+      }
+
+      try {
+         IOExecutor.submit(new Callable<Object>() {
+            public Object call() {
+               try {
+                  reconcile();
+               } catch (Throwable exception) {
+                  Utils.logError(_realm.toString() + ": Failed to reconcile account IDs.", exception);
+               } finally {
+                  _reconciling.set(false);
+               }
+               return null;
+            }
+         });
+      } catch (RuntimeException cause) {
+         _reconciling.set(false);
+         Utils.logIgnoredException(cause);
+      }
+   }
+
+   /**
+    * Reconciles the registry with the disk right away. Only one
+    * reconciliation runs at a time.
+    *
+    * @throws ContentAccessException
+    *    if the account IDs could not be read from disk.
+    */
+   void reconcile() throws ContentAccessException {
+      synchronized (_reconciling) {
+
+         // Track changes made by the realm while scanning
+         _lastReconcile = System.currentTimeMillis();
+         synchronized (_lock) {
+            _touched = new HashSet<String>();
+         }
+
+         Collection<String> found;
+         try {
+            found = _realm.scanAccountIDs();
+         } catch (ContentAccessException cause) {
+            synchronized (_lock) {
+               _touched = null;
+            }
+            throw cause;
+         }
+
+         // Apply the differences, except for accounts touched by the realm
+         int added   = 0;
+         int removed = 0;
+         synchronized (_lock) {
+            for (String accountID : found) {
+               if (! _touched.contains(accountID) && _ids.put(accountID, Boolean.TRUE) == null) {
+                  added++;
+               }
+            }
+            for (String accountID : _ids.keySet()) {
+               if (! found.contains(accountID) && ! _touched.contains(accountID)) {
+                  _ids.remove(accountID);
+                  removed++;
+               }
+            }
+            _touched = null;
+         }
+
+         Utils.logDebug(_realm.toString() + ": Reconciled account IDs: " + _ids.size() + " accounts, " + added + " added, " + removed + " removed.");
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Iterator over the account IDs in one part, see
+    * {@link AccountIDRegistry#iterate(int,int)}.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class PartIterator
+   extends Object
+   implements Iterator<String> {
+
+      /**
+       * Constructs a new <code>PartIterator</code>.
+       *
+       * @param ids
+       *    the iterator over all account IDs, should not be <code>null</code>.
+       *
+       * @param part
+       *    the index of the part.
+       *
+       * @param partCount
+       *    the number of parts.
+       */
+      PartIterator(Iterator<String> ids, int part, int partCount) {
+         _ids       = ids;
+         _part      = part;
+         _partCount = partCount;
+      }
+
+      /**
+       * The iterator over all account IDs. Never <code>null</code>.
+       */
+      private final Iterator<String> _ids;
+
+      /**
+       * The index of the part.
+       */
+      private final int _part;
+
+      /**
+       * The number of parts.
+       */
+      private final int _partCount;
+
+      /**
+       * The next account ID to return, or <code>null</code> if it has not
+       * been determined yet.
+       */
+      private String _next;
+
+      public boolean hasNext() {
+         while (_next == null && _ids.hasNext()) {
+            String id = _ids.next();
+            if (_partCount == 1 || (id.hashCode() & 0x7fffffff) % _partCount == _part) {
+               _next = id;
+            }
+         }
+         return _next != null;
+      }
+
+      public String next() {
+         if (! hasNext()) {
+            throw new NoSuchElementException();
+         }
+         String id = _next;
+         _next     = null;
+         return id;
+      }
+
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+   }
+}
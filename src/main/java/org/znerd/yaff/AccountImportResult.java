@@ -0,0 +1,151 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of creating multiple accounts at once, see
+ * {@link Realm#createAccounts(Iterable)}. Records are identified by their
+ * position in the input, starting at 0. For each record, exactly one of the
+ * following applies: the account was created, or creating it failed.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class AccountImportResult extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountImportResult</code>. The collections are
+    * not copied.
+    *
+    * @param accountIDs
+    *    the account ID for each record, <code>null</code> for records that
+    *    failed, should not be <code>null</code>.
+    *
+    * @param failures
+    *    the exception for each record that failed, indexed by record number,
+    *    should not be <code>null</code>.
+    */
+   AccountImportResult(List<String>                          accountIDs,
+                       Map<Integer,AccountCreationException> failures) {
+      _accountIDs = Collections.unmodifiableList(accountIDs);
+      _failures   = Collections.unmodifiableMap(failures);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The account ID for each record, <code>null</code> for records that
+    * failed. Never <code>null</code>.
+    */
+   private final List<String> _accountIDs;
+
+   /**
+    * The exception for each record that failed, indexed by record number.
+    * Never <code>null</code>.
+    */
+   private final Map<Integer,AccountCreationException> _failures;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the number of records processed.
+    *
+    * @return
+    *    the number of records, always &gt;= 0.
+    */
+   public int getRecordCount() {
+      return _accountIDs.size();
+   }
+
+   /**
+    * Returns the number of accounts created.
+    *
+    * @return
+    *    the number of accounts created, always &gt;= 0.
+    */
+   public int getCreatedCount() {
+      return _accountIDs.size() - _failures.size();
+   }
+
+   /**
+    * Returns the ID of the account created for the specified record.
+    *
+    * @param record
+    *    the record number, must be &gt;= 0 and &lt;
+    *    {@link #getRecordCount()}.
+    *
+    * @return
+    *    the account ID, or <code>null</code> if creating the account failed.
+    *
+    * @throws IndexOutOfBoundsException
+    *    if <code>record &lt; 0 || record &gt;= getRecordCount()</code>.
+    */
+   public String getAccountID(int record) throws IndexOutOfBoundsException {
+      return _accountIDs.get(record);
+   }
+
+   /**
+    * Returns the IDs of the accounts created, per record.
+    *
+    * @return
+    *    an unmodifiable {@link List} with the account ID for each record,
+    *    <code>null</code> for records that failed, never <code>null</code>.
+    */
+   public List<String> getAccountIDs() {
+      return _accountIDs;
+   }
+
+   /**
+    * Returns the exception that caused the creation of the account for the
+    * specified record to fail.
+    *
+    * @param record
+    *    the record number.
+    *
+    * @return
+    *    the {@link AccountCreationException}, or <code>null</code> if the
+    *    creation did not fail.
+    */
+   public AccountCreationException getFailure(int record) {
+      return _failures.get(record);
+   }
+
+   /**
+    * Returns all failures.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from record number to exception, in
+    *    record order, never <code>null</code>.
+    */
+   public Map<Integer,AccountCreationException> getFailures() {
+      return _failures;
+   }
+
+   /**
+    * Determines if the creation failed for any of the records.
+    *
+    * @return
+    *    <code>true</code> if there is at least one failure,
+    *    <code>false</code> otherwise.
+    */
+   public boolean hasFailures() {
+      return ! _failures.isEmpty();
+   }
+
+   @Override
+   public String toString() {
+      return getCreatedCount() + " accounts created, " + _failures.size() + " failed";
+   }
+}
@@ -0,0 +1,241 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of verifying or rebuilding an account index, see
+ * {@link Realm#verifyAccountIndex(String)} and
+ * {@link Realm#rebuildAccountIndex(String)}.
+ *
+ * <p>An <em>orphaned</em> reference is a reference in the index that points
+ * to an account that does not exist. A <em>missing</em> reference is an
+ * account without any reference in the index; this is only determined for
+ * the indexes that hold a reference for every account
+ * (<code>"combo"</code> and <code>"id"</code>).
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class AccountIndexReport extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountIndexReport</code>. The collections are
+    * not copied.
+    *
+    * @param indexName
+    *    the name of the index, should not be <code>null</code>.
+    *
+    * @param repaired
+    *    whether the index was repaired, or only verified.
+    *
+    * @param refCount
+    *    the number of references found in the index.
+    *
+    * @param orphanedRefs
+    *    the orphaned references, mapped to the account ID they point to, or
+    *    to <code>null</code> if they do not point to an account ID at all;
+    *    should not be <code>null</code>.
+    *
+    * @param missingRefs
+    *    the IDs of the accounts without a reference,
+    *    should not be <code>null</code>.
+    *
+    * @param refFailures
+    *    the exception for each reference that could not be checked or
+    *    removed, should not be <code>null</code>.
+    *
+    * @param accountFailures
+    *    the exception for each account ID for which the missing reference
+    *    could not be stored, should not be <code>null</code>.
+    *
+    * @param duration
+    *    the duration of the operation, in milliseconds.
+    */
+   AccountIndexReport(String                indexName,
+                      boolean               repaired,
+                      int                   refCount,
+                      Map<String,String>    orphanedRefs,
+                      Set<String>           missingRefs,
+                      Map<String,Exception> refFailures,
+                      Map<String,Exception> accountFailures,
+                      long                  duration) {
+      _indexName       = indexName;
+      _repaired        = repaired;
+      _refCount        = refCount;
+      _orphanedRefs    = Collections.unmodifiableMap(orphanedRefs);
+      _missingRefs     = Collections.unmodifiableSet(missingRefs);
+      _refFailures     = Collections.unmodifiableMap(refFailures);
+      _accountFailures = Collections.unmodifiableMap(accountFailures);
+      _duration        = duration;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of the index. Never <code>null</code>.
+    */
+   private final String _indexName;
+
+   /**
+    * Whether the index was repaired, or only verified.
+    */
+   private final boolean _repaired;
+
+   /**
+    * The number of references found in the index.
+    */
+   private final int _refCount;
+
+   /**
+    * The orphaned references, mapped to the account ID they point to.
+    * Never <code>null</code>.
+    */
+   private final Map<String,String> _orphanedRefs;
+
+   /**
+    * The IDs of the accounts without a reference. Never <code>null</code>.
+    */
+   private final Set<String> _missingRefs;
+
+   /**
+    * The exception for each reference that could not be checked or removed.
+    * Never <code>null</code>.
+    */
+   private final Map<String,Exception> _refFailures;
+
+   /**
+    * The exception for each account ID for which the missing reference could
+    * not be stored. Never <code>null</code>.
+    */
+   private final Map<String,Exception> _accountFailures;
+
+   /**
+    * The duration of the operation, in milliseconds.
+    */
+   private final long _duration;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the name of the index.
+    *
+    * @return
+    *    the index name, never <code>null</code>.
+    */
+   public String getIndexName() {
+      return _indexName;
+   }
+
+   /**
+    * Determines if the index was repaired, or only verified. If it was
+    * repaired, the orphaned references have been removed and the missing
+    * references have been stored, except where a failure is reported.
+    *
+    * @return
+    *    <code>true</code> if the index was repaired,
+    *    <code>false</code> if it was only verified.
+    */
+   public boolean isRepaired() {
+      return _repaired;
+   }
+
+   /**
+    * Returns the number of references found in the index, including
+    * orphaned ones.
+    *
+    * @return
+    *    the number of references, always &gt;= 0.
+    */
+   public int getRefCount() {
+      return _refCount;
+   }
+
+   /**
+    * Returns the orphaned references.
+    *
+    * @return
+    *    an unmodifiable sorted {@link Map} from reference to the account ID
+    *    it points to, or to <code>null</code> if it does not point to an
+    *    account ID at all; never <code>null</code>.
+    */
+   public Map<String,String> getOrphanedRefs() {
+      return _orphanedRefs;
+   }
+
+   /**
+    * Returns the IDs of the accounts that have no reference in the index.
+    *
+    * @return
+    *    an unmodifiable sorted {@link Set} of account IDs,
+    *    never <code>null</code>.
+    */
+   public Set<String> getMissingRefs() {
+      return _missingRefs;
+   }
+
+   /**
+    * Returns the references that could not be looked up or, when
+    * repairing, removed.
+    *
+    * @return
+    *    an unmodifiable sorted {@link Map} from reference to the exception,
+    *    never <code>null</code>.
+    */
+   public Map<String,Exception> getRefFailures() {
+      return _refFailures;
+   }
+
+   /**
+    * Returns the accounts for which the missing reference could not be
+    * stored, when repairing.
+    *
+    * @return
+    *    an unmodifiable sorted {@link Map} from account ID to the exception,
+    *    never <code>null</code>.
+    */
+   public Map<String,Exception> getAccountFailures() {
+      return _accountFailures;
+   }
+
+   /**
+    * Determines if the index is consistent with the accounts: there are no
+    * orphaned references, no missing references and no failures.
+    *
+    * @return
+    *    <code>true</code> if the index is consistent,
+    *    <code>false</code> otherwise.
+    */
+   public boolean isConsistent() {
+      return _orphanedRefs.isEmpty() && _missingRefs.isEmpty() && _refFailures.isEmpty() && _accountFailures.isEmpty();
+   }
+
+   /**
+    * Returns the duration of the operation.
+    *
+    * @return
+    *    the duration, in milliseconds.
+    */
+   public long getDuration() {
+      return _duration;
+   }
+
+   @Override
+   public String toString() {
+      return "Index \"" + _indexName + "\" " + (_repaired ? "rebuilt" : "verified") + " in " + _duration + " ms: "
+           + _refCount + " references, " + _orphanedRefs.size() + " orphaned, "
+           + _missingRefs.size() + " missing, " + _refFailures.size() + " references failed, "
+           + _accountFailures.size() + " accounts failed";
+   }
+}
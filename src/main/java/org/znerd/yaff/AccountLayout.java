@@ -0,0 +1,107 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+/**
+ * Layout of the account directories within a realm.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ *
+ * @see Realm#getAccountLayout()
+ * @see Realm#migrateToShardedLayout()
+ */
+public enum AccountLayout {
+
+   /**
+    * All account directories are stored directly in the
+    * <code>accounts</code> directory, for example
+    * <code>accounts/0123456789abcdef</code>.
+    */
+   FLAT {
+      String getAccountPath(String accountID) {
+         return ACCOUNTS_DIR + '/' + accountID;
+      }
+   },
+
+   /**
+    * Account directories are spread over two levels of subdirectories,
+    * named after a hash of the account ID, for example
+    * <code>accounts/3f/a0/0123456789abcdef</code>. This keeps directories
+    * small, even with millions of accounts, and does not depend on the
+    * distribution of the account IDs themselves.
+    */
+   SHARDED {
+      String getAccountPath(String accountID) {
+         String shard = getShard(accountID);
+         return ACCOUNTS_DIR + '/' + shard.substring(0, 2) + '/' + shard.substring(2, 4) + '/' + accountID;
+      }
+   };
+
+   /**
+    * The path of the directory that holds all accounts, relative to the
+    * realm.
+    */
+   static final String ACCOUNTS_DIR = "accounts";
+
+   /**
+    * Determines the path of the directory for the specified account.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code> and should be valid.
+    *
+    * @return
+    *    the path of the account directory, relative to the realm,
+    *    never <code>null</code>.
+    */
+   abstract String getAccountPath(String accountID);
+
+   /**
+    * Determines if the specified name is a shard directory name, i.e. 2
+    * lowercase hex digits.
+    *
+    * @param name
+    *    the name, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the name is a shard directory name,
+    *    <code>false</code> otherwise.
+    */
+   static boolean isShardName(String name) {
+      return name.length() == 2 && isLowerHexDigit(name.charAt(0)) && isLowerHexDigit(name.charAt(1));
+   }
+
+   /**
+    * Determines if the specified character is a lowercase hex digit.
+    *
+    * @param c
+    *    the character.
+    *
+    * @return
+    *    <code>true</code> if the character is a lowercase hex digit.
+    */
+   private static boolean isLowerHexDigit(char c) {
+      return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+   }
+
+   /**
+    * Computes the 4 hex digits that determine the shard of an account.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    4 lowercase hex digits, never <code>null</code>.
+    */
+   private static String getShard(String accountID) {
+
+      // Mix the bits, since String.hashCode() is weak in the low bits
+      int h = accountID.hashCode();
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+
+      String hex = Integer.toHexString((h & 0xffff) | 0x10000);
+      return hex.substring(1);
+   }
+}
@@ -0,0 +1,358 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+
+/**
+ * Secondary index on an account property: a mapping from property value to
+ * the IDs of the accounts that have that value. This makes it possible to
+ * find accounts by property value without loading the data of all
+ * accounts. Secondary indexes are declared in the realm definition, for
+ * example:
+ *
+ * <blockquote><pre>&lt;PropertyIndexes&gt;
+ *   &lt;PropertyIndex property="email" /&gt;
+ *&lt;/PropertyIndexes&gt;</pre></blockquote>
+ *
+ * <p>The index is kept in memory. It is built on first use, by scanning the
+ * account data of all accounts once, and from then on it is kept up to date
+ * through {@link #update(String,String)} and {@link #remove(String)}, which
+ * are called whenever account data is written or an account is deleted.
+ * The scan does not hold the lock on the index, so writers are not held up
+ * by it; their changes are recorded meanwhile and applied on top of the
+ * scanned values. Accounts whose data cannot be read are logged and left
+ * out of the index, until their data is written again.
+ *
+ * <p>Building the index requires reading account data with the default key,
+ * which is not possible in a secure realm, where account data is encrypted
+ * with a key per account; there the build fails.
+ *
+ * <p>Most values belong to a single account, so for memory efficiency a
+ * single account ID is stored as a <code>String</code> and only multiple
+ * account IDs are stored as a <code>Set</code>.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+final class AccountPropertyIndex extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountPropertyIndex</code>.
+    *
+    * @param realm
+    *    the {@link Realm}, cannot be <code>null</code>.
+    *
+    * @param propertyName
+    *    the name of the indexed property, cannot be <code>null</code>.
+    *
+    * @param dbType
+    *    the database the property is stored in, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>realm == null || propertyName == null || dbType == null</code>.
+    */
+   AccountPropertyIndex(Realm realm, String propertyName, DatabaseType dbType)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("realm", realm, "propertyName", propertyName, "dbType", dbType);
+      _realm        = realm;
+      _propertyName = propertyName;
+      _dbType       = dbType;
+      _buildLock    = new Object();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The realm. Never <code>null</code>.
+    */
+   private final Realm _realm;
+
+   /**
+    * The name of the indexed property. Never <code>null</code>.
+    */
+   private final String _propertyName;
+
+   /**
+    * The database the property is stored in. Never <code>null</code>.
+    */
+   private final DatabaseType _dbType;
+
+   /**
+    * The account IDs per value; each value is either a <code>String</code>
+    * or a <code>Set&lt;String&gt;</code>. Is <code>null</code> until the
+    * index has been built. All access is synchronized on this object.
+    */
+   private Map<String,Object> _idsByValue;
+
+   /**
+    * The value per account ID, for accounts that have a value. Is
+    * <code>null</code> until the index has been built. All access is
+    * synchronized on this object.
+    */
+   private Map<String,String> _valuesByID;
+
+   /**
+    * The changes since the current build started, as the latest value per
+    * account ID (<code>null</code> for no value), or <code>null</code> if
+    * no build is in progress. All access is synchronized on this object.
+    */
+   private Map<String,String> _buildChanges;
+
+   /**
+    * The lock held while the index is built, so that it is built only once.
+    * Never <code>null</code>.
+    */
+   private final Object _buildLock;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the name of the indexed property.
+    *
+    * @return
+    *    the property name, never <code>null</code>.
+    */
+   String getPropertyName() {
+      return _propertyName;
+   }
+
+   /**
+    * Returns the database the indexed property is stored in.
+    *
+    * @return
+    *    the {@link DatabaseType}, never <code>null</code>.
+    */
+   DatabaseType getDatabaseType() {
+      return _dbType;
+   }
+
+   /**
+    * Builds the index by scanning the account data of all accounts, unless
+    * this has been done before. Should not be called while holding the lock
+    * on this object: the scan is done without it, while the changes made in
+    * the meantime are recorded, see {@link #update(String,String)}.
+    *
+    * @throws ContentAccessException
+    *    if the account IDs could not be read.
+    */
+   private void ensureBuilt() throws ContentAccessException {
+      synchronized (this) {
+         if (_idsByValue != null) {
+            return;
+         }
+      }
+
+      synchronized (_buildLock) {
+         synchronized (this) {
+            if (_idsByValue != null) {
+               return;
+            }
+            _buildChanges = new HashMap<String,String>();
+         }
+
+         try {
+            long                     start = System.currentTimeMillis();
+            Map<String,Exception> failures = new ConcurrentHashMap<String,Exception>();
+            Map<String,String>      values = new HashMap<String,String>(_realm.scanAccountPropertyValues(_dbType, _propertyName, failures));
+            if (! failures.isEmpty()) {
+               Utils.logWarning(toString() + ": Leaving " + failures.size() + " accounts whose data could not be read out of the index.");
+            }
+
+            synchronized (this) {
+
+               // Apply the changes made during the scan
+               for (Map.Entry<String,String> change : _buildChanges.entrySet()) {
+                  if (change.getValue() == null) {
+                     values.remove(change.getKey());
+                  } else {
+                     values.put(change.getKey(), change.getValue());
+                  }
+               }
+
+               Map<String,Object> idsByValue = new HashMap<String,Object>();
+               for (Map.Entry<String,String> entry : values.entrySet()) {
+                  add(idsByValue, entry.getValue(), entry.getKey());
+               }
+               _valuesByID = values;
+               _idsByValue = idsByValue;
+
+               long duration = System.currentTimeMillis() - start;
+               Utils.logDebug(toString() + ": Built index for " + values.size() + " accounts with " + idsByValue.size() + " distinct values in " + duration + " ms.");
+            }
+         } finally {
+            synchronized (this) {
+               _buildChanges = null;
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns the IDs of the accounts that have the specified value.
+    *
+    * @param value
+    *    the property value, should not be <code>null</code>.
+    *
+    * @return
+    *    a new {@link Set} of account IDs, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the index had to be built and the account data could not be
+    *    read.
+    */
+   Set<String> lookup(String value) throws ContentAccessException {
+      ensureBuilt();
+      synchronized (this) {
+         return copy(_idsByValue.get(value));
+      }
+   }
+
+   /**
+    * Copies the account IDs for a value.
+    *
+    * @param ids
+    *    the value from the value map, or <code>null</code>.
+    *
+    * @return
+    *    a new {@link Set} of account IDs, never <code>null</code>.
+    */
+   private static Set<String> copy(Object ids) {
+      if (ids == null) {
+         return new HashSet<String>(0);
+      } else if (ids instanceof String) {
+         return new HashSet<String>(Collections.singleton((String) ids));
+      } else {
+         return new HashSet<String>(asSet(ids));
+      }
+   }
+
+   /**
+    * Registers the current value of the property for an account. If the
+    * index is being built, the change is recorded, so that it is applied on
+    * top of the scanned values. If the index has not been built yet,
+    * nothing else is done, since building it will pick up the value.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @param value
+    *    the property value, or <code>null</code> if the account has no value.
+    */
+   synchronized void update(String accountID, String value) {
+      if (_buildChanges != null) {
+         _buildChanges.put(accountID, value);
+      }
+      if (_idsByValue == null) {
+         return;
+      }
+
+      String old = (value == null) ? _valuesByID.remove(accountID)
+                                   : _valuesByID.put(accountID, value);
+      if (old != null) {
+         remove(_idsByValue, old, accountID);
+      }
+      if (value != null) {
+         add(_idsByValue, value, accountID);
+      }
+   }
+
+   /**
+    * Removes an account from the index. If the index has not been built
+    * yet, nothing is done.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   void remove(String accountID) {
+      update(accountID, null);
+   }
+
+   /**
+    * Adds an account ID to a value map.
+    *
+    * @param idsByValue
+    *    the map, should not be <code>null</code>.
+    *
+    * @param value
+    *    the property value, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   private static void add(Map<String,Object> idsByValue, String value, String accountID) {
+      Object ids = idsByValue.get(value);
+      if (ids == null) {
+         idsByValue.put(value, accountID);
+      } else if (ids instanceof String) {
+         if (! ids.equals(accountID)) {
+            Set<String> set = new HashSet<String>(4);
+            set.add((String) ids);
+            set.add(accountID);
+            idsByValue.put(value, set);
+         }
+      } else {
+         asSet(ids).add(accountID);
+      }
+   }
+
+   /**
+    * Removes an account ID from a value map.
+    *
+    * @param idsByValue
+    *    the map, should not be <code>null</code>.
+    *
+    * @param value
+    *    the property value, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   private static void remove(Map<String,Object> idsByValue, String value, String accountID) {
+      Object ids = idsByValue.get(value);
+      if (accountID.equals(ids)) {
+         idsByValue.remove(value);
+      } else if (ids instanceof Set) {
+         Set<String> set = asSet(ids);
+         set.remove(accountID);
+         if (set.size() == 1) {
+            idsByValue.put(value, set.iterator().next());
+         }
+      }
+   }
+
+   /**
+    * Casts a value from the value map to a set.
+    *
+    * @param ids
+    *    the value, should be a <code>Set&lt;String&gt;</code>.
+    *
+    * @return
+    *    the set, never <code>null</code>.
+    */
+   @SuppressWarnings("unchecked")
+   private static Set<String> asSet(Object ids) {
+      return (Set<String>) ids;
+   }
+
+   @Override
+   public String toString() {
+      return _realm.toString() + ": PropertyIndex \"" + _propertyName + '"';
+   }
+}
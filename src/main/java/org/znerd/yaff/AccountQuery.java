@@ -0,0 +1,139 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.text.TextUtils;
+
+/**
+ * Query for accounts by property value, see
+ * {@link Realm#findAccounts(AccountQuery)}. A query consists of one or more
+ * conditions; an account matches if each of the named properties has
+ * exactly the specified value. Queries are immutable; use
+ * {@link #where(String,String)} to create one and
+ * {@link #and(String,String)} to add conditions.
+ *
+ * <p>Example:
+ *
+ * <blockquote><pre>realm.findAccounts(AccountQuery.where("country", "NL").and("email", email))</pre></blockquote>
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class AccountQuery extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Creates a query with a single condition.
+    *
+    * @param propertyName
+    *    the name of the account property, cannot be <code>null</code>.
+    *
+    * @param value
+    *    the value the property must have, cannot be <code>null</code>.
+    *
+    * @return
+    *    the new {@link AccountQuery}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>propertyName == null || value == null</code>.
+    */
+   public static AccountQuery where(String propertyName, String value)
+   throws IllegalArgumentException {
+      return new AccountQuery(Collections.<String,String>emptyMap(), propertyName, value);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountQuery</code> with the conditions of an
+    * existing query plus one more.
+    *
+    * @param conditions
+    *    the existing conditions, should not be <code>null</code>.
+    *
+    * @param propertyName
+    *    the name of the account property, cannot be <code>null</code>.
+    *
+    * @param value
+    *    the value the property must have, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>propertyName == null || value == null</code>
+    *    or if there already is a condition on the property.
+    */
+   private AccountQuery(Map<String,String> conditions, String propertyName, String value)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("propertyName", propertyName, "value", value);
+      if (conditions.containsKey(propertyName)) {
+         throw new IllegalArgumentException("Query already has a condition on property " + TextUtils.quote(propertyName) + '.');
+      }
+
+      Map<String,String> copy = new LinkedHashMap<String,String>(conditions);
+      copy.put(propertyName, value);
+      _conditions = Collections.unmodifiableMap(copy);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The conditions: the required value per property name.
+    * Never <code>null</code>.
+    */
+   private final Map<String,String> _conditions;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Creates a query with the conditions of this query plus one more.
+    *
+    * @param propertyName
+    *    the name of the account property, cannot be <code>null</code>.
+    *
+    * @param value
+    *    the value the property must have, cannot be <code>null</code>.
+    *
+    * @return
+    *    the new {@link AccountQuery}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>propertyName == null || value == null</code>
+    *    or if this query already has a condition on the property.
+    */
+   public AccountQuery and(String propertyName, String value)
+   throws IllegalArgumentException {
+      return new AccountQuery(_conditions, propertyName, value);
+   }
+
+   /**
+    * Returns the conditions of this query.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from property name to required value,
+    *    in the order the conditions were added, never <code>null</code>.
+    */
+   public Map<String,String> getConditions() {
+      return _conditions;
+   }
+
+   @Override
+   public String toString() {
+      return "AccountQuery" + _conditions;
+   }
+}
@@ -0,0 +1,1222 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.znerd.yaff.io.IOHelper;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+import org.xins.common.text.HexConverter;
+import org.xins.common.text.TextUtils;
+
+/**
+ * In-memory copy of an {@link AccountIndex}: a mapping from reference to
+ * account ID, so that lookups do not go to the file system. The
+ * back-references of the index (see {@link AccountBackReferences}) are
+ * built from it and verified against it.
+ *
+ * <p>The mapping is an open-addressing hash table with linear probing,
+ * stored in two parallel arrays: the references and the account IDs as
+ * <code>long</code> values. Finding a reference does not allocate any
+ * objects.
+ *
+ * <p>The table is persisted in a directory, as a snapshot plus an
+ * append-only log of the changes since. Both are numbered by generation:
+ * snapshot <em>n</em> holds the state after all logs before generation
+ * <em>n</em>. After {@value #SNAPSHOT_INTERVAL} changes, a new log is
+ * started and a new snapshot is written in the background, after which
+ * older files are deleted. Snapshot and log records are protected by
+ * CRC-32 checksums.
+ *
+ * <p>The account index itself remains the authority. The persisted table is
+ * only trusted if it was closed cleanly, which is recorded in a marker file
+ * that is deleted as soon as the table is changed. After a crash, or if the
+ * persisted table is damaged, the table is rebuilt by scanning the index.
+ *
+ * <p>The table is kept up to date through {@link #refStored(String,String)}
+ * and {@link #refRemoved(String)}, which are called whenever a reference is
+ * stored in or removed from the index. If the table gets out of sync, for
+ * example because a stored reference could not be determined, it is
+ * discarded (see {@link #discard()}) and rebuilt from the index.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+final class AccountRefTable extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of the directory, within a realm, that holds the persisted
+    * tables, one subdirectory per index.
+    */
+   static final String DIRECTORY_NAME = "AccountIndexTables";
+
+   /**
+    * The number of changes after which a new snapshot is written.
+    */
+   static final long SNAPSHOT_INTERVAL = 65536L;
+
+   /**
+    * The initial number of slots in the hash table. Must be a power of 2.
+    */
+   private static final int INITIAL_CAPACITY = 1024;
+
+   /**
+    * The version of the snapshot and log formats that is written.
+    */
+   private static final int VERSION = 1;
+
+   /**
+    * The magic bytes at the start of each snapshot.
+    */
+   private static final byte[] SNAPSHOT_MAGIC = { 'Y', 'A', 'R', 'S' };
+
+   /**
+    * The magic bytes at the start of each log.
+    */
+   private static final byte[] LOG_MAGIC = { 'Y', 'A', 'R', 'L' };
+
+   /**
+    * Log operation that stores a reference.
+    */
+   private static final byte OP_STORE = 'S';
+
+   /**
+    * Log operation that removes a reference.
+    */
+   private static final byte OP_REMOVE = 'R';
+
+   /**
+    * The maximum length of the payload of a log record. Larger lengths
+    * indicate corruption.
+    */
+   private static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+   /**
+    * The extension of snapshot files.
+    */
+   private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+   /**
+    * The extension of log files.
+    */
+   private static final String LOG_EXTENSION = ".log";
+
+   /**
+    * The extension of temporary files.
+    */
+   private static final String TEMP_EXTENSION = ".tmp";
+
+   /**
+    * The name of the marker file that indicates that the table was closed
+    * cleanly.
+    */
+   private static final String CLEAN_MARKER = "CLEAN";
+
+   /**
+    * Marker for a slot from which a reference has been removed. Compared by
+    * identity.
+    */
+   private static final String REMOVED = new String("(removed)");
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the first slot to probe for a reference.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @param mask
+    *    the number of slots minus 1.
+    *
+    * @return
+    *    the slot, between <code>0</code> and <code>mask</code>.
+    */
+   private static int slot(String ref, int mask) {
+      int h = ref.hashCode();
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      return h & mask;
+   }
+
+   /**
+    * Converts an account ID to a <code>long</code>, without allocating any
+    * objects.
+    *
+    * @param accountID
+    *    the account ID, should be a valid account ID
+    *    (see {@link Assertions#isValidAccountID(String)}).
+    *
+    * @return
+    *    the account ID as a <code>long</code>.
+    */
+   private static long toLong(String accountID) {
+      long value = 0L;
+      for (int i = 0; i < 16; i++) {
+         value = (value << 4) | Character.digit(accountID.charAt(i), 16);
+      }
+      return value;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountRefTable</code>. Nothing is loaded until
+    * the table is first used.
+    *
+    * @param index
+    *    the {@link AccountIndex}, cannot be <code>null</code>.
+    *
+    * @param dir
+    *    the directory to persist the table in, or <code>null</code> if the
+    *    table should not be persisted.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>index == null</code>.
+    */
+   AccountRefTable(AccountIndex index, File dir)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("index", index);
+      _index = index;
+      _dir   = dir;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The account index. Never <code>null</code>.
+    */
+   private final AccountIndex _index;
+
+   /**
+    * The directory the table is persisted in, or <code>null</code>.
+    */
+   private final File _dir;
+
+   /**
+    * The references, per slot; <code>null</code> for an empty slot and
+    * {@link #REMOVED} for a slot from which a reference was removed. Is
+    * <code>null</code> until the table has been loaded, and after it has
+    * been discarded. All access to this and the following fields is
+    * synchronized on this object.
+    */
+   private String[] _refs;
+
+   /**
+    * The account IDs, per slot.
+    */
+   private long[] _accountIDs;
+
+   /**
+    * The number of references in the table.
+    */
+   private int _size;
+
+   /**
+    * The number of slots that are not empty, including removed ones.
+    */
+   private int _used;
+
+   /**
+    * The current generation: the number of the current log.
+    */
+   private long _generation;
+
+   /**
+    * The stream to the current log, or <code>null</code> if the table is
+    * not persisted, not loaded yet or closed.
+    */
+   private DataOutputStream _logOut;
+
+   /**
+    * The file stream underlying {@link #_logOut}.
+    */
+   private FileOutputStream _logFileOut;
+
+   /**
+    * The number of records in the current log.
+    */
+   private long _logRecords;
+
+   /**
+    * Flag that indicates if a snapshot is being written.
+    */
+   private boolean _snapshotting;
+
+   /**
+    * Flag that indicates if persisting failed; from then on the table is
+    * only kept in memory.
+    */
+   private boolean _failed;
+
+   /**
+    * Flag that indicates if the clean marker has been deleted by this
+    * process.
+    */
+   private boolean _markerDeleted;
+
+   /**
+    * The shutdown hook that closes the table, or <code>null</code>.
+    */
+   private Thread _shutdownHook;
+
+   /**
+    * The changes since {@link #beginReplace()}, as pairs of reference and
+    * account ID (<code>null</code> for a removal), or <code>null</code> if
+    * no replacement is in progress.
+    */
+   private List<String[]> _replaceChanges;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Loads the table, unless this has been done before: recovers it from
+    * the persisted snapshot and logs or, if that is not possible, rebuilds
+    * it from the index. Should be called while holding the lock on this
+    * object.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be rebuilt and the index could not be read.
+    */
+   private void ensureLoaded() throws ContentAccessException {
+      if (_refs != null) {
+         return;
+      }
+
+      long        start = System.currentTimeMillis();
+      boolean recovered = false;
+      long     replayed = 0L;
+      if (_dir != null && ! _markerDeleted) {
+         try {
+            replayed  = recover();
+            recovered = replayed >= 0L;
+         } catch (IOException cause) {
+            Utils.logWarning(toString() + ": Failed to recover table from " + TextUtils.quote(_dir.getPath()) + ", rebuilding it from the index. Reason: " + cause.getMessage());
+         }
+      }
+      if (! recovered) {
+         rebuild();
+      }
+
+      if (_dir != null) {
+         startPersisting(! recovered || replayed >= SNAPSHOT_INTERVAL);
+      }
+
+      long duration = System.currentTimeMillis() - start;
+      Utils.logDebug(toString() + ": " + (recovered ? "Recovered " : "Rebuilt ") + _size + " references in " + duration + " ms.");
+   }
+
+   /**
+    * Loads the table, like {@link #ensureLoaded()}, but logs a failure
+    * instead of throwing it. Should be called while holding the lock on
+    * this object.
+    *
+    * @return
+    *    <code>true</code> if the table is loaded, <code>false</code> if
+    *    loading it failed.
+    */
+   private boolean load() {
+      try {
+         ensureLoaded();
+         return true;
+      } catch (ContentAccessException cause) {
+         Utils.logError(toString() + ": Failed to load table.", cause);
+         return false;
+      }
+   }
+
+   /**
+    * Empties the table.
+    */
+   private void clear() {
+      _refs       = new String[INITIAL_CAPACITY];
+      _accountIDs = new long[INITIAL_CAPACITY];
+      _size       = 0;
+      _used       = 0;
+   }
+
+   /**
+    * Rebuilds the table by scanning all references in the index.
+    *
+    * @throws ContentAccessException
+    *    if the index could not be read.
+    */
+   private void rebuild() throws ContentAccessException {
+      clear();
+      for (String ref : _index.getRefs()) {
+         String accountID = _index.lookupAccountID(ref);
+         if (accountID != null && Assertions.isValidAccountID(accountID)) {
+            put(ref, toLong(accountID));
+         }
+      }
+   }
+
+   /**
+    * Recovers the table from the latest snapshot and the logs since, if the
+    * table was closed cleanly.
+    *
+    * @return
+    *    the number of log records replayed, or <code>-1L</code> if the
+    *    table cannot be recovered.
+    *
+    * @throws IOException
+    *    if the snapshot or a log could not be read or is damaged.
+    */
+   private long recover() throws IOException {
+      if (! new File(_dir, CLEAN_MARKER).exists()) {
+         return -1L;
+      }
+      SortedSet<Long> snapshots = listGenerations(SNAPSHOT_EXTENSION);
+      if (snapshots.isEmpty()) {
+         return -1L;
+      }
+
+      clear();
+      long generation = snapshots.last();
+      readSnapshot(getFile(generation, SNAPSHOT_EXTENSION), generation);
+
+      long replayed = 0L;
+      for (long logGeneration : listGenerations(LOG_EXTENSION).tailSet(generation)) {
+         replayed   += replayLog(getFile(logGeneration, LOG_EXTENSION), logGeneration);
+         generation  = logGeneration;
+      }
+      _generation = generation;
+
+      return replayed;
+   }
+
+   /**
+    * Lists the generations of the persisted files with the specified
+    * extension.
+    *
+    * @param extension
+    *    the extension, should not be <code>null</code>.
+    *
+    * @return
+    *    the generations, in ascending order, never <code>null</code>.
+    */
+   private SortedSet<Long> listGenerations(String extension) {
+      SortedSet<Long> generations = new TreeSet<Long>();
+      String[]              names = _dir.list();
+      if (names != null) {
+         for (String name : names) {
+            if (name.endsWith(extension)) {
+               String number = name.substring(0, name.length() - extension.length());
+               if (Assertions.isValidAccountID(number)) {
+                  generations.add(toLong(number));
+               }
+            }
+         }
+      }
+      return generations;
+   }
+
+   /**
+    * Determines the file for a generation.
+    *
+    * @param generation
+    *    the generation.
+    *
+    * @param extension
+    *    the extension, should not be <code>null</code>.
+    *
+    * @return
+    *    the file, never <code>null</code>.
+    */
+   private File getFile(long generation, String extension) {
+      return new File(_dir, HexConverter.toHexString(generation) + extension);
+   }
+
+   /**
+    * Reads a snapshot into the table.
+    *
+    * @param file
+    *    the snapshot file, should not be <code>null</code>.
+    *
+    * @param generation
+    *    the expected generation.
+    *
+    * @throws IOException
+    *    if the snapshot could not be read or is damaged.
+    */
+   private void readSnapshot(File file, long generation) throws IOException {
+      CRC32          checksum = new CRC32();
+      DataInputStream      in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), checksum));
+      try {
+         checkHeader(in, SNAPSHOT_MAGIC, generation, file);
+         int count = in.readInt();
+         for (int i = 0; i < count; i++) {
+            String ref = in.readUTF();
+            put(ref, in.readLong());
+         }
+         int expected = (int) checksum.getValue();
+         if (in.readInt() != expected) {
+            throw new IOException("Checksum mismatch in snapshot " + TextUtils.quote(file.getPath()) + '.');
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Replays a log on the table.
+    *
+    * @param file
+    *    the log file, should not be <code>null</code>.
+    *
+    * @param generation
+    *    the expected generation.
+    *
+    * @return
+    *    the number of records replayed.
+    *
+    * @throws IOException
+    *    if the log could not be read or is damaged.
+    */
+   private long replayLog(File file, long generation) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      long       records = 0L;
+      try {
+         checkHeader(in, LOG_MAGIC, generation, file);
+         while (true) {
+            int length;
+            try {
+               length = in.readInt();
+            } catch (EOFException cause) {
+               break;
+            }
+            int expected = in.readInt();
+            if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+               throw new IOException("Invalid record length " + length + " in log " + TextUtils.quote(file.getPath()) + '.');
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(payload);
+            if ((int) checksum.getValue() != expected) {
+               throw new IOException("Checksum mismatch in log " + TextUtils.quote(file.getPath()) + '.');
+            }
+
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            byte                op = record.readByte();
+            String             ref = record.readUTF();
+            if (op == OP_STORE) {
+               put(ref, record.readLong());
+            } else if (op == OP_REMOVE) {
+               remove(ref);
+            } else {
+               throw new IOException("Invalid operation " + op + " in log " + TextUtils.quote(file.getPath()) + '.');
+            }
+            records++;
+         }
+      } finally {
+         in.close();
+      }
+      return records;
+   }
+
+   /**
+    * Checks the header of a snapshot or log.
+    *
+    * @param in
+    *    the stream to read from, should not be <code>null</code>.
+    *
+    * @param magic
+    *    the expected magic bytes, should not be <code>null</code>.
+    *
+    * @param generation
+    *    the expected generation.
+    *
+    * @param file
+    *    the file, for error messages, should not be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the header could not be read or is not as expected.
+    */
+   private static void checkHeader(DataInputStream in, byte[] magic, long generation, File file)
+   throws IOException {
+      byte[] actual = new byte[magic.length];
+      in.readFully(actual);
+      if (! Arrays.equals(actual, magic) || in.readByte() != VERSION || in.readLong() != generation) {
+         throw new IOException("Invalid header in " + TextUtils.quote(file.getPath()) + '.');
+      }
+   }
+
+   /**
+    * Starts persisting changes: deletes the clean marker and opens a new
+    * log. If this fails, the table is only kept in memory.
+    *
+    * @param snapshot
+    *    whether to write a snapshot of the current state first.
+    */
+   private void startPersisting(boolean snapshot) {
+      try {
+         IOHelper.mkdirs(_dir, true, true);
+         deleteMarker();
+
+         // Continue after the highest generation on disk
+         for (String extension : new String[] { SNAPSHOT_EXTENSION, LOG_EXTENSION }) {
+            SortedSet<Long> generations = listGenerations(extension);
+            if (! generations.isEmpty()) {
+               _generation = Math.max(_generation, generations.last());
+            }
+         }
+
+         long generation = _generation + 1L;
+         if (snapshot) {
+            writeSnapshot(generation, _refs, _accountIDs);
+            deleteBefore(generation);
+         }
+         openLog(generation);
+
+         if (_shutdownHook == null) {
+            _shutdownHook = new Thread(new Runnable() {
+               public void run() {
+                  close();
+               }
+            }, "YAFF account index table shutdown " + _index);
+            Runtime.getRuntime().addShutdownHook(_shutdownHook);
+         }
+      } catch (IOException cause) {
+         fail(cause);
+      }
+   }
+
+   /**
+    * Deletes the clean marker, unless this process did that already, so
+    * that the persisted table is not trusted after a crash.
+    *
+    * @throws IOException
+    *    if the marker could not be deleted.
+    */
+   private void deleteMarker() throws IOException {
+      if (! _markerDeleted) {
+         File marker = new File(_dir, CLEAN_MARKER);
+         if (marker.exists() && ! marker.delete()) {
+            throw new IOException("Failed to delete file " + TextUtils.quote(marker.getPath()) + '.');
+         }
+         _markerDeleted = true;
+      }
+   }
+
+   /**
+    * Opens a new log. The previous log, if any, is closed.
+    *
+    * @param generation
+    *    the generation of the new log.
+    *
+    * @throws IOException
+    *    if the log could not be created.
+    */
+   private void openLog(long generation) throws IOException {
+      FileOutputStream fileOut = new FileOutputStream(getFile(generation, LOG_EXTENSION));
+      DataOutputStream     out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      try {
+         out.write(LOG_MAGIC);
+         out.writeByte(VERSION);
+         out.writeLong(generation);
+      } catch (IOException cause) {
+         fileOut.close();
+         throw cause;
+      }
+
+      closeLog();
+      _logOut      = out;
+      _logFileOut  = fileOut;
+      _generation  = generation;
+      _logRecords  = 0L;
+   }
+
+   /**
+    * Flushes, forces to disk and closes the current log, if any.
+    *
+    * @throws IOException
+    *    if flushing or closing failed.
+    */
+   private void closeLog() throws IOException {
+      DataOutputStream     out = _logOut;
+      FileOutputStream fileOut = _logFileOut;
+      _logOut     = null;
+      _logFileOut = null;
+      if (out != null) {
+         try {
+            out.flush();
+            fileOut.getFD().sync();
+         } finally {
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * Stops persisting after a failure. The persisted table is left without
+    * clean marker, so it will be rebuilt from the index after a restart.
+    *
+    * @param cause
+    *    the cause of the failure, should not be <code>null</code>.
+    */
+   private void fail(IOException cause) {
+      Utils.logError(toString() + ": Failed to persist table in " + TextUtils.quote(_dir.getPath()) + ". Keeping it in memory only.", cause);
+      _failed = true;
+      try {
+         closeLog();
+      } catch (IOException closeException) {
+         Utils.logIgnoredException(closeException);
+      }
+   }
+
+   /**
+    * Appends a record to the current log and starts a new snapshot if it is
+    * due. Does nothing if the table is not persisted.
+    *
+    * @param op
+    *    the operation, {@link #OP_STORE} or {@link #OP_REMOVE}.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, for {@link #OP_STORE}.
+    */
+   private void log(byte op, String ref, long accountID) {
+      if (_dir == null || _failed) {
+         return;
+      }
+
+      try {
+
+         // Reopen the log if the table was closed
+         if (_logOut == null) {
+            deleteMarker();
+            openLog(_generation + 1L);
+         }
+
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(ref.length() + 16);
+         DataOutputStream    payload = new DataOutputStream(bytes);
+         payload.writeByte(op);
+         payload.writeUTF(ref);
+         if (op == OP_STORE) {
+            payload.writeLong(accountID);
+         }
+         CRC32 checksum = new CRC32();
+         checksum.update(bytes.toByteArray());
+
+         _logOut.writeInt(bytes.size());
+         _logOut.writeInt((int) checksum.getValue());
+         bytes.writeTo(_logOut);
+      } catch (IOException cause) {
+         fail(cause);
+         return;
+      }
+
+      _logRecords++;
+      if (_logRecords >= SNAPSHOT_INTERVAL && ! _snapshotting) {
+         startSnapshot();
+      }
+   }
+
+   /**
+    * Starts a new log and writes a snapshot of the current state in the
+    * background. When the snapshot is complete, the older snapshots and
+    * logs are deleted.
+    */
+   private void startSnapshot() {
+      final long      generation = _generation + 1L;
+      final String[]        refs = _refs.clone();
+      final long[]    accountIDs = _accountIDs.clone();
+      try {
+         openLog(generation);
+      } catch (IOException cause) {
+         fail(cause);
+         return;
+      }
+
+      _snapshotting = true;
+      try {
+         IOExecutor.submit(new Callable<Object>() {
+            public Object call() {
+               try {
+                  writeSnapshot(generation, refs, accountIDs);
+                  deleteBefore(generation);
+               } catch (Throwable exception) {
+                  Utils.logError(AccountRefTable.this.toString() + ": Failed to write snapshot. The logs are kept.", exception);
+               } finally {
+                  synchronized (AccountRefTable.this) {
+                     _snapshotting = false;
+                  }
+               }
+               return null;
+            }
+         });
+      } catch (RuntimeException cause) {
+         _snapshotting = false;
+         Utils.logIgnoredException(cause);
+      }
+   }
+
+   /**
+    * Writes a snapshot. The snapshot is written to a temporary file, forced
+    * to disk and then renamed.
+    *
+    * @param generation
+    *    the generation of the snapshot.
+    *
+    * @param refs
+    *    the references, per slot, should not be <code>null</code>.
+    *
+    * @param accountIDs
+    *    the account IDs, per slot, should not be <code>null</code>.
+    *
+    * @throws IOException
+    *    if writing failed.
+    */
+   private void writeSnapshot(long generation, String[] refs, long[] accountIDs)
+   throws IOException {
+
+      int count = 0;
+      for (String ref : refs) {
+         if (ref != null && ref != REMOVED) {
+            count++;
+         }
+      }
+
+      File              temp = getFile(generation, SNAPSHOT_EXTENSION + TEMP_EXTENSION);
+      FileOutputStream  file = new FileOutputStream(temp);
+      CRC32         checksum = new CRC32();
+      DataOutputStream   out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), checksum));
+      try {
+         out.write(SNAPSHOT_MAGIC);
+         out.writeByte(VERSION);
+         out.writeLong(generation);
+         out.writeInt(count);
+         for (int i = 0; i < refs.length; i++) {
+            if (refs[i] != null && refs[i] != REMOVED) {
+               out.writeUTF(refs[i]);
+               out.writeLong(accountIDs[i]);
+            }
+         }
+         out.writeInt((int) checksum.getValue());
+         out.flush();
+         file.getFD().sync();
+      } finally {
+         out.close();
+      }
+
+      File target = getFile(generation, SNAPSHOT_EXTENSION);
+      if (! temp.renameTo(target)) {
+         temp.delete();
+         throw new IOException("Failed to rename " + TextUtils.quote(temp.getPath()) + " to " + TextUtils.quote(target.getPath()) + '.');
+      }
+   }
+
+   /**
+    * Deletes the snapshots and logs older than the specified generation.
+    *
+    * @param generation
+    *    the generation of the latest complete snapshot.
+    */
+   private void deleteBefore(long generation) {
+      for (String extension : new String[] { SNAPSHOT_EXTENSION, LOG_EXTENSION }) {
+         for (long old : listGenerations(extension).headSet(generation)) {
+            File file = getFile(old, extension);
+            if (! file.delete()) {
+               Utils.logWarning(toString() + ": Failed to delete file " + TextUtils.quote(file.getPath()) + '.');
+            }
+         }
+      }
+   }
+
+   /**
+    * Closes the table: forces the current log to disk and records that the
+    * table was closed cleanly, so that it can be recovered quickly after a
+    * restart. The table remains
+    * usable; a later change opens a new log.
+    */
+   synchronized void close() {
+      if (_logOut == null || _failed) {
+         return;
+      }
+
+      try {
+         closeLog();
+         new FileOutputStream(new File(_dir, CLEAN_MARKER)).close();
+         _markerDeleted = false;
+      } catch (IOException cause) {
+         fail(cause);
+      }
+   }
+
+   /**
+    * Looks up the account ID for a reference.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @return
+    *    the account ID, or <code>null</code> if the reference is not in the
+    *    index.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be rebuilt and the index could not be read.
+    */
+   synchronized String lookupAccountID(String ref) throws ContentAccessException {
+      ensureLoaded();
+      int slot = find(ref);
+      return (slot < 0) ? null : HexConverter.toHexString(_accountIDs[slot]);
+   }
+
+   /**
+    * Determines if a reference points to the specified account. Does not
+    * allocate any objects once the table is loaded.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the reference is in the index and points to
+    *    the account, <code>false</code> otherwise.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be rebuilt and the index could not be read.
+    */
+   synchronized boolean refersTo(String ref, String accountID)
+   throws ContentAccessException {
+      ensureLoaded();
+      if (! Assertions.isValidAccountID(accountID)) {
+         return false;
+      }
+      int slot = find(ref);
+      return slot >= 0 && _accountIDs[slot] == toLong(accountID);
+   }
+
+   /**
+    * Returns all references.
+    *
+    * @return
+    *    a new {@link Collection} of references, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be rebuilt and the index could not be read.
+    */
+   synchronized Collection<String> getRefs() throws ContentAccessException {
+      ensureLoaded();
+      Collection<String> refs = new ArrayList<String>(_size);
+      for (String ref : _refs) {
+         if (ref != null && ref != REMOVED) {
+            refs.add(ref);
+         }
+      }
+      return refs;
+   }
+
+   /**
+    * Determines which of the specified references are not in the table.
+    *
+    * @param refs
+    *    the references, should not be <code>null</code>.
+    *
+    * @return
+    *    a new {@link Collection} of the references that are not in the
+    *    table, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be rebuilt and the index could not be read.
+    */
+   synchronized Collection<String> getUnknownRefs(Collection<String> refs)
+   throws ContentAccessException {
+      ensureLoaded();
+      Collection<String> unknown = new ArrayList<String>();
+      for (String ref : refs) {
+         if (find(ref) < 0) {
+            unknown.add(ref);
+         }
+      }
+      return unknown;
+   }
+
+   /**
+    * Registers that a reference has been stored in the index. If the table
+    * has not been loaded yet, it is loaded first; if that fails, the
+    * persisted table is marked as no longer clean, since loading it later
+    * will pick up the reference from the index.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   synchronized void refStored(String ref, String accountID) {
+      if (_replaceChanges != null) {
+         _replaceChanges.add(new String[] { ref, accountID });
+      }
+      if (! load()) {
+         invalidatePersisted();
+      } else if (Assertions.isValidAccountID(accountID)) {
+         long value = toLong(accountID);
+         put(ref, value);
+         log(OP_STORE, ref, value);
+      }
+   }
+
+   /**
+    * Registers that a reference has been removed from the index. If the
+    * table has not been loaded yet, it is loaded first; if that fails, the
+    * persisted table is marked as no longer clean.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    */
+   synchronized void refRemoved(String ref) {
+      if (_replaceChanges != null) {
+         _replaceChanges.add(new String[] { ref, null });
+      }
+      if (! load()) {
+         invalidatePersisted();
+      } else if (remove(ref)) {
+         log(OP_REMOVE, ref, 0L);
+      }
+   }
+
+   /**
+    * Starts recording changes, so that they can be applied to a
+    * replacement of the table that is read from the index in the meantime,
+    * see {@link #replace(Map)}.
+    */
+   synchronized void beginReplace() {
+      _replaceChanges = new ArrayList<String[]>();
+   }
+
+   /**
+    * Stops recording changes without replacing the table.
+    */
+   synchronized void cancelReplace() {
+      _replaceChanges = null;
+   }
+
+   /**
+    * Replaces the content of the table, in one step. The changes recorded
+    * since {@link #beginReplace()} are applied on top of the new content, so
+    * that no change is lost while the new content was read. A snapshot of
+    * the new content is written.
+    *
+    * @param refs
+    *    the new content: the account ID per reference,
+    *    should not be <code>null</code>.
+    */
+   synchronized void replace(Map<String,String> refs) {
+      clear();
+      for (Map.Entry<String,String> entry : refs.entrySet()) {
+         if (Assertions.isValidAccountID(entry.getValue())) {
+            put(entry.getKey(), toLong(entry.getValue()));
+         }
+      }
+      if (_replaceChanges != null) {
+         for (String[] change : _replaceChanges) {
+            if (change[1] == null) {
+               remove(change[0]);
+            } else if (Assertions.isValidAccountID(change[1])) {
+               put(change[0], toLong(change[1]));
+            }
+         }
+         _replaceChanges = null;
+      }
+
+      // Persist the new content right away, unless persisting has failed
+      if (_dir != null && ! _failed) {
+         startPersisting(true);
+      }
+   }
+
+   /**
+    * Discards the table after it got out of sync with the index. The
+    * persisted table is not trusted anymore, and the table is rebuilt from
+    * the index on next use.
+    */
+   synchronized void discard() {
+      _refs       = null;
+      _accountIDs = null;
+      _size       = 0;
+      _used       = 0;
+      if (_dir != null && ! _failed) {
+         try {
+            closeLog();
+         } catch (IOException cause) {
+            Utils.logIgnoredException(cause);
+         }
+      }
+      invalidatePersisted();
+   }
+
+   /**
+    * Makes sure the persisted table is not trusted anymore, after the index
+    * changed while the table was not loaded.
+    */
+   private void invalidatePersisted() {
+      if (_dir != null && ! _markerDeleted) {
+         try {
+            deleteMarker();
+         } catch (IOException cause) {
+            Utils.logError(toString() + ": Failed to invalidate persisted table.", cause);
+         }
+      }
+   }
+
+   /**
+    * Finds the slot of a reference.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @return
+    *    the slot, or <code>-1</code> if the reference is not in the table.
+    */
+   private int find(String ref) {
+      int mask = _refs.length - 1;
+      for (int i = slot(ref, mask); ; i = (i + 1) & mask) {
+         String candidate = _refs[i];
+         if (candidate == null) {
+            return -1;
+         } else if (candidate != REMOVED && candidate.equals(ref)) {
+            return i;
+         }
+      }
+   }
+
+   /**
+    * Stores a reference in the table.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID.
+    */
+   private void put(String ref, long accountID) {
+      int    mask = _refs.length - 1;
+      int removed = -1;
+      int       i = slot(ref, mask);
+      for (; _refs[i] != null; i = (i + 1) & mask) {
+         if (_refs[i] == REMOVED) {
+            if (removed < 0) {
+               removed = i;
+            }
+         } else if (_refs[i].equals(ref)) {
+            _accountIDs[i] = accountID;
+            return;
+         }
+      }
+
+      // Reuse the first removed slot on the probe path, if any
+      if (removed >= 0) {
+         i = removed;
+      } else {
+         _used++;
+      }
+      _refs[i]       = ref;
+      _accountIDs[i] = accountID;
+      _size++;
+
+      // Keep the load factor at most 1/2
+      if (_used * 2 > _refs.length) {
+         resize();
+      }
+   }
+
+   /**
+    * Removes a reference from the table.
+    *
+    * @param ref
+    *    the reference, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the reference was in the table,
+    *    <code>false</code> otherwise.
+    */
+   private boolean remove(String ref) {
+      int slot = find(ref);
+      if (slot < 0) {
+         return false;
+      }
+      _refs[slot] = REMOVED;
+      _size--;
+      return true;
+   }
+
+   /**
+    * Rehashes the table, so that it is at most a quarter full and contains
+    * no removed slots.
+    */
+   private void resize() {
+      int capacity = INITIAL_CAPACITY;
+      while (capacity < _size * 4) {
+         capacity <<= 1;
+      }
+
+      String[]       oldRefs = _refs;
+      long[]   oldAccountIDs = _accountIDs;
+      _refs       = new String[capacity];
+      _accountIDs = new long[capacity];
+      _used       = _size;
+
+      int mask = capacity - 1;
+      for (int j = 0; j < oldRefs.length; j++) {
+         String ref = oldRefs[j];
+         if (ref != null && ref != REMOVED) {
+            int i = slot(ref, mask);
+            while (_refs[i] != null) {
+               i = (i + 1) & mask;
+            }
+            _refs[i]       = ref;
+            _accountIDs[i] = oldAccountIDs[j];
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      return _index.toString() + " table";
+   }
+}
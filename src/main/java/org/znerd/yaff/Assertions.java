@@ -22,6 +22,61 @@ public final class Assertions extends Object {
     */
    static final Pattern ACCOUNT_ID_PATTERN = Pattern.compile("^[0-9a-f]{16}$");
 
+   /**
+    * Pattern for site names.
+    */
+   private static final Pattern SITE_NAME_PATTERN = Pattern.compile("^[a-z][a-z0-9]*([_-][a-z0-9]+)*$");
+
+   /**
+    * Pattern for page names.
+    */
+   private static final Pattern PAGE_NAME_PATTERN = Pattern.compile("^[A-Z]\\w*$");
+
+   /**
+    * Pattern for page paths.
+    */
+   private static final Pattern PAGE_PATH_PATTERN = Pattern.compile("^\\/([\\w-]+\\/)*$");
+
+   /**
+    * Pattern for form names.
+    */
+   private static final Pattern FORM_NAME_PATTERN = Pattern.compile("^([A-Z][a-z0-9]*)+$");
+
+   /**
+    * Pattern for realm names.
+    */
+   private static final Pattern REALM_NAME_PATTERN = Pattern.compile("^[A-Z][A-Z0-9]*(_[A-Z0-9]+)*$");
+
+   /**
+    * Pattern for account index names.
+    */
+   private static final Pattern ACCOUNT_INDEX_NAME_PATTERN = Pattern.compile("^[a-z]+$");
+
+   /**
+    * Pattern for account property names.
+    */
+   private static final Pattern ACCOUNT_PROPERTY_NAME_PATTERN = Pattern.compile("^[A-Z][A-Za-z0-9_]*$");
+
+   /**
+    * Pattern for file names.
+    */
+   private static final Pattern FILE_NAME_PATTERN = Pattern.compile("^[\\w-]+\\.[a-z]{2,4}$");
+
+   /**
+    * Pattern for directory paths.
+    */
+   private static final Pattern DIRECTORY_PATH_PATTERN = Pattern.compile("^[\\w-]+(/[\\w-]+)*\\/?$");
+
+   /**
+    * Pattern for host names.
+    */
+   private static final Pattern HOST_NAME_PATTERN = Pattern.compile("^[\\w-]+(\\.[\\w-]+)+$");
+
+   /**
+    * Pattern for web URLs.
+    */
+   private static final Pattern WEB_URL_PATTERN = Pattern.compile("^http(s)?:\\/\\/[\\w-]+(\\.[\\w-]+)+(:\\d{1,5})?\\/.*$");
+
 
    //-------------------------------------------------------------------------
    // Class functions
@@ -55,10 +110,183 @@ public final class Assertions extends Object {
                                      "pattern",     pattern,
                                      "s",           s);
       if (! s.matches(pattern)) {
-         throw new IllegalArgumentException(TextUtils.quote(s) + " is not considered a valid " + description + '.');
+         throw newInvalidException(description, s);
+      }
+   }
+
+   /**
+    * Executes an assertion in a generic manner, using a precompiled pattern.
+    *
+    * @param description
+    *    a short description of what is checked,
+    *    e.g. <code>"site name"</code>, <code>"file path"</code>, etc.;
+    *    cannot be <code>null</code>.
+    *
+    * @param pattern
+    *    the regular expression that the character string should match,
+    *    cannot be <code>null</code>.
+    *
+    * @param s
+    *    the character string to validate, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>description == null
+    *          || pattern     == null
+    *          || s           == null
+    *          || ! pattern.matcher(s).matches()</code>.
+    */
+   public static final void executeAssertion(String  description,
+                                             Pattern pattern,
+                                             String  s) {
+      MandatoryArgumentChecker.check("description", description,
+                                     "pattern",     pattern,
+                                     "s",           s);
+      if (! pattern.matcher(s).matches()) {
+         throw newInvalidException(description, s);
       }
    }
 
+   /**
+    * Constructs the exception that indicates a string failed a check.
+    *
+    * @param description
+    *    a short description of what was checked, should not be
+    *    <code>null</code>.
+    *
+    * @param s
+    *    the character string that failed the check, should not be
+    *    <code>null</code>.
+    *
+    * @return
+    *    a new {@link IllegalArgumentException}, never <code>null</code>.
+    */
+   private static IllegalArgumentException newInvalidException(String description, String s) {
+      return new IllegalArgumentException(TextUtils.quote(s) + " is not considered a valid " + description + '.');
+   }
+
+   /**
+    * Determines if the specified character matches the regular expression
+    * character class <code>\w</code>, i.e. <code>[a-zA-Z_0-9]</code>.
+    *
+    * @param c
+    *    the character to check.
+    *
+    * @return
+    *    <code>true</code> if the character is a word character,
+    *    <code>false</code> otherwise.
+    */
+   private static boolean isWordChar(char c) {
+      return (c >= 'a' && c <= 'z')
+          || (c >= 'A' && c <= 'Z')
+          || (c >= '0' && c <= '9')
+          ||  c == '_';
+   }
+
+   /**
+    * Determines if the specified string consists of exactly the specified
+    * number of hexadecimal digits.
+    *
+    * @param s
+    *    the character string to check, cannot be <code>null</code>.
+    *
+    * @param length
+    *    the required length.
+    *
+    * @param allowUpperCase
+    *    flag that indicates if the digits <code>A-F</code> are allowed in
+    *    addition to <code>a-f</code>.
+    *
+    * @return
+    *    <code>true</code> if the string matches, <code>false</code> otherwise.
+    */
+   private static boolean isHexString(String s, int length, boolean allowUpperCase) {
+      if (s.length() != length) {
+         return false;
+      }
+      for (int i = 0; i < length; i++) {
+         char c = s.charAt(i);
+         if (! ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (allowUpperCase && c >= 'A' && c <= 'F'))) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Determines if the specified string is a valid account ID. This is
+    * equivalent to matching against {@link #ACCOUNT_ID_PATTERN}, but without
+    * allocating any objects.
+    *
+    * @param s
+    *    the character string to check, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the string is a valid account ID,
+    *    <code>false</code> otherwise.
+    */
+   static final boolean isValidAccountID(String s) {
+      return isHexString(s, 16, false);
+   }
+
+   /**
+    * Determines if the specified string is a valid path. This is equivalent
+    * to matching against the regular expression
+    * <code>^[\w@-]+(/[\w@-]+)*(\.[\w]*)*$</code>, or, if an extension
+    * is required, against
+    * <code>^[\w@-]+(/[\w@-]+)*(\.[\w]*)+$</code>, but without
+    * allocating any objects.
+    *
+    * @param s
+    *    the character string to check, cannot be <code>null</code>.
+    *
+    * @param requireExtension
+    *    flag that indicates if at least one extension (a dot followed by
+    *    zero or more word characters) is required.
+    *
+    * @return
+    *    <code>true</code> if the string is a valid path,
+    *    <code>false</code> otherwise.
+    */
+   static final boolean isValidPath(String s, boolean requireExtension) {
+
+      // Scan the path components, up to the first dot
+      int             length = s.length();
+      int                  i = 0;
+      boolean emptyComponent = true;
+      for (; i < length; i++) {
+         char c = s.charAt(i);
+         if (c == '/') {
+            if (emptyComponent) {
+               return false;
+            }
+            emptyComponent = true;
+         } else if (c == '.') {
+            break;
+         } else if (isWordChar(c) || c == '@' || c == '-') {
+            emptyComponent = false;
+         } else {
+            return false;
+         }
+      }
+
+      // The last component cannot be empty, this also rejects empty strings
+      if (emptyComponent) {
+         return false;
+      } else if (i == length) {
+         return ! requireExtension;
+      }
+
+      // After the first dot, only dots and word characters are allowed
+      for (i++; i < length; i++) {
+         char c = s.charAt(i);
+         if (c != '.' && ! isWordChar(c)) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
    /**
     * Checks if the specified string is considered a valid name for a concrete
     * site.
@@ -72,7 +300,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidSiteName(String s)
    throws IllegalArgumentException {
-      executeAssertion("site name", "^[a-z][a-z0-9]*([_-][a-z0-9]+)*$", s);
+      executeAssertion("site name", SITE_NAME_PATTERN, s);
    }
 
    /**
@@ -95,7 +323,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidPageName(String s)
    throws IllegalArgumentException {
-      executeAssertion("page name", "^[A-Z]\\w*$", s);
+      executeAssertion("page name", PAGE_NAME_PATTERN, s);
    }
 
    /**
@@ -116,7 +344,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidPagePath(String s)
    throws IllegalArgumentException {
-      executeAssertion("page path", "^\\/([\\w-]+\\/)*$", s);
+      executeAssertion("page path", PAGE_PATH_PATTERN, s);
    }
 
    /**
@@ -131,7 +359,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidFormName(String s)
    throws IllegalArgumentException {
-      executeAssertion("form name", "^([A-Z][a-z0-9]*)+$", s);
+      executeAssertion("form name", FORM_NAME_PATTERN, s);
    }
 
    /**
@@ -146,7 +374,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidRealmName(String s)
    throws IllegalArgumentException {
-      executeAssertion("realm name", "^[A-Z][A-Z0-9]*(_[A-Z0-9]+)*$", s);
+      executeAssertion("realm name", REALM_NAME_PATTERN, s);
    }
 
    /**
@@ -161,7 +389,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidAccountIndexName(String s)
    throws IllegalArgumentException {
-      executeAssertion("realm name", "^[a-z]+$", s);
+      executeAssertion("realm name", ACCOUNT_INDEX_NAME_PATTERN, s);
    }
 
    /**
@@ -177,7 +405,10 @@ public final class Assertions extends Object {
     */
    public static final void assertValidAccountRefString(String s)
    throws IllegalArgumentException {
-      executeAssertion("account reference", "^[0-9a-fA-F]{40}$", s);
+      MandatoryArgumentChecker.check("s", s);
+      if (! isHexString(s, 40, true)) {
+         throw newInvalidException("account reference", s);
+      }
    }
 
    /**
@@ -192,7 +423,10 @@ public final class Assertions extends Object {
     */
    public static final void assertValidAccountID(String s)
    throws IllegalArgumentException {
-      executeAssertion("account ID", "^[0-9a-f]{16}$", s);
+      MandatoryArgumentChecker.check("s", s);
+      if (! isValidAccountID(s)) {
+         throw newInvalidException("account ID", s);
+      }
    }
 
    /**
@@ -208,7 +442,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidAccountPropertyName(String s)
    throws IllegalArgumentException {
-      executeAssertion("account property name", "^[A-Z][A-Za-z0-9_]*$", s);
+      executeAssertion("account property name", ACCOUNT_PROPERTY_NAME_PATTERN, s);
    }
 
    /**
@@ -223,7 +457,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidFileName(String s)
    throws IllegalArgumentException {
-      executeAssertion("file name", "^[\\w-]+\\.[a-z]{2,4}$", s);
+      executeAssertion("file name", FILE_NAME_PATTERN, s);
    }
 
    /**
@@ -244,7 +478,10 @@ public final class Assertions extends Object {
     */
    public static final void assertValidFilePath(String s)
    throws IllegalArgumentException {
-      executeAssertion("file path", "^[\\w@-]+(/[\\w@-]+)*(\\.[\\w]*)+$", s);
+      MandatoryArgumentChecker.check("s", s);
+      if (! isValidPath(s, true)) {
+         throw newInvalidException("file path", s);
+      }
    }
 
    /**
@@ -268,7 +505,10 @@ public final class Assertions extends Object {
     */
    public static final void assertValidPath(String s)
    throws IllegalArgumentException {
-      executeAssertion("path", "^[\\w@-]+(/[\\w@-]+)*(\\.[\\w]*)*$", s);
+      MandatoryArgumentChecker.check("s", s);
+      if (! isValidPath(s, false)) {
+         throw newInvalidException("path", s);
+      }
    }
 
    /**
@@ -290,7 +530,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidDirectoryPath(String s)
    throws IllegalArgumentException {
-      executeAssertion("directory path", "^[\\w-]+(/[\\w-]+)*\\/?$", s);
+      executeAssertion("directory path", DIRECTORY_PATH_PATTERN, s);
    }
 
    /**
@@ -312,7 +552,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidHostName(String s)
    throws IllegalArgumentException {
-      executeAssertion("host name", "^[\\w-]+(\\.[\\w-]+)+$", s);
+      executeAssertion("host name", HOST_NAME_PATTERN, s);
    }
 
    /**
@@ -333,7 +573,7 @@ public final class Assertions extends Object {
     */
    public static final void assertValidWebURL(String s)
    throws IllegalArgumentException {
-      executeAssertion("web URL", "^http(s)?:\\/\\/[\\w-]+(\\.[\\w-]+)+(:\\d{1,5})?\\/.*$", s);
+      executeAssertion("web URL", WEB_URL_PATTERN, s);
    }
 
 
@@ -1,8 +1,12 @@
 // See the COPYRIGHT file for copyright and license information
 package org.znerd.yaff;
 
+import org.znerd.yaff.activation.ByteArrayDataSource;
 import org.znerd.yaff.activation.XDataSource;
 import org.znerd.yaff.activation.XMLDataSource;
+import org.znerd.yaff.cache.DecryptedFileCache;
+import org.znerd.yaff.cache.MissingFileCache;
+import org.znerd.yaff.cache.XMLFileCache;
 import org.znerd.yaff.security.Key;
 import org.znerd.yaff.security.Vault;
 import org.znerd.yaff.security.VaultIO;
@@ -10,9 +14,22 @@ import org.znerd.yaff.security.WrongKeyException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 
 import javax.activation.DataSource;
 
+import org.apache.commons.io.IOUtils;
 import org.xins.common.MandatoryArgumentChecker;
 import org.xins.common.Utils;
 import org.xins.common.text.ParseException;
@@ -26,6 +43,147 @@ import org.xins.common.xml.Element;
  */
 public abstract class DataContext extends Object implements DataHubSub {
 
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The suffix for encrypted files in the XML format. Files in this format
+    * are still read, and they are rewritten in this format, but new
+    * encrypted files are created in the binary format.
+    */
+   static final String XML_VAULT_SUFFIX = ".Ciphered.xml";
+
+   /**
+    * The suffix for encrypted files in the binary format, see
+    * {@link VaultStream}.
+    */
+   static final String BINARY_VAULT_SUFFIX = ".Ciphered.bin";
+
+   /**
+    * The maximum size of an encrypted file for its decrypted content to be
+    * cached (256 KiB). Larger files are decrypted while they are read.
+    */
+   private static final long MAX_CACHED_FILE_SIZE = 256L * 1024L;
+
+   /**
+    * The maximum number of files that
+    * {@link #getFiles(DatabaseType,Collection,Key)} retrieves concurrently.
+    */
+   private static final int MAX_BATCH_CONCURRENCY = 4;
+
+   /**
+    * Cache for parsed unencrypted XML files, shared by all data contexts.
+    * Never <code>null</code>.
+    */
+   private static final XMLFileCache XML_FILE_CACHE = new XMLFileCache(XMLFileCache.DEFAULT_MAX_WEIGHT);
+
+   /**
+    * Cache for the decrypted content of encrypted files, shared by all data
+    * contexts. Never <code>null</code>.
+    */
+   private static final DecryptedFileCache DECRYPTED_FILE_CACHE = new DecryptedFileCache(DecryptedFileCache.DEFAULT_MAX_WEIGHT);
+
+   /**
+    * The current content of files that is held in memory until it has been
+    * written, by location (see {@link #getPendingContentKey(Database,String)}).
+    * Shared by all data contexts, so that reads through any data context see
+    * it. Never <code>null</code>.
+    */
+   private static final ConcurrentHashMap<String,DataSource> PENDING_CONTENT = new ConcurrentHashMap<String,DataSource>();
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the cache for parsed XML files that is used by
+    * {@link #getXMLFile(DatabaseType,String,Key)} for unencrypted files.
+    * This is mainly useful to inspect the hit and miss counters.
+    *
+    * @return
+    *    the {@link XMLFileCache}, never <code>null</code>.
+    */
+   public static final XMLFileCache getXMLFileCache() {
+      return XML_FILE_CACHE;
+   }
+
+   /**
+    * Returns the cache for decrypted files that is used by
+    * {@link #getFile(DatabaseType,ResolvedPath,Key)} for encrypted files.
+    * This is mainly useful to inspect the hit and miss counters.
+    *
+    * @return
+    *    the {@link DecryptedFileCache}, never <code>null</code>.
+    */
+   public static final DecryptedFileCache getDecryptedFileCache() {
+      return DECRYPTED_FILE_CACHE;
+   }
+
+   /**
+    * Determines the key of a file in {@link #PENDING_CONTENT}: its location
+    * in the write directory of the database, so that files with the same
+    * path in different databases are kept apart.
+    *
+    * @param database
+    *    the {@link Database}, should not be <code>null</code>.
+    *
+    * @param translatedPath
+    *    the translated path of the file, should not be <code>null</code>.
+    *
+    * @return
+    *    the key, never <code>null</code>.
+    */
+   private static String getPendingContentKey(Database database, String translatedPath) {
+      File dir = database.getWriteDir();
+      return (dir == null) ? translatedPath : new File(dir, translatedPath).getPath();
+   }
+
+   /**
+    * Registers the current content of a file that has not been written yet.
+    * Until the content is cleared through
+    * {@link #clearPendingContent(Database,String,DataSource)},
+    * {@link #getFile(DatabaseType,ResolvedPath,Key)} returns it instead of
+    * the file on disk, in any data context.
+    *
+    * @param database
+    *    the {@link Database}, should not be <code>null</code>.
+    *
+    * @param translatedPath
+    *    the translated path of the file, should not be <code>null</code>.
+    *
+    * @param content
+    *    the unencrypted content, should not be <code>null</code>.
+    */
+   static void setPendingContent(Database database, String translatedPath, DataSource content) {
+      PENDING_CONTENT.put(getPendingContentKey(database, translatedPath), content);
+   }
+
+   /**
+    * Clears the content registered for a file, after it has been written or
+    * discarded, unless newer content has been registered since.
+    *
+    * @param database
+    *    the {@link Database}, should not be <code>null</code>.
+    *
+    * @param translatedPath
+    *    the translated path of the file, should not be <code>null</code>.
+    *
+    * @param content
+    *    the content that was registered, or <code>null</code> to clear any
+    *    content.
+    */
+   static void clearPendingContent(Database database, String translatedPath, DataSource content) {
+      String key = getPendingContentKey(database, translatedPath);
+      if (content == null) {
+         PENDING_CONTENT.remove(key);
+      } else {
+         PENDING_CONTENT.remove(key, content);
+      }
+   }
+
+
    //-------------------------------------------------------------------------
    // Constructors
    //-------------------------------------------------------------------------
@@ -57,6 +215,63 @@ public abstract class DataContext extends Object implements DataHubSub {
       return null;
    }
 
+   /**
+    * Retrieves the cache of files that are known to be absent, if this
+    * object uses one. This cache is consulted by the methods that retrieve or
+    * delete optional files, such as
+    * {@link #getOptionalFile(DatabaseType,ResolvedPath,Key)} and
+    * {@link #deleteFileIfExists(DatabaseType,String,boolean)}.
+    *
+    * <p>The implementation of this method in class <code>DataContext</code>
+    * always returns <code>null</code>; subclasses can opt in by overriding
+    * this method.
+    *
+    * @return
+    *    the {@link MissingFileCache} for this object,
+    *    or <code>null</code> if there is none.
+    */
+   protected MissingFileCache getMissingFileCache() {
+      return null;
+   }
+
+   /**
+    * Determines the durability for a file stored in the specified database,
+    * when no durability is specified by the caller.
+    *
+    * <p>The implementation of this method in class <code>DataContext</code>
+    * always returns {@link Durability#NO_SYNC}; subclasses can override this
+    * method to use a different policy per database or per path.
+    *
+    * @param dbType
+    *    the type of database, never <code>null</code>.
+    *
+    * @param path
+    *    the path of the file, never <code>null</code>.
+    *
+    * @return
+    *    the {@link Durability}, never <code>null</code>.
+    */
+   protected Durability getDurability(DatabaseType dbType, ResolvedPath path) {
+      return Durability.NO_SYNC;
+   }
+
+   /**
+    * Retrieves the queue for files stored with
+    * {@link Durability#WRITE_BEHIND}, if this object uses one.
+    *
+    * <p>The implementation of this method in class <code>DataContext</code>
+    * always returns <code>null</code>, in which case such files are stored
+    * by the {@link IOExecutor}, one task per file; subclasses can opt in by
+    * overriding this method.
+    *
+    * @return
+    *    the {@link WriteBehindQueue} for this object,
+    *    or <code>null</code> if there is none.
+    */
+   protected WriteBehindQueue getWriteBehindQueue() {
+      return null;
+   }
+
    /**
     * Translates the specified path to an path that is relative to the
     * <code>DataHub</code>.
@@ -112,6 +327,169 @@ public abstract class DataContext extends Object implements DataHubSub {
       return dataHub.getDatabase(dbType);
    }
 
+   /**
+    * Validates and translates the specified file path once, so that the
+    * result can be passed to the file methods of this object any number of
+    * times.
+    *
+    * @param path
+    *    the path to the file, relative to this {@link DataContext},
+    *    cannot be <code>null</code> and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @return
+    *    the {@link ResolvedPath}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>path == null</code> or if the path is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final ResolvedPath resolvePath(String path)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("path", path);
+      Assertions.assertValidFilePath(path);
+
+      // Translate the path and check the result
+      String translatedPath = translateFilePath(path);
+      try {
+         Assertions.assertValidFilePath(translatedPath);
+      } catch (IllegalArgumentException cause) {
+         throw Utils.logProgrammingError(DataContext.class.getName(), "resolvePath(String)",   // detecting class/method
+                                         getClass().getName(),        "translatePath(String)", // subject   class/method
+                                         "Invalid path " + TextUtils.quote(translatedPath) + '.', cause);
+      }
+
+      return new ResolvedPath(this, path, translatedPath);
+   }
+
+   /**
+    * Translates the specified file path to a path that is relative to the
+    * <code>DataHub</code>. This method is called from
+    * {@link #resolvePath(String)}, after the path has been validated.
+    *
+    * <p>The implementation of this method in class <code>DataContext</code>
+    * simply calls {@link #translatePath(String)}.
+    *
+    * @param path
+    *    the path that is relative to this {@link DataContext},
+    *    never <code>null</code> and always a valid file path.
+    *
+    * @return
+    *    the translated path, relative to the {@link DataHub},
+    *    never <code>null</code>.
+    */
+   protected String translateFilePath(String path) {
+      return translatePath(path);
+   }
+
+   /**
+    * Checks that the specified <code>ResolvedPath</code> was produced by
+    * this data context.
+    *
+    * @param path
+    *    the {@link ResolvedPath} to check, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>path</code> was resolved by a different data context.
+    */
+   private void checkResolvedPath(ResolvedPath path)
+   throws IllegalArgumentException {
+      if (! equals(path.getDataContext())) {
+         throw new IllegalArgumentException(toString() + ": Path was resolved by a different data context (" + path.getDataContext() + ").");
+      }
+   }
+
+   /**
+    * Determines the path of the file that is actually stored in the
+    * database for the specified resolved path. For encrypted files the path
+    * in the XML format is returned; since the binary format is stored in
+    * the same directory, this path is only suitable as an identifier.
+    *
+    * @param path
+    *    the {@link ResolvedPath}, cannot be <code>null</code>.
+    *
+    * @param encrypted
+    *    flag that indicates if the file is encrypted.
+    *
+    * @return
+    *    the stored path, relative to the {@link DataHub},
+    *    never <code>null</code>.
+    */
+   private static String getStoredPath(ResolvedPath path, boolean encrypted) {
+      String translatedPath = path.getTranslatedPath();
+      return encrypted ? translatedPath + XML_VAULT_SUFFIX : translatedPath;
+   }
+
+   /**
+    * Determines the key for a stored file in the {@link MissingFileCache}.
+    *
+    * @param dbType
+    *    the type of database, cannot be <code>null</code>.
+    *
+    * @param storedPath
+    *    the stored path, relative to the {@link DataHub},
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the key, never <code>null</code>.
+    */
+   private static String getMissingFileKey(DatabaseType dbType, String storedPath) {
+      return dbType.name() + ':' + storedPath;
+   }
+
+   /**
+    * Records in the {@link MissingFileCache} (if any) that the specified file
+    * has been stored.
+    *
+    * @param dbType
+    *    the type of database the file was stored in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the {@link ResolvedPath} of the file, cannot be <code>null</code>.
+    *
+    * @param encrypted
+    *    flag that indicates if the file is encrypted.
+    */
+   void markPresent(DatabaseType dbType, ResolvedPath path, boolean encrypted) {
+      MissingFileCache cache = getMissingFileCache();
+      if (cache != null) {
+         cache.markPresent(getMissingFileKey(dbType, getStoredPath(path, encrypted)));
+         if (encrypted) {
+            cache.markPresent(getMissingFileKey(dbType, path.getTranslatedPath() + BINARY_VAULT_SUFFIX));
+         }
+      }
+   }
+
+   /**
+    * Computes the version of the directories that would contain the
+    * specified stored file, in both the read and the write directory of the
+    * database.
+    *
+    * @param database
+    *    the {@link Database}, cannot be <code>null</code>.
+    *
+    * @param storedPath
+    *    the stored path, relative to the {@link DataHub},
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the directory version,
+    *    see {@link MissingFileCache#getDirectoryVersion(File[])}.
+    */
+   private static long getDirectoryVersion(Database database, String storedPath) {
+      int      slash = storedPath.lastIndexOf('/');
+      String dirPath = (slash < 0) ? "" : storedPath.substring(0, slash);
+      File   readDir = database.getReadDir();
+      File  writeDir = database.getWriteDir();
+      File[]    dirs = readDir.equals(writeDir)
+                     ? new File[] { new File(readDir, dirPath) }
+                     : new File[] { new File(readDir, dirPath), new File(writeDir, dirPath) };
+      return MissingFileCache.getDirectoryVersion(dirs);
+   }
+
    /**
     * Retrieves a file as an <code>XDataSource</code>, using the default
     * encryption key.
@@ -196,7 +574,53 @@ public abstract class DataContext extends Object implements DataHubSub {
 
       // Check preconditions
       MandatoryArgumentChecker.check("dbType", dbType, "path", path);
-      Assertions.assertValidFilePath(path);
+
+      return getFile(dbType, resolvePath(path), key);
+   }
+
+   /**
+    * Retrieves a file as an <code>XDataSource</code>, by resolved path, using
+    * the specified encryption key.
+    * If the file is not found, then a {@link NoSuchFileException} is thrown.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, as returned by {@link #resolvePath(String)}
+    *    on this object, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to decrypt the file,
+    *    or <code>null</code> if an unencrypted file is expected.
+    *
+    * @return
+    *    the file, as an {@link XDataSource} instance,
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if <code>path</code> was resolved by a different data context.
+    *
+    * @throws NoSuchDatabaseException
+    *    if the specified database is currently unavailable.
+    *
+    * @throws NoSuchFileException
+    *    if the file cannot be found.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed.
+    */
+   public final XDataSource getFile(DatabaseType dbType, ResolvedPath path, Key key)
+   throws IllegalArgumentException,
+          NoSuchDatabaseException,
+          NoSuchFileException,
+          TechnicalContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+      checkResolvedPath(path);
 
       // Get the appropriate Database
       Database database = getDatabase(dbType);
@@ -204,28 +628,91 @@ public abstract class DataContext extends Object implements DataHubSub {
          throw new NoSuchDatabaseException(dbType);
       }
 
-      // Translate the path and check the result
-      String translatedPath = translatePath(path);
-      try {
-         Assertions.assertValidFilePath(translatedPath);
-      } catch (IllegalArgumentException cause) {
-         throw Utils.logProgrammingError(DataContext.class.getName(), "getFile(DatabaseType,String)", // detecting class/method
-                                         getClass().getName(),        "translatePath(String)",        // subject   class/method
-                                         "Invalid path " + TextUtils.quote(translatedPath) + '.', cause);
+      // A file that is queued to be stored in the background is read from
+      // the queue, so reads see it before it has been written
+      WriteBehindQueue queue = getWriteBehindQueue();
+      if (queue != null) {
+         DataSource queued = queue.getQueuedData(dbType, path, key);
+         if (queued != null) {
+            return toXDataSource(queued, path);
+         }
+      }
+
+      // Content that is only held in memory, such as account data with
+      // changes in the journal, is read from memory as well
+      if (! PENDING_CONTENT.isEmpty()) {
+         DataSource pending = PENDING_CONTENT.get(getPendingContentKey(database, path.getTranslatedPath()));
+         if (pending != null) {
+            return toXDataSource(pending, path);
+         }
       }
 
+      String translatedPath = path.getTranslatedPath();
+
       // No encryption
       if (key == null) {
          return database.getFile(translatedPath);
 
       // Decrypt the file
       } else {
-         String encryptedPath = translatedPath + ".Ciphered.xml";
+
+         // Prefer the binary format, fall back to the XML format; if there
+         // is a MissingFileCache, it remembers files that only exist in the
+         // XML format, so they are not probed for the binary format each time
+         String    encryptedPath = translatedPath + BINARY_VAULT_SUFFIX;
+         MissingFileCache  cache = getMissingFileCache();
+         String         cacheKey = null;
+         long         dirVersion = 0L;
+         boolean          binary = true;
+         if (cache != null) {
+            cacheKey   = getMissingFileKey(dbType, encryptedPath);
+            dirVersion = getDirectoryVersion(database, encryptedPath);
+            binary     = ! cache.isMissing(cacheKey, dirVersion);
+         }
+         XDataSource encryptedFile = null;
+         if (binary) {
+            try {
+               encryptedFile = database.getFile(encryptedPath);
+            } catch (NoSuchFileException cause) {
+               if (cache != null) {
+                  cache.markMissing(cacheKey, dirVersion);
+               }
+               binary = false;
+            }
+         }
+         if (! binary) {
+            encryptedPath = translatedPath + XML_VAULT_SUFFIX;
+            encryptedFile = database.getFile(encryptedPath);
+         }
+
+         // Reuse the decrypted content if the file did not change since
+         long    lastModified = encryptedFile.lastModified();
+         boolean    cacheable = encryptedFile.length() <= MAX_CACHED_FILE_SIZE;
+         if (cacheable) {
+            XDataSource cached = DECRYPTED_FILE_CACHE.get(database, encryptedPath, key, lastModified);
+            if (cached != null) {
+               return cached;
+            }
+         }
 
          try {
-            XMLDataSource encryptedData = database.getXMLFile(encryptedPath);
-            Vault                 vault = VaultIO.deserialize(encryptedData.getXML());
-            return vault.getContentAsDataSource(key, path);
+            XDataSource decrypted;
+            if (binary) {
+               decrypted = VaultStream.decrypt(encryptedFile, path.getPath(), key);
+            } else {
+               Vault vault = VaultIO.deserialize(database.getXMLFile(encryptedPath).getXML());
+               decrypted   = vault.getContentAsDataSource(key, path.getPath());
+            }
+
+            // Large files are not cached, streamed files stay streaming
+            if (! cacheable) {
+               return decrypted;
+            }
+            return DECRYPTED_FILE_CACHE.put(database, encryptedPath, key, lastModified, decrypted);
+
+         // I/O error while reading the encrypted or the decrypted content
+         } catch (IOException cause) {
+            throw new TechnicalContentAccessException(toString() + ": Failed to read encrypted file " + TextUtils.quote(encryptedPath) + " in " + dbType.name() + '.', cause);
 
          // XML parsing error
          } catch (ParseException cause) {
@@ -239,19 +726,51 @@ public abstract class DataContext extends Object implements DataHubSub {
    }
 
    /**
-    * Retrieves a file, parses it as XML and returns it as an
-    * <code>XMLDataSource</code>, using the default encryption key.
-    * If the file is not found,            then a {@link NoSuchFileException}             is thrown.
-    * If the file cannot be parsed as XML, then a {@link TechnicalContentAccessException} is thrown.
+    * Converts the content of a queued file to an <code>XDataSource</code>.
     *
-    * @param dbType
-    *    the type of database to get the file from,
-    *    cannot be <code>null</code>.
+    * @param data
+    *    the queued content, should not be <code>null</code>.
     *
     * @param path
-    *    the path to the file, cannot be <code>null</code>
-    *    and must be a valid file path
-    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *    the path of the file, should not be <code>null</code>.
+    *
+    * @return
+    *    the content, as an {@link XDataSource}, never <code>null</code>.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content could not be read.
+    */
+   private XDataSource toXDataSource(DataSource data, ResolvedPath path)
+   throws TechnicalContentAccessException {
+      if (data instanceof XDataSource) {
+         return (XDataSource) data;
+      }
+      try {
+         InputStream in = data.getInputStream();
+         try {
+            return new ByteArrayDataSource(path.getPath(), IOUtils.toByteArray(in), data.getContentType());
+         } finally {
+            in.close();
+         }
+      } catch (IOException cause) {
+         throw new TechnicalContentAccessException(toString() + ": Failed to read the in-memory content of file " + TextUtils.quote(path.getPath()) + '.', cause);
+      }
+   }
+
+   /**
+    * Retrieves a file, parses it as XML and returns it as an
+    * <code>XMLDataSource</code>, using the default encryption key.
+    * If the file is not found,            then a {@link NoSuchFileException}             is thrown.
+    * If the file cannot be parsed as XML, then a {@link TechnicalContentAccessException} is thrown.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
     *
     * @return
     *    the file, as an {@link XMLDataSource} instance,
@@ -286,6 +805,10 @@ public abstract class DataContext extends Object implements DataHubSub {
     * If the file is not found,            then a {@link NoSuchFileException}             is thrown.
     * If the file cannot be parsed as XML, then a {@link TechnicalContentAccessException} is thrown.
     *
+    * <p>Unencrypted files are cached in parsed form, see
+    * {@link #getXMLFileCache()}. A cached entry is only used as long as the
+    * modification time of the file is unchanged.
+    *
     * @param dbType
     *    the type of database to get the file from,
     *    cannot be <code>null</code>.
@@ -319,23 +842,384 @@ public abstract class DataContext extends Object implements DataHubSub {
     *    if the content access failed, for a technical reason.
     */
    public final XMLDataSource getXMLFile(DatabaseType dbType, String path, Key key)
+   throws IllegalArgumentException,
+          NoSuchDatabaseException,
+          NoSuchFileException,
+          TechnicalContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      return getXMLFile(dbType, resolvePath(path), key);
+   }
+
+   /**
+    * Retrieves a file by resolved path, parses it as XML and returns it as an
+    * <code>XMLDataSource</code>, using the specified encryption key.
+    * If the file is not found,            then a {@link NoSuchFileException}             is thrown.
+    * If the file cannot be parsed as XML, then a {@link TechnicalContentAccessException} is thrown.
+    *
+    * <p>Unencrypted files are cached in parsed form, see
+    * {@link #getXMLFileCache()}.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, as returned by {@link #resolvePath(String)}
+    *    on this object, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to decrypt the file,
+    *    or <code>null</code> if an unencrypted file is expected.
+    *
+    * @return
+    *    the file, as an {@link XMLDataSource} instance,
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if <code>path</code> was resolved by a different data context.
+    *
+    * @throws NoSuchDatabaseException
+    *    if the database of the specified type is not available in this
+    *    environment.
+    *
+    * @throws NoSuchFileException
+    *    if the file cannot be found.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed, for a technical reason.
+    */
+   public final XMLDataSource getXMLFile(DatabaseType dbType, ResolvedPath path, Key key)
    throws IllegalArgumentException,
           NoSuchDatabaseException,
           NoSuchFileException,
           TechnicalContentAccessException {
 
       // Delegate to regular getFile method
+      return toXMLDataSource(dbType, path, getFile(dbType, path, key), key);
+   }
+
+   /**
+    * Parses a retrieved file as XML.
+    *
+    * @param dbType
+    *    the type of database the file was retrieved from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>.
+    *
+    * @param file
+    *    the retrieved file, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} the file was decrypted with,
+    *    or <code>null</code> if the file was not encrypted.
+    *
+    * @return
+    *    the file, as an {@link XMLDataSource} instance,
+    *    never <code>null</code>.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the file could not be read or parsed.
+    */
+   private XMLDataSource toXMLDataSource(DatabaseType dbType, ResolvedPath path, XDataSource file, Key key)
+   throws TechnicalContentAccessException {
       try {
-         return new XMLDataSource(getFile(dbType, path, key));
+
+         // Unencrypted files are parsed only once, as long as they do not
+         // change; decrypted content is never cached here
+         return (key == null) ? XML_FILE_CACHE.get(file)
+                              : new XMLDataSource(file);
 
       // I/O error
       } catch (IOException cause) {
-         throw new TechnicalContentAccessException(toString() + ": I/O error while opening/reading file \"" + path + "\" from " + dbType.name() + '.', cause);
+         throw new TechnicalContentAccessException(toString() + ": I/O error while opening/reading file \"" + path.getPath() + "\" from " + dbType.name() + '.', cause);
 
       // Parsing error
       } catch (ParseException cause) {
-         throw new TechnicalContentAccessException(toString() + ": Error while parsing file \"" + path + "\" from " + dbType.name() + " as XML.", cause);
+         throw new TechnicalContentAccessException(toString() + ": Error while parsing file \"" + path.getPath() + "\" from " + dbType.name() + " as XML.", cause);
+      }
+   }
+
+   /**
+    * Retrieves an optional file as an <code>XDataSource</code>, using the
+    * default encryption key.
+    * If the file is not found, then <code>null</code> is returned.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @return
+    *    the file, as an {@link XDataSource} instance,
+    *    or <code>null</code> if the file does not exist.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid,
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @throws NoSuchDatabaseException
+    *    if the specified database is currently unavailable.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed.
+    */
+   public final XDataSource getOptionalFile(DatabaseType dbType, String path)
+   throws IllegalArgumentException,
+          NoSuchDatabaseException,
+          TechnicalContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      return getOptionalFile(dbType, resolvePath(path), getDefaultKey());
+   }
+
+   /**
+    * Retrieves an optional file as an <code>XDataSource</code>, by resolved
+    * path, using the specified encryption key.
+    * If the file is not found, then <code>null</code> is returned.
+    *
+    * <p>If this object has a {@link MissingFileCache} (see
+    * {@link #getMissingFileCache()}), then a file that was found to be
+    * absent before is not looked up again, until its directory changes or
+    * the file is stored through this object.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, as returned by {@link #resolvePath(String)}
+    *    on this object, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to decrypt the file,
+    *    or <code>null</code> if an unencrypted file is expected.
+    *
+    * @return
+    *    the file, as an {@link XDataSource} instance,
+    *    or <code>null</code> if the file does not exist.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if <code>path</code> was resolved by a different data context.
+    *
+    * @throws NoSuchDatabaseException
+    *    if the specified database is currently unavailable.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed.
+    */
+   public final XDataSource getOptionalFile(DatabaseType dbType, ResolvedPath path, Key key)
+   throws IllegalArgumentException,
+          NoSuchDatabaseException,
+          TechnicalContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      // Skip the lookup if the file is known to be absent
+      MissingFileCache cache = getMissingFileCache();
+      String        cacheKey = null;
+      long        dirVersion = 0L;
+      if (cache != null) {
+         Database database = getDatabase(dbType);
+         if (database == null) {
+            throw new NoSuchDatabaseException(dbType);
+         }
+
+         String storedPath = getStoredPath(path, key != null);
+         cacheKey          = getMissingFileKey(dbType, storedPath);
+         dirVersion        = getDirectoryVersion(database, storedPath);
+         if (cache.isMissing(cacheKey, dirVersion)) {
+            return null;
+         }
+      }
+
+      try {
+         return getFile(dbType, path, key);
+
+      // Remember that the file does not exist
+      } catch (NoSuchFileException cause) {
+         if (cache != null) {
+            cache.markMissing(cacheKey, dirVersion);
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Retrieves an optional file, parses it as XML and returns it as an
+    * <code>XMLDataSource</code>, using the default encryption key.
+    * If the file is not found,            then <code>null</code> is returned.
+    * If the file cannot be parsed as XML, then a {@link TechnicalContentAccessException} is thrown.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @return
+    *    the file, as an {@link XMLDataSource} instance,
+    *    or <code>null</code> if the file does not exist.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid,
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @throws NoSuchDatabaseException
+    *    if the database of the specified type is not available in this
+    *    environment.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed, for a technical reason.
+    */
+   public final XMLDataSource getOptionalXMLFile(DatabaseType dbType, String path)
+   throws IllegalArgumentException,
+          NoSuchDatabaseException,
+          TechnicalContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      ResolvedPath resolved = resolvePath(path);
+      Key               key = getDefaultKey();
+      XDataSource      file = getOptionalFile(dbType, resolved, key);
+
+      return (file == null) ? null : toXMLDataSource(dbType, resolved, file, key);
+   }
+
+   /**
+    * Retrieves multiple files at once, using the default encryption key.
+    *
+    * @param dbType
+    *    the type of database to get the files from,
+    *    cannot be <code>null</code>.
+    *
+    * @param paths
+    *    the paths to the files, cannot be <code>null</code>
+    *    and all elements must be valid file paths
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @return
+    *    the {@link FileBatchResult}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || paths == null</code>
+    *    or if any of the paths is <code>null</code> or not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final FileBatchResult getFiles(DatabaseType dbType, Collection<String> paths)
+   throws IllegalArgumentException {
+      return getFiles(dbType, paths, getDefaultKey());
+   }
+
+   /**
+    * Retrieves multiple files at once, using the specified encryption key.
+    * All paths are validated and translated before any file is retrieved.
+    * The files are then retrieved in parallel, by at most
+    * {@value #MAX_BATCH_CONCURRENCY} threads: the calling thread and
+    * threads of the {@link IOExecutor}.
+    *
+    * <p>Files that do not exist and files that could not be retrieved do
+    * not cause this method to fail; instead they are reported in the
+    * result. Like {@link #getOptionalFile(DatabaseType,ResolvedPath,Key)},
+    * this method uses the {@link MissingFileCache}, if any.
+    *
+    * @param dbType
+    *    the type of database to get the files from,
+    *    cannot be <code>null</code>.
+    *
+    * @param paths
+    *    the paths to the files, cannot be <code>null</code>
+    *    and all elements must be valid file paths
+    *    (see {@link Assertions#assertValidFilePath(String)});
+    *    duplicates are retrieved only once.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to decrypt the files,
+    *    or <code>null</code> if unencrypted files are expected.
+    *
+    * @return
+    *    the {@link FileBatchResult}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || paths == null</code>
+    *    or if any of the paths is <code>null</code> or not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final FileBatchResult getFiles(final DatabaseType dbType, Collection<String> paths, final Key key)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "paths", paths);
+
+      // Resolve all paths first, so invalid arguments fail before any I/O
+      Map<String,ResolvedPath> resolved = new LinkedHashMap<String,ResolvedPath>();
+      for (String path : paths) {
+         MandatoryArgumentChecker.check("path", path);
+         if (! resolved.containsKey(path)) {
+            resolved.put(path, resolvePath(path));
+         }
+      }
+
+      final Queue<Map.Entry<String,ResolvedPath>>   queue = new ConcurrentLinkedQueue<Map.Entry<String,ResolvedPath>>(resolved.entrySet());
+      final Map<String,XDataSource>                 files = new ConcurrentHashMap<String,XDataSource>();
+      final Map<String,Boolean>                   missing = new ConcurrentHashMap<String,Boolean>();
+      final Map<String,ContentAccessException>   failures = new ConcurrentHashMap<String,ContentAccessException>();
+
+      // Each worker retrieves files until the queue is empty
+      Runnable worker = new Runnable() {
+         public void run() {
+            for (Map.Entry<String,ResolvedPath> e = queue.poll(); e != null; e = queue.poll()) {
+               try {
+                  XDataSource file = getOptionalFile(dbType, e.getValue(), key);
+                  if (file == null) {
+                     missing.put(e.getKey(), Boolean.TRUE);
+                  } else {
+                     files.put(e.getKey(), file);
+                  }
+               } catch (ContentAccessException cause) {
+                  failures.put(e.getKey(), cause);
+               }
+            }
+         }
+      };
+
+      // Run the workers, including one in the calling thread
+      IOExecutor.runWorkers(worker, Math.max(1, Math.min(MAX_BATCH_CONCURRENCY, resolved.size())));
+
+      // Compose the result, in request order
+      Map<String,XDataSource>                orderedFiles = new LinkedHashMap<String,XDataSource>();
+      Set<String>                          orderedMissing = new LinkedHashSet<String>();
+      Map<String,ContentAccessException> orderedFailures = new LinkedHashMap<String,ContentAccessException>();
+      for (String path : resolved.keySet()) {
+         if (files.containsKey(path)) {
+            orderedFiles.put(path, files.get(path));
+         } else if (missing.containsKey(path)) {
+            orderedMissing.add(path);
+         } else {
+            orderedFailures.put(path, failures.get(path));
+         }
       }
+
+      return new FileBatchResult(orderedFiles, orderedMissing, orderedFailures);
    }
 
    /**
@@ -505,7 +1389,7 @@ public abstract class DataContext extends Object implements DataHubSub {
 
       // With encryption
       } else {
-         String      encryptedPath = translatedPath + ".Ciphered.xml";
+         String      encryptedPath = translatedPath + XML_VAULT_SUFFIX;
          XDataSource encryptedData = encrypt(dbType, translatedPath, data, key);
          actualName                = database.createUniqueFile(encryptedPath, replaceToken, encryptedData);
       }
@@ -538,15 +1422,41 @@ public abstract class DataContext extends Object implements DataHubSub {
    }
 
    /**
-    * Stores a file as a <code>DataSource</code>, by path, using the default
-    * encryption key.
+    * Checks if the specified file exists in a database.
     *
-    * @param dbType
-    *    the type of database to store the file in,
-    *    cannot be <code>null</code>.
+    * @param database
+    *    the {@link Database}, should not be <code>null</code>.
     *
     * @param path
-    *    the path to the file, cannot be <code>null</code>
+    *    the path to the file within the database,
+    *    should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the file exists, <code>false</code> otherwise.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed for a technical reason.
+    */
+   static boolean fileExists(Database database, String path)
+   throws TechnicalContentAccessException {
+      try {
+         database.getFile(path);
+         return true;
+      } catch (NoSuchFileException cause) {
+         return false;
+      }
+   }
+
+   /**
+    * Stores a file as a <code>DataSource</code>, by path, using the default
+    * encryption key.
+    *
+    * @param dbType
+    *    the type of database to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
     *    and must be a valid file path
     *    (see {@link Assertions#assertValidFilePath(String)}).
     *
@@ -657,33 +1567,324 @@ public abstract class DataContext extends Object implements DataHubSub {
                                      "path",   path,
                                      "data",   data,
                                      "mode",   mode);
-      Assertions.assertValidFilePath(path);
 
+      storeFile(dbType, resolvePath(path), data, mode, key);
+   }
 
-      // Get the appropriate Database and translate the path
-      Database     database = getDatabase(dbType);
-      String translatedPath = translatePath(path);
+   /**
+    * Stores a file as a <code>DataSource</code>, by path, using the specified
+    * encryption key and durability.
+    *
+    * @param dbType
+    *    the type of database to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @param data
+    *    the data, as a {@link DataSource} instance,
+    *    cannot be <code>null</code>.
+    *
+    * @param mode
+    *    the {@link FileStoreMode} that indicates how to behave, for example
+    *    if the file already exists; cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to encrypt the file,
+    *    or <code>null</code> if an unencrypted file should be produced.
+    *
+    * @param durability
+    *    the {@link Durability} to guarantee, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType     == null
+    *          || path       == null
+    *          || data       == null
+    *          || mode       == null
+    *          || durability == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @throws ReadOnlyDatabaseException
+    *    if the {@link Database} is read-only,
+    *    see {@link Database#isWritable()}.
+    *
+    * @throws FileExistsException
+    *    if the {@link FileStoreMode} does not allow the file to exist,
+    *    but still it does.
+    *
+    * @throws NoSuchFileException
+    *    if the {@link FileStoreMode} requires the file to exist,
+    *    but still it does not.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed for a technical reason.
+    */
+   public void storeFile(DatabaseType  dbType,
+                         String        path,
+                         DataSource    data,
+                         FileStoreMode mode,
+                         Key           key,
+                         Durability    durability)
+   throws IllegalArgumentException,
+          ReadOnlyDatabaseException,
+          FileExistsException,
+          NoSuchFileException,
+          TechnicalContentAccessException {
 
-      // Check the result from translatedPath
-      try {
-         Assertions.assertValidFilePath(translatedPath);
-      } catch (IllegalArgumentException cause) {
-         throw Utils.logProgrammingError(DataContext.class.getName(), "storeFile(DatabaseType,String,DataSource,FileStoreMode)", // detecting class/method
-                                         getClass().getName(),        "translatePath(String)",                                   // subject   class/method
-                                         "Invalid path " + TextUtils.quote(translatedPath) + '.', cause);
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType,
+                                     "path",   path,
+                                     "data",   data,
+                                     "mode",   mode);
+      MandatoryArgumentChecker.check("durability", durability);
+
+      storeFile(dbType, resolvePath(path), data, mode, key, durability);
+   }
+
+   /**
+    * Stores a file as a <code>DataSource</code>, by resolved path, using the
+    * specified encryption key.
+    *
+    * @param dbType
+    *    the type of database to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, as returned by {@link #resolvePath(String)}
+    *    on this object, cannot be <code>null</code>.
+    *
+    * @param data
+    *    the data, as a {@link DataSource} instance,
+    *    canoot be <code>null</code>.
+    *
+    * @param mode
+    *    the {@link FileStoreMode} that indicates how to behave, for example
+    *    if the file already exists; cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to encrypt the file,
+    *    or <code>null</code> if an unencrypted file should be produced.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null
+    *          || path   == null
+    *          || data   == null
+    *          || mode   == null</code>
+    *    or if <code>path</code> was resolved by a different data context.
+    *
+    * @throws ReadOnlyDatabaseException
+    *    if the {@link Database} is read-only,
+    *    see {@link Database#isWritable()}.
+    *
+    * @throws FileExistsException
+    *    if the {@link FileStoreMode} does not allow the file to exist,
+    *    but still it does.
+    *
+    * @throws NoSuchFileException
+    *    if the {@link FileStoreMode} requires the file to exist,
+    *    but still it does not.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed for a technical reason.
+    */
+   public void storeFile(DatabaseType  dbType,
+                         ResolvedPath  path,
+                         DataSource    data,
+                         FileStoreMode mode,
+                         Key           key)
+   throws IllegalArgumentException,
+          ReadOnlyDatabaseException,
+          FileExistsException,
+          NoSuchFileException,
+          TechnicalContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType,
+                                     "path",   path,
+                                     "data",   data,
+                                     "mode",   mode);
+
+      // Determine the durability
+      Durability durability = getDurability(dbType, path);
+      if (durability == null) {
+         throw Utils.logProgrammingError(DataContext.class.getName(), "storeFile(DatabaseType,ResolvedPath,DataSource,FileStoreMode,Key)", getClass().getName(), "getDurability(DatabaseType,ResolvedPath)", "Method getDurability(DatabaseType,ResolvedPath) returned null.", (Throwable) null);
+      }
+
+      storeFile(dbType, path, data, mode, key, durability);
+   }
+
+   /**
+    * Stores a file as a <code>DataSource</code>, by resolved path, using the
+    * specified encryption key and durability.
+    *
+    * @param dbType
+    *    the type of database to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, as returned by {@link #resolvePath(String)}
+    *    on this object, cannot be <code>null</code>.
+    *
+    * @param data
+    *    the data, as a {@link DataSource} instance,
+    *    cannot be <code>null</code>.
+    *
+    * @param mode
+    *    the {@link FileStoreMode} that indicates how to behave, for example
+    *    if the file already exists; cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to encrypt the file,
+    *    or <code>null</code> if an unencrypted file should be produced.
+    *
+    * @param durability
+    *    the {@link Durability} to guarantee, cannot be <code>null</code>.
+    *    With {@link Durability#WRITE_BEHIND} none of the exceptions below
+    *    is thrown, except {@link IllegalArgumentException}; failures are
+    *    logged instead.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType     == null
+    *          || path       == null
+    *          || data       == null
+    *          || mode       == null
+    *          || durability == null</code>
+    *    or if <code>path</code> was resolved by a different data context.
+    *
+    * @throws ReadOnlyDatabaseException
+    *    if the {@link Database} is read-only,
+    *    see {@link Database#isWritable()}.
+    *
+    * @throws FileExistsException
+    *    if the {@link FileStoreMode} does not allow the file to exist,
+    *    but still it does.
+    *
+    * @throws NoSuchFileException
+    *    if the {@link FileStoreMode} requires the file to exist,
+    *    but still it does not.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the content access failed for a technical reason.
+    */
+   public void storeFile(final DatabaseType  dbType,
+                         final ResolvedPath  path,
+                         final DataSource    data,
+                         final FileStoreMode mode,
+                         final Key           key,
+                         Durability          durability)
+   throws IllegalArgumentException,
+          ReadOnlyDatabaseException,
+          FileExistsException,
+          NoSuchFileException,
+          TechnicalContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType,
+                                     "path",   path,
+                                     "data",   data,
+                                     "mode",   mode);
+      MandatoryArgumentChecker.check("durability", durability);
+      checkResolvedPath(path);
+
+      // Write-behind: store the file in the background, log any failure
+      if (durability == Durability.WRITE_BEHIND) {
+         WriteBehindQueue queue = getWriteBehindQueue();
+         if (queue != null && queue.enqueue(this, dbType, path, data, mode, key)) {
+            markPresent(dbType, path, key != null);
+            return;
+         }
+         IOExecutor.submit(new Callable<Void>() {
+            public Void call() {
+               try {
+                  storeFile(dbType, path, data, mode, key, Durability.NO_SYNC);
+               } catch (Throwable cause) {
+                  Utils.logError(DataContext.this.toString() + ": Failed to store file " + TextUtils.quote(path.getPath()) + " in " + dbType + " database in the background.", cause);
+               }
+               return null;
+            }
+         });
+         return;
       }
 
+      // Get the appropriate Database
+      Database     database = getDatabase(dbType);
+      String translatedPath = path.getTranslatedPath();
+      String     storedPath;
 
       // Without encryption
       if (key == null) {
-         database.storeFile(translatedPath, data, mode);
+         storedPath = translatedPath;
+         database.storeFile(storedPath, data, mode);
 
       // With encryption
       } else {
-         String      encryptedPath = translatedPath + ".Ciphered.xml";
-         XDataSource encryptedData = encrypt(dbType, translatedPath, data, key);
-         database.storeFile(encryptedPath, encryptedData, mode);
+
+         // Existing files keep their format, new files are binary
+         String xmlPath = translatedPath + XML_VAULT_SUFFIX;
+         boolean binary = ! fileExists(database, xmlPath);
+
+         storedPath = binary ? translatedPath + BINARY_VAULT_SUFFIX : xmlPath;
+         XDataSource encryptedData = binary ? VaultStream.encrypt(translatedPath, data, key)
+                                            : encrypt(dbType, translatedPath, data, key);
+         database.storeFile(storedPath, encryptedData, mode);
+         DECRYPTED_FILE_CACHE.invalidate(database, storedPath);
+      }
+
+      // Force the file to disk, if required
+      if (durability == Durability.SYNC) {
+         syncFile(database, storedPath);
       }
+
+      // The file is no longer absent
+      markPresent(dbType, path, key != null);
+   }
+
+   /**
+    * Forces a stored file to disk.
+    *
+    * @param database
+    *    the {@link Database} the file was stored in,
+    *    should not be <code>null</code>.
+    *
+    * @param storedPath
+    *    the stored path, relative to the {@link DataHub},
+    *    should not be <code>null</code>.
+    *
+    * @throws TechnicalContentAccessException
+    *    if the file does not exist or could not be forced to disk.
+    */
+   private static void syncFile(Database database, String storedPath)
+   throws TechnicalContentAccessException {
+      File file = new File(database.getWriteDir(), storedPath);
+      try {
+         if (! file.isFile()) {
+            throw new IOException("File does not exist.");
+         }
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try {
+            raf.getFD().sync();
+         } finally {
+            raf.close();
+         }
+      } catch (IOException cause) {
+         throw new TechnicalContentAccessException("Failed to force file " + TextUtils.quote(file.getPath()) + " to disk.", cause);
+      }
+   }
+
+   /**
+    * Creates a new batch of files to be created together. The files are
+    * written to disk as one group and become visible only once all of them
+    * have been written, see {@link WriteBatch}.
+    *
+    * @return
+    *    a new, empty {@link WriteBatch}, never <code>null</code>.
+    */
+   public final WriteBatch newWriteBatch() {
+      return new WriteBatch(this);
    }
 
    /**
@@ -742,28 +1943,422 @@ public abstract class DataContext extends Object implements DataHubSub {
 
       // Check preconditions
       MandatoryArgumentChecker.check("dbType", dbType, "path", path);
-      Assertions.assertValidFilePath(path);
 
-      // Get the appropriate Database and translate the path
-      Database     database = getDatabase(dbType);
-      String translatedPath = translatePath(path);
+      deleteFile(dbType, resolvePath(path), expectEncrypted);
+   }
 
-      // Check the result from translatedPath
-      try {
-         Assertions.assertValidFilePath(translatedPath);
-      } catch (IllegalArgumentException cause) {
-         throw Utils.logProgrammingError(DataContext.class.getName(), "deleteFile(DatabaseType,String,DataSource)", // detecting class/method
-                                         getClass().getName(),        "translatePath(String)",                      // subject   class/method
-                                         "Invalid path " + TextUtils.quote(translatedPath) + '.', cause);
-      }
+   /**
+    * Deletes a file, by resolved path, specifying whether an encrypted file
+    * is expected.
+    *
+    * @param dbType
+    *    the type of database from which to delete a file,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, as returned by {@link #resolvePath(String)}
+    *    on this object, cannot be <code>null</code>.
+    *
+    * @param expectEncrypted
+    *    flag that indicates whether an encrypted file is expected.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if <code>path</code> was resolved by a different data context.
+    *
+    * @throws ContentAccessException
+    *    if the content access failed.
+    */
+   public void deleteFile(DatabaseType dbType, ResolvedPath path, boolean expectEncrypted)
+   throws IllegalArgumentException, ContentAccessException {
 
-      // Not an encrypted file
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+      checkResolvedPath(path);
+
+      // Get the appropriate Database
+      Database     database = getDatabase(dbType);
+      String translatedPath = path.getTranslatedPath();
+
+      // Not an encrypted file
       if (! expectEncrypted) {
          database.deleteFile(translatedPath);
 
       // An encrypted file
       } else {
-         database.deleteFile(translatedPath + ".Ciphered.xml");
+         String binaryPath = translatedPath + BINARY_VAULT_SUFFIX;
+         String    xmlPath = translatedPath + XML_VAULT_SUFFIX;
+         DECRYPTED_FILE_CACHE.invalidate(database, binaryPath);
+         DECRYPTED_FILE_CACHE.invalidate(database, xmlPath);
+         try {
+            database.deleteFile(binaryPath);
+         } catch (NoSuchFileException cause) {
+            database.deleteFile(xmlPath);
+         }
       }
    }
+
+   /**
+    * Deletes a file, by path, if it exists, specifying whether an encrypted
+    * file is expected.
+    *
+    * <p>If this object has a {@link MissingFileCache} (see
+    * {@link #getMissingFileCache()}), then a file that is known to be absent
+    * is not looked up again.
+    *
+    * @param dbType
+    *    the type of database from which to delete a file,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @param expectEncrypted
+    *    flag that indicates whether an encrypted file is expected.
+    *
+    * @return
+    *    <code>true</code> if the file was deleted,
+    *    <code>false</code> if it did not exist.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid,
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @throws ContentAccessException
+    *    if the content access failed.
+    */
+   public boolean deleteFileIfExists(DatabaseType dbType, String path, boolean expectEncrypted)
+   throws IllegalArgumentException, ContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      ResolvedPath  resolved = resolvePath(path);
+      MissingFileCache cache = getMissingFileCache();
+      Database      database = null;
+      String      storedPath = null;
+      String        cacheKey = null;
+
+      // Skip the deletion if the file is known to be absent
+      if (cache != null) {
+         database   = getDatabase(dbType);
+         storedPath = getStoredPath(resolved, expectEncrypted);
+         cacheKey   = getMissingFileKey(dbType, storedPath);
+         if (cache.isMissing(cacheKey, getDirectoryVersion(database, storedPath))) {
+            return false;
+         }
+      }
+
+      boolean deleted;
+      try {
+         deleteFile(dbType, resolved, expectEncrypted);
+         deleted = true;
+      } catch (NoSuchFileException cause) {
+         deleted = false;
+      }
+
+      // Either way, the file is now absent
+      if (cache != null) {
+         cache.markMissing(cacheKey, getDirectoryVersion(database, storedPath));
+      }
+
+      return deleted;
+   }
+
+   /**
+    * Retrieves a file asynchronously, using the default encryption key.
+    * The path is validated and translated right away; the file is retrieved
+    * by the {@link IOExecutor}.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @return
+    *    the {@link Future} that produces the file, as returned by
+    *    {@link #getFile(DatabaseType,ResolvedPath,Key)}; a failure is
+    *    reported as an {@link java.util.concurrent.ExecutionException} that
+    *    wraps the {@link ContentAccessException}; never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final Future<XDataSource> getFileAsync(DatabaseType dbType, String path)
+   throws IllegalArgumentException {
+      return getFileAsync(dbType, path, getDefaultKey());
+   }
+
+   /**
+    * Retrieves a file asynchronously, using the specified encryption key.
+    * The path is validated and translated right away; the file is retrieved
+    * by the {@link IOExecutor}.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @param key
+    *    the encryption {@link Key} to use to decrypt the file,
+    *    or <code>null</code> if an unencrypted file is expected.
+    *
+    * @return
+    *    the {@link Future} that produces the file, as returned by
+    *    {@link #getFile(DatabaseType,ResolvedPath,Key)},
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final Future<XDataSource> getFileAsync(final DatabaseType dbType, String path, final Key key)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      final ResolvedPath resolved = resolvePath(path);
+      return IOExecutor.submit(new Callable<XDataSource>() {
+         public XDataSource call() throws ContentAccessException {
+            return getFile(dbType, resolved, key);
+         }
+      });
+   }
+
+   /**
+    * Retrieves a file and parses it as XML asynchronously, using the
+    * default encryption key. The path is validated and translated right
+    * away; the file is retrieved and parsed by the {@link IOExecutor}.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @return
+    *    the {@link Future} that produces the parsed file, as returned by
+    *    {@link #getXMLFile(DatabaseType,ResolvedPath,Key)},
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final Future<XMLDataSource> getXMLFileAsync(DatabaseType dbType, String path)
+   throws IllegalArgumentException {
+      return getXMLFileAsync(dbType, path, getDefaultKey());
+   }
+
+   /**
+    * Retrieves a file and parses it as XML asynchronously, using the
+    * specified encryption key. The path is validated and translated right
+    * away; the file is retrieved and parsed by the {@link IOExecutor}.
+    *
+    * @param dbType
+    *    the type of database to get the file from,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @param key
+    *    the encryption {@link Key} to use to decrypt the file,
+    *    or <code>null</code> if an unencrypted file is expected.
+    *
+    * @return
+    *    the {@link Future} that produces the parsed file, as returned by
+    *    {@link #getXMLFile(DatabaseType,ResolvedPath,Key)},
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final Future<XMLDataSource> getXMLFileAsync(final DatabaseType dbType, String path, final Key key)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      final ResolvedPath resolved = resolvePath(path);
+      return IOExecutor.submit(new Callable<XMLDataSource>() {
+         public XMLDataSource call() throws ContentAccessException {
+            return getXMLFile(dbType, resolved, key);
+         }
+      });
+   }
+
+   /**
+    * Stores a file asynchronously, using the default encryption key.
+    * The path is validated and translated right away; the file is stored
+    * by the {@link IOExecutor}.
+    *
+    * <p>The data source is read while the file is being stored, so it must
+    * remain readable until the returned {@link Future} completes.
+    *
+    * @param dbType
+    *    the type of database to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @param data
+    *    the data, as a {@link DataSource} instance,
+    *    cannot be <code>null</code>.
+    *
+    * @param mode
+    *    the {@link FileStoreMode} that indicates how to behave, for example
+    *    if the file already exists; cannot be <code>null</code>.
+    *
+    * @return
+    *    the {@link Future} that completes when the file has been stored,
+    *    see {@link #storeFile(DatabaseType,ResolvedPath,DataSource,FileStoreMode,Key)};
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null
+    *          || path   == null
+    *          || data   == null
+    *          || mode   == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final Future<Void> storeFileAsync(DatabaseType  dbType,
+                                            String        path,
+                                            DataSource    data,
+                                            FileStoreMode mode)
+   throws IllegalArgumentException {
+      return storeFileAsync(dbType, path, data, mode, getDefaultKey());
+   }
+
+   /**
+    * Stores a file asynchronously, using the specified encryption key.
+    * The path is validated and translated right away; the file is stored
+    * by the {@link IOExecutor}.
+    *
+    * <p>The data source is read while the file is being stored, so it must
+    * remain readable until the returned {@link Future} completes.
+    *
+    * @param dbType
+    *    the type of database to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @param data
+    *    the data, as a {@link DataSource} instance,
+    *    cannot be <code>null</code>.
+    *
+    * @param mode
+    *    the {@link FileStoreMode} that indicates how to behave, for example
+    *    if the file already exists; cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use to encrypt the file,
+    *    or <code>null</code> if the file should not be encrypted.
+    *
+    * @return
+    *    the {@link Future} that completes when the file has been stored,
+    *    see {@link #storeFile(DatabaseType,ResolvedPath,DataSource,FileStoreMode,Key)};
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null
+    *          || path   == null
+    *          || data   == null
+    *          || mode   == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final Future<Void> storeFileAsync(final DatabaseType  dbType,
+                                            String              path,
+                                            final DataSource    data,
+                                            final FileStoreMode mode,
+                                            final Key           key)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType,
+                                     "path",   path,
+                                     "data",   data,
+                                     "mode",   mode);
+
+      final ResolvedPath resolved = resolvePath(path);
+      return IOExecutor.submit(new Callable<Void>() {
+         public Void call() throws ContentAccessException {
+            storeFile(dbType, resolved, data, mode, key);
+            return null;
+         }
+      });
+   }
+
+   /**
+    * Deletes a file asynchronously. Whether an encrypted file is expected
+    * depends on whether this object has a default encryption key. The path
+    * is validated and translated right away; the file is deleted by the
+    * {@link IOExecutor}.
+    *
+    * @param dbType
+    *    the type of database from which to delete a file,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @return
+    *    the {@link Future} that completes when the file has been deleted,
+    *    see {@link #deleteFile(DatabaseType,ResolvedPath,boolean)};
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>
+    *    or if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public final Future<Void> deleteFileAsync(final DatabaseType dbType, String path)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      final ResolvedPath   resolved = resolvePath(path);
+      final boolean expectEncrypted = (getDefaultKey() != null);
+      return IOExecutor.submit(new Callable<Void>() {
+         public Void call() throws ContentAccessException {
+            deleteFile(dbType, resolved, expectEncrypted);
+            return null;
+         }
+      });
+   }
 }
@@ -0,0 +1,44 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+/**
+ * Durability guarantee for storing a file, used together with
+ * {@link FileStoreMode}. The stricter the guarantee, the more expensive the
+ * write.
+ *
+ * <p>The durability for a call to
+ * {@link DataContext#storeFile(DatabaseType,ResolvedPath,javax.activation.DataSource,FileStoreMode,org.znerd.yaff.security.Key)}
+ * is determined by
+ * {@link DataContext#getDurability(DatabaseType,ResolvedPath)}; it can also
+ * be specified per call.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public enum Durability {
+
+   /**
+    * The file is stored in the background, by the
+    * {@link DataContext#getWriteBehindQueue() write-behind queue} of the
+    * data context or otherwise by the {@link IOExecutor}. The store method
+    * returns right away, unless the queue is full; failures are logged but
+    * not reported to the caller. Reads through the same data context see the
+    * queued content; without a queue, reads may return the previous content
+    * until the file has been written. Suitable for data that can be lost
+    * without harm in a crash.
+    */
+   WRITE_BEHIND,
+
+   /**
+    * The file is stored by the {@link Database} before the store method
+    * returns, but it is not forced to disk. After a crash of the operating
+    * system, the file may be lost or incomplete. This is the default.
+    */
+   NO_SYNC,
+
+   /**
+    * The file is stored by the {@link Database} and then forced to disk
+    * before the store method returns. Suitable for data that must survive
+    * a crash, such as account data.
+    */
+   SYNC;
+}
@@ -0,0 +1,180 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import org.znerd.yaff.activation.XDataSource;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.xins.common.MandatoryArgumentChecker;
+
+/**
+ * Result of retrieving multiple files at once, see
+ * {@link DataContext#getFiles(DatabaseType,java.util.Collection,org.znerd.yaff.security.Key)}.
+ * For each requested path, exactly one of the following applies: the file
+ * was retrieved, the file does not exist, or retrieving it failed.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class FileBatchResult extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>FileBatchResult</code>. The collections are not
+    * copied.
+    *
+    * @param files
+    *    the retrieved files, indexed by path,
+    *    should not be <code>null</code>.
+    *
+    * @param missingPaths
+    *    the paths of the files that do not exist,
+    *    should not be <code>null</code>.
+    *
+    * @param failures
+    *    the exceptions for the files that could not be retrieved,
+    *    indexed by path, should not be <code>null</code>.
+    */
+   FileBatchResult(Map<String,XDataSource>            files,
+                   Set<String>                        missingPaths,
+                   Map<String,ContentAccessException> failures) {
+      _files        = Collections.unmodifiableMap(files);
+      _missingPaths = Collections.unmodifiableSet(missingPaths);
+      _failures     = Collections.unmodifiableMap(failures);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The retrieved files, indexed by path. Never <code>null</code>.
+    */
+   private final Map<String,XDataSource> _files;
+
+   /**
+    * The paths of the files that do not exist. Never <code>null</code>.
+    */
+   private final Set<String> _missingPaths;
+
+   /**
+    * The exceptions for the files that could not be retrieved, indexed by
+    * path. Never <code>null</code>.
+    */
+   private final Map<String,ContentAccessException> _failures;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the retrieved file for the specified path.
+    *
+    * @param path
+    *    the path, as passed in the request, cannot be <code>null</code>.
+    *
+    * @return
+    *    the file, or <code>null</code> if it does not exist, if it could not
+    *    be retrieved or if it was not requested.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>path == null</code>.
+    */
+   public XDataSource getFile(String path) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("path", path);
+      return _files.get(path);
+   }
+
+   /**
+    * Returns all retrieved files.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from path to file, in request order,
+    *    never <code>null</code>.
+    */
+   public Map<String,XDataSource> getFiles() {
+      return _files;
+   }
+
+   /**
+    * Determines if the file for the specified path does not exist.
+    *
+    * @param path
+    *    the path, as passed in the request, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the file does not exist,
+    *    <code>false</code> otherwise.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>path == null</code>.
+    */
+   public boolean isMissing(String path) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("path", path);
+      return _missingPaths.contains(path);
+   }
+
+   /**
+    * Returns the paths of the files that do not exist.
+    *
+    * @return
+    *    an unmodifiable {@link Set} of paths, never <code>null</code>.
+    */
+   public Set<String> getMissingPaths() {
+      return _missingPaths;
+   }
+
+   /**
+    * Returns the exception that caused the retrieval of the file for the
+    * specified path to fail.
+    *
+    * @param path
+    *    the path, as passed in the request, cannot be <code>null</code>.
+    *
+    * @return
+    *    the {@link ContentAccessException}, or <code>null</code> if the
+    *    retrieval did not fail.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>path == null</code>.
+    */
+   public ContentAccessException getFailure(String path)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("path", path);
+      return _failures.get(path);
+   }
+
+   /**
+    * Returns all failures.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from path to exception,
+    *    never <code>null</code>.
+    */
+   public Map<String,ContentAccessException> getFailures() {
+      return _failures;
+   }
+
+   /**
+    * Determines if the retrieval failed for any of the files. Files that do
+    * not exist do not count as failures.
+    *
+    * @return
+    *    <code>true</code> if there is at least one failure,
+    *    <code>false</code> otherwise.
+    */
+   public boolean hasFailures() {
+      return ! _failures.isEmpty();
+   }
+
+   @Override
+   public String toString() {
+      return _files.size() + " files retrieved, " + _missingPaths.size() + " missing, " + _failures.size() + " failed";
+   }
+}
@@ -0,0 +1,312 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+
+/**
+ * Executor for file I/O that is performed asynchronously, for example by
+ * {@link DataContext#getFileAsync(DatabaseType,String)}.
+ *
+ * <p>By default a bounded thread pool is used, with
+ * {@link #DEFAULT_THREAD_COUNT} daemon threads and a queue of
+ * {@link #DEFAULT_QUEUE_SIZE} tasks. When the queue is full, a task is
+ * executed by the submitting thread, which throttles the submitter instead
+ * of letting the backlog grow without bounds. The pool can be resized using
+ * {@link #configure(int,int)}, or replaced altogether using
+ * {@link #setExecutorService(ExecutorService)}, for example by an executor
+ * that uses a thread per task on runtimes that support lightweight threads.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class IOExecutor extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default number of I/O threads.
+    */
+   public static final int DEFAULT_THREAD_COUNT = 8;
+
+   /**
+    * The default maximum number of queued tasks.
+    */
+   public static final int DEFAULT_QUEUE_SIZE = 256;
+
+   /**
+    * The executor service currently in use. Lazily initialized.
+    * All access is synchronized on the <code>IOExecutor</code> class.
+    */
+   private static ExecutorService EXECUTOR;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the executor service for asynchronous I/O. If none has been set
+    * or configured yet, a default bounded thread pool is created.
+    *
+    * @return
+    *    the {@link ExecutorService}, never <code>null</code>.
+    */
+   public static synchronized ExecutorService getExecutorService() {
+      if (EXECUTOR == null) {
+         EXECUTOR = createThreadPool(DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_SIZE);
+      }
+      return EXECUTOR;
+   }
+
+   /**
+    * Replaces the executor service for asynchronous I/O. The previous
+    * executor service, if any, is shut down; tasks that were already
+    * submitted to it still complete.
+    *
+    * @param executor
+    *    the new {@link ExecutorService}, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>executor == null</code>.
+    */
+   public static void setExecutorService(ExecutorService executor)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("executor", executor);
+
+      ExecutorService old;
+      synchronized (IOExecutor.class) {
+         old      = EXECUTOR;
+         EXECUTOR = executor;
+      }
+      if (old != null && old != executor) {
+         old.shutdown();
+      }
+   }
+
+   /**
+    * Replaces the executor service for asynchronous I/O by a bounded thread
+    * pool with the specified size.
+    *
+    * @param threadCount
+    *    the number of I/O threads, must be &gt; 0.
+    *
+    * @param queueSize
+    *    the maximum number of queued tasks, must be &gt; 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>threadCount &lt; 1 || queueSize &lt; 1</code>.
+    */
+   public static void configure(int threadCount, int queueSize)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      if (threadCount < 1) {
+         throw new IllegalArgumentException("threadCount (" + threadCount + ") < 1");
+      } else if (queueSize < 1) {
+         throw new IllegalArgumentException("queueSize (" + queueSize + ") < 1");
+      }
+
+      setExecutorService(createThreadPool(threadCount, queueSize));
+   }
+
+   /**
+    * Shuts down the executor service for asynchronous I/O. Tasks that were
+    * already submitted still complete. A later call to
+    * {@link #getExecutorService()} creates a new default thread pool.
+    */
+   public static void shutdown() {
+      ExecutorService old;
+      synchronized (IOExecutor.class) {
+         old      = EXECUTOR;
+         EXECUTOR = null;
+      }
+      if (old != null) {
+         old.shutdown();
+      }
+   }
+
+   /**
+    * Submits a task to the executor service for asynchronous I/O.
+    *
+    * @param task
+    *    the task to execute, cannot be <code>null</code>.
+    *
+    * @return
+    *    the {@link Future} that represents the result of the task,
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>task == null</code>.
+    */
+   public static <T> Future<T> submit(Callable<T> task)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("task", task);
+
+      // Retry once if the executor service was replaced concurrently
+      ExecutorService executor = getExecutorService();
+      try {
+         return executor.submit(task);
+      } catch (RejectedExecutionException cause) {
+         ExecutorService current = getExecutorService();
+         if (current == executor) {
+            throw cause;
+         }
+         return current.submit(task);
+      }
+   }
+
+   /**
+    * Runs a worker in multiple threads at once and waits for all of them to
+    * finish. The calling thread runs one instance of the worker itself; the
+    * other instances are submitted to the executor service. Typically each
+    * worker takes tasks from a shared queue until it is empty.
+    *
+    * <p>If the calling thread is interrupted while waiting, the interrupt
+    * status is restored afterwards.
+    *
+    * @param worker
+    *    the worker to run, cannot be <code>null</code>.
+    *
+    * @param workerCount
+    *    the number of instances of the worker to run,
+    *    must be &gt;= 1.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>worker == null || workerCount &lt; 1</code>.
+    */
+   static void runWorkers(Runnable worker, int workerCount)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("worker", worker);
+      if (workerCount < 1) {
+         throw new IllegalArgumentException("workerCount (" + workerCount + ") < 1");
+      }
+
+      // Start the additional workers and let the calling thread help out
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 1; i < workerCount; i++) {
+         futures.add(submit(Executors.callable(worker, (Void) null)));
+      }
+      worker.run();
+
+      // Wait for the additional workers to finish
+      boolean interrupted = false;
+      for (Future<Void> future : futures) {
+         while (true) {
+            try {
+               future.get();
+               break;
+            } catch (InterruptedException cause) {
+               interrupted = true;
+            } catch (ExecutionException cause) {
+               Throwable t = cause.getCause();
+               if (t instanceof RuntimeException) {
+                  throw (RuntimeException) t;
+               } else if (t instanceof Error) {
+                  throw (Error) t;
+               }
+               throw Utils.logProgrammingError(t);
+            }
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Creates a bounded thread pool with daemon threads. When the queue is
+    * full, tasks are executed by the submitting thread.
+    *
+    * @param threadCount
+    *    the number of threads, should be &gt; 0.
+    *
+    * @param queueSize
+    *    the maximum number of queued tasks, should be &gt; 0.
+    *
+    * @return
+    *    the new thread pool, never <code>null</code>.
+    */
+   private static ExecutorService createThreadPool(int threadCount, int queueSize) {
+      return new ThreadPoolExecutor(threadCount, threadCount,
+                                    60L, TimeUnit.SECONDS,
+                                    new ArrayBlockingQueue<Runnable>(queueSize),
+                                    new IOThreadFactory(),
+                                    new CallerRunsHandler());
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>IOExecutor</code>.
+    */
+   private IOExecutor() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Factory for the daemon threads of the default thread pool.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class IOThreadFactory implements ThreadFactory {
+
+      /**
+       * The number of threads created so far.
+       */
+      private final AtomicInteger _count = new AtomicInteger();
+
+      public Thread newThread(Runnable task) {
+         Thread thread = new Thread(task, "YAFF I/O #" + _count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   }
+
+   /**
+    * Handler for tasks that do not fit in the queue: they are executed by
+    * the submitting thread. Unlike
+    * {@link ThreadPoolExecutor.CallerRunsPolicy}, tasks submitted after
+    * shutdown are rejected with an exception instead of being discarded
+    * silently, which would leave their futures incomplete forever.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class CallerRunsHandler implements RejectedExecutionHandler {
+
+      public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+         if (pool.isShutdown()) {
+            throw new RejectedExecutionException("I/O executor has been shut down.");
+         }
+         task.run();
+      }
+   }
+}
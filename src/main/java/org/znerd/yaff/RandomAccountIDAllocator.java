@@ -0,0 +1,56 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import java.security.SecureRandom;
+
+import org.xins.common.text.HexConverter;
+
+/**
+ * Account ID allocator that generates fully random account IDs: all 64 bits
+ * are random, for example <code>3fa0c2b2ae3585eb</code>. This is the
+ * default.
+ *
+ * <p>The random bits are taken from a {@link SecureRandom} instance per
+ * thread, so concurrent account creation does not contend on a shared
+ * generator.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class RandomAccountIDAllocator extends Object implements AccountIDAllocator {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The random number generator per thread. A {@link SecureRandom} is
+    * synchronized, so sharing one would make it a contention point. Also
+    * used by {@link TimeOrderedAccountIDAllocator}.
+    */
+   static final ThreadLocal<SecureRandom> RANDOMS = new ThreadLocal<SecureRandom>() {
+      protected SecureRandom initialValue() {
+         return new SecureRandom();
+      }
+   };
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>RandomAccountIDAllocator</code>.
+    */
+   public RandomAccountIDAllocator() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   public String nextAccountID() {
+      return HexConverter.toHexString(RANDOMS.get().nextLong());
+   }
+}
@@ -3,9 +3,13 @@ package org.znerd.yaff;
 
 import org.znerd.yaff.activation.ByteArrayDataSource;
 import org.znerd.yaff.activation.XDataSource;
+import org.znerd.yaff.activation.XMLDataSource;
 import static org.znerd.yaff.Assertions.*;
 import static org.znerd.yaff.DatabaseType.*;
+import org.znerd.yaff.cache.AccountCache;
+import org.znerd.yaff.cache.MissingFileCache;
 import org.znerd.yaff.form.FormDefinition;
+import org.znerd.yaff.io.IOHelper;
 import org.znerd.yaff.security.Key;
 import org.znerd.yaff.types.Dialect;
 import org.znerd.yaff.types.Type;
@@ -13,14 +17,24 @@ import org.znerd.yaff.types.TypeCreateException;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.xins.common.MandatoryArgumentChecker;
 import org.xins.common.Utils;
@@ -30,7 +44,6 @@ import org.xins.common.collections.MissingRequiredPropertyException;
 import org.xins.common.collections.PropertyException;
 import org.xins.common.collections.PropertyReader;
 import org.xins.common.collections.PropertyReaderUtils;
-import org.xins.common.text.HexConverter;
 import org.xins.common.text.ParseException;
 import org.xins.common.text.TextUtils;
 import org.xins.common.xml.Element;
@@ -49,6 +62,96 @@ import org.xins.common.xml.ElementUtils;
  */
 public abstract class Realm extends SubDataContext {
 
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of the file that holds the data of an account, in each
+    * database.
+    */
+   static final String ACCOUNT_DATA_FILE_NAME = "AccountData.xml";
+
+   /**
+    * The prefix of all paths within account directories.
+    */
+   private static final String ACCOUNTS_PREFIX = AccountLayout.ACCOUNTS_DIR + '/';
+
+   /**
+    * The name of the file in the accounts directory of the account source
+    * database that marks the account directories as sharded, see
+    * {@link AccountLayout#SHARDED}.
+    */
+   private static final String SHARDED_MARKER = "SHARDED";
+
+   /**
+    * The name of the file in the accounts directory of the account source
+    * database that marks a migration to the sharded layout as in progress,
+    * see {@link #migrateToShardedLayout()}.
+    */
+   private static final String MIGRATING_MARKER = "MIGRATING";
+
+   /**
+    * The number of accounts per task in
+    * {@link #deleteAccounts(Collection)}.
+    */
+   private static final int DELETE_BATCH_SIZE = 256;
+
+   /**
+    * The maximum number of threads that
+    * {@link #deleteAccounts(Collection)} uses.
+    */
+   private static final int MAX_DELETE_CONCURRENCY = 8;
+
+   /**
+    * The number of records per batch in {@link #createAccounts(Iterable)}.
+    */
+   private static final int IMPORT_BATCH_SIZE = 256;
+
+   /**
+    * The maximum number of threads that {@link #createAccounts(Iterable)}
+    * uses.
+    */
+   private static final int MAX_IMPORT_CONCURRENCY = 8;
+
+   /**
+    * The maximum number of threads used to scan account data, see
+    * {@link #findAccounts(AccountQuery)}.
+    */
+   private static final int MAX_SCAN_CONCURRENCY = 8;
+
+   /**
+    * The number of parts the account IDs are divided in when scanning the
+    * account data of all accounts.
+    */
+   private static final int SCAN_PART_COUNT = 64;
+
+   /**
+    * The number of candidate accounts per task when checking account data
+    * in {@link #findAccounts(AccountQuery)}.
+    */
+   private static final int SCAN_BATCH_SIZE = 256;
+
+   /**
+    * The number of references or accounts per task when verifying or
+    * rebuilding an account index.
+    */
+   private static final int INDEX_CHECK_BATCH_SIZE = 256;
+
+   /**
+    * The maximum number of account IDs generated for a new account, if the
+    * generated IDs are already in use.
+    */
+   private static final int MAX_ACCOUNT_ID_ATTEMPTS = 8;
+
+   /**
+    * The maximum number of threads used to verify or rebuild an account
+    * index: at least 8, since the work mostly waits for I/O, and at least
+    * the number of processors.
+    */
+   private static final int MAX_INDEX_CHECK_CONCURRENCY = Math.max(8, Runtime.getRuntime().availableProcessors());
+
+
    //-------------------------------------------------------------------------
    // Class functions
    //-------------------------------------------------------------------------
@@ -124,16 +227,24 @@ public abstract class Realm extends SubDataContext {
       _site                     = site;
       _xml                      = xml;
       _name                     = name;
-      _random                   = new Random();
+      _accountIDAllocator       = initAccountIDAllocator();
       _indexesByName            = initAccountIndexes();
+      _refTables                = initRefTables();
+      _backReferences           = initBackReferences();
       _accountDataDefs          = initAccountDataDefs();
       _accountPropertyDefs      = initAccountPropertyDefs();
       _accountPropertySources   = initAccountPropertySources();
+      _propertyIndexes          = initPropertyIndexes();
       _userNameType             = initUserNameType();
       _passwordType             = initPasswordType();
       _defaultAccountProperties = initDefaultAccountProperties();
       _disabledAccountIDs       = initDisabledAccountIDs();
       _accountSource            = initAccountSource();
+      _accountLayout            = initAccountLayout();
+      _migrating                = (_accountLayout == AccountLayout.FLAT) && getAccountsMarker(MIGRATING_MARKER).exists();
+      _accountIDRegistryLock    = new Object();
+      _accountCache             = new AccountCache(toString() + " accounts", AccountCache.DEFAULT_MAX_SIZE, AccountCache.DEFAULT_TIME_TO_LIVE);
+      _accountDataJournal       = new AccountDataJournal(this);
       _loginRegistration        = (getAccountIndex("combo") != null && getAccountIndex("authtoken") != null)
                                 ? new LoginRegistration(this)
                                 : null;
@@ -162,9 +273,10 @@ public abstract class Realm extends SubDataContext {
    private final String _name;
 
    /**
-    * Random number generator. Never <code>null</code>.
+    * The strategy for generating the IDs of new accounts.
+    * Never <code>null</code>.
     */
-   private final Random _random;
+   private final AccountIDAllocator _accountIDAllocator;
 
    /**
     * Unmodifiable and immutable collection of account indexes,
@@ -172,6 +284,19 @@ public abstract class Realm extends SubDataContext {
     */
    private final Map<String,AccountIndex> _indexesByName;
 
+   /**
+    * The back-references for each account index that has an in-memory
+    * table. Unmodifiable. Never <code>null</code>.
+    */
+   private final Map<AccountIndex,AccountBackReferences> _backReferences;
+
+   /**
+    * The in-memory tables for the account indexes that only this realm
+    * changes, see {@link #isTrackedIndex(String)}. Unmodifiable.
+    * Never <code>null</code>.
+    */
+   private final Map<AccountIndex,AccountRefTable> _refTables;
+
    /**
     * The <code>AccountDataDef</code> instances, indexed by database type.
     * Never <code>null</code>.
@@ -191,6 +316,12 @@ public abstract class Realm extends SubDataContext {
     */
    private final Map<String,DatabaseType> _accountPropertySources;
 
+   /**
+    * The secondary property indexes, indexed by property name. Unmodifiable.
+    * Never <code>null</code>.
+    */
+   private final Map<String,AccountPropertyIndex> _propertyIndexes;
+
    /**
     * The <code>Type</code> for login user names. Never <code>null</code>.
     */
@@ -224,6 +355,52 @@ public abstract class Realm extends SubDataContext {
     */
    private final DatabaseType _accountSource;
 
+   /**
+    * The layout of the account directories. Never <code>null</code> once
+    * this realm has been constructed. Changes from
+    * {@link AccountLayout#FLAT} to {@link AccountLayout#SHARDED} when the
+    * account directories are migrated.
+    */
+   private volatile AccountLayout _accountLayout;
+
+   /**
+    * Flag that indicates that a migration to the sharded layout is in
+    * progress, possibly started before a restart. While this flag is set,
+    * account paths are resolved by probing both layouts, see
+    * {@link #toStoragePath(String)}.
+    */
+   private volatile boolean _migrating;
+
+   /**
+    * The IDs of the accounts that have been moved to the sharded layout
+    * by the migration that is running in this process, or
+    * <code>null</code> if no migration is running.
+    */
+   private volatile Set<String> _migratedAccountIDs;
+
+   /**
+    * The IDs of all accounts in this realm, kept in memory, or
+    * <code>null</code> if they have not been loaded yet. Set under
+    * {@link #_accountIDRegistryLock}, see {@link #getAccountIDRegistry()}.
+    */
+   private volatile AccountIDRegistry _accountIDRegistry;
+
+   /**
+    * Lock for loading {@link #_accountIDRegistry}. Never <code>null</code>.
+    */
+   private final Object _accountIDRegistryLock;
+
+   /**
+    * Cache for <code>Account</code> objects. Never <code>null</code>.
+    */
+   private final AccountCache _accountCache;
+
+   /**
+    * Journal of partial updates to account data files.
+    * Never <code>null</code>.
+    */
+   private final AccountDataJournal _accountDataJournal;
+
    /**
     * The user name for authentication. Is <code>null</code> if this realm
     * does not support authentication.
@@ -295,6 +472,71 @@ public abstract class Realm extends SubDataContext {
       return indexes;
    }
 
+
+   /**
+    * Initializes the in-memory tables for the account indexes that only this
+    * realm changes (see {@link #isTrackedIndex(String)}). The tables are
+    * persisted in the write directory of the database of the index, if it
+    * is writable. The tables themselves are loaded on first use.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from {@link AccountIndex} to
+    *    {@link AccountRefTable}, never <code>null</code>.
+    */
+   private Map<AccountIndex,AccountRefTable> initRefTables() {
+      Map<AccountIndex,AccountRefTable> tables = new HashMap<AccountIndex,AccountRefTable>();
+      for (Map.Entry<String,AccountIndex> entry : _indexesByName.entrySet()) {
+         if (! isTrackedIndex(entry.getKey())) {
+            continue;
+         }
+         AccountIndex index = entry.getValue();
+         Database        db = getDatabase(index.getDatabaseType());
+         File          dir = db.isWritable()
+                             ? new File(db.getWriteDir(), translatePath(AccountRefTable.DIRECTORY_NAME + '/' + entry.getKey()))
+                             : null;
+         tables.put(index, new AccountRefTable(index, dir));
+      }
+      return Collections.unmodifiableMap(tables);
+   }
+
+   /**
+    * Initializes the back-references for the account indexes that have an
+    * in-memory table. The back-references themselves are built on first
+    * use.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from {@link AccountIndex} to
+    *    {@link AccountBackReferences}, never <code>null</code>.
+    */
+   private Map<AccountIndex,AccountBackReferences> initBackReferences() {
+      Map<AccountIndex,AccountBackReferences> backReferences = new HashMap<AccountIndex,AccountBackReferences>();
+      for (Map.Entry<AccountIndex,AccountRefTable> entry : _refTables.entrySet()) {
+         backReferences.put(entry.getKey(), new AccountBackReferences(entry.getKey(), entry.getValue()));
+      }
+      return Collections.unmodifiableMap(backReferences);
+   }
+
+   /**
+    * Determines if the references in the specified account index are only
+    * stored and removed by this realm, so that an in-memory table and
+    * back-references can be kept for it. This is the case for the
+    * <code>"combo"</code> and <code>"id"</code> indexes, which are written
+    * through {@link #persistComboRef(Account)} and
+    * {@link #persistIDRef(Account)}. Other indexes, such as
+    * <code>"authtoken"</code>, are also changed outside this realm, through
+    * {@link AccountIndex} directly, without the changes being reported, so
+    * an in-memory table for them could not be kept in sync.
+    *
+    * @param indexName
+    *    the name of the account index, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the index is only changed by this realm.
+    */
+   private static boolean isTrackedIndex(String indexName) {
+      return "combo".equals(indexName) || "id".equals(indexName);
+   }
+
    /**
     * Initializes the <code>AccountDataDef</code> objects for this realm by
     * querying the database accessors.
@@ -311,18 +553,24 @@ public abstract class Realm extends SubDataContext {
 
       Map<DatabaseType,AccountDataDef> defs = new HashMap<DatabaseType,AccountDataDef>();
 
+      // Determine the file names (e.g. "FLEXDB.AccountDataDef.xml")
+      Map<DatabaseType,String> paths = new LinkedHashMap<DatabaseType,String>();
       for (DatabaseType dbType : DatabaseType.values()) {
+         paths.put(dbType, dbType.name() + ".AccountDataDef.xml");
+      }
 
-         // Determine the file name (e.g. "FLEXDB.AccountDataDef.xml")
-         String path = dbType.name() + ".AccountDataDef.xml";
+      // Load all files that exist, in one go
+      FileBatchResult files = getFiles(CONTENTDB, paths.values());
 
-         // Load the file, if it exists
-         XDataSource file;
-         try {
-            file = getFile(CONTENTDB, path);
-         } catch (NoSuchFileException e) {
-            file = null;
+      for (DatabaseType dbType : DatabaseType.values()) {
+         String path = paths.get(dbType);
+
+         // Fail if the file exists but could not be loaded
+         ContentAccessException failure = files.getFailure(path);
+         if (failure != null) {
+            throw failure;
          }
+         XDataSource file = files.getFile(path);
 
          // If the file does not exist, then just assume no account data for
          // this realm
@@ -407,6 +655,50 @@ public abstract class Realm extends SubDataContext {
       return map;
    }
 
+   /**
+    * Initializes the secondary property indexes for this realm, from the
+    * (optional) <code>&lt;PropertyIndexes/&gt;</code> element. The indexes
+    * themselves are built on first use.
+    *
+    * @return
+    *    an unmodifiable {@link Map} from property name to
+    *    {@link AccountPropertyIndex}, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    in case of a content retrieval error.
+    */
+   private Map<String,AccountPropertyIndex> initPropertyIndexes()
+   throws ContentAccessException {
+
+      Map<String,AccountPropertyIndex> indexes = new HashMap<String,AccountPropertyIndex>();
+      try {
+
+         // Parse each of the <PropertyIndex/> elements, if any
+         Element indexesElem = _xml.getOptionalChildElement("PropertyIndexes");
+         if (indexesElem != null) {
+            for (Element indexElem : indexesElem.getChildElements("PropertyIndex")) {
+
+               // Determine the property and the database it is stored in
+               String propertyName = indexElem.getAttribute("property");
+               if (TextUtils.isEmpty(propertyName)) {
+                  throw new ParseException("Found <PropertyIndex/> element without \"property\" attribute, for site \"" + _site.getName() + "\", realm \"" + _name + "\".");
+               }
+               DatabaseType dbType = _accountPropertySources.get(propertyName);
+               if (dbType == null) {
+                  throw new ParseException("Found <PropertyIndex/> element for undefined property \"" + propertyName + "\", for site \"" + _site.getName() + "\", realm \"" + _name + "\".");
+               }
+
+               indexes.put(propertyName, new AccountPropertyIndex(this, propertyName, dbType));
+            }
+         }
+
+      } catch (ParseException cause) {
+         throw new TechnicalContentAccessException(toString() + ": Failed to parse <Realm/>.", cause);
+      }
+
+      return Collections.unmodifiableMap(indexes);
+   }
+
    /**
     * Determines the <code>Type</code> for login user names.
     *
@@ -464,11 +756,13 @@ public abstract class Realm extends SubDataContext {
       // Load the file
       Element xml = null;
       try {
-         xml = getXMLFile(CONTENTDB, "DefaultAccountProperties.xml").getXML();
+         XMLDataSource file = getOptionalXMLFile(CONTENTDB, "DefaultAccountProperties.xml");
 
-      // If the file does not exist, then return an empty property set
-      } catch (NoSuchFileException e) {
-         return PropertyReaderUtils.EMPTY_PROPERTY_READER;
+         // If the file does not exist, then return an empty property set
+         if (file == null) {
+            return PropertyReaderUtils.EMPTY_PROPERTY_READER;
+         }
+         xml = file.getXML();
 
       // File could not be loaded, fail
       } catch (Exception cause) {
@@ -499,11 +793,10 @@ public abstract class Realm extends SubDataContext {
       String fileName = "DisabledAccounts.xml";
       Element xml;
       try {
-         xml = getXMLFile(CONTENTDB, fileName).getXML();
+         XMLDataSource file = getOptionalXMLFile(CONTENTDB, fileName);
 
-      // If the file does not exist, then that is OK
-      } catch (NoSuchFileException e) {
-         xml = null;
+         // If the file does not exist, then that is OK
+         xml = (file == null) ? null : file.getXML();
 
       // File could not be loaded, fail
       } catch (Exception cause) {
@@ -687,6 +980,32 @@ public abstract class Realm extends SubDataContext {
       return _site.getDataHub();
    }
 
+   /**
+    * Retrieves the cache of files known to be absent. A realm shares this
+    * cache with its site.
+    *
+    * @return
+    *    the {@link MissingFileCache} of the site,
+    *    or <code>null</code> if there is none.
+    */
+   @Override
+   protected MissingFileCache getMissingFileCache() {
+      return _site.getMissingFileCache();
+   }
+
+   /**
+    * Retrieves the queue for files stored in the background. A realm shares
+    * this queue with its site.
+    *
+    * @return
+    *    the {@link WriteBehindQueue} of the site,
+    *    or <code>null</code> if there is none.
+    */
+   @Override
+   protected WriteBehindQueue getWriteBehindQueue() {
+      return _site.getWriteBehindQueue();
+   }
+
    /**
     * Retrieves the containing <code>Site</code>.
     *
@@ -894,6 +1213,7 @@ public abstract class Realm extends SubDataContext {
 
    /**
     * Counts the number of accounts in this realm, both enabled and disabled.
+    * The count is taken from memory, see {@link #getAccountIDs()}.
     *
     * @return
     *    the number of accounts in this realm, always &gt;= 0.
@@ -902,678 +1222,2707 @@ public abstract class Realm extends SubDataContext {
     *    in case of a content retrieval error.
     */
    public int getAccountCount() throws ContentAccessException {
-      return getAccountIDs().size();
+      return getAccountIDRegistry().size();
    }
 
    /**
-    * Returns the collection of the IDs of all accounts in this realm. Both
-    * enabled and disabled accounts may be returned.
+    * Determines the strategy for generating the IDs of new accounts, from
+    * the <code>accountIDAllocator</code> attribute of the
+    * <code>&lt;Realm/&gt;</code> element: either <code>"random"</code>
+    * (the default, see {@link RandomAccountIDAllocator}) or
+    * <code>"time-ordered"</code> (see {@link TimeOrderedAccountIDAllocator}).
     *
     * @return
-    *    a {@link Collection} containing all account IDs for this realm,
-    *    never <code>null</code> (although it may be empty if there are no
-    *    accounts in this domain).
+    *    the {@link AccountIDAllocator}, never <code>null</code>.
     *
     * @throws ContentAccessException
-    *    in case of a content retrieval error, for example because this realm
-    *    does not support account set retrieval.
+    *    if the <code>accountIDAllocator</code> attribute is invalid.
     */
-   public Collection<String> getAccountIDs() throws ContentAccessException {
-
-      // Prepare
-      HashSet<String> accountIDs = new HashSet<String>();
-      String                path = translatePath("accounts");
-      Database                db = getDataHub().getDatabase(_accountSource);
-      File              writeDir = db.getWriteDir();
-      File               readDir = db.getReadDir();
+   private AccountIDAllocator initAccountIDAllocator() throws ContentAccessException {
+      String name = _xml.getAttribute("accountIDAllocator");
+      if (name == null || "random".equals(name)) {
+         return new RandomAccountIDAllocator();
+      } else if ("time-ordered".equals(name)) {
+         return new TimeOrderedAccountIDAllocator();
+      } else {
+         throw new TechnicalContentAccessException(toString() + ": Invalid \"accountIDAllocator\" attribute on <Realm/> element: " + TextUtils.quote(name) + '.');
+      }
+   }
 
-      // Find accounts in the read directory
-      findAccountIDs(accountIDs, new File(readDir, path), _accountSource.name() + " read directory");
+   /**
+    * Returns the strategy for generating the IDs of new accounts in this
+    * realm.
+    *
+    * @return
+    *    the {@link AccountIDAllocator}, never <code>null</code>.
+    */
+   public AccountIDAllocator getAccountIDAllocator() {
+      return _accountIDAllocator;
+   }
 
-      // Also find accounts in the write directory
-      // (if there is a distinct write directory)
-      if (! readDir.equals(writeDir)) {
-         findAccountIDs(accountIDs, new File(writeDir, path), _accountSource.name() + " write directory");
+   /**
+    * Generates the ID for a new account. If the account IDs have been
+    * loaded, IDs that are already in use are skipped, so a collision is
+    * detected here, in memory, instead of when the account data is written.
+    * Collisions are rare, so at most {@value #MAX_ACCOUNT_ID_ATTEMPTS}
+    * attempts are made; after that, the last ID is returned and creating
+    * the account will fail when its data is written.
+    *
+    * <p>The account IDs are not loaded here, since that requires a scan of
+    * all accounts; until they are loaded, a collision is only detected when
+    * the account data files are created, since that fails if they exist.
+    *
+    * @return
+    *    the account ID, never <code>null</code>.
+    */
+   private String newAccountID() {
+      AccountIDRegistry registry  = _accountIDRegistry;
+      String            accountID = _accountIDAllocator.nextAccountID();
+      if (registry == null) {
+         return accountID;
       }
 
-      return accountIDs;
+      for (int attempt = 1; attempt < MAX_ACCOUNT_ID_ATTEMPTS && registry.contains(accountID); attempt++) {
+         Utils.logWarning(toString() + ": Generated account ID " + TextUtils.quote(accountID) + " is already in use.");
+         accountID = _accountIDAllocator.nextAccountID();
+      }
+      return accountID;
    }
 
    /**
-    * Finds account IDs in the specified directory and adds them to an
-    * existing collection.
+    * Determines the layout of the account directories. The layout is
+    * sharded if the <code>accountLayout</code> attribute of the
+    * <code>&lt;Realm/&gt;</code> element is <code>"sharded"</code>, or if a
+    * previous migration has marked the account directories as sharded.
     *
-    * @param accountIDs
-    *    the existing {@link Collection} of account IDs,
-    *    cannot be <code>null</code>.
+    * @return
+    *    the {@link AccountLayout}, never <code>null</code>.
     *
-    * @param dir
-    *    the directory to find accounts in, cannot be <code>null</code>.
+    * @throws ContentAccessException
+    *    if the <code>accountLayout</code> attribute is invalid.
+    */
+   private AccountLayout initAccountLayout() throws ContentAccessException {
+      String layout = _xml.getAttribute("accountLayout");
+      if ("sharded".equals(layout)) {
+         return AccountLayout.SHARDED;
+      } else if (layout != null && ! "flat".equals(layout)) {
+         throw new TechnicalContentAccessException(toString() + ": Invalid \"accountLayout\" attribute on <Realm/> element: " + TextUtils.quote(layout) + '.');
+      }
+
+      return getAccountsMarker(SHARDED_MARKER).exists() ? AccountLayout.SHARDED : AccountLayout.FLAT;
+   }
+
+   /**
+    * Determines the location of a marker file in the accounts directory of
+    * the account source database.
     *
-    * @param description
-    *    description of the directory, cannot be <code>null</code>.
+    * @param name
+    *    the name of the marker file, should not be <code>null</code>.
     *
-    * @throws IllegalArgumentException
-    *    if <code>accountIDs == null || dir == null || description == null</code>.
+    * @return
+    *    the marker file, never <code>null</code>.
+    */
+   private File getAccountsMarker(String name) {
+      Database db = getDataHub().getDatabase(_accountSource);
+      return new File(new File(db.getWriteDir(), translatePath(AccountLayout.ACCOUNTS_DIR)), name);
+   }
+
+   /**
+    * Returns the layout of the account directories in this realm.
     *
-    * @throws ContentAccessException
-    *    in case of an error.
+    * @return
+    *    the {@link AccountLayout}, never <code>null</code>.
     */
-   private final void findAccountIDs(Collection<String> accountIDs, File dir, String description)
-   throws IllegalArgumentException, ContentAccessException {
+   public AccountLayout getAccountLayout() {
+      return _accountLayout;
+   }
 
-      // Check preconditions
-      MandatoryArgumentChecker.check("accountIDs", accountIDs, "dir", dir, "description", description);
+   /**
+    * Converts a path relative to this realm to the path where the file is
+    * actually stored, taking the layout of the account directories into
+    * account. Paths outside account directories are returned unchanged, as
+    * are paths that have already been converted.
+    *
+    * <p>While a migration is in progress, an account that has not been moved
+    * by the migration running in this process may be in either layout, for
+    * example after a restart. The file is then looked up in both layouts;
+    * if it exists in both, the newer one is used, and if it exists in
+    * neither, the layout of the account directory is used.
+    *
+    * @param path
+    *    the path, should not be <code>null</code>.
+    *
+    * @return
+    *    the storage path, never <code>null</code>.
+    */
+   private String toStoragePath(String path) {
 
-      int originalAccountCount = accountIDs.size();
+      // Shortcut: nothing to convert, or not within an account directory
+      if ((_accountLayout != AccountLayout.SHARDED && ! _migrating) || ! path.startsWith(ACCOUNTS_PREFIX)) {
+         return path;
+      }
 
-      // Only add items if the directory exists
-      if (dir.exists()) {
-         if (! dir.isDirectory()) {
-            throw new TechnicalContentAccessException(toString() + ": Path for accounts directory (" + dir.getAbsolutePath() + ") exists, but is not a directory.");
-         } else if (! dir.canRead()) {
-            throw new TechnicalContentAccessException(toString() + ": Accounts directory (" + dir.getAbsolutePath() + ") exists, but is not readable.");
-         }
+      // The first component after the prefix must be an account ID
+      int    start = ACCOUNTS_PREFIX.length();
+      int      end = path.indexOf('/', start);
+      end          = (end < 0) ? path.length() : end;
+      String    id = path.substring(start, end);
+      if (! Assertions.isValidAccountID(id)) {
+         return path;
+      }
 
-         // Loop over all files in the directory
-         for (File file : dir.listFiles(new AccountDirectoryFilenameFilter())) {
-            accountIDs.add(file.getName());
-         }
+      String sharded = AccountLayout.SHARDED.getAccountPath(id) + path.substring(end);
+      Set<String> migrated = _migratedAccountIDs;
+      if (_accountLayout == AccountLayout.SHARDED || (migrated != null && migrated.contains(id))) {
+         return sharded;
       }
 
-      int newAccountsFound = accountIDs.size() - originalAccountCount;
-      Utils.logDebug("Found " + newAccountsFound + " (additional) accounts in: " + dir.getAbsolutePath() + " (" + description + ").");
+      // Migration in progress: probe both layouts
+      long shardedModified = getLastModified(sharded);
+      long    flatModified = getLastModified(path);
+      if (shardedModified != 0L || flatModified != 0L) {
+         return (shardedModified >= flatModified) ? sharded : path;
+      }
+      return (getLastModified(AccountLayout.SHARDED.getAccountPath(id)) != 0L) ? sharded : path;
    }
 
    /**
-    * Retrieves the appropriate account encryption <code>Key</code> using the
-    * specified combo settings.
+    * Determines the time a file or directory was last modified, in any of
+    * the databases, in any of the stored formats, without converting the
+    * path to the layout of the account directories.
     *
-    * @param accountID
-    *    the account ID, cannot be <code>null</code> and must be valid.
+    * @param path
+    *    the path, relative to this realm, should not be <code>null</code>.
     *
-    * @param settings
-    *    the combo settings, cannot be <code>null</code>.
+    * @return
+    *    the most recent modification time, in milliseconds since the Epoch,
+    *    or <code>0L</code> if the file or directory does not exist.
+    */
+   private long getLastModified(String path) {
+      String translated = _site.translatePath("realms/" + _name + '/' + path);
+      long     modified = 0L;
+      for (DatabaseType dbType : DatabaseType.values()) {
+         Database db = getDataHub().getDatabase(dbType);
+         if (db != null) {
+            File file = new File(db.getWriteDir(), translated);
+            modified = Math.max(modified, file.lastModified());
+            modified = Math.max(modified, new File(db.getWriteDir(), translated + BINARY_VAULT_SUFFIX).lastModified());
+            modified = Math.max(modified, new File(db.getWriteDir(), translated + XML_VAULT_SUFFIX).lastModified());
+         }
+      }
+      return modified;
+   }
+
+   /**
+    * Migrates the account directories of this realm from the flat layout to
+    * the sharded layout, see {@link AccountLayout}. This can be done while
+    * the realm is in use: accounts are moved one by one, and each account
+    * is looked up in its new location from the moment it is moved. While
+    * an account is being moved, its files may briefly appear to be missing.
+    * Accounts created during the migration are moved as well.
+    *
+    * <p>Before the first account is moved, the accounts directory of the
+    * account source database is marked as migrating. If the migration is
+    * interrupted, for example by a restart, accounts are looked up in both
+    * layouts until the migration is resumed and completed, see
+    * {@link #toStoragePath(String)}. Once all accounts have been moved, the
+    * layout of this realm is switched to {@link AccountLayout#SHARDED} and
+    * the accounts directory is marked as sharded, so the sharded layout is
+    * also used after a restart.
+    *
+    * <p>Migration requires each database to use the same directory for
+    * reading and writing, since the read directory is not modified.
     *
     * @return
-    *    the encryption {@link Key}, or <code>null</code> if none is needed.
-    *
-    * @throws IllegalArgumentException
-    *    if <code>accountID == null || settings == null</code>
-    *    or if <code>accountID</code> is invalid
-    *    (see {@link Assertions#assertValidAccountID(String)}).
+    *    the number of accounts moved, always &gt;= 0.
     *
     * @throws ContentAccessException
-    *    in case of a content retrieval error.
+    *    if a database uses distinct read and write directories, or if
+    *    moving an account directory failed; the migration can be resumed
+    *    by calling this method again.
     */
-   protected abstract Key getKeyByCombo(String accountID, PropertyReader settings)
-   throws IllegalArgumentException, ContentAccessException;
+   public synchronized int migrateToShardedLayout()
+   throws ContentAccessException {
+
+      // Determine the accounts directory in each database
+      Map<DatabaseType,File> roots = new LinkedHashMap<DatabaseType,File>();
+      for (DatabaseType dbType : DatabaseType.values()) {
+         Database db = getDataHub().getDatabase(dbType);
+         if (! db.getReadDir().equals(db.getWriteDir())) {
+            throw new TechnicalContentAccessException(toString() + ": Cannot migrate account directories, " + dbType + " database has distinct read and write directories.");
+         }
+         roots.put(dbType, new File(db.getWriteDir(), translatePath(AccountLayout.ACCOUNTS_DIR)));
+      }
+
+      // Mark the migration as in progress, so it survives a restart
+      if (_accountLayout == AccountLayout.FLAT) {
+         createAccountsMarker(MIGRATING_MARKER);
+         _migratedAccountIDs = Collections.synchronizedSet(new HashSet<String>());
+         _migrating          = true;
+      }
+
+      // Move accounts until none are left in the flat layout
+      int count = 0;
+      while (true) {
+         Set<String> accountIDs = new LinkedHashSet<String>();
+         for (File root : roots.values()) {
+            String[] names = root.list();
+            if (names != null) {
+               for (String name : names) {
+                  if (Assertions.isValidAccountID(name)) {
+                     accountIDs.add(name);
+                  }
+               }
+            }
+         }
+         if (accountIDs.isEmpty()) {
+            break;
+         }
+
+         for (String accountID : accountIDs) {
+
+            // From now on, the account is looked up in the new location
+            Set<String> migrated = _migratedAccountIDs;
+            if (migrated != null) {
+               migrated.add(accountID);
+            }
+
+            String relative = AccountLayout.SHARDED.getAccountPath(accountID).substring(ACCOUNTS_PREFIX.length());
+            for (Map.Entry<DatabaseType,File> root : roots.entrySet()) {
+               File source = new File(root.getValue(), accountID);
+               if (source.exists()) {
+                  try {
+                     moveMerging(source, new File(root.getValue(), relative));
+                  } catch (IOException cause) {
+                     throw new TechnicalContentAccessException(toString() + ": Failed to move directory of account " + TextUtils.quote(accountID) + " in " + root.getKey() + " database.", cause);
+                  }
+               }
+            }
+            count++;
+         }
+      }
+
+      // Mark the account directories as sharded
+      createAccountsMarker(SHARDED_MARKER);
+
+      // Switch the layout before clearing the migration state
+      _accountLayout      = AccountLayout.SHARDED;
+      _migrating          = false;
+      _migratedAccountIDs = null;
+      File migrating = getAccountsMarker(MIGRATING_MARKER);
+      if (migrating.exists() && ! migrating.delete()) {
+         Utils.logWarning(toString() + ": Failed to delete file " + TextUtils.quote(migrating.getPath()) + '.');
+      }
+
+      Utils.logInfo(toString() + ": Moved " + count + " account directories to the sharded layout.");
+      return count;
+   }
 
    /**
-    * Retrieves an account by account identifier.
+    * Creates a marker file in the accounts directory of the account source
+    * database, if it does not exist yet.
     *
-    * <p>If the account cannot be found, then a {@link NoSuchAccountException}
-    * is thrown.
+    * @param name
+    *    the name of the marker file, should not be <code>null</code>.
     *
-    * <p>A <code>Key</code> can be passed, but it is only used (and required)
-    * by secure realms, see {@link SecureRealm}.
+    * @throws TechnicalContentAccessException
+    *    if the marker file could not be created.
+    */
+   private void createAccountsMarker(String name) throws TechnicalContentAccessException {
+      File marker = getAccountsMarker(name);
+      try {
+         IOHelper.mkdirs(marker.getParentFile(), true, true);
+         if (! marker.exists() && ! marker.createNewFile()) {
+            throw new IOException("Failed to create file " + TextUtils.quote(marker.getPath()) + '.');
+         }
+      } catch (IOException cause) {
+         throw new TechnicalContentAccessException(toString() + ": Failed to create marker file " + TextUtils.quote(name) + " for account directories.", cause);
+      }
+   }
+
+   /**
+    * Moves a file or directory. If the target already exists, the contents
+    * of a source directory are merged into it. If a target file exists, the
+    * newer of the two files is kept: the target may have been written after
+    * the move started, but after an interrupted migration the source may
+    * also have been written after the target was moved.
     *
-    * @param id
-    *    the unique account ID, cannot be <code>null</code> and must be valid
-    *    (see {@link Assertions#assertValidAccountID(String)}),
+    * @param source
+    *    the file or directory to move, should not be <code>null</code>.
     *
-    * @param key
-    *    the encryption {@link Key} for the account,
-    *    can perhaps be <code>null</code>, depending on the type of realm
-    *    (secure or insecure).
+    * @param target
+    *    the new location, should not be <code>null</code>.
     *
-    * @return
-    *    the appropriate {@link Account} object, never <code>null</code>.
+    * @throws IOException
+    *    if moving failed.
+    */
+   private static void moveMerging(File source, File target) throws IOException {
+
+      // Simple case: rename
+      if (! target.exists()) {
+         IOHelper.mkdirs(target.getParentFile(), true, true);
+         if (source.renameTo(target)) {
+            return;
+         }
+      }
+
+      // Merge directories
+      if (source.isDirectory()) {
+         IOHelper.mkdirs(target, true, true);
+         File[] children = source.listFiles();
+         if (children == null) {
+            throw new IOException("Failed to list directory " + TextUtils.quote(source.getPath()) + '.');
+         }
+         for (File child : children) {
+            moveMerging(child, new File(target, child.getName()));
+         }
+      } else if (! target.exists()) {
+         throw new IOException("Failed to rename " + TextUtils.quote(source.getPath()) + " to " + TextUtils.quote(target.getPath()) + '.');
+
+      // Keep the newer file
+      } else if (source.lastModified() > target.lastModified()) {
+         if (! target.delete() || ! source.renameTo(target)) {
+            throw new IOException("Failed to replace " + TextUtils.quote(target.getPath()) + " with " + TextUtils.quote(source.getPath()) + '.');
+         }
+         return;
+      }
+
+      if (! source.delete()) {
+         throw new IOException("Failed to delete " + TextUtils.quote(source.getPath()) + '.');
+      }
+   }
+
+   /**
+    * Returns the collection of the IDs of all accounts in this realm. Both
+    * enabled and disabled accounts may be returned.
     *
-    * @throws IllegalArgumentException
-    *    if <code>id == null
-    *          || ! {@linkplain Assertions}.{@linkplain Assertions#assertValidAccountID(String) assertValidAccountID}(id)
-    *          || (key == null &amp;&amp;  isSecure())
-    *          || (key != null &amp;&amp; !isSecure())</code>.
+    * <p>The account IDs are kept in memory: they are read from disk when
+    * this realm is constructed and updated as accounts are created and
+    * deleted. Accounts added or removed outside this realm are picked up by
+    * a periodic reconciliation with the disk, see
+    * {@link #reconcileAccountIDs()}.
+    * This method returns a copy; to walk all accounts without copying, use
+    * {@link #iterateAccountIDs()}.
+    *
+    * @return
+    *    a {@link Collection} containing all account IDs for this realm,
+    *    never <code>null</code> (although it may be empty if there are no
+    *    accounts in this domain).
     *
     * @throws ContentAccessException
-    *    in case of a content retrieval error.
+    *    in case of a content retrieval error, for example because this realm
+    *    does not support account set retrieval.
     */
-   public abstract Account getAccount(String id, Key key)
-   throws IllegalArgumentException, ContentAccessException;
+   public Collection<String> getAccountIDs() throws ContentAccessException {
+      return getAccountIDRegistry().getAccountIDs();
+   }
 
    /**
-    * Returns the default properties for new accounts. These properties
-    * will be used if <code>null</code> is passed for the
-    * <code>accountProperties</code> argument to
-    * {@link #createAccount(String,PropertyReader,Collection)}.
+    * Returns a lazy view of the IDs of all accounts in this realm. Unlike
+    * {@link #getAccountIDs()}, the account IDs are not copied, so walking all
+    * accounts takes a small, fixed amount of memory. Account IDs added or
+    * removed during the iteration may or may not be returned.
     *
     * @return
-    *    the default properties to use, as an unmodifiable
-    *    {@link PropertyReader}, not guaranteed to contain all required
-    *    properties and not required to contain valid values for the
-    *    respective types; never <code>null</code>.
+    *    an {@link Iterable} over all account IDs, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the account IDs could not be loaded.
     */
-   public PropertyReader getDefaultAccountProperties() {
-      return _defaultAccountProperties;
+   public Iterable<String> iterateAccountIDs() throws ContentAccessException {
+      return getAccountIDRegistry().iterate(0, 1);
    }
 
    /**
-    * Takes properties intended to be used to initialize a new account
-    * instance, and translates them to a map with <code>AccountData</code>
-    * instances. This method can be used to check that all properties are set
-    * correctly.
+    * Returns a lazy view of one part of the IDs of all accounts in this
+    * realm, so that a batch job can walk the accounts in parallel, one
+    * thread per part. The parts are disjoint and together contain all
+    * accounts, see {@link #iterateAccountIDs()}.
     *
-    * @param properties
-    *    the new account properties, cannot be <code>null</code>.
-    *
-    * @param snippets
-    *    the account snippets, or <code>null</code>.
+    * @param part
+    *    the index of the part, must be &gt;= 0 and &lt;
+    *    <code>partCount</code>.
     *
-    * @param stylesheets
-    *    the account stylesheets, or <code>null</code>.
+    * @param partCount
+    *    the number of parts, must be &gt;= 1.
     *
     * @return
-    *    the {@link Map}, never <code>null</code>.
+    *    an {@link Iterable} over the account IDs in the part,
+    *    never <code>null</code>.
     *
     * @throws IllegalArgumentException
-    *    if <code>properties == null</code>.
-    *
-    * @throws MissingRequiredPropertyException
-    *    if a mandatory property was found missing.
+    *    if <code>partCount &lt; 1 || part &lt; 0 || part &gt;= partCount</code>.
     *
-    * @throws InvalidPropertyValueException
-    *    if a property was found to have an invalid value.
+    * @throws ContentAccessException
+    *    if the account IDs could not be loaded.
     */
-   public Map<DatabaseType,AccountData> newAccountDataMap(PropertyReader                   properties,
-                                                          Collection<AccountSnippet>       snippets,
-                                                          Collection<AccountStylesheetRef> stylesheets)
-   throws IllegalArgumentException,
-          MissingRequiredPropertyException,
-          InvalidPropertyValueException {
+   public Iterable<String> iterateAccountIDs(int part, int partCount)
+   throws IllegalArgumentException, ContentAccessException {
 
       // Check preconditions
-      MandatoryArgumentChecker.check("properties", properties);
+      if (partCount < 1) {
+         throw new IllegalArgumentException("partCount (" + partCount + ") < 1");
+      } else if (part < 0 || part >= partCount) {
+         throw new IllegalArgumentException("part (" + part + ") is not in the range [0, " + partCount + ").");
+      }
 
-      // Loop over all database types
-      Map<DatabaseType,AccountData> dataMap = new HashMap<DatabaseType,AccountData>();
-      for (DatabaseType dbType : DatabaseType.values()) {
-         AccountDataDef def = getAccountDataDef(dbType);
-         dataMap.put(dbType, new AccountData(def, properties, snippets, (dbType == DatabaseType.CONTENTDB ? stylesheets : null))); // TODO: Review 'stylesheets' parameter
+      return getAccountIDRegistry().iterate(part, partCount);
+   }
+
+   /**
+    * Reconciles the in-memory account IDs with the disk right away, instead
+    * of waiting for the next periodic reconciliation.
+    *
+    * @throws ContentAccessException
+    *    if the account IDs could not be read from disk.
+    */
+   public void reconcileAccountIDs() throws ContentAccessException {
+      getAccountIDRegistry().reconcile();
+   }
+
+   /**
+    * Retrieves the in-memory registry of account IDs. The registry is loaded
+    * from disk on first use, not when this realm is constructed, so a site
+    * with many accounts starts without scanning them.
+    *
+    * @return
+    *    the {@link AccountIDRegistry}, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the account IDs could not be loaded.
+    */
+   private AccountIDRegistry getAccountIDRegistry() throws ContentAccessException {
+      AccountIDRegistry registry = _accountIDRegistry;
+      if (registry == null) {
+         synchronized (_accountIDRegistryLock) {
+            registry = _accountIDRegistry;
+            if (registry == null) {
+               registry           = new AccountIDRegistry(this, AccountIDRegistry.DEFAULT_RECONCILE_INTERVAL);
+               _accountIDRegistry = registry;
+            }
+         }
       }
+      return registry;
+   }
 
-      return dataMap;
+   /**
+    * Registers the ID of a created account. If the registry has not been
+    * loaded yet, nothing is done, since loading it will find the account on
+    * disk. If it is being loaded, this method waits until it is.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   private void registerAccountID(String accountID) {
+      synchronized (_accountIDRegistryLock) {
+         if (_accountIDRegistry != null) {
+            _accountIDRegistry.add(accountID);
+         }
+      }
    }
 
    /**
-    * Creates a new enabled account with a random account ID, taking the data
-    * from the specified <code>AccountInfo</code> object.
+    * Unregisters the ID of a deleted account, see
+    * {@link #registerAccountID(String)}.
     *
-    * <p>Note: disabled accounts cannot be created directly. For this, the
-    * <code>DisabledAccounts.xml</code> file must be modified manually.
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   private void unregisterAccountID(String accountID) {
+      synchronized (_accountIDRegistryLock) {
+         if (_accountIDRegistry != null) {
+            _accountIDRegistry.remove(accountID);
+         }
+      }
+   }
+
+   /**
+    * Returns the names of the account properties that have a secondary
+    * index, see {@link #findAccounts(AccountQuery)}.
     *
-    * @param accountInfo
-    *    the {@link AccountInfo} containing the data, cannot be
-    *    <code>null</code>.
+    * @return
+    *    an unmodifiable {@link Set} of property names, never <code>null</code>.
+    */
+   public Set<String> getIndexedAccountProperties() {
+      return _propertyIndexes.keySet();
+   }
+
+   /**
+    * Finds the accounts that match the specified query. If any of the
+    * properties in the query has a secondary index (see
+    * {@link AccountPropertyIndex}), then the candidates are taken from the
+    * index and only the remaining conditions are checked against the
+    * account data of the candidates. Otherwise the account data of all
+    * accounts is scanned, by at most {@value #MAX_SCAN_CONCURRENCY}
+    * threads.
+    *
+    * <p>Account data is read with the default key (see
+    * {@link #getDefaultKey()}). In a {@linkplain #isSecure() secure} realm
+    * the account data is encrypted with a key per account, so it cannot be
+    * scanned: queries with a condition on a property without a secondary
+    * index are rejected, and secondary indexes cannot be built.
+    *
+    * @param query
+    *    the query, cannot be <code>null</code>.
     *
     * @return
-    *    the created {@link Account}, never <code>null</code>.
+    *    a new sorted {@link Set} with the IDs of the matching accounts,
+    *    never <code>null</code>.
     *
     * @throws IllegalArgumentException
-    *    if <code>accountInfo == null</code>.
+    *    if <code>query == null</code>
+    *    or if the query has a condition on an undefined property
+    *    or if this realm is secure and the query has a condition on a
+    *    property without a secondary index.
     *
-    * @throws AccountCreationException
-    *    if the account could not be created.
+    * @throws ContentAccessException
+    *    if account data could not be read.
     */
-   public Account createAccount(final AccountInfo accountInfo)
-   throws AccountCreationException {
+   public Set<String> findAccounts(AccountQuery query)
+   throws IllegalArgumentException, ContentAccessException {
 
       // Check preconditions
-      MandatoryArgumentChecker.check("accountInfo", accountInfo);
+      MandatoryArgumentChecker.check("query", query);
+      final Map<String,String> conditions = new LinkedHashMap<String,String>(query.getConditions());
+      for (String propertyName : conditions.keySet()) {
+         if (! _accountPropertySources.containsKey(propertyName)) {
+            throw new IllegalArgumentException("Property " + TextUtils.quote(propertyName) + " is not defined in " + toString() + '.');
+         } else if (isSecure() && ! _propertyIndexes.containsKey(propertyName)) {
+            throw new IllegalArgumentException("Property " + TextUtils.quote(propertyName) + " has no index in " + toString() + ", and account data in a secure realm cannot be scanned.");
+         }
+      }
 
-      // Get the data
-      String                             accountID = accountInfo.getID();
-      PropertyReader                    properties = accountInfo.getProperties(Dialect.ORIGINAL);
-      Collection<AccountSnippet>          snippets = accountInfo.getSnippets();
-      Collection<AccountStylesheetRef> stylesheets = accountInfo.getStylesheets();
+      // Take the candidates from the indexes that apply, if any
+      Set<String> candidates = null;
+      for (Iterator<Map.Entry<String,String>> it = conditions.entrySet().iterator(); it.hasNext(); ) {
+         Map.Entry<String,String> condition = it.next();
+         AccountPropertyIndex         index = _propertyIndexes.get(condition.getKey());
+         if (index != null) {
+            Set<String> ids = index.lookup(condition.getValue());
+            if (candidates == null) {
+               candidates = ids;
+            } else {
+               candidates.retainAll(ids);
+            }
+            it.remove();
+         }
+      }
+      if (candidates != null && (candidates.isEmpty() || conditions.isEmpty())) {
+         return new TreeSet<String>(candidates);
+      }
 
-      // Delegate to a sibling createAccount method
-      return accountID == null ? createAccount(           properties, snippets, stylesheets)
-                               : createAccount(accountID, properties, snippets, stylesheets);
+      // Divide the accounts to check in parts: either the candidates or all
+      Queue<Iterable<String>> parts = new ConcurrentLinkedQueue<Iterable<String>>();
+      if (candidates == null) {
+         AccountIDRegistry registry = getAccountIDRegistry();
+         parts.addAll(registry.partition(SCAN_PART_COUNT));
+      } else {
+         List<String> list = new ArrayList<String>(candidates);
+         for (int from = 0; from < list.size(); from += SCAN_BATCH_SIZE) {
+            parts.add(list.subList(from, Math.min(from + SCAN_BATCH_SIZE, list.size())));
+         }
+      }
+
+      // Check the remaining conditions against the account data
+      Set<DatabaseType> dbTypes = new HashSet<DatabaseType>();
+      for (String propertyName : conditions.keySet()) {
+         dbTypes.add(_accountPropertySources.get(propertyName));
+      }
+      final Set<String>                   matches  = Collections.synchronizedSet(new TreeSet<String>());
+      ConcurrentHashMap<String,Exception> failures = new ConcurrentHashMap<String,Exception>();
+      scanAccountData(parts, dbTypes, failures, new AccountDataVisitor() {
+         public void visit(String accountID, Map<String,String> properties) {
+            for (Map.Entry<String,String> condition : conditions.entrySet()) {
+               if (! condition.getValue().equals(properties.get(condition.getKey()))) {
+                  return;
+               }
+            }
+            matches.add(accountID);
+         }
+      });
+      if (! failures.isEmpty()) {
+         Utils.logWarning(toString() + ": Skipped " + failures.size() + " accounts whose data could not be read while finding accounts.");
+      }
+
+      return new TreeSet<String>(matches);
    }
 
    /**
-    * Creates a new enabled account with a random account ID
-    * and the specified data.
-    *
-    * <p>Note: disabled accounts cannot be created directly. For this, the
-    * <code>DisabledAccounts.xml</code> file must be modified manually.
+    * Reads the value of a property for all accounts, to build a secondary
+    * index. This method is called from {@link AccountPropertyIndex}.
     *
-    * @param accountProperties
-    *    the properties for the account, or <code>null</code> if the default
-    *    account properties should be used
-    *    (see {@link #getDefaultAccountProperties()}).
+    * @param dbType
+    *    the database the property is stored in,
+    *    should not be <code>null</code>.
     *
-    * @param accountSnippets
-    *    the snippets for the account, or <code>null</code> if none.
+    * @param propertyName
+    *    the name of the property, should not be <code>null</code>.
     *
-    * @param accountStylesheets
-    *    the stylesheets for the account, or <code>null</code> if none.
+    * @param failures
+    *    the map to record the failure per account in, for the accounts
+    *    whose data could not be read, should not be <code>null</code>.
     *
     * @return
-    *    the created {@link Account}, never <code>null</code>.
+    *    the property value per account ID, for the accounts that have a
+    *    value and could be read, never <code>null</code>.
     *
-    * @throws AccountCreationException
-    *    if the account could not be created.
+    * @throws ContentAccessException
+    *    if the account IDs could not be read, or if this realm is secure,
+    *    since then the account data is encrypted with a key per account and
+    *    cannot be scanned.
     */
-   public Account createAccount(final PropertyReader                   accountProperties,
-                                final Collection<AccountSnippet>       accountSnippets,
-                                final Collection<AccountStylesheetRef> accountStylesheets)
-   throws AccountCreationException {
-      String accountID = HexConverter.toHexString(_random.nextLong());
-      return createAccount(accountID, accountProperties, accountSnippets, accountStylesheets);
+   Map<String,String> scanAccountPropertyValues(DatabaseType dbType, final String propertyName, Map<String,Exception> failures)
+   throws ContentAccessException {
+
+      if (isSecure()) {
+         throw new TechnicalContentAccessException(toString() + ": Cannot build index for property " + TextUtils.quote(propertyName) + ", since account data in a secure realm cannot be scanned.");
+      }
+
+      AccountIDRegistry     registry = getAccountIDRegistry();
+      Queue<Iterable<String>> parts = new ConcurrentLinkedQueue<Iterable<String>>();
+      parts.addAll(registry.partition(SCAN_PART_COUNT));
+
+      final Map<String,String> values = new ConcurrentHashMap<String,String>();
+      scanAccountData(parts, Collections.singleton(dbType), failures, new AccountDataVisitor() {
+         public void visit(String accountID, Map<String,String> properties) {
+            String value = properties.get(propertyName);
+            if (value != null) {
+               values.put(accountID, value);
+            }
+         }
+      });
+      return values;
    }
 
-   public final Account createAccount(final PropertyReader             accountProperties,
-                                      final Collection<AccountSnippet> accountSnippets)
-   throws IllegalArgumentException,
-          AccountCreationException {
-      return createAccount(accountProperties, accountSnippets, (Collection<AccountStylesheetRef>) null);
+   /**
+    * Reads the account data of accounts, in parallel, and passes the
+    * property values of each account to a visitor. Changes in the journal
+    * of an account (see {@link AccountDataJournal}) are applied. Accounts
+    * without account data are passed with no property values. An account
+    * whose data cannot be read is logged and recorded as a failure, and the
+    * scan continues with the other accounts.
+    *
+    * @param parts
+    *    the account IDs to scan, divided in parts; each part is scanned by
+    *    one thread; should not be <code>null</code>.
+    *
+    * @param dbTypes
+    *    the databases to read the account data from,
+    *    should not be <code>null</code>.
+    *
+    * @param failures
+    *    the map to record the failure per account in,
+    *    should not be <code>null</code>.
+    *
+    * @param visitor
+    *    the visitor, called concurrently, should not be <code>null</code>.
+    */
+   private void scanAccountData(final Queue<Iterable<String>>     parts,
+                                final Collection<DatabaseType>    dbTypes,
+                                final Map<String,Exception>       failures,
+                                final AccountDataVisitor          visitor) {
+
+      Runnable worker = new Runnable() {
+         public void run() {
+            for (Iterable<String> part = parts.poll(); part != null; part = parts.poll()) {
+               for (String accountID : part) {
+                  Map<String,String> properties = new HashMap<String,String>();
+                  try {
+                     for (DatabaseType dbType : dbTypes) {
+                        readAccountProperties(accountID, dbType, properties);
+                     }
+                  } catch (ContentAccessException cause) {
+                     Utils.logError(Realm.this.toString() + ": Failed to read account data of account " + TextUtils.quote(accountID) + '.', cause);
+                     failures.put(accountID, cause);
+                     continue;
+                  }
+                  visitor.visit(accountID, properties);
+               }
+            }
+         }
+      };
+      IOExecutor.runWorkers(worker, Math.max(1, Math.min(MAX_SCAN_CONCURRENCY, parts.size())));
    }
 
    /**
-    * Creates a new enabled account with the specified data and the specified
-    * account ID (wrapper method).
-    *
-    * <p>Note: disabled accounts cannot be created directly. For this, the
-    * <code>DisabledAccounts.xml</code> file must be modified manually.
-    *
-    * <p>This method delegates to
-    * {@link #createAccountImpl(String,PropertyReader)}.
+    * Reads the property values of an account from one database, using the
+    * default key. Changes in the journal of the account are included, since
+    * reads of the account data file return them, see
+    * {@link AccountDataJournal}.
     *
     * @param accountID
-    *    the unique account identifier, cannot be <code>null</code>
-    *    and must be valid
-    *    (see {@link Assertions#assertValidAccountID(String)}).
-    *
-    * @param accountProperties
-    *    the properties for the account, or <code>null</code> if the default
-    *    account properties should be used
-    *    (see {@link #getDefaultAccountProperties()}).
+    *    the account ID, should not be <code>null</code>.
     *
-    * @param accountSnippets
-    *    the account snippets, or <code>null</code> if none are defined.
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
     *
-    * @throws IllegalArgumentException
-    *    if <code>accountID == null</code>
-    *    or if <code>accountID</code> is invalid
-    *    (see {@link Assertions#assertValidAccountID(String)}).
+    * @param properties
+    *    the map to store the property values in,
+    *    should not be <code>null</code>.
     *
-    * @throws AccountCreationException
-    *    if the account could not be created.
+    * @throws ContentAccessException
+    *    if the account data could not be read.
     */
-   public final Account createAccount(final String                     accountID,
-                                      final PropertyReader             accountProperties,
-                                      final Collection<AccountSnippet> accountSnippets)
-   throws IllegalArgumentException,
-          AccountCreationException {
-      return createAccount(accountID, accountProperties, accountSnippets, (Collection<AccountStylesheetRef>) null);
+   private void readAccountProperties(String accountID, DatabaseType dbType, Map<String,String> properties)
+   throws ContentAccessException {
+      String path = getAccountDataPath(accountID);
+      _accountDataJournal.recover(accountID, path, getDefaultKey());
+      XMLDataSource file = getOptionalXMLFile(dbType, path);
+      if (file != null) {
+         readPropertyValues(file.getXML(), properties);
+      }
    }
 
    /**
-    * Creates a new enabled account with the specified data and the specified
-    * account ID (wrapper method).
+    * Reads the property values from account data XML. Each property is a
+    * child element with a <code>name</code> attribute; the value is taken
+    * from the <code>value</code> attribute or, if there is none, from the
+    * text of the element.
     *
-    * <p>Note: disabled accounts cannot be created directly. For this, the
-    * <code>DisabledAccounts.xml</code> file must be modified manually.
+    * @param xml
+    *    the account data, as XML, should not be <code>null</code>.
     *
-    * <p>This method delegates to
-    * {@link #createAccountImpl(String,PropertyReader)}.
+    * @param properties
+    *    the map to store the property values in,
+    *    should not be <code>null</code>.
+    */
+   static void readPropertyValues(Element xml, Map<String,String> properties) {
+      for (Element child : xml.getChildElements()) {
+         String name = child.getAttribute("name");
+         if (! TextUtils.isEmpty(name)) {
+            String value = child.getAttribute("value");
+            properties.put(name, value != null ? value : child.getText());
+         }
+      }
+   }
+
+   /**
+    * Updates the secondary property indexes for the account data of an
+    * account in one database.
     *
     * @param accountID
-    *    the unique account identifier, cannot be <code>null</code>
-    *    and must be valid
-    *    (see {@link Assertions#assertValidAccountID(String)}).
+    *    the account ID, should not be <code>null</code>.
     *
-    * @param accountProperties
-    *    the properties for the account, or <code>null</code> if the default
-    *    account properties should be used
-    *    (see {@link #getDefaultAccountProperties()}).
+    * @param dbType
+    *    the database type, should not be <code>null</code>.
     *
-    * @param accountSnippets
-    *    the account snippets, or <code>null</code> if none are defined.
+    * @param data
+    *    the account data, should not be <code>null</code>.
+    */
+   private void updatePropertyIndexes(String accountID, DatabaseType dbType, AccountData data) {
+      Map<String,String> properties = null;
+      for (AccountPropertyIndex index : _propertyIndexes.values()) {
+         if (index.getDatabaseType() == dbType) {
+            if (properties == null) {
+               properties = new HashMap<String,String>();
+               if (data.containsValidValue()) {
+                  readPropertyValues(data.toXML(), properties);
+               }
+            }
+            index.update(accountID, properties.get(index.getPropertyName()));
+         }
+      }
+   }
+
+   /**
+    * Removes an account from all secondary property indexes.
     *
-    * @param accountStylesheets
-    *    the account stylesheets, or <code>null</code> if none are defined.
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    */
+   private void removeFromPropertyIndexes(String accountID) {
+      for (AccountPropertyIndex index : _propertyIndexes.values()) {
+         index.remove(accountID);
+      }
+   }
+
+   /**
+    * Finds the IDs of all accounts in this realm on disk, in the read and
+    * write directories of the account source database.
     *
-    * @throws IllegalArgumentException
-    *    if <code>accountID == null</code>
-    *    or if <code>accountID</code> is invalid
-    *    (see {@link Assertions#assertValidAccountID(String)}).
+    * @return
+    *    a new {@link Collection} containing all account IDs found,
+    *    never <code>null</code>.
     *
-    * @throws AccountCreationException
-    *    if the account could not be created.
+    * @throws ContentAccessException
+    *    in case of a content retrieval error.
     */
-   public final Account createAccount(final String                           accountID,
-                                      final PropertyReader                   accountProperties,
-                                      final Collection<AccountSnippet>       accountSnippets,
-                                      final Collection<AccountStylesheetRef> accountStylesheets)
-   throws IllegalArgumentException,
-          AccountCreationException {
-
-      // Check preconditions
-      assertValidAccountID(accountID);
+   Collection<String> scanAccountIDs() throws ContentAccessException {
 
-      // Use fallback default properties, when appropriate
-      PropertyReader accountPropsToUse = (accountProperties == null)
-                                       ? getDefaultAccountProperties()
-                                       : accountProperties;
+      // Prepare
+      HashSet<String> accountIDs = new HashSet<String>();
+      String                path = translatePath("accounts");
+      Database                db = getDataHub().getDatabase(_accountSource);
+      File              writeDir = db.getWriteDir();
+      File               readDir = db.getReadDir();
 
-      String logPrefix = toString() + ", account \"" + accountID + "\": ";
+      // Find accounts in the read directory
+      findAccountIDs(accountIDs, new File(readDir, path), _accountSource.name() + " read directory");
 
-      // Log before account creation
-      Utils.logDebug(logPrefix + "About to create.");
+      // Also find accounts in the write directory
+      // (if there is a distinct write directory)
+      if (! readDir.equals(writeDir)) {
+         findAccountIDs(accountIDs, new File(writeDir, path), _accountSource.name() + " write directory");
+      }
 
-      // TODO: Make sure an account with the specified ID does not exist yet
+      return accountIDs;
+   }
 
-      // Delegate to the implementation method
-      Account account = null;
-      try {
-         account = createAccountImpl(accountID, accountPropsToUse, accountSnippets, accountStylesheets);
+   /**
+    * Finds account IDs in the specified directory and adds them to an
+    * existing collection.
+    *
+    * @param accountIDs
+    *    the existing {@link Collection} of account IDs,
+    *    cannot be <code>null</code>.
+    *
+    * @param dir
+    *    the directory to find accounts in, cannot be <code>null</code>.
+    *
+    * @param description
+    *    description of the directory, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountIDs == null || dir == null || description == null</code>.
+    *
+    * @throws ContentAccessException
+    *    in case of an error.
+    */
+   private final void findAccountIDs(Collection<String> accountIDs, File dir, String description)
+   throws IllegalArgumentException, ContentAccessException {
 
-      // Property missing or has an invalid value
-      } catch (PropertyException cause) {
-         Utils.logError(logPrefix + "Failed to create due to property-related error.", cause);
-         throw new AccountCreationException(this, accountID, accountPropsToUse, cause);
+      // Check preconditions
+      MandatoryArgumentChecker.check("accountIDs", accountIDs, "dir", dir, "description", description);
 
-      // Missing required snippet
-      } catch (MissingRequiredAccountSnippetException cause) {
-         Utils.logError(logPrefix + "Failed to create due to a missing account snippet.", cause);
-         throw new AccountCreationException(this, accountID, accountPropsToUse, cause);
+      int originalAccountCount = accountIDs.size();
 
-      // Content access exception
-      } catch (ContentAccessException cause) {
-         Utils.logError(logPrefix + "Failed to create due to data access-related error.", cause);
-         throw new AccountCreationException(this, accountID, accountPropsToUse, cause);
+      // Only add items if the directory exists
+      if (dir.exists()) {
+         if (! dir.isDirectory()) {
+            throw new TechnicalContentAccessException(toString() + ": Path for accounts directory (" + dir.getAbsolutePath() + ") exists, but is not a directory.");
+         } else if (! dir.canRead()) {
+            throw new TechnicalContentAccessException(toString() + ": Accounts directory (" + dir.getAbsolutePath() + ") exists, but is not readable.");
+         }
 
-      // If anything failed at all, then delete all created files
-      } finally {
-         if (account == null) {
-            Utils.logError(logPrefix + "Failed to create, removing account-related files.");
-            deleteAccountFiles(accountID);
+         // Loop over all files in the directory, and in the shard
+         // directories of the sharded layout
+         for (File file : dir.listFiles(new AccountDirectoryFilenameFilter())) {
+            String name = file.getName();
+            if (Assertions.isValidAccountID(name)) {
+               accountIDs.add(name);
+            } else if (file.isDirectory()) {
+               for (File shard : file.listFiles(new AccountDirectoryFilenameFilter())) {
+                  if (shard.isDirectory() && AccountLayout.isShardName(shard.getName())) {
+                     for (File account : shard.listFiles(new AccountDirectoryFilenameFilter())) {
+                        if (Assertions.isValidAccountID(account.getName())) {
+                           accountIDs.add(account.getName());
+                        }
+                     }
+                  }
+               }
+            }
          }
       }
 
-      Utils.logInfo(logPrefix + "Created.");
-
-      return account;
+      int newAccountsFound = accountIDs.size() - originalAccountCount;
+      Utils.logDebug("Found " + newAccountsFound + " (additional) accounts in: " + dir.getAbsolutePath() + " (" + description + ").");
    }
 
    /**
-    * Creates a new enabled account with the specified data and the specified
-    * account ID (implementation method).
+    * Retrieves the appropriate account encryption <code>Key</code> using the
+    * specified combo settings.
     *
-    * <p>This method is and should only be called from
-    * {@link #createAccount(String,PropertyReader)}.
+    * @param accountID
+    *    the account ID, cannot be <code>null</code> and must be valid.
     *
-    * <p>While creating the account, this method delegates:
-    * <ol>
-    * <li>the creation of the {@link Account} object to
-    *     {@link #newAccount(String,boolean,Key)};
-    * <li>the persistence of the actual account data to
-    *     {@link #persistAccountData(String,DatabaseType,AccountData,FileStoreMode)}.
-    * </ol>
+    * @param settings
+    *    the combo settings, cannot be <code>null</code>.
     *
-    * @param accountID
-    *    the unique account identifier, cannot be <code>null</code>.
+    * @return
+    *    the encryption {@link Key}, or <code>null</code> if none is needed.
     *
-    * @param accountProperties
-    *    the properties for the account, cannot be <code>null</code> if the default
-    *    account properties should be used
-    *    (see {@link #getDefaultAccountProperties()}).
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null || settings == null</code>
+    *    or if <code>accountID</code> is invalid
+    *    (see {@link Assertions#assertValidAccountID(String)}).
     *
-    * @param accountSnippets
-    *    the account snippets, or <code>null</code> if none are defined.
+    * @throws ContentAccessException
+    *    in case of a content retrieval error.
+    */
+   protected abstract Key getKeyByCombo(String accountID, PropertyReader settings)
+   throws IllegalArgumentException, ContentAccessException;
+
+   /**
+    * Retrieves an account by account identifier.
     *
-    * @param accountStylesheets
-    *    the account stylesheet, or <code>null</code> if none are defined.
+    * <p>If the account cannot be found, then a {@link NoSuchAccountException}
+    * is thrown.
     *
-    * @throws PropertyException
-    *    if a mandatory property is missing,
-    *    or if a found property has an invalid value.
+    * <p>A <code>Key</code> can be passed, but it is only used (and required)
+    * by secure realms, see {@link SecureRealm}.
     *
-    * @throws MissingRequiredAccountSnippetException
-    *    if a mandatory account snippet is unset.
+    * <p>Each call returns a new <code>Account</code> object, so that
+    * requests never share one. The realm remembers which accounts have been
+    * loaded, see {@link #getAccountCache()}; on a cache hit the object is
+    * constructed through {@link #newAccount(String,boolean,Key)}, and on a
+    * cache miss this method delegates to
+    * {@link #getAccountImpl(String,Key)}.
+    *
+    * @param id
+    *    the unique account ID, cannot be <code>null</code> and must be valid
+    *    (see {@link Assertions#assertValidAccountID(String)}),
+    *
+    * @param key
+    *    the encryption {@link Key} for the account,
+    *    can perhaps be <code>null</code>, depending on the type of realm
+    *    (secure or insecure).
+    *
+    * @return
+    *    the appropriate {@link Account} object, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>id == null
+    *          || ! {@linkplain Assertions}.{@linkplain Assertions#assertValidAccountID(String) assertValidAccountID}(id)
+    *          || (key == null &amp;&amp;  isSecure())
+    *          || (key != null &amp;&amp; !isSecure())</code>.
     *
     * @throws ContentAccessException
-    *    in case of a content access error.
+    *    in case of a content retrieval error.
     */
-   protected final Account createAccountImpl(final String                           accountID,
-                                             final PropertyReader                   accountProperties,
-                                             final Collection<AccountSnippet>       accountSnippets,
-                                             final Collection<AccountStylesheetRef> accountStylesheets)
-   throws PropertyException,
-          MissingRequiredAccountSnippetException,
-          ContentAccessException {
+   public final Account getAccount(String id, Key key)
+   throws IllegalArgumentException, ContentAccessException {
 
-      // Initialize all AccountData instances - note that this may fail due to
-      // a missing property or an invalid property value
-      Map<DatabaseType,AccountData> dataMap = newAccountDataMap(accountProperties, accountSnippets, accountStylesheets);
+      // Check preconditions
+      assertValidAccountID(id);
+
+      // Take the version first, so an account that is changed while it is
+      // being loaded is not cached
+      long     version = _accountCache.getVersion(id);
+      boolean disabled = _disabledAccountIDs.contains(id);
+      if (_accountCache.contains(id, key, disabled)) {
+         return newAccount(id, ! disabled, key);
+      }
 
-      // Create a new Key, or null (depends on the type of Realm)
-      Key key = newKey();
+      // Pick up journal entries left behind by an earlier run, so reads of
+      // the account data file include them; this only lists the journal
+      // directories, once per account
+      _accountDataJournal.recover(id, getAccountDataPath(id), key);
+      Account account = getAccountImpl(id, key);
+      _accountCache.put(id, key, disabled, version);
+      return account;
+   }
+
+   /**
+    * Retrieves an account by account identifier (implementation method).
+    *
+    * <p>This method is and should only be called from
+    * {@link #getAccount(String,Key)}, on a cache miss.
+    *
+    * @param id
+    *    the unique account ID, never <code>null</code> and always valid.
+    *
+    * @param key
+    *    the encryption {@link Key} for the account,
+    *    can perhaps be <code>null</code>, depending on the type of realm
+    *    (secure or insecure).
+    *
+    * @return
+    *    the appropriate {@link Account} object, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>(key == null &amp;&amp;  isSecure())
+    *          || (key != null &amp;&amp; !isSecure())</code>.
+    *
+    * @throws ContentAccessException
+    *    in case of a content retrieval error.
+    */
+   protected abstract Account getAccountImpl(String id, Key key)
+   throws IllegalArgumentException, ContentAccessException;
+
+   /**
+    * Returns the cache of the accounts in this realm that have been loaded,
+    * for example to report its hit ratio and eviction metrics.
+    *
+    * @return
+    *    the {@link AccountCache}, never <code>null</code>.
+    */
+   public AccountCache getAccountCache() {
+      return _accountCache;
+   }
+
+   /**
+    * Returns the default properties for new accounts. These properties
+    * will be used if <code>null</code> is passed for the
+    * <code>accountProperties</code> argument to
+    * {@link #createAccount(String,PropertyReader,Collection)}.
+    *
+    * @return
+    *    the default properties to use, as an unmodifiable
+    *    {@link PropertyReader}, not guaranteed to contain all required
+    *    properties and not required to contain valid values for the
+    *    respective types; never <code>null</code>.
+    */
+   public PropertyReader getDefaultAccountProperties() {
+      return _defaultAccountProperties;
+   }
+
+   /**
+    * Takes properties intended to be used to initialize a new account
+    * instance, and translates them to a map with <code>AccountData</code>
+    * instances. This method can be used to check that all properties are set
+    * correctly.
+    *
+    * @param properties
+    *    the new account properties, cannot be <code>null</code>.
+    *
+    * @param snippets
+    *    the account snippets, or <code>null</code>.
+    *
+    * @param stylesheets
+    *    the account stylesheets, or <code>null</code>.
+    *
+    * @return
+    *    the {@link Map}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>properties == null</code>.
+    *
+    * @throws MissingRequiredPropertyException
+    *    if a mandatory property was found missing.
+    *
+    * @throws InvalidPropertyValueException
+    *    if a property was found to have an invalid value.
+    */
+   public Map<DatabaseType,AccountData> newAccountDataMap(PropertyReader                   properties,
+                                                          Collection<AccountSnippet>       snippets,
+                                                          Collection<AccountStylesheetRef> stylesheets)
+   throws IllegalArgumentException,
+          MissingRequiredPropertyException,
+          InvalidPropertyValueException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("properties", properties);
 
-      // Write all AccountData.xml files that have at least one property
+      // Loop over all database types
+      Map<DatabaseType,AccountData> dataMap = new HashMap<DatabaseType,AccountData>();
       for (DatabaseType dbType : DatabaseType.values()) {
-         persistAccountData(accountID, dbType, dataMap.get(dbType), FileStoreMode.MUST_NOT_EXIST, key);
+         AccountDataDef def = getAccountDataDef(dbType);
+         dataMap.put(dbType, new AccountData(def, properties, snippets, (dbType == DatabaseType.CONTENTDB ? stylesheets : null))); // TODO: Review 'stylesheets' parameter
       }
 
-      // Construct an enabled Account object
-      Account account = newAccount(accountID, true, key);
+      return dataMap;
+   }
 
-      // Store the "combo" reference (if any)
-      persistComboRef(account);
+   /**
+    * Creates a new enabled account with a random account ID, taking the data
+    * from the specified <code>AccountInfo</code> object.
+    *
+    * <p>Note: disabled accounts cannot be created directly. For this, the
+    * <code>DisabledAccounts.xml</code> file must be modified manually.
+    *
+    * @param accountInfo
+    *    the {@link AccountInfo} containing the data, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    the created {@link Account}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountInfo == null</code>.
+    *
+    * @throws AccountCreationException
+    *    if the account could not be created.
+    */
+   public Account createAccount(final AccountInfo accountInfo)
+   throws AccountCreationException {
 
-      // Store the "id" reference (if any)
-      persistIDRef(account);
+      // Check preconditions
+      MandatoryArgumentChecker.check("accountInfo", accountInfo);
+
+      // Get the data
+      String                             accountID = accountInfo.getID();
+      PropertyReader                    properties = accountInfo.getProperties(Dialect.ORIGINAL);
+      Collection<AccountSnippet>          snippets = accountInfo.getSnippets();
+      Collection<AccountStylesheetRef> stylesheets = accountInfo.getStylesheets();
+
+      // Delegate to a sibling createAccount method
+      return accountID == null ? createAccount(           properties, snippets, stylesheets)
+                               : createAccount(accountID, properties, snippets, stylesheets);
+   }
+
+   /**
+    * Creates a new enabled account with a random account ID
+    * and the specified data.
+    *
+    * <p>Note: disabled accounts cannot be created directly. For this, the
+    * <code>DisabledAccounts.xml</code> file must be modified manually.
+    *
+    * @param accountProperties
+    *    the properties for the account, or <code>null</code> if the default
+    *    account properties should be used
+    *    (see {@link #getDefaultAccountProperties()}).
+    *
+    * @param accountSnippets
+    *    the snippets for the account, or <code>null</code> if none.
+    *
+    * @param accountStylesheets
+    *    the stylesheets for the account, or <code>null</code> if none.
+    *
+    * @return
+    *    the created {@link Account}, never <code>null</code>.
+    *
+    * @throws AccountCreationException
+    *    if the account could not be created.
+    */
+   public Account createAccount(final PropertyReader                   accountProperties,
+                                final Collection<AccountSnippet>       accountSnippets,
+                                final Collection<AccountStylesheetRef> accountStylesheets)
+   throws AccountCreationException {
+      String accountID = newAccountID();
+      return createAccount(accountID, accountProperties, accountSnippets, accountStylesheets);
+   }
+
+   public final Account createAccount(final PropertyReader             accountProperties,
+                                      final Collection<AccountSnippet> accountSnippets)
+   throws IllegalArgumentException,
+          AccountCreationException {
+      return createAccount(accountProperties, accountSnippets, (Collection<AccountStylesheetRef>) null);
+   }
+
+   /**
+    * Creates a new enabled account with the specified data and the specified
+    * account ID (wrapper method).
+    *
+    * <p>Note: disabled accounts cannot be created directly. For this, the
+    * <code>DisabledAccounts.xml</code> file must be modified manually.
+    *
+    * <p>This method delegates to
+    * {@link #createAccountImpl(String,PropertyReader)}.
+    *
+    * @param accountID
+    *    the unique account identifier, cannot be <code>null</code>
+    *    and must be valid
+    *    (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @param accountProperties
+    *    the properties for the account, or <code>null</code> if the default
+    *    account properties should be used
+    *    (see {@link #getDefaultAccountProperties()}).
+    *
+    * @param accountSnippets
+    *    the account snippets, or <code>null</code> if none are defined.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>
+    *    or if <code>accountID</code> is invalid
+    *    (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @throws AccountCreationException
+    *    if the account could not be created.
+    */
+   public final Account createAccount(final String                     accountID,
+                                      final PropertyReader             accountProperties,
+                                      final Collection<AccountSnippet> accountSnippets)
+   throws IllegalArgumentException,
+          AccountCreationException {
+      return createAccount(accountID, accountProperties, accountSnippets, (Collection<AccountStylesheetRef>) null);
+   }
+
+   /**
+    * Creates a new enabled account with the specified data and the specified
+    * account ID (wrapper method).
+    *
+    * <p>Note: disabled accounts cannot be created directly. For this, the
+    * <code>DisabledAccounts.xml</code> file must be modified manually.
+    *
+    * <p>This method delegates to
+    * {@link #createAccountImpl(String,PropertyReader)}.
+    *
+    * @param accountID
+    *    the unique account identifier, cannot be <code>null</code>
+    *    and must be valid
+    *    (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @param accountProperties
+    *    the properties for the account, or <code>null</code> if the default
+    *    account properties should be used
+    *    (see {@link #getDefaultAccountProperties()}).
+    *
+    * @param accountSnippets
+    *    the account snippets, or <code>null</code> if none are defined.
+    *
+    * @param accountStylesheets
+    *    the account stylesheets, or <code>null</code> if none are defined.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>
+    *    or if <code>accountID</code> is invalid
+    *    (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @throws AccountCreationException
+    *    if the account could not be created.
+    */
+   public final Account createAccount(final String                           accountID,
+                                      final PropertyReader                   accountProperties,
+                                      final Collection<AccountSnippet>       accountSnippets,
+                                      final Collection<AccountStylesheetRef> accountStylesheets)
+   throws IllegalArgumentException,
+          AccountCreationException {
+
+      // Check preconditions
+      assertValidAccountID(accountID);
+
+      // Use fallback default properties, when appropriate
+      PropertyReader accountPropsToUse = (accountProperties == null)
+                                       ? getDefaultAccountProperties()
+                                       : accountProperties;
+
+      String logPrefix = toString() + ", account \"" + accountID + "\": ";
+
+      // Log before account creation
+      Utils.logDebug(logPrefix + "About to create.");
+
+      // TODO: Make sure an account with the specified ID does not exist yet
+
+      // Delegate to the implementation method
+      Account account = null;
+      boolean  exists = false;
+      try {
+         account = createAccountImpl(accountID, accountPropsToUse, accountSnippets, accountStylesheets);
+
+      // Property missing or has an invalid value
+      } catch (PropertyException cause) {
+         Utils.logError(logPrefix + "Failed to create due to property-related error.", cause);
+         throw new AccountCreationException(this, accountID, accountPropsToUse, cause);
+
+      // Missing required snippet
+      } catch (MissingRequiredAccountSnippetException cause) {
+         Utils.logError(logPrefix + "Failed to create due to a missing account snippet.", cause);
+         throw new AccountCreationException(this, accountID, accountPropsToUse, cause);
+
+      // Account files exist already, they belong to another account
+      } catch (FileExistsException cause) {
+         exists = true;
+         Utils.logError(logPrefix + "Failed to create, account already exists.", cause);
+         throw new AccountCreationException(this, accountID, accountPropsToUse, cause);
+
+      // Content access exception
+      } catch (ContentAccessException cause) {
+         Utils.logError(logPrefix + "Failed to create due to data access-related error.", cause);
+         throw new AccountCreationException(this, accountID, accountPropsToUse, cause);
+
+      // If anything else failed, then delete all created files
+      } finally {
+         if (account == null && ! exists) {
+            Utils.logError(logPrefix + "Failed to create, removing account-related files.");
+            deleteAccountFiles(accountID);
+         }
+      }
+
+      Utils.logInfo(logPrefix + "Created.");
+
+      return account;
+   }
+
+   /**
+    * Creates multiple new enabled accounts, for example when importing
+    * accounts from another system. Each record is handled as by
+    * {@link #createAccount(AccountInfo)}, but the records are processed in
+    * batches of {@value #IMPORT_BATCH_SIZE}:
+    * <ol>
+    * <li>the records are validated and their keys are generated in
+    *     parallel;
+    * <li>the account data files of all records in the batch are written as
+    *     a single {@link WriteBatch};
+    * <li>the account objects are constructed and the account index
+    *     references are stored in parallel.
+    * </ol>
+    * At most {@value #MAX_IMPORT_CONCURRENCY} threads are used: the calling
+    * thread and threads of the {@link IOExecutor}. Only one batch of records
+    * is held in memory at a time.
+    *
+    * <p>A failure for one record does not stop the import; it is reported
+    * in the result. If the write batch fails, for example because some
+    * account already exists on disk, then the records in the batch are
+    * written one by one, so that only the conflicting records fail.
+    *
+    * @param accountInfos
+    *    the {@link AccountInfo} records, cannot be <code>null</code> and
+    *    should not contain <code>null</code> elements.
+    *
+    * @return
+    *    the {@link AccountImportResult}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountInfos == null</code>, or if it contains a
+    *    <code>null</code> element; in the latter case, the records before it
+    *    may have been created.
+    */
+   public AccountImportResult createAccounts(Iterable<AccountInfo> accountInfos)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("accountInfos", accountInfos);
+
+      long                                      start = System.currentTimeMillis();
+      List<String>                         accountIDs = new ArrayList<String>();
+      Map<Integer,AccountCreationException>  failures = new TreeMap<Integer,AccountCreationException>();
+      List<ImportRecord>                        batch = new ArrayList<ImportRecord>(IMPORT_BATCH_SIZE);
+
+      for (AccountInfo accountInfo : accountInfos) {
+         MandatoryArgumentChecker.check("accountInfo", accountInfo);
+         batch.add(new ImportRecord(accountIDs.size() + batch.size(), accountInfo));
+         if (batch.size() == IMPORT_BATCH_SIZE) {
+            importBatch(batch, accountIDs, failures);
+            batch.clear();
+         }
+      }
+      if (! batch.isEmpty()) {
+         importBatch(batch, accountIDs, failures);
+      }
+
+      AccountImportResult result = new AccountImportResult(accountIDs, failures);
+      long duration = System.currentTimeMillis() - start;
+      Utils.logInfo(toString() + ": Imported accounts in " + duration + " ms: " + result + '.');
+      return result;
+   }
+
+   /**
+    * Creates the accounts for a batch of import records. This method is
+    * called from {@link #createAccounts(Iterable)}.
+    *
+    * @param batch
+    *    the records, should not be <code>null</code>.
+    *
+    * @param accountIDs
+    *    the list to append the account ID of each record to, in order, or
+    *    <code>null</code> for a record that failed,
+    *    should not be <code>null</code>.
+    *
+    * @param failures
+    *    the map to store the failure of each failed record in,
+    *    should not be <code>null</code>.
+    */
+   private void importBatch(final List<ImportRecord>              batch,
+                            List<String>                          accountIDs,
+                            Map<Integer,AccountCreationException> failures) {
+
+      // Validate the records and generate keys, in parallel
+      runImportTasks(batch, new ImportTask() {
+         public void run(ImportRecord record) throws Exception {
+            prepareImportRecord(record);
+         }
+      });
+
+      // Write the account data files, as one batch
+      writeImportRecords(batch);
+
+      // Construct the accounts and store the index references, in parallel
+      runImportTasks(batch, new ImportTask() {
+         public void run(ImportRecord record) throws Exception {
+            Account account = newAccount(record._accountID, true, record._key);
+            persistComboRef(account);
+            persistIDRef(account);
+         }
+      });
+
+      // Clean up after failed records and report the result
+      for (ImportRecord record : batch) {
+         if (record._failure == null) {
+            accountIDs.add(record._accountID);
+         } else {
+            if (record._written) {
+               deleteAccountFiles(record._accountID);
+            }
+            accountIDs.add(null);
+            failures.put(record._number, record._failure);
+         }
+      }
+   }
+
+   /**
+    * Validates an import record and generates the key for the account.
+    *
+    * @param record
+    *    the record, should not be <code>null</code>.
+    *
+    * @throws Exception
+    *    if the record is invalid.
+    */
+   private void prepareImportRecord(ImportRecord record) throws Exception {
+      AccountInfo info = record._info;
+      String        id = info.getID();
+      if (id == null) {
+         id = newAccountID();
+      } else if (! isValidAccountID(id)) {
+         throw new TechnicalContentAccessException(toString() + ": Invalid account ID " + TextUtils.quote(id) + '.');
+      }
+      record._accountID = id;
+
+      PropertyReader properties = info.getProperties(Dialect.ORIGINAL);
+      record._properties = (properties == null) ? getDefaultAccountProperties() : properties;
+
+      if (getAccountIDRegistry().contains(id)) {
+         throw new TechnicalContentAccessException(toString() + ": Account " + TextUtils.quote(id) + " already exists.");
+      }
+
+      record._dataMap = newAccountDataMap(record._properties, info.getSnippets(), info.getStylesheets());
+      record._key     = newKey();
+   }
+
+   /**
+    * Writes the account data files for the prepared import records. All
+    * files are written as one {@link WriteBatch}; if that fails, the files
+    * are written per record, so the failure can be attributed.
+    *
+    * @param batch
+    *    the records, should not be <code>null</code>.
+    */
+   private void writeImportRecords(List<ImportRecord> batch) {
+
+      // Stage all records; duplicate account IDs within the import fail
+      WriteBatch         writeBatch = newWriteBatch();
+      List<ImportRecord>     staged = new ArrayList<ImportRecord>();
+      Set<String>         stagedIDs = new HashSet<String>();
+      for (ImportRecord record : batch) {
+         if (record._failure == null) {
+            if (! stagedIDs.add(record._accountID)) {
+               record.fail(this, new TechnicalContentAccessException(toString() + ": Account " + TextUtils.quote(record._accountID) + " occurs more than once in the import."));
+            } else {
+               stageImportRecord(writeBatch, record);
+               staged.add(record);
+            }
+         }
+      }
+
+      try {
+         writeBatch.commit();
+         markWritten(staged);
+         return;
+      } catch (ContentAccessException cause) {
+         Utils.logWarning(toString() + ": Failed to write batch of " + staged.size() + " accounts, writing them one by one.", cause);
+      }
+
+      // Fall back to writing each record separately
+      for (ImportRecord record : staged) {
+         WriteBatch single = newWriteBatch();
+         stageImportRecord(single, record);
+         try {
+            single.commit();
+            markWritten(Collections.singletonList(record));
+         } catch (ContentAccessException cause) {
+            record.fail(this, cause);
+         }
+      }
+   }
+
+   /**
+    * Adds the account data files of an import record to a write batch.
+    *
+    * @param writeBatch
+    *    the {@link WriteBatch}, should not be <code>null</code>.
+    *
+    * @param record
+    *    the record, should not be <code>null</code>.
+    */
+   private void stageImportRecord(WriteBatch writeBatch, ImportRecord record) {
+      String path = getAccountDataPath(record._accountID);
+      for (DatabaseType dbType : DatabaseType.values()) {
+         AccountData data = record._dataMap.get(dbType);
+         if (data.containsValidValue()) {
+            writeBatch.createFile(dbType, path, newAccountDataSource(data), record._key);
+         }
+      }
+   }
+
+   /**
+    * Marks import records as written and registers their account IDs.
+    *
+    * @param records
+    *    the records, should not be <code>null</code>.
+    */
+   private void markWritten(List<ImportRecord> records) {
+      for (ImportRecord record : records) {
+         record._written = true;
+         registerAccountID(record._accountID);
+         for (DatabaseType dbType : DatabaseType.values()) {
+            updatePropertyIndexes(record._accountID, dbType, record._dataMap.get(dbType));
+         }
+      }
+   }
+
+   /**
+    * Executes a task for each import record that has not failed, in
+    * parallel. A task that throws an exception marks the record as failed.
+    *
+    * @param batch
+    *    the records, should not be <code>null</code>.
+    *
+    * @param task
+    *    the task, should not be <code>null</code>.
+    */
+   private void runImportTasks(final List<ImportRecord> batch, final ImportTask task) {
+      final AtomicInteger next = new AtomicInteger();
+      Runnable worker = new Runnable() {
+         public void run() {
+            for (int i = next.getAndIncrement(); i < batch.size(); i = next.getAndIncrement()) {
+               ImportRecord record = batch.get(i);
+               if (record._failure == null) {
+                  try {
+                     task.run(record);
+                  } catch (Exception cause) {
+                     record.fail(Realm.this, cause);
+                  }
+               }
+            }
+         }
+      };
+      IOExecutor.runWorkers(worker, Math.max(1, Math.min(MAX_IMPORT_CONCURRENCY, batch.size())));
+   }
+
+   /**
+    * Creates a new enabled account with the specified data and the specified
+    * account ID (implementation method).
+    *
+    * <p>This method is and should only be called from
+    * {@link #createAccount(String,PropertyReader)}.
+    *
+    * <p>While creating the account, this method delegates:
+    * <ol>
+    * <li>the creation of the {@link Account} object to
+    *     {@link #newAccount(String,boolean,Key)};
+    * <li>the persistence of the actual account data to a
+    *     {@link WriteBatch}, see {@link #newWriteBatch()}.
+    * </ol>
+    *
+    * @param accountID
+    *    the unique account identifier, cannot be <code>null</code>.
+    *
+    * @param accountProperties
+    *    the properties for the account, cannot be <code>null</code> if the default
+    *    account properties should be used
+    *    (see {@link #getDefaultAccountProperties()}).
+    *
+    * @param accountSnippets
+    *    the account snippets, or <code>null</code> if none are defined.
+    *
+    * @param accountStylesheets
+    *    the account stylesheet, or <code>null</code> if none are defined.
+    *
+    * @throws PropertyException
+    *    if a mandatory property is missing,
+    *    or if a found property has an invalid value.
+    *
+    * @throws MissingRequiredAccountSnippetException
+    *    if a mandatory account snippet is unset.
+    *
+    * @throws ContentAccessException
+    *    in case of a content access error.
+    */
+   protected final Account createAccountImpl(final String                           accountID,
+                                             final PropertyReader                   accountProperties,
+                                             final Collection<AccountSnippet>       accountSnippets,
+                                             final Collection<AccountStylesheetRef> accountStylesheets)
+   throws PropertyException,
+          MissingRequiredAccountSnippetException,
+          ContentAccessException {
+
+      // Initialize all AccountData instances - note that this may fail due to
+      // a missing property or an invalid property value
+      Map<DatabaseType,AccountData> dataMap = newAccountDataMap(accountProperties, accountSnippets, accountStylesheets);
+
+      // Create a new Key, or null (depends on the type of Realm)
+      Key key = newKey();
+
+      // Write all AccountData.xml files that have at least one property, as
+      // a single batch, so they are forced to disk together
+      String       path = getAccountDataPath(accountID);
+      WriteBatch  batch = newWriteBatch();
+      for (DatabaseType dbType : DatabaseType.values()) {
+         AccountData data = dataMap.get(dbType);
+         if (data.containsValidValue()) {
+            batch.createFile(dbType, path, newAccountDataSource(data), key);
+         }
+      }
+      batch.commit();
+      registerAccountID(accountID);
+      for (DatabaseType dbType : DatabaseType.values()) {
+         updatePropertyIndexes(accountID, dbType, dataMap.get(dbType));
+      }
+
+      // Construct an enabled Account object
+      Account account = newAccount(accountID, true, key);
+
+      // Store the "combo" reference (if any)
+      persistComboRef(account);
+
+      // Store the "id" reference (if any)
+      persistIDRef(account);
+
+      return account;
+   }
+
+   /**
+    * Creates a new encryption <code>Key</code>, or none, depending on the
+    * type of realm.
+    *
+    * <p>This method is and should only be called from
+    * {@link #createAccountImpl(String,PropertyReader)}.
+    *
+    * @return
+    *    a new encryption {@link Key}, or <code>null</code>.
+    */
+   protected abstract Key newKey();
+
+   /**
+    * Persists the specified account data.
+    *
+    * <p>If the account data file exists and only some property values
+    * changed, then only the changed values are written, through
+    * {@link #persistAccountDataDelta(String,DatabaseType,AccountData,Map,FileStoreMode,Key)};
+    * if nothing changed, then nothing is written. Otherwise the complete
+    * account data file is written.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code> and must be a valid
+    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @param dbType
+    *    the {@link DatabaseType}, cannot be <code>null</code>.
+    *
+    * @param data
+    *    the data to be persisted, cannot be <code>null</code>.
+    *
+    * @param fileStoreMode
+    *    the {@link FileStoreMode} to use, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use, or <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    in case of a content access error.
+    */
+   final void persistAccountData(String        accountID,
+                                 DatabaseType  dbType,
+                                 AccountData   data,
+                                 FileStoreMode fileStoreMode,
+                                 Key           key)
+   throws ContentAccessException {
+
+      String path = getAccountDataPath(accountID);
+      _accountCache.invalidate(accountID);
+
+      // Hold the journal lock, so a compaction does not overwrite this
+      synchronized (_accountDataJournal.getLock(accountID)) {
+
+         // If only some property values changed, then write them to the
+         // journal instead of rewriting the file
+         if (data.containsValidValue()) {
+            Map<String,String> changes;
+            try {
+               changes = _accountDataJournal.diff(accountID, dbType, path, data.toXML(), key);
+            } catch (ContentAccessException cause) {
+               Utils.logIgnoredException(cause);
+               changes = null;
+            }
+            if (changes != null) {
+               if (! changes.isEmpty()) {
+                  persistAccountDataDelta(accountID, dbType, data, changes, fileStoreMode, key);
+               }
+               return;
+            }
+         }
+
+         // If there are no property values, then just delete the file
+         if (! data.containsValidValue()) {
+            // TODO: Do something with FileStoreMode
+            deleteFileIfExists(dbType, path, (key != null));
+
+         // If there are property values, then store the file, forcing it to
+         // disk since it may hold credentials
+         } else {
+            storeFile(dbType, path, newAccountDataSource(data), fileStoreMode, key, Durability.SYNC);
+         }
+
+         // The file now contains all changes from the journal
+         _accountDataJournal.discard(accountID, dbType, key != null);
+
+         // Update the indexes while holding the lock, so they are updated in
+         // the same order as the data
+         updatePropertyIndexes(accountID, dbType, data);
+      }
+
+      // Invalidate again, so an account loaded while storing is not cached
+      _accountCache.invalidate(accountID);
+   }
+
+   /**
+    * Persists a change to some of the properties of the specified account
+    * data. Instead of rewriting the complete account data file, only the
+    * changed properties are written, to the journal of the account. The
+    * journal is compacted into the account data file in the background, see
+    * {@link AccountDataJournal}.
+    *
+    * <p>If the account data contains no property values at all, then this
+    * method falls back to
+    * {@link #persistAccountData(String,DatabaseType,AccountData,FileStoreMode,Key)}.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code> and must be a valid
+    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @param dbType
+    *    the {@link DatabaseType}, cannot be <code>null</code>.
+    *
+    * @param data
+    *    the complete data after the change, cannot be <code>null</code>.
+    *
+    * @param changes
+    *    the changed properties, by name; a <code>null</code> value indicates
+    *    a property that was removed; cannot be <code>null</code>.
+    *
+    * @param fileStoreMode
+    *    the {@link FileStoreMode} to use for the account data file,
+    *    cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use, or <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    in case of a content access error.
+    */
+   final void persistAccountDataDelta(String             accountID,
+                                      DatabaseType       dbType,
+                                      AccountData        data,
+                                      Map<String,String> changes,
+                                      FileStoreMode      fileStoreMode,
+                                      Key                key)
+   throws ContentAccessException {
+
+      if (! data.containsValidValue()) {
+         persistAccountData(accountID, dbType, data, fileStoreMode, key);
+         return;
+      }
+
+      _accountCache.invalidate(accountID);
+      synchronized (_accountDataJournal.getLock(accountID)) {
+         _accountDataJournal.append(accountID, dbType, getAccountDataPath(accountID), newAccountDataSource(data), changes, fileStoreMode, key);
+         for (Map.Entry<String,String> change : changes.entrySet()) {
+            AccountPropertyIndex index = _propertyIndexes.get(change.getKey());
+            if (index != null) {
+               index.update(accountID, change.getValue());
+            }
+         }
+      }
+
+      // Invalidate again, so an account loaded while writing is not cached
+      _accountCache.invalidate(accountID);
+   }
+
+   /**
+    * Compacts the journals of all accounts into their account data files
+    * right away, for example before shutdown. Failures are logged.
+    */
+   public void compactAccountDataJournals() {
+      _accountDataJournal.compactAll();
+   }
+
+   /**
+    * Determines the path of the account data file for the specified account.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code>.
+    *
+    * @return
+    *    the path, relative to this realm, never <code>null</code>.
+    */
+   private static String getAccountDataPath(String accountID) {
+      return "accounts/" + accountID + '/' + ACCOUNT_DATA_FILE_NAME;
+   }
+
+   /**
+    * Creates a <code>DataSource</code> with the contents of an account data
+    * file.
+    *
+    * @param data
+    *    the account data, cannot be <code>null</code>.
+    *
+    * @return
+    *    the {@link ByteArrayDataSource}, never <code>null</code>.
+    */
+   private static ByteArrayDataSource newAccountDataSource(AccountData data) {
+      return ByteArrayDataSource.fromString(ACCOUNT_DATA_FILE_NAME, data.toXML().toString(), "text/xml");
+   }
+
+   // TODO: Document
+   protected void persistComboRef(Account account)
+   throws IllegalArgumentException, ContentAccessException {
+      AccountIndex index = getAccountIndex("combo");
+      if (index != null) {
+         storeAccountRef(index, account);
+      }
+   }
+
+   // TODO: Document
+   protected void persistIDRef(Account account)
+   throws IllegalArgumentException, ContentAccessException {
+      AccountIndex index = getAccountIndex("id");
+      if (index != null) {
+         storeAccountRef(index, account);
+      }
+   }
+
+   /**
+    * Stores the reference to an account in an account index and reports it
+    * to the in-memory table and back-references of the index, if it has
+    * them (see {@link #isTrackedIndex(String)}), so that they stay in sync
+    * with the index. If reporting fails, the table is discarded, so that it
+    * is rebuilt from the index on next use.
+    *
+    * @param index
+    *    the {@link AccountIndex}, should not be <code>null</code>.
+    *
+    * @param account
+    *    the {@link Account}, should not be <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the reference could not be stored.
+    */
+   private void storeAccountRef(AccountIndex index, Account account)
+   throws ContentAccessException {
+      index.storeRef(account);
+
+      AccountRefTable table = _refTables.get(index);
+      if (table == null) {
+         return;
+      }
+      boolean reported = false;
+      try {
+         for (Map.Entry<String,String> entry : findNewAccountRefs(index, table, account.getID()).entrySet()) {
+            accountRefStored(index, entry.getKey(), entry.getValue());
+         }
+         reported = true;
+      } catch (ContentAccessException cause) {
+         Utils.logError(index.toString() + ": Failed to find the reference stored for account " + TextUtils.quote(account.getID()) + ". Discarding the in-memory table.", cause);
+      } finally {
+         if (! reported) {
+            discardAccountRefTable(index);
+         }
+      }
+   }
+
+   /**
+    * Determines the references that {@link AccountIndex#storeRef(Account)}
+    * stored, since the index does not report them. In the
+    * <code>"id"</code> index the reference is the account ID itself. The
+    * <code>"combo"</code> reference is computed by the index from the combo
+    * settings of the account, which this realm cannot repeat, so it is
+    * found as a reference in the index that the in-memory table does not
+    * know yet. That requires listing the references in the index, but only
+    * the unknown ones are looked up.
+    *
+    * @param index
+    *    the {@link AccountIndex}, should not be <code>null</code>.
+    *
+    * @param table
+    *    the in-memory table of the index, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the ID of the account a reference was stored for,
+    *    should not be <code>null</code>.
+    *
+    * @return
+    *    the new references, mapped to the IDs of the accounts they point
+    *    to, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the index could not be read.
+    */
+   private static Map<String,String> findNewAccountRefs(AccountIndex index, AccountRefTable table, String accountID)
+   throws ContentAccessException {
+      Map<String,String> found = new HashMap<String,String>();
+      if ("id".equals(index.getName())) {
+         found.put(accountID, accountID);
+      } else {
+         for (String ref : table.getUnknownRefs(index.getRefs())) {
+            String refAccountID = index.lookupAccountID(ref);
+            if (refAccountID != null) {
+               found.put(ref, refAccountID);
+            }
+         }
+      }
+      return found;
+   }
+
+   /**
+    * Discards the in-memory table and the back-references of an account
+    * index, after references were stored without being reported. Both are
+    * rebuilt from the index on next use.
+    *
+    * @param index
+    *    the {@link AccountIndex}, should not be <code>null</code>.
+    */
+   private void discardAccountRefTable(AccountIndex index) {
+      AccountRefTable table = _refTables.get(index);
+      if (table != null) {
+         table.discard();
+         _backReferences.get(index).reset();
+      }
+   }
+
+   /**
+    * Constructs an appropriate <code>Account</code> instance.
+    *
+    * <p>This method is called from
+    * {@link #createAccountImpl(String,PropertyReader)},
+    * {@link #createAccounts(Iterable)} and, for an account that
+    * {@link #getAccountImpl(String,Key)} has loaded before with the same
+    * key, from {@link #getAccount(String,Key)}. It should not do more than
+    * construct the object.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code> and must be a valid
+    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @param enabled
+    *    flag that indicates if the new {@link Account} object should
+    *    consider itself enabled.
+    *
+    * @param key
+    *    the encryption {@link Key} to use, or <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    in case of a content retrieval error.
+    */
+   protected abstract Account newAccount(String accountID, boolean enabled, Key key)
+   throws ContentAccessException;
+
+   /**
+    * Deletes all files associated with the specified account, and all
+    * references to it. This is the same as calling
+    * {@link #deleteAccounts(Collection)} for the single account; failures
+    * are logged and otherwise ignored.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code> and must be a valid
+    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>
+    *    or if <code>accountID</code> is invalid
+    *    (see {@link Assertions#assertValidAccountID(String)}).
+    */
+   public void deleteAccountFiles(String accountID) throws IllegalArgumentException {
+      Assertions.assertValidAccountID(accountID);
+      deleteAccounts(Collections.singleton(accountID));
+   }
+
+   /**
+    * Deletes multiple accounts at once: all their files and all references
+    * to them. The work is split into tasks, each covering one database or
+    * one account index for a batch of {@value #DELETE_BATCH_SIZE} accounts,
+    * and the tasks are executed in parallel by at most
+    * {@value #MAX_DELETE_CONCURRENCY} threads: the calling thread and
+    * threads of the {@link IOExecutor}.
+    *
+    * <p>A failure for one account does not stop the deletion of the other
+    * accounts, nor the remaining steps for the same account. Accounts that
+    * have no directory in any database are reported as not found; any
+    * references to them are still removed.
+    *
+    * @param accountIDs
+    *    the IDs of the accounts to delete, cannot be <code>null</code> and
+    *    all account IDs must be valid
+    *    (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @return
+    *    the {@link AccountDeletionResult}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountIDs == null</code>
+    *    or if any of the account IDs is <code>null</code> or invalid.
+    */
+   public AccountDeletionResult deleteAccounts(Collection<String> accountIDs)
+   throws IllegalArgumentException {
+
+      // Check preconditions, before any I/O
+      MandatoryArgumentChecker.check("accountIDs", accountIDs);
+      Set<String> ids = new LinkedHashSet<String>();
+      for (String accountID : accountIDs) {
+         Assertions.assertValidAccountID(accountID);
+         ids.add(accountID);
+      }
+
+      // Make sure no journal compaction recreates account data files
+      for (String accountID : ids) {
+         _accountDataJournal.forget(accountID);
+      }
+
+      long                                         start = System.currentTimeMillis();
+      final ConcurrentHashMap<String,Exception> failures = new ConcurrentHashMap<String,Exception>();
+      final ConcurrentHashMap<String,Boolean>      found = new ConcurrentHashMap<String,Boolean>();
+      final Queue<Runnable>                        tasks = new ConcurrentLinkedQueue<Runnable>();
+      List<String>                                idList = new ArrayList<String>(ids);
+
+      // Create one task per batch of accounts, per database and per index
+      for (int from = 0; from < idList.size(); from += DELETE_BATCH_SIZE) {
+         final List<String> batch = idList.subList(from, Math.min(from + DELETE_BATCH_SIZE, idList.size()));
+         for (final DatabaseType dbType : DatabaseType.values()) {
+            tasks.add(new Runnable() {
+               public void run() {
+                  deleteAccountDirectories(dbType, batch, found, failures);
+               }
+            });
+         }
+         for (final AccountIndex index : getAccountIndexes()) {
+            tasks.add(new Runnable() {
+               public void run() {
+                  removeAccountReferences(index, batch, failures);
+               }
+            });
+         }
+      }
+
+      // Each worker executes tasks until the queue is empty
+      Runnable worker = new Runnable() {
+         public void run() {
+            for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+               task.run();
+            }
+         }
+      };
+      IOExecutor.runWorkers(worker, Math.max(1, Math.min(MAX_DELETE_CONCURRENCY, tasks.size())));
+
+      // Compose the result, in request order
+      Set<String>                  deleted = new LinkedHashSet<String>();
+      Set<String>                 notFound = new LinkedHashSet<String>();
+      Map<String,Exception> orderedFailures = new LinkedHashMap<String,Exception>();
+      for (String accountID : ids) {
+         Exception failure = failures.get(accountID);
+         if (failure != null) {
+            orderedFailures.put(accountID, failure);
+         } else {
+            if (found.containsKey(accountID)) {
+               deleted.add(accountID);
+            } else {
+               notFound.add(accountID);
+            }
+            unregisterAccountID(accountID);
+            removeFromPropertyIndexes(accountID);
+         }
+         _accountCache.invalidate(accountID);
+      }
+
+      AccountDeletionResult result = new AccountDeletionResult(deleted, notFound, orderedFailures);
+      long duration = System.currentTimeMillis() - start;
+      Utils.logInfo(toString() + ": Deleted accounts in " + duration + " ms: " + result + '.');
+      return result;
+   }
+
+   /**
+    * Deletes the directories of a batch of accounts in one database. This
+    * method is called from {@link #deleteAccounts(Collection)}.
+    *
+    * @param dbType
+    *    the type of database, should not be <code>null</code>.
+    *
+    * @param accountIDs
+    *    the account IDs, should not be <code>null</code>.
+    *
+    * @param found
+    *    the map to record the accounts that have a directory in,
+    *    should not be <code>null</code>.
+    *
+    * @param failures
+    *    the map to record the first failure per account in,
+    *    should not be <code>null</code>.
+    */
+   private void deleteAccountDirectories(DatabaseType                        dbType,
+                                         List<String>                        accountIDs,
+                                         ConcurrentHashMap<String,Boolean>   found,
+                                         ConcurrentHashMap<String,Exception> failures) {
+      Database db = getDataHub().getDatabase(dbType);
+      for (String accountID : accountIDs) {
+         try {
+            db.emptyDirectory(translatePath("accounts/" + accountID));
+            found.put(accountID, Boolean.TRUE);
+         } catch (NoSuchFileException cause) {
+            // ignore, the account does not exist in this database
+         } catch (Exception cause) {
+            Utils.logError(toString() + ": Failed to delete directory of account " + TextUtils.quote(accountID) + " in " + dbType + " database.", cause);
+            failures.putIfAbsent(accountID, cause);
+         }
+      }
+   }
+
+   /**
+    * Removes all references to a batch of accounts from one account index.
+    * The back-references of the index are used to find the references, see
+    * {@link #getAccountReferences(AccountIndex,String)}. A reference that
+    * cannot be removed does not stop the removal of the others. This method
+    * is called from {@link #deleteAccounts(Collection)}.
+    *
+    * @param index
+    *    the {@link AccountIndex}, should not be <code>null</code>.
+    *
+    * @param accountIDs
+    *    the account IDs, should not be <code>null</code>.
+    *
+    * @param failures
+    *    the map to record the first failure per account in,
+    *    should not be <code>null</code>.
+    */
+   private void removeAccountReferences(AccountIndex                        index,
+                                        List<String>                        accountIDs,
+                                        ConcurrentHashMap<String,Exception> failures) {
+      for (String accountID : accountIDs) {
+         Collection<String> refs;
+         try {
+            refs = getAccountReferences(index, accountID);
+         } catch (Exception cause) {
+            Utils.logError(index.toString() + ": Failed to find references to account " + TextUtils.quote(accountID) + '.', cause);
+            failures.putIfAbsent(accountID, cause);
+            continue;
+         }
+         for (String ref : refs) {
+            try {
+               index.removeRef(ref);
+               accountRefRemoved(index, ref, accountID);
+            } catch (Exception cause) {
+               Utils.logError(index.toString() + ": Failed to remove reference " + TextUtils.quote(ref) + " to account " + TextUtils.quote(accountID) + '.', cause);
+               failures.putIfAbsent(accountID, cause);
+            }
+         }
+      }
+   }
+
+   /**
+    * Retrieves all references to the specified account in the specified index.
+    *
+    * @param index
+    *    the {@link AccountIndex}, cannot be <code>null</code> and must be in
+    *    the same realm.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code> and must be a valid
+    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    *
+    * @return
+    *    a {@link Collection} of all references to the account in the
+    *    specified account index; never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>index == null
+    *          || ! equals(index.{@linkplain AccountIndex#getRealm() getRealm()}</code>
+    *    or if the specified account ID is invalid.
+    *
+    * @throws ContentAccessException
+    *    if there was an error while accessing the database(s).
+    */
+   Collection<String> getAccountReferences(AccountIndex index, String accountID)
+   throws IllegalArgumentException, ContentAccessException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("index", index, "accountID", accountID);
+      Assertions.assertValidAccountID(accountID);
+      if (! equals(index.getRealm())) {
+         throw new IllegalArgumentException(toString() + ": index is an AccountIndex in a different realm (" + index + ").");
+      }
+
+      // Indexes that are also changed elsewhere are scanned
+      AccountBackReferences backReferences = _backReferences.get(index);
+      if (backReferences == null) {
+         return scanAccountReferences(index, accountID);
+      }
+
+      // Get the candidate references from the back-references and verify
+      // them against the in-memory table of the index, dropping stale ones
+      AccountRefTable    table = _refTables.get(index);
+      Collection<String> found = new ArrayList<String>();
+      for (String ref : backReferences.getRefs(accountID)) {
+         if (table.refersTo(ref, accountID)) {
+            found.add(ref);
+         } else {
+            backReferences.refRemoved(ref, accountID);
+         }
+      }
+
+      return found;
+   }
+
+   /**
+    * Retrieves all references to the specified account by scanning the
+    * whole account index.
+    *
+    * @param index
+    *    the {@link AccountIndex}, should not be <code>null</code>.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    a new {@link Collection} of references, never <code>null</code>.
+    *
+    * @throws ContentAccessException
+    *    if the index could not be read.
+    */
+   private static Collection<String> scanAccountReferences(AccountIndex index, String accountID)
+   throws ContentAccessException {
+      Collection<String> refs = new ArrayList<String>();
+      for (String ref : index.getRefs()) {
+         if (accountID.equals(index.lookupAccountID(ref))) {
+            refs.add(ref);
+         }
+      }
+      return refs;
+   }
+
+   /**
+    * Callback method that is called when a reference to an account has been
+    * stored in an account index of this realm. This keeps the
+    * back-references used by
+    * {@link #getAccountReferences(AccountIndex,String)} up to date.
+    *
+    * @param index
+    *    the {@link AccountIndex}, cannot be <code>null</code>.
+    *
+    * @param ref
+    *    the reference, cannot be <code>null</code>.
+    *
+    * @param accountID
+    *    the ID of the account the reference points to,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>index == null || ref == null || accountID == null</code>,
+    *    or if <code>index</code> is not an account index of this realm.
+    */
+   void accountRefStored(AccountIndex index, String ref, String accountID)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("ref", ref, "accountID", accountID);
+      AccountBackReferences backReferences = getBackReferences(index);
+      if (backReferences != null) {
+         backReferences.refStored(ref, accountID);
+         _refTables.get(index).refStored(ref, accountID);
+      }
+   }
+
+   /**
+    * Callback method that is called when a reference to an account has been
+    * removed from an account index of this realm. This keeps the
+    * back-references used by
+    * {@link #getAccountReferences(AccountIndex,String)} up to date.
+    *
+    * @param index
+    *    the {@link AccountIndex}, cannot be <code>null</code>.
+    *
+    * @param ref
+    *    the reference, cannot be <code>null</code>.
+    *
+    * @param accountID
+    *    the ID of the account the reference pointed to,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>index == null || ref == null || accountID == null</code>,
+    *    or if <code>index</code> is not an account index of this realm.
+    */
+   void accountRefRemoved(AccountIndex index, String ref, String accountID)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("ref", ref, "accountID", accountID);
+      AccountBackReferences backReferences = getBackReferences(index);
+      if (backReferences != null) {
+         backReferences.refRemoved(ref, accountID);
+         _refTables.get(index).refRemoved(ref);
+      }
+   }
+
+   /**
+    * Looks up the account a reference points to in the specified account
+    * index. For the indexes that have an in-memory table (see
+    * {@link #isTrackedIndex(String)}) this does not access the file system;
+    * other indexes are read through
+    * {@link AccountIndex#lookupAccountID(String)}.
+    *
+    * @param index
+    *    the {@link AccountIndex}, cannot be <code>null</code>.
+    *
+    * @param ref
+    *    the reference, cannot be <code>null</code>.
+    *
+    * @return
+    *    the account ID, or <code>null</code> if the reference is not in the
+    *    index.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>index == null || ref == null</code>,
+    *    or if <code>index</code> is not an account index of this realm.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be loaded or the index had to be read, and that
+    *    failed.
+    */
+   public String lookupAccountID(AccountIndex index, String ref)
+   throws IllegalArgumentException, ContentAccessException {
+      MandatoryArgumentChecker.check("index", index, "ref", ref);
+      if (! equals(index.getRealm())) {
+         throw new IllegalArgumentException(toString() + ": index is not an AccountIndex in this realm (" + index + ").");
+      }
+      AccountRefTable table = _refTables.get(index);
+      return (table == null) ? index.lookupAccountID(ref) : table.lookupAccountID(ref);
+   }
+
+   /**
+    * Returns all references in the specified account index. For the
+    * indexes that have an in-memory table (see
+    * {@link #isTrackedIndex(String)}) this does not access the file system;
+    * other indexes are read through {@link AccountIndex#getRefs()}.
+    *
+    * @param index
+    *    the {@link AccountIndex}, cannot be <code>null</code>.
+    *
+    * @return
+    *    a {@link Collection} of references, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>index == null</code>
+    *    or if <code>index</code> is not an account index of this realm.
+    *
+    * @throws ContentAccessException
+    *    if the table had to be loaded or the index had to be read, and that
+    *    failed.
+    */
+   public Collection<String> getAccountRefs(AccountIndex index)
+   throws IllegalArgumentException, ContentAccessException {
+      MandatoryArgumentChecker.check("index", index);
+      if (! equals(index.getRealm())) {
+         throw new IllegalArgumentException(toString() + ": index is not an AccountIndex in this realm (" + index + ").");
+      }
+      AccountRefTable table = _refTables.get(index);
+      return (table == null) ? index.getRefs() : table.getRefs();
+   }
 
-      return account;
+   /**
+    * Closes the in-memory tables of all account indexes, so that they can be
+    * recovered quickly after a restart. This is also done by a shutdown
+    * hook. The tables remain usable.
+    */
+   public void closeAccountIndexTables() {
+      for (AccountRefTable table : _refTables.values()) {
+         table.close();
+      }
    }
 
    /**
-    * Creates a new encryption <code>Key</code>, or none, depending on the
-    * type of realm.
+    * Verifies an account index against the accounts in this realm, without
+    * changing anything. Reports orphaned references, which point to
+    * accounts that do not exist, and, for the <code>"combo"</code> and
+    * <code>"id"</code> indexes, accounts without a reference. The index is
+    * read in parallel, by at most {@value #MAX_INDEX_CHECK_CONCURRENCY}
+    * threads.
     *
-    * <p>This method is and should only be called from
-    * {@link #createAccountImpl(String,PropertyReader)}.
+    * @param indexName
+    *    the name of the {@link AccountIndex}, cannot be <code>null</code>.
     *
     * @return
-    *    a new encryption {@link Key}, or <code>null</code>.
+    *    the {@link AccountIndexReport}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>indexName == null</code> or if it is not a valid account
+    *    index name.
+    *
+    * @throws ContentAccessException
+    *    if the index does not exist, or if the references or the account
+    *    IDs could not be read.
     */
-   protected abstract Key newKey();
+   public AccountIndexReport verifyAccountIndex(String indexName)
+   throws IllegalArgumentException, ContentAccessException {
+      return checkAccountIndex(getRequiredAccountIndex(indexName), indexName, false);
+   }
 
    /**
-    * Persists the specified account data.
+    * Rebuilds an account index from the accounts in this realm: verifies
+    * it, like {@link #verifyAccountIndex(String)} does, then removes the
+    * orphaned references and stores the missing references, in parallel.
+    * Finally, if the index has an in-memory table (see
+    * {@link AccountRefTable}), it is replaced in one step and the
+    * back-references of the index are discarded.
+    *
+    * <p>The realm remains online while the index is rebuilt; references
+    * that are stored or removed in the meantime are preserved. Missing
+    * references are stored by loading the account with the default key
+    * (see {@link #getDefaultKey()}); for accounts that cannot be loaded that
+    * way, a failure is reported.
     *
-    * @param accountID
-    *    the account ID, cannot be <code>null</code> and must be a valid
-    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    * @param indexName
+    *    the name of the {@link AccountIndex}, cannot be <code>null</code>.
     *
-    * @param dbType
-    *    the {@link DatabaseType}, cannot be <code>null</code>.
+    * @return
+    *    the {@link AccountIndexReport}, describing the state before the
+    *    rebuild, never <code>null</code>.
     *
-    * @param data
-    *    the data to be persisted, cannot be <code>null</code>.
+    * @throws IllegalArgumentException
+    *    if <code>indexName == null</code> or if it is not a valid account
+    *    index name.
     *
-    * @param fileStoreMode
-    *    the {@link FileStoreMode} to use, cannot be <code>null</code>.
+    * @throws ContentAccessException
+    *    if the index does not exist, or if the references or the account
+    *    IDs could not be read.
+    */
+   public AccountIndexReport rebuildAccountIndex(String indexName)
+   throws IllegalArgumentException, ContentAccessException {
+      return checkAccountIndex(getRequiredAccountIndex(indexName), indexName, true);
+   }
+
+   /**
+    * Verifies and optionally repairs an account index. This method is
+    * called from {@link #verifyAccountIndex(String)} and
+    * {@link #rebuildAccountIndex(String)}.
     *
-    * @param key
-    *    the encryption {@link Key} to use, or <code>null</code>.
+    * @param index
+    *    the {@link AccountIndex}, should not be <code>null</code>.
+    *
+    * @param indexName
+    *    the name of the index, should not be <code>null</code>.
+    *
+    * @param repair
+    *    whether to repair the index.
+    *
+    * @return
+    *    the {@link AccountIndexReport}, never <code>null</code>.
     *
     * @throws ContentAccessException
-    *    in case of a content access error.
+    *    if the references or the account IDs could not be read.
     */
-   final void persistAccountData(String        accountID,
-                                 DatabaseType  dbType,
-                                 AccountData   data,
-                                 FileStoreMode fileStoreMode,
-                                 Key           key)
+   private AccountIndexReport checkAccountIndex(final AccountIndex index, String indexName, boolean repair)
    throws ContentAccessException {
 
-      String fileName = "AccountData.xml";
-      String     path = "accounts/" + accountID + '/' + fileName;
+      long                                            start = System.currentTimeMillis();
+      final ConcurrentHashMap<String,Exception> refFailures = new ConcurrentHashMap<String,Exception>();
+      ConcurrentHashMap<String,Exception>   accountFailures = new ConcurrentHashMap<String,Exception>();
+      AccountRefTable                                 table = _refTables.get(index);
 
-      // If there are no property values, then just delete the file
-      if (! data.containsValidValue()) {
-         // TODO: Do something with FileStoreMode
-         try {
-            deleteFile(dbType, path, (key != null));
-         } catch (NoSuchFileException cause) {
-            // ignore
+      // Record concurrent changes, so the rebuilt table does not lose them
+      if (repair && table != null) {
+         table.beginReplace();
+      }
+      boolean replaced = false;
+      try {
+
+         // Make sure the account IDs are current
+         AccountIDRegistry registry = getAccountIDRegistry();
+         registry.reconcile();
+
+         // Look up the account for each reference, in parallel
+         List<String>                                refs = new ArrayList<String>(index.getRefs());
+         final ConcurrentHashMap<String,String> accountIDs = new ConcurrentHashMap<String,String>();
+         runIndexCheckTasks(refs, refFailures, new IndexCheckTask() {
+            public void run(String ref) throws Exception {
+               String accountID = index.lookupAccountID(ref);
+               if (accountID != null) {
+                  accountIDs.put(ref, accountID);
+               }
+            }
+         });
+
+         // Determine the orphaned references
+         final Map<String,String> orphanedRefs = new TreeMap<String,String>();
+         Set<String>               referenced = new HashSet<String>();
+         for (String ref : refs) {
+            String accountID = accountIDs.get(ref);
+            if (refFailures.containsKey(ref)) {
+               continue;
+            } else if (accountID == null || ! Assertions.isValidAccountID(accountID) || ! registry.contains(accountID)) {
+               orphanedRefs.put(ref, accountID);
+               accountIDs.remove(ref);
+            } else {
+               referenced.add(accountID);
+            }
          }
 
-      // If there are property values, then store the file
-      } else {
+         // Determine the accounts without a reference, for the indexes that
+         // hold a reference for every account
+         Set<String> missingRefs = new TreeSet<String>();
+         if ("combo".equals(indexName) || "id".equals(indexName)) {
+            for (String accountID : registry.getAccountIDs()) {
+               if (! referenced.contains(accountID)) {
+                  missingRefs.add(accountID);
+               }
+            }
+         }
 
-         // Create a DataSource with the file contents
-         ByteArrayDataSource ds = ByteArrayDataSource.fromString(fileName, data.toXML().toString(), "text/xml");
+         // Repair: remove orphaned references, store missing ones
+         if (repair) {
+            runIndexCheckTasks(new ArrayList<String>(orphanedRefs.keySet()), refFailures, new IndexCheckTask() {
+               public void run(String ref) throws Exception {
+                  index.removeRef(ref);
+                  String accountID = orphanedRefs.get(ref);
+                  if (accountID != null) {
+                     accountRefRemoved(index, ref, accountID);
+                  }
+               }
+            });
+            final ConcurrentHashMap<String,Boolean> stored = new ConcurrentHashMap<String,Boolean>();
+            runIndexCheckTasks(new ArrayList<String>(missingRefs), accountFailures, new IndexCheckTask() {
+               public void run(String accountID) throws Exception {
+                  index.storeRef(getAccount(accountID, getDefaultKey()));
+                  stored.put(accountID, Boolean.TRUE);
+               }
+            });
 
-         // Store the file
-         storeFile(dbType, path, ds, fileStoreMode, key);
-      }
-   }
+            if (table != null) {
 
-   // TODO: Document
-   protected void persistComboRef(Account account)
-   throws IllegalArgumentException, ContentAccessException {
-      AccountIndex index = getAccountIndex("combo");
-      if (index != null) {
-         index.storeRef(account);
-      }
-   }
+               // Keep the references that are still in the index because
+               // looking them up or removing them failed
+               for (String ref : refFailures.keySet()) {
+                  String accountID = orphanedRefs.containsKey(ref) ? orphanedRefs.get(ref) : table.lookupAccountID(ref);
+                  if (accountID != null) {
+                     accountIDs.put(ref, accountID);
+                  }
+               }
 
-   // TODO: Document
-   protected void persistIDRef(Account account)
-   throws IllegalArgumentException, ContentAccessException {
-      AccountIndex index = getAccountIndex("id");
-      if (index != null) {
-         index.storeRef(account);
+               // Add the stored references; the index does not report them,
+               // so find the new references that point to those accounts
+               addStoredRefs(index, new HashSet<String>(refs), stored.keySet(), accountIDs);
+
+               // Swap in the rebuilt table; references stored or removed by
+               // others in the meantime are included through the changes
+               // recorded since beginReplace()
+               table.replace(accountIDs);
+               replaced = true;
+               _backReferences.get(index).reset();
+            }
+         }
+
+         AccountIndexReport report = new AccountIndexReport(indexName, repair, refs.size(), orphanedRefs, missingRefs, new TreeMap<String,Exception>(refFailures), new TreeMap<String,Exception>(accountFailures), System.currentTimeMillis() - start);
+         Utils.logInfo(toString() + ": " + report + '.');
+         return report;
+
+      } finally {
+
+         // References may have been stored without being reported, so the
+         // table cannot be trusted anymore
+         if (repair && table != null && ! replaced) {
+            table.cancelReplace();
+            discardAccountRefTable(index);
+         }
       }
    }
 
    /**
-    * Constructs an appropriate <code>Account</code> instance.
+    * Finds the references that an index rebuild stored for accounts that
+    * had none, and adds them to the new content of the in-memory table.
+    * {@link AccountIndex#storeRef(Account)} does not report the reference
+    * it stores. In the <code>"id"</code> index that is the account ID
+    * itself; in other indexes, the references that were not in the index
+    * before are looked up.
     *
-    * <p>This method is and should only be called from
-    * {@link #createAccountImpl(String,PropertyReader)}.
+    * @param index
+    *    the {@link AccountIndex}, should not be <code>null</code>.
     *
-    * @param accountID
-    *    the account ID, cannot be <code>null</code> and must be a valid
-    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    * @param knownRefs
+    *    the references that were in the index before,
+    *    should not be <code>null</code>.
     *
-    * @param enabled
-    *    flag that indicates if the new {@link Account} object should
-    *    consider itself enabled.
+    * @param storedAccountIDs
+    *    the IDs of the accounts references were stored for,
+    *    should not be <code>null</code>.
     *
-    * @param key
-    *    the encryption {@link Key} to use, or <code>null</code>.
+    * @param accountIDs
+    *    the new content of the table, to add the references to,
+    *    should not be <code>null</code>.
     *
     * @throws ContentAccessException
-    *    in case of a content retrieval error.
+    *    if the index could not be read.
     */
-   protected abstract Account newAccount(String accountID, boolean enabled, Key key)
-   throws ContentAccessException;
+   private static void addStoredRefs(AccountIndex       index,
+                                     Set<String>        knownRefs,
+                                     Set<String>        storedAccountIDs,
+                                     Map<String,String> accountIDs)
+   throws ContentAccessException {
+      if (storedAccountIDs.isEmpty()) {
+         return;
+      } else if ("id".equals(index.getName())) {
+         for (String accountID : storedAccountIDs) {
+            accountIDs.put(accountID, accountID);
+         }
+         return;
+      }
+
+      for (String ref : index.getRefs()) {
+         if (! knownRefs.contains(ref)) {
+            String accountID = index.lookupAccountID(ref);
+            if (accountID != null && storedAccountIDs.contains(accountID)) {
+               accountIDs.put(ref, accountID);
+            }
+         }
+      }
+   }
 
    /**
-    * Deletes all files associated with the specified account.
+    * Executes a task for each item, in parallel, in batches of
+    * {@value #INDEX_CHECK_BATCH_SIZE}, by at most
+    * {@value #MAX_INDEX_CHECK_CONCURRENCY} threads. A task that throws an
+    * exception is recorded as a failure for its item.
     *
-    * @param accountID
-    *    the account ID, cannot be <code>null</code> and must be a valid
-    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    * @param items
+    *    the items, should not be <code>null</code>.
     *
-    * @throws IllegalArgumentException
-    *    if <code>accountID == null</code>
-    *    or if <code>accountID</code> is invalid
-    *    (see {@link Assertions#assertValidAccountID(String)}).
+    * @param failures
+    *    the map to record failures in, by item,
+    *    should not be <code>null</code>.
+    *
+    * @param task
+    *    the task, should not be <code>null</code>.
     */
-   public void deleteAccountFiles(String accountID) throws IllegalArgumentException {
+   private void runIndexCheckTasks(List<String>                              items,
+                                   final ConcurrentHashMap<String,Exception> failures,
+                                   final IndexCheckTask                      task) {
 
-      // Check preconditions
-      Assertions.assertValidAccountID(accountID);
-
-      // Delete all account data directories
-      for (DatabaseType dbType : DatabaseType.values()) {
-         Database db = getDataHub().getDatabase(dbType);
-         try {
-            db.emptyDirectory(translatePath("accounts/" + accountID));
-         } catch (Exception e) {
-            if (! (e instanceof NoSuchFileException)) {
-               Utils.logIgnoredException(e);
-            }
-         }
+      final Queue<List<String>> batches = new ConcurrentLinkedQueue<List<String>>();
+      for (int from = 0; from < items.size(); from += INDEX_CHECK_BATCH_SIZE) {
+         batches.add(items.subList(from, Math.min(from + INDEX_CHECK_BATCH_SIZE, items.size())));
       }
 
-      // Remove all references to the account
-      for (AccountIndex index : getAccountIndexes()) {
-         try {
-            for (String ref : getAccountReferences(index, accountID)) {
-               try {
-                  index.removeRef(ref);
-               } catch (Exception cause) {
-                  Utils.logError(index.toString() + ": While deleting account: failed to remove reference \"" + ref + "\" to account \"" + accountID + "\". Ignoring and proceeding.", cause);
+      Runnable worker = new Runnable() {
+         public void run() {
+            for (List<String> batch = batches.poll(); batch != null; batch = batches.poll()) {
+               for (String item : batch) {
+                  try {
+                     task.run(item);
+                  } catch (Exception cause) {
+                     Utils.logError(toString() + ": Index check failed for " + TextUtils.quote(item) + '.', cause);
+                     failures.putIfAbsent(item, cause);
+                  }
                }
             }
-         } catch (ContentAccessException cause) {
-            Utils.logIgnoredException(cause);
          }
-      }
+      };
+      IOExecutor.runWorkers(worker, Math.max(1, Math.min(MAX_INDEX_CHECK_CONCURRENCY, batches.size())));
    }
 
    /**
-    * Retrieves all references to the specified account in the specified index.
+    * Retrieves the back-references for the specified account index, after
+    * checking the index argument of a callback method.
     *
     * @param index
-    *    the {@link AccountIndex}, cannot be <code>null</code> and must be in
-    *    the same realm.
-    *
-    * @param accountID
-    *    the account ID, cannot be <code>null</code> and must be a valid
-    *    account ID (see {@link Assertions#assertValidAccountID(String)}).
+    *    the {@link AccountIndex}, cannot be <code>null</code>.
     *
     * @return
-    *    a {@link Collection} of all references to the account in the
-    *    specified account index; never <code>null</code>.
+    *    the {@link AccountBackReferences}, or <code>null</code> if the index
+    *    has none (see {@link #isTrackedIndex(String)}).
     *
     * @throws IllegalArgumentException
-    *    if <code>index == null
-    *          || ! equals(index.{@linkplain AccountIndex#getRealm() getRealm()}</code>
-    *    or if the specified account ID is invalid.
-    *
-    * @throws ContentAccessException
-    *    if there was an error while accessing the database(s).
+    *    if <code>index == null</code>
+    *    or if <code>index</code> is not an account index of this realm.
     */
-   Collection<String> getAccountReferences(AccountIndex index, String accountID)
-   throws IllegalArgumentException, ContentAccessException {
-
-      // Check preconditions
-      MandatoryArgumentChecker.check("index", index, "accountID", accountID);
-      Assertions.assertValidAccountID(accountID);
+   private AccountBackReferences getBackReferences(AccountIndex index)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("index", index);
       if (! equals(index.getRealm())) {
-         throw new IllegalArgumentException(toString() + ": index is an AccountIndex in a different realm (" + index + ").");
-      }
-
-      // TODO: Make this implementation scalable, using backreferences
-
-      // Find all references in the account index
-      Collection<String> found = new ArrayList<String>();
-      for (String ref: index.getRefs()) {
-         if (accountID.equals(index.lookupAccountID(ref))) {
-            found.add(ref);
-         }
+         throw new IllegalArgumentException(toString() + ": index is not an AccountIndex in this realm (" + index + ").");
       }
-
-      return found;
+      return _backReferences.get(index);
    }
 
    /**
@@ -1638,7 +3987,12 @@ public abstract class Realm extends SubDataContext {
    public String translatePath(String path)
    throws IllegalArgumentException {
       assertValidPath(path);
-      return _site.translatePath("realms/" + _name + '/' + path);
+      return _site.translatePath("realms/" + _name + '/' + toStoragePath(path));
+   }
+
+   @Override
+   protected String translateFilePath(String path) {
+      return super.translateFilePath(toStoragePath(path));
    }
 
    @Override
@@ -1666,6 +4020,159 @@ public abstract class Realm extends SubDataContext {
    // Inner classes
    //-------------------------------------------------------------------------
 
+   /**
+    * Visitor for the account data of accounts, see
+    * {@link Realm#scanAccountData(Queue,Collection,Map,AccountDataVisitor)}.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private interface AccountDataVisitor {
+
+      /**
+       * Visits the account data of an account. May be called concurrently.
+       *
+       * @param accountID
+       *    the account ID, never <code>null</code>.
+       *
+       * @param properties
+       *    the property values of the account, by name,
+       *    never <code>null</code>.
+       */
+      void visit(String accountID, Map<String,String> properties);
+   }
+
+   /**
+    * Task executed for each reference or account by
+    * {@link Realm#runIndexCheckTasks(List,ConcurrentHashMap,IndexCheckTask)}.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private interface IndexCheckTask {
+
+      /**
+       * Executes this task for the specified item.
+       *
+       * @param item
+       *    the reference or account ID, never <code>null</code>.
+       *
+       * @throws Exception
+       *    if the task failed for the item.
+       */
+      void run(String item) throws Exception;
+   }
+
+   /**
+    * Task executed for each record by {@link Realm#createAccounts(Iterable)}.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private interface ImportTask {
+
+      /**
+       * Executes this task for the specified record.
+       *
+       * @param record
+       *    the record, never <code>null</code>.
+       *
+       * @throws Exception
+       *    if the task failed for the record.
+       */
+      void run(ImportRecord record) throws Exception;
+   }
+
+   /**
+    * State of a single record during {@link Realm#createAccounts(Iterable)}.
+    * A record is only accessed by one thread at a time.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class ImportRecord extends Object {
+
+      /**
+       * Constructs a new <code>ImportRecord</code>.
+       *
+       * @param number
+       *    the position of the record in the input.
+       *
+       * @param info
+       *    the account data, should not be <code>null</code>.
+       */
+      ImportRecord(int number, AccountInfo info) {
+         _number = number;
+         _info   = info;
+      }
+
+      /**
+       * The position of the record in the input.
+       */
+      final int _number;
+
+      /**
+       * The account data. Never <code>null</code>.
+       */
+      final AccountInfo _info;
+
+      /**
+       * The account ID. Set during preparation.
+       */
+      String _accountID;
+
+      /**
+       * The properties for the account. Set during preparation.
+       */
+      PropertyReader _properties;
+
+      /**
+       * The account data, per database. Set during preparation.
+       */
+      Map<DatabaseType,AccountData> _dataMap;
+
+      /**
+       * The encryption key, or <code>null</code>. Set during preparation.
+       */
+      Key _key;
+
+      /**
+       * Whether the account data files have been written.
+       */
+      boolean _written;
+
+      /**
+       * The failure, or <code>null</code> if the record did not fail (yet).
+       */
+      AccountCreationException _failure;
+
+      /**
+       * Marks this record as failed, unless it failed already.
+       *
+       * @param realm
+       *    the realm, should not be <code>null</code>.
+       *
+       * @param cause
+       *    the cause of the failure, should not be <code>null</code>.
+       */
+      void fail(Realm realm, Exception cause) {
+         if (_failure != null) {
+            return;
+         }
+
+         String logPrefix = realm.toString() + ", account " + TextUtils.quote(_accountID) + ": ";
+         if (cause instanceof PropertyException) {
+            Utils.logError(logPrefix + "Failed to import due to property-related error.", cause);
+            _failure = new AccountCreationException(realm, _accountID, _properties, (PropertyException) cause);
+         } else if (cause instanceof MissingRequiredAccountSnippetException) {
+            Utils.logError(logPrefix + "Failed to import due to a missing account snippet.", cause);
+            _failure = new AccountCreationException(realm, _accountID, _properties, (MissingRequiredAccountSnippetException) cause);
+         } else if (cause instanceof ContentAccessException) {
+            Utils.logError(logPrefix + "Failed to import due to data access-related error.", cause);
+            _failure = new AccountCreationException(realm, _accountID, _properties, (ContentAccessException) cause);
+         } else {
+            Utils.logError(logPrefix + "Failed to import.", cause);
+            _failure = new AccountCreationException(realm, _accountID, _properties, new TechnicalContentAccessException(cause.toString(), cause));
+         }
+      }
+   }
+
    /**
     * File name filter that only matches account directories.
     *
@@ -1702,7 +4209,7 @@ public abstract class Realm extends SubDataContext {
        *    the file name, should not be <code>null</code>.
        */
       public boolean accept(File dir, String name) {
-         return Assertions.ACCOUNT_ID_PATTERN.matcher(name).matches();
+         return Assertions.isValidAccountID(name) || AccountLayout.isShardName(name);
       }
    }
 }
@@ -0,0 +1,125 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+/**
+ * File path that has been validated and translated by a specific
+ * <code>DataContext</code>. Instances are immutable and can be reused for
+ * any number of file operations on the same data context, without
+ * validating or translating the path again.
+ *
+ * <p>Instances are obtained using
+ * {@link DataContext#resolvePath(String)}.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class ResolvedPath extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>ResolvedPath</code>.
+    *
+    * @param context
+    *    the {@link DataContext} that resolved the path,
+    *    should not be <code>null</code>.
+    *
+    * @param path
+    *    the path, relative to the {@link DataContext},
+    *    should not be <code>null</code> and should be a valid file path.
+    *
+    * @param translatedPath
+    *    the path, relative to the {@link DataHub},
+    *    should not be <code>null</code> and should be a valid file path.
+    */
+   ResolvedPath(DataContext context, String path, String translatedPath) {
+      _context        = context;
+      _path           = path;
+      _translatedPath = translatedPath;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The <code>DataContext</code> that resolved the path.
+    * Never <code>null</code>.
+    */
+   private final DataContext _context;
+
+   /**
+    * The path, relative to the <code>DataContext</code>.
+    * Never <code>null</code> and always a valid file path.
+    */
+   private final String _path;
+
+   /**
+    * The path, relative to the <code>DataHub</code>.
+    * Never <code>null</code> and always a valid file path.
+    */
+   private final String _translatedPath;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the <code>DataContext</code> that resolved this path.
+    *
+    * @return
+    *    the {@link DataContext}, never <code>null</code>.
+    */
+   public DataContext getDataContext() {
+      return _context;
+   }
+
+   /**
+    * Returns the path, relative to the <code>DataContext</code>.
+    *
+    * @return
+    *    the original path, never <code>null</code>
+    *    and always a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public String getPath() {
+      return _path;
+   }
+
+   /**
+    * Returns the path, relative to the <code>DataHub</code>.
+    *
+    * @return
+    *    the translated path, never <code>null</code>
+    *    and always a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    */
+   public String getTranslatedPath() {
+      return _translatedPath;
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (! (obj instanceof ResolvedPath)) {
+         return false;
+      }
+
+      ResolvedPath that = (ResolvedPath) obj;
+
+      return _context.equals(that._context)
+          &&    _path.equals(that._path   );
+   }
+
+   @Override
+   public int hashCode() {
+      return _context.hashCode() ^ _path.hashCode();
+   }
+
+   @Override
+   public String toString() {
+      return _context.toString() + ", path \"" + _path + '"';
+   }
+}
@@ -2,6 +2,7 @@
 package org.znerd.yaff;
 
 import org.znerd.yaff.activation.XDataSource;
+import org.znerd.yaff.cache.MissingFileCache;
 import org.znerd.yaff.form.FormDefinition;
 import org.znerd.yaff.form.FormEnvironment;
 import org.znerd.yaff.form.FormState;
@@ -34,6 +35,17 @@ import org.xins.common.xml.Element;
  */
 public final class Site extends SubDataContext {
 
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The directory in the {@link DatabaseType#FLEXDB} database that holds
+    * the stored form submissions.
+    */
+   static final String FORMS_DIR = "forms";
+
+
    //-------------------------------------------------------------------------
    // Constructors
    //-------------------------------------------------------------------------
@@ -67,6 +79,8 @@ public final class Site extends SubDataContext {
       _name         = name;
       _xml          = initSiteXML();
       _properties   = initProperties();
+      _missingFiles = initMissingFileCache();
+      _writeBehind  = initWriteBehindQueue();
       _vhosts       = initVirtualHosts();
       _pageNames    = initPageNames();
       _realmsByName = initRealms();
@@ -102,6 +116,20 @@ public final class Site extends SubDataContext {
     */
    private final PropertyReader _properties;
 
+   /**
+    * Cache of files known to be absent, shared by the realms of this site.
+    * Is <code>null</code> unless enabled with the
+    * <code>CacheMissingFiles</code> site property.
+    */
+   private final MissingFileCache _missingFiles;
+
+   /**
+    * Queue for files stored in the background, shared by the realms of this
+    * site. Is <code>null</code> unless enabled with the
+    * <code>WriteBehind</code> site property.
+    */
+   private final WriteBehindQueue _writeBehind;
+
    /**
     * All virtual hosts for this site. Never <code>null</code>.
     */
@@ -186,6 +214,36 @@ public final class Site extends SubDataContext {
       }
    }
 
+   /**
+    * Initializes the cache of files known to be absent. This cache is only
+    * created if the site property <code>CacheMissingFiles</code> is set to
+    * <code>"true"</code>.
+    *
+    * @return
+    *    the {@link MissingFileCache}, or <code>null</code> if it is not
+    *    enabled for this site.
+    */
+   private MissingFileCache initMissingFileCache() {
+      return "true".equals(_properties.get("CacheMissingFiles"))
+           ? new MissingFileCache(MissingFileCache.DEFAULT_MAX_SIZE)
+           : null;
+   }
+
+   /**
+    * Initializes the queue for files stored in the background. This queue
+    * is only created if the site property <code>WriteBehind</code> is set to
+    * <code>"true"</code>.
+    *
+    * @return
+    *    the {@link WriteBehindQueue}, or <code>null</code> if it is not
+    *    enabled for this site.
+    */
+   private WriteBehindQueue initWriteBehindQueue() {
+      return "true".equals(_properties.get("WriteBehind"))
+           ? new WriteBehindQueue(_name, WriteBehindQueue.DEFAULT_CAPACITY, WriteBehindQueue.DEFAULT_BATCH_SIZE)
+           : null;
+   }
+
    /**
     * Initializes the virtual hosts associated with this site.
     *
@@ -663,6 +721,55 @@ public final class Site extends SubDataContext {
       return _structure;
    }
 
+   @Override
+   protected MissingFileCache getMissingFileCache() {
+      return _missingFiles;
+   }
+
+   /**
+    * Retrieves the queue for files stored in the background, for example to
+    * inspect its queue depth and flush latency.
+    *
+    * @return
+    *    the {@link WriteBehindQueue} for this site, or <code>null</code> if
+    *    the site property <code>WriteBehind</code> is not set to
+    *    <code>"true"</code>.
+    */
+   @Override
+   public WriteBehindQueue getWriteBehindQueue() {
+      return _writeBehind;
+   }
+
+   /**
+    * Determines the durability for storing the specified file. Form
+    * submissions, stored in the {@link DatabaseType#FLEXDB} database under
+    * the {@link #FORMS_DIR forms directory}, are stored with
+    * {@link Durability#WRITE_BEHIND} if this site has a
+    * {@link #getWriteBehindQueue() write-behind queue}; all other files are
+    * stored with {@link Durability#NO_SYNC}.
+    */
+   @Override
+   protected Durability getDurability(DatabaseType dbType, ResolvedPath path) {
+      if (_writeBehind != null && dbType == DatabaseType.FLEXDB && isFormPath(path.getPath())) {
+         return Durability.WRITE_BEHIND;
+      }
+      return super.getDurability(dbType, path);
+   }
+
+   /**
+    * Checks if the specified path is under the forms directory.
+    *
+    * @param path
+    *    the path, relative to this site, never <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the path is under {@link #FORMS_DIR}.
+    */
+   private static boolean isFormPath(String path) {
+      int start = path.startsWith("/") ? 1 : 0;
+      return path.startsWith(FORMS_DIR + '/', start);
+   }
+
    @Override
    public String translatePath(String path)
    throws IllegalArgumentException {
@@ -9,6 +9,17 @@ package org.znerd.yaff;
  */
 public abstract class SubDataContext extends DataContext {
 
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * Paths used to determine the translated prefix, see
+    * {@link #getTranslatedPrefix()}.
+    */
+   private static final String[] PREFIX_PROBES = { "a", "b/c.d" };
+
+
    //-------------------------------------------------------------------------
    // Constructors
    //-------------------------------------------------------------------------
@@ -21,6 +32,23 @@ public abstract class SubDataContext extends DataContext {
    }
 
 
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The prefix that {@link #translatePath(String)} puts in front of every
+    * path. Initially <code>null</code>, determined on first use.
+    */
+   private volatile String _translatedPrefix;
+
+   /**
+    * Flag that indicates that {@link #translatePath(String)} was found to do
+    * more than just prepend a prefix.
+    */
+   private volatile boolean _noTranslatedPrefix;
+
+
    //-------------------------------------------------------------------------
    // Methods
    //-------------------------------------------------------------------------
@@ -33,4 +61,59 @@ public abstract class SubDataContext extends DataContext {
     *    kind of object.
     */
    public abstract String getName();
+
+   /**
+    * Determines the prefix that {@link #translatePath(String)} puts in front
+    * of every path, if it does nothing else. The result is determined once,
+    * by translating a few sample paths, and then remembered.
+    *
+    * @return
+    *    the prefix, or <code>null</code> if the translation of a path is not
+    *    a matter of just prepending a prefix.
+    */
+   private String getTranslatedPrefix() {
+
+      String prefix = _translatedPrefix;
+      if (prefix != null || _noTranslatedPrefix) {
+         return prefix;
+      }
+
+      // All sample paths must be translated by prepending the same prefix
+      for (String probe : PREFIX_PROBES) {
+         String translated = translatePath(probe);
+         String  candidate = translated.endsWith(probe)
+                           ? translated.substring(0, translated.length() - probe.length())
+                           : null;
+         if (candidate == null || (prefix != null && ! prefix.equals(candidate))) {
+            _noTranslatedPrefix = true;
+            return null;
+         }
+         prefix = candidate;
+      }
+
+      _translatedPrefix = prefix;
+      return prefix;
+   }
+
+   /**
+    * Translates the specified file path to a path that is relative to the
+    * <code>DataHub</code>. Since a sub data context normally translates a
+    * path by prepending its own location, the translated prefix is
+    * determined only once and then reused, avoiding the string
+    * concatenation and validation in every layer of
+    * {@link #translatePath(String)}.
+    *
+    * @param path
+    *    the path that is relative to this {@link DataContext},
+    *    never <code>null</code> and always a valid file path.
+    *
+    * @return
+    *    the translated path, relative to the {@link DataHub},
+    *    never <code>null</code>.
+    */
+   @Override
+   protected String translateFilePath(String path) {
+      String prefix = getTranslatedPrefix();
+      return (prefix == null) ? translatePath(path) : prefix + path;
+   }
 }
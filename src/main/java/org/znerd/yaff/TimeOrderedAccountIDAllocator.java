@@ -0,0 +1,64 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import org.xins.common.text.HexConverter;
+
+/**
+ * Account ID allocator that generates account IDs that sort by creation
+ * time: the first 32 bits are the creation time, in seconds since the
+ * epoch, and the remaining 32 bits are random, for example
+ * <code>66f2a9c4c41e7b29</code>. Accounts created around the same time are
+ * adjacent in sorted directory listings and in the account indexes. With
+ * the {@linkplain AccountLayout#FLAT flat} layout, this also gives them
+ * adjacent directories; with the {@linkplain AccountLayout#SHARDED sharded}
+ * layout that locality disappears, since the shard directories are
+ * determined by a hash of the account ID.
+ *
+ * <p>These account IDs are partly predictable: they reveal the creation
+ * time of the account, and only the 32 random bits distinguish accounts
+ * created within the same second. Account IDs must therefore not be
+ * treated as secrets. Two accounts created within the same second get the
+ * same ID with a probability of 1 in 2<sup>32</sup>; such a collision is
+ * detected by the realm, which then generates another ID.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class TimeOrderedAccountIDAllocator extends Object implements AccountIDAllocator {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The number of random bits in an account ID.
+    */
+   private static final int RANDOM_BITS = 32;
+
+   /**
+    * The mask for the random bits in an account ID.
+    */
+   private static final long RANDOM_MASK = (1L << RANDOM_BITS) - 1L;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>TimeOrderedAccountIDAllocator</code>.
+    */
+   public TimeOrderedAccountIDAllocator() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   public String nextAccountID() {
+      long seconds = System.currentTimeMillis() / 1000L;
+      long  random = RandomAccountIDAllocator.RANDOMS.get().nextLong() & RANDOM_MASK;
+      return HexConverter.toHexString((seconds << RANDOM_BITS) | random);
+   }
+}
@@ -0,0 +1,1067 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import static org.znerd.yaff.io.IOHelper.newIOException;
+
+import org.znerd.yaff.activation.ByteArrayDataSource;
+import org.znerd.yaff.activation.DataAccessException;
+import org.znerd.yaff.activation.XDataSource;
+import org.znerd.yaff.io.CompactElementIO;
+import org.znerd.yaff.security.Key;
+import org.znerd.yaff.security.Vault;
+import org.znerd.yaff.security.VaultIO;
+import org.znerd.yaff.security.WrongKeyException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.activation.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.xins.common.text.ParseException;
+import org.xins.common.text.TextUtils;
+
+/**
+ * Streaming format for encrypted files. The plaintext is split in chunks of
+ * {@link #CHUNK_SIZE} bytes and each chunk is encrypted in its own
+ * {@link Vault}. This way neither encryption nor decryption ever needs to
+ * hold more than a single chunk in memory, regardless of the file size.
+ *
+ * <p>The format starts with the 4 magic bytes <code>"YCVS"</code>, followed
+ * by a single version byte (currently {@link #VERSION}), the length of the
+ * plaintext as an 8-byte integer (<code>-1L</code> if it was not known in
+ * advance) and a random 8-byte stream ID. Then follow one or more records,
+ * each consisting of a 4-byte length and a chunk vault, written by
+ * {@link CompactElementIO}. The data ends after the last record.
+ *
+ * <p>The plaintext in each vault starts with a prefix of
+ * {@value #PREFIX_LENGTH} bytes: the stream ID, the index of the chunk as an
+ * 8-byte integer and a flags byte that marks the last chunk. Since the
+ * prefix is encrypted together with the chunk, chunks cannot be reordered,
+ * dropped, copied from another stream or cut off at a chunk boundary
+ * without decryption failing. The plaintext length in the header is checked
+ * against the decrypted data as well.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+final class VaultStream extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The version of the format that is written.
+    */
+   static final int VERSION = 1;
+
+   /**
+    * The maximum number of plaintext bytes per chunk (64 KiB).
+    */
+   static final int CHUNK_SIZE = 64 * 1024;
+
+   /**
+    * The magic bytes at the start of the format.
+    */
+   private static final byte[] MAGIC = { 'Y', 'C', 'V', 'S' };
+
+   /**
+    * The length of the header: magic bytes, version, plaintext length and
+    * stream ID.
+    */
+   private static final int HEADER_LENGTH = 4 + 1 + 8 + 8;
+
+   /**
+    * The length of the prefix of the plaintext in each chunk vault: stream
+    * ID, chunk index and flags.
+    */
+   static final int PREFIX_LENGTH = 8 + 8 + 1;
+
+   /**
+    * The flag in the prefix of a chunk that marks the last chunk.
+    */
+   private static final int LAST_CHUNK_FLAG = 0x01;
+
+   /**
+    * The source of the stream IDs. Never <code>null</code>.
+    */
+   private static final SecureRandom STREAM_IDS = new SecureRandom();
+
+   /**
+    * The maximum length of a single record. Larger lengths indicate
+    * corrupt data.
+    */
+   private static final int MAX_RECORD_LENGTH = 64 * CHUNK_SIZE;
+
+   /**
+    * The content type used when the plaintext does not specify one.
+    */
+   private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines if the specified data starts with the magic bytes of this
+    * format.
+    *
+    * @param header
+    *    the first bytes of the data, should not be <code>null</code>.
+    *
+    * @param length
+    *    the number of valid bytes in <code>header</code>.
+    *
+    * @return
+    *    <code>true</code> if the data is in this format.
+    */
+   static boolean isVaultStream(byte[] header, int length) {
+      if (length < MAGIC.length) {
+         return false;
+      }
+      for (int i = 0; i < MAGIC.length; i++) {
+         if (header[i] != MAGIC[i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Returns the number of magic bytes that identify this format.
+    *
+    * @return
+    *    the number of magic bytes, always &gt; 0.
+    */
+   static int getMagicLength() {
+      return MAGIC.length;
+   }
+
+   /**
+    * Creates a data source that produces the encrypted form of the
+    * specified data. Encryption happens lazily, chunk by chunk, while the
+    * returned data source is being read.
+    *
+    * @param name
+    *    the name of the file, should not be <code>null</code>.
+    *
+    * @param data
+    *    the plaintext, should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption key, should not be <code>null</code>.
+    *
+    * @return
+    *    the encrypted data source, never <code>null</code>.
+    */
+   static XDataSource encrypt(String name, DataSource data, Key key) {
+      return new EncryptedDataSource(name, data, key);
+   }
+
+   /**
+    * Creates a data source that produces the decrypted form of the
+    * specified encrypted file. Only the first chunk is decrypted right away,
+    * to verify the key; the remainder is decrypted lazily while the
+    * returned data source is being read.
+    *
+    * @param encryptedFile
+    *    the encrypted file, should not be <code>null</code>.
+    *
+    * @param name
+    *    the name of the file, should not be <code>null</code>.
+    *
+    * @param key
+    *    the decryption key, should not be <code>null</code>.
+    *
+    * @return
+    *    the decrypted data source, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the encrypted file could not be read, if it is not in the
+    *    expected format or if the key does not match.
+    */
+   static XDataSource decrypt(XDataSource encryptedFile, String name, Key key)
+   throws IOException {
+
+      ChunkReader reader = new ChunkReader(encryptedFile.getInputStream(), name, key);
+      try {
+         Arrays.fill(reader.readChunk(), (byte) 0);
+         String contentType = reader.getContentType();
+         if (TextUtils.isEmpty(contentType)) {
+            contentType = DEFAULT_CONTENT_TYPE;
+         }
+         return new DecryptedDataSource(encryptedFile, name, key, contentType, reader.getLength());
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Writes an 8-byte integer to a byte array, most significant byte first.
+    *
+    * @param value
+    *    the value.
+    *
+    * @param bytes
+    *    the byte array, should not be <code>null</code>.
+    *
+    * @param offset
+    *    the offset of the first byte.
+    */
+   private static void putLong(long value, byte[] bytes, int offset) {
+      for (int i = 7; i >= 0; i--) {
+         bytes[offset + i] = (byte) value;
+         value >>>= 8;
+      }
+   }
+
+   /**
+    * Reads an 8-byte integer from a byte array, most significant byte first.
+    *
+    * @param bytes
+    *    the byte array, should not be <code>null</code>.
+    *
+    * @param offset
+    *    the offset of the first byte.
+    *
+    * @return
+    *    the value.
+    */
+   private static long getLong(byte[] bytes, int offset) {
+      long value = 0L;
+      for (int i = 0; i < 8; i++) {
+         value = (value << 8) | (bytes[offset + i] & 0xffL);
+      }
+      return value;
+   }
+
+   /**
+    * Encrypts a single chunk and produces its record.
+    *
+    * @param chunk
+    *    the plaintext of the chunk, including the prefix,
+    *    should not be <code>null</code>.
+    *
+    * @param length
+    *    the number of bytes in <code>chunk</code> to encrypt, including the
+    *    prefix.
+    *
+    * @param name
+    *    the name of the file, should not be <code>null</code>.
+    *
+    * @param contentType
+    *    the content type of the plaintext, should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption key, should not be <code>null</code>.
+    *
+    * @return
+    *    the record: the 4-byte length followed by the vault,
+    *    never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the encryption failed.
+    */
+   private static byte[] encryptChunk(byte[] chunk, int length, String name, String contentType, Key key)
+   throws IOException {
+      byte[] plaintext = new byte[length];
+      System.arraycopy(chunk, 0, plaintext, 0, length);
+      try {
+         Vault                 vault = new Vault(key, new ByteArrayDataSource(name, plaintext, contentType));
+         byte[]                bytes = CompactElementIO.toByteArray(VaultIO.serialize(vault));
+         ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 4);
+         DataOutputStream     dataOut = new DataOutputStream(record);
+         dataOut.writeInt(bytes.length);
+         dataOut.write(bytes);
+         dataOut.flush();
+         return record.toByteArray();
+      } catch (WrongKeyException cause) {
+         throw newIOException("Failed to encrypt " + TextUtils.quote(name) + '.', cause);
+      } finally {
+         Arrays.fill(plaintext, (byte) 0);
+      }
+   }
+
+   /**
+    * Counts the bytes in a stream and closes it.
+    *
+    * @param in
+    *    the stream, should not be <code>null</code>.
+    *
+    * @return
+    *    the number of bytes.
+    *
+    * @throws IOException
+    *    if reading from the stream failed.
+    */
+   private static int count(InputStream in) throws IOException {
+      try {
+         byte[] buffer = new byte[8192];
+         long    count = 0L;
+         for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            count += n;
+         }
+         return (int) Math.min(count, (long) Integer.MAX_VALUE);
+      } finally {
+         in.close();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>VaultStream</code>.
+    */
+   private VaultStream() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Data source that encrypts the wrapped plaintext while it is read.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class EncryptedDataSource implements XDataSource {
+
+      /**
+       * Constructs a new <code>EncryptedDataSource</code>.
+       *
+       * @param name
+       *    the name of the file, should not be <code>null</code>.
+       *
+       * @param data
+       *    the plaintext, should not be <code>null</code>.
+       *
+       * @param key
+       *    the encryption key, should not be <code>null</code>.
+       */
+      EncryptedDataSource(String name, DataSource data, Key key) {
+         _name         = name;
+         _data         = data;
+         _key          = key;
+         _lastModified = System.currentTimeMillis();
+         _length       = -1;
+      }
+
+      /**
+       * The name of the file. Never <code>null</code>.
+       */
+      private final String _name;
+
+      /**
+       * The plaintext. Never <code>null</code>.
+       */
+      private final DataSource _data;
+
+      /**
+       * The encryption key. Never <code>null</code>.
+       */
+      private final Key _key;
+
+      /**
+       * The time this data source was created.
+       */
+      private final long _lastModified;
+
+      /**
+       * The length of the encrypted data, or <code>-1</code> if it has not
+       * been determined yet.
+       */
+      private int _length;
+
+      /**
+       * Determines the content type of the plaintext.
+       *
+       * @return
+       *    the content type, never <code>null</code>.
+       */
+      private String getPlaintextContentType() {
+         String contentType = _data.getContentType();
+         return TextUtils.isEmpty(contentType) ? DEFAULT_CONTENT_TYPE : contentType;
+      }
+
+      public InputStream getInputStream() throws IOException {
+         long length = (_data instanceof XDataSource) ? ((XDataSource) _data).length() : -1L;
+         return new EncryptingInputStream(_data.getInputStream(), _name, getPlaintextContentType(), length, _key);
+      }
+
+      public OutputStream getOutputStream()
+      throws IOException {
+         throw new IOException("Operation 'getOutputStream' not supported.");
+      }
+
+      public String getContentType() {
+         return CompactElementIO.CONTENT_TYPE;
+      }
+
+      public String getName() {
+         return _name;
+      }
+
+      public long lastModified() {
+         return _lastModified;
+      }
+
+      /**
+       * Determines the length of the encrypted data. The size of a chunk
+       * vault depends only on the size of the chunk, so if the length of the
+       * plaintext is known, the length is computed by encrypting one full
+       * and one partial chunk of zeroes, instead of the whole plaintext.
+       * Otherwise the plaintext is encrypted once to count the bytes.
+       */
+      public synchronized int length() throws DataAccessException {
+         if (_length >= 0) {
+            return _length;
+         }
+
+         try {
+            if (_data instanceof XDataSource) {
+               long  plaintextLength = ((XDataSource) _data).length();
+               long       chunkCount = Math.max(1L, (plaintextLength + CHUNK_SIZE - 1L) / CHUNK_SIZE);
+               int   lastChunkLength = (int) (plaintextLength - (chunkCount - 1L) * CHUNK_SIZE);
+               String    contentType = getPlaintextContentType();
+               byte[]          zeroes = new byte[PREFIX_LENGTH + CHUNK_SIZE];
+               long           length = HEADER_LENGTH + encryptChunk(zeroes, PREFIX_LENGTH + lastChunkLength, _name, contentType, _key).length;
+               if (chunkCount > 1L) {
+                  length += (chunkCount - 1L) * encryptChunk(zeroes, zeroes.length, _name, contentType, _key).length;
+               }
+               _length = (int) Math.min(length, (long) Integer.MAX_VALUE);
+            } else {
+               _length = count(getInputStream());
+            }
+            return _length;
+         } catch (IOException cause) {
+            throw new DataAccessException("Failed to determine the length of the encrypted data.", cause);
+         }
+      }
+
+      public File getFile() {
+         return null;
+      }
+   }
+
+   /**
+    * Input stream that encrypts the plaintext from another input stream,
+    * one chunk at a time.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class EncryptingInputStream extends InputStream {
+
+      /**
+       * Constructs a new <code>EncryptingInputStream</code>.
+       *
+       * @param source
+       *    the plaintext stream, should not be <code>null</code>.
+       *
+       * @param name
+       *    the name of the file, should not be <code>null</code>.
+       *
+       * @param contentType
+       *    the content type of the plaintext, should not be
+       *    <code>null</code>.
+       *
+       * @param length
+       *    the length of the plaintext, or <code>-1L</code> if unknown.
+       *
+       * @param key
+       *    the encryption key, should not be <code>null</code>.
+       *
+       * @throws IOException
+       *    if the header could not be produced.
+       */
+      EncryptingInputStream(InputStream source, String name, String contentType, long length, Key key)
+      throws IOException {
+         _source      = source;
+         _name        = name;
+         _contentType = contentType;
+         _key         = key;
+         _chunk       = new byte[PREFIX_LENGTH + CHUNK_SIZE];
+         _lookahead   = -1;
+         _streamID    = STREAM_IDS.nextLong();
+
+         ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_LENGTH);
+         DataOutputStream     dataOut = new DataOutputStream(header);
+         dataOut.write(MAGIC);
+         dataOut.writeByte(VERSION);
+         dataOut.writeLong(length);
+         dataOut.writeLong(_streamID);
+         dataOut.flush();
+         _buffer = header.toByteArray();
+      }
+
+      /**
+       * The plaintext stream. Never <code>null</code>.
+       */
+      private final InputStream _source;
+
+      /**
+       * The name of the file. Never <code>null</code>.
+       */
+      private final String _name;
+
+      /**
+       * The content type of the plaintext. Never <code>null</code>.
+       */
+      private final String _contentType;
+
+      /**
+       * The encryption key. Never <code>null</code>.
+       */
+      private final Key _key;
+
+      /**
+       * Buffer for the prefix plus a single chunk of plaintext.
+       * Never <code>null</code>.
+       */
+      private final byte[] _chunk;
+
+      /**
+       * The ID of this stream.
+       */
+      private final long _streamID;
+
+      /**
+       * The encrypted bytes that are ready to be read.
+       * Never <code>null</code>.
+       */
+      private byte[] _buffer;
+
+      /**
+       * The position of the next byte to read from <code>_buffer</code>.
+       */
+      private int _position;
+
+      /**
+       * The index of the next chunk.
+       */
+      private long _chunkIndex;
+
+      /**
+       * The first byte of the next chunk, read ahead to determine whether
+       * the current chunk is the last one, or <code>-1</code> if none.
+       */
+      private int _lookahead;
+
+      /**
+       * Flag that indicates whether the last chunk has been produced.
+       */
+      private boolean _done;
+
+      @Override
+      public int read() throws IOException {
+         if (! fill()) {
+            return -1;
+         }
+         return _buffer[_position++] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         } else if (! fill()) {
+            return -1;
+         }
+         int count = Math.min(len, _buffer.length - _position);
+         System.arraycopy(_buffer, _position, b, off, count);
+         _position += count;
+         return count;
+      }
+
+      /**
+       * Makes sure there are bytes available in the buffer, encrypting the
+       * next chunk if necessary.
+       *
+       * @return
+       *    <code>true</code> if bytes are available,
+       *    <code>false</code> if the end of the stream was reached.
+       *
+       * @throws IOException
+       *    if reading the plaintext or encrypting it failed.
+       */
+      private boolean fill() throws IOException {
+         if (_position < _buffer.length) {
+            return true;
+         } else if (_done) {
+            return false;
+         }
+
+         // Read the next chunk of plaintext, starting with the byte read ahead
+         int length = PREFIX_LENGTH;
+         if (_lookahead >= 0) {
+            _chunk[length++] = (byte) _lookahead;
+            _lookahead       = -1;
+         }
+         while (length < _chunk.length) {
+            int count = _source.read(_chunk, length, _chunk.length - length);
+            if (count < 0) {
+               break;
+            }
+            length += count;
+         }
+
+         // A full chunk is the last one only if no more plaintext follows
+         boolean last = length < _chunk.length;
+         if (! last) {
+            _lookahead = _source.read();
+            last       = _lookahead < 0;
+         }
+
+         // Encrypt the chunk together with its prefix
+         putLong(_streamID,     _chunk, 0);
+         putLong(_chunkIndex++, _chunk, 8);
+         _chunk[16] = (byte) (last ? LAST_CHUNK_FLAG : 0);
+         try {
+            _buffer = encryptChunk(_chunk, length, _name, _contentType, _key);
+         } finally {
+            Arrays.fill(_chunk, (byte) 0);
+         }
+         _position = 0;
+         _done     = last;
+         return true;
+      }
+
+      @Override
+      public void close() throws IOException {
+         _source.close();
+      }
+   }
+
+   /**
+    * Data source that decrypts an encrypted file while it is read.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class DecryptedDataSource implements XDataSource {
+
+      /**
+       * Constructs a new <code>DecryptedDataSource</code>.
+       *
+       * @param encryptedFile
+       *    the encrypted file, should not be <code>null</code>.
+       *
+       * @param name
+       *    the name of the file, should not be <code>null</code>.
+       *
+       * @param key
+       *    the decryption key, should not be <code>null</code>.
+       *
+       * @param contentType
+       *    the content type of the plaintext, should not be
+       *    <code>null</code>.
+       *
+       * @param length
+       *    the length of the plaintext, or <code>-1L</code> if unknown.
+       */
+      DecryptedDataSource(XDataSource encryptedFile, String name, Key key, String contentType, long length) {
+         _encryptedFile = encryptedFile;
+         _name          = name;
+         _key           = key;
+         _contentType   = contentType;
+         _length        = length;
+      }
+
+      /**
+       * The encrypted file. Never <code>null</code>.
+       */
+      private final XDataSource _encryptedFile;
+
+      /**
+       * The name of the file. Never <code>null</code>.
+       */
+      private final String _name;
+
+      /**
+       * The decryption key. Never <code>null</code>.
+       */
+      private final Key _key;
+
+      /**
+       * The content type of the plaintext. Never <code>null</code>.
+       */
+      private final String _contentType;
+
+      /**
+       * The length of the plaintext, or <code>-1L</code> if unknown.
+       */
+      private final long _length;
+
+      public InputStream getInputStream() throws IOException {
+         return new DecryptingInputStream(new ChunkReader(_encryptedFile.getInputStream(), _name, _key));
+      }
+
+      public OutputStream getOutputStream()
+      throws IOException {
+         throw new IOException("Operation 'getOutputStream' not supported.");
+      }
+
+      public String getContentType() {
+         return _contentType;
+      }
+
+      public String getName() {
+         return _name;
+      }
+
+      public long lastModified() throws DataAccessException {
+         return _encryptedFile.lastModified();
+      }
+
+      /**
+       * Returns the length of the plaintext. If it was not known when the
+       * file was written, then the file is decrypted once to count the bytes.
+       */
+      public int length() throws DataAccessException {
+         if (_length >= 0L) {
+            return (int) _length;
+         }
+         try {
+            return count(getInputStream());
+         } catch (IOException cause) {
+            throw new DataAccessException("Failed to determine the length of " + TextUtils.quote(_name) + '.', cause);
+         }
+      }
+
+      public File getFile() {
+         return null;
+      }
+   }
+
+   /**
+    * Reader for the chunks of an encrypted stream. Reads the header when it
+    * is constructed and checks the prefix of each chunk, the end of the data
+    * and the total length.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class ChunkReader extends Object {
+
+      /**
+       * Constructs a new <code>ChunkReader</code> and reads the header.
+       *
+       * @param source
+       *    the encrypted stream, should not be <code>null</code>.
+       *
+       * @param name
+       *    the name of the file, should not be <code>null</code>.
+       *
+       * @param key
+       *    the decryption key, should not be <code>null</code>.
+       *
+       * @throws IOException
+       *    if reading from the stream failed or if the header is invalid;
+       *    the stream is closed in that case.
+       */
+      ChunkReader(InputStream source, String name, Key key)
+      throws IOException {
+         _source = new DataInputStream(source);
+         _name   = name;
+         _key    = key;
+
+         boolean succeeded = false;
+         try {
+            for (int i = 0; i < MAGIC.length; i++) {
+               if (_source.readByte() != MAGIC[i]) {
+                  throw newIOException("Failed to parse " + TextUtils.quote(_name) + '.', new ParseException("Data does not start with the expected magic bytes."));
+               }
+            }
+            int version = _source.readUnsignedByte();
+            if (version != VERSION) {
+               throw newIOException("Failed to parse " + TextUtils.quote(_name) + '.', new ParseException("Unsupported format version " + version + '.'));
+            }
+            _length   = _source.readLong();
+            _streamID = _source.readLong();
+            succeeded = true;
+         } catch (EOFException cause) {
+            throw newIOException("Failed to parse " + TextUtils.quote(_name) + '.', new ParseException("Unexpected end of data.", cause));
+         } finally {
+            if (! succeeded) {
+               _source.close();
+            }
+         }
+      }
+
+      /**
+       * The encrypted stream. Never <code>null</code>.
+       */
+      private final DataInputStream _source;
+
+      /**
+       * The name of the file. Never <code>null</code>.
+       */
+      private final String _name;
+
+      /**
+       * The decryption key. Never <code>null</code>.
+       */
+      private final Key _key;
+
+      /**
+       * The length of the plaintext according to the header, or
+       * <code>-1L</code> if unknown.
+       */
+      private final long _length;
+
+      /**
+       * The stream ID according to the header.
+       */
+      private final long _streamID;
+
+      /**
+       * The content type of the first chunk, or <code>null</code> if no
+       * chunk has been read yet.
+       */
+      private String _contentType;
+
+      /**
+       * The index of the next chunk.
+       */
+      private long _chunkIndex;
+
+      /**
+       * The number of plaintext bytes read so far.
+       */
+      private long _total;
+
+      /**
+       * Flag that indicates whether the last chunk has been read.
+       */
+      private boolean _done;
+
+      /**
+       * Returns the length of the plaintext according to the header.
+       *
+       * @return
+       *    the length, or <code>-1L</code> if unknown.
+       */
+      long getLength() {
+         return _length;
+      }
+
+      /**
+       * Returns the content type of the plaintext, as stored in the first
+       * chunk.
+       *
+       * @return
+       *    the content type, or <code>null</code> if it is unknown.
+       */
+      String getContentType() {
+         return _contentType;
+      }
+
+      /**
+       * Reads and decrypts the next chunk.
+       *
+       * @return
+       *    the plaintext of the chunk, without the prefix, or
+       *    <code>null</code> if the last chunk has been read.
+       *
+       * @throws IOException
+       *    if reading from the stream failed, if the chunk could not be
+       *    decrypted or if the data is incomplete or has been tampered
+       *    with.
+       */
+      byte[] readChunk() throws IOException {
+         if (_done) {
+            return null;
+         }
+
+         // Read the record
+         byte[] record;
+         try {
+            int length = _source.readInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+               throw corrupt("Invalid record length " + length + '.', null);
+            }
+            record = new byte[length];
+            _source.readFully(record);
+         } catch (EOFException cause) {
+            throw corrupt("Unexpected end of data before the last chunk.", cause);
+         }
+
+         // Decrypt the chunk
+         byte[] plaintext;
+         try {
+            Vault       vault = VaultIO.deserialize(CompactElementIO.read(new ByteArrayInputStream(record)));
+            XDataSource chunk = vault.getContentAsDataSource(_key, _name);
+            if (_contentType == null) {
+               _contentType = chunk.getContentType();
+            }
+            InputStream in = chunk.getInputStream();
+            try {
+               plaintext = IOUtils.toByteArray(in);
+            } finally {
+               in.close();
+            }
+         } catch (ParseException cause) {
+            throw corrupt("Invalid chunk.", cause);
+         } catch (WrongKeyException cause) {
+            throw newIOException("Failed to decrypt " + TextUtils.quote(_name) + '.', cause);
+         }
+
+         // Check the prefix
+         if (plaintext.length < PREFIX_LENGTH || getLong(plaintext, 0) != _streamID) {
+            Arrays.fill(plaintext, (byte) 0);
+            throw corrupt("Chunk " + _chunkIndex + " does not belong to this stream.", null);
+         }
+         long chunkIndex = getLong(plaintext, 8);
+         if (chunkIndex != _chunkIndex) {
+            Arrays.fill(plaintext, (byte) 0);
+            throw corrupt("Expected chunk " + _chunkIndex + ", found chunk " + chunkIndex + '.', null);
+         }
+         _chunkIndex++;
+         _total += plaintext.length - PREFIX_LENGTH;
+         _done   = (plaintext[16] & LAST_CHUNK_FLAG) != 0;
+
+         // Check the length and the end of the data
+         if (_length >= 0L && (_done ? _total != _length : _total > _length)) {
+            Arrays.fill(plaintext, (byte) 0);
+            throw corrupt("Decrypted " + _total + " bytes, expected " + _length + '.', null);
+         } else if (_done && _source.read() >= 0) {
+            Arrays.fill(plaintext, (byte) 0);
+            throw corrupt("Unexpected data after the last chunk.", null);
+         }
+
+         byte[] data = new byte[plaintext.length - PREFIX_LENGTH];
+         System.arraycopy(plaintext, PREFIX_LENGTH, data, 0, data.length);
+         Arrays.fill(plaintext, (byte) 0);
+         return data;
+      }
+
+      /**
+       * Creates an exception that indicates that the data is corrupt.
+       *
+       * @param detail
+       *    the detail message, should not be <code>null</code>.
+       *
+       * @param cause
+       *    the cause, or <code>null</code>.
+       *
+       * @return
+       *    the exception, never <code>null</code>.
+       */
+      private IOException corrupt(String detail, Throwable cause) {
+         return newIOException("Failed to read " + TextUtils.quote(_name) + ": " + detail, new ParseException(detail, cause));
+      }
+
+      /**
+       * Closes the encrypted stream.
+       *
+       * @throws IOException
+       *    if closing the stream failed.
+       */
+      void close() throws IOException {
+         _source.close();
+      }
+   }
+
+   /**
+    * Input stream that decrypts the chunks from an encrypted stream, one
+    * chunk at a time.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class DecryptingInputStream extends InputStream {
+
+      /**
+       * Constructs a new <code>DecryptingInputStream</code>.
+       *
+       * @param reader
+       *    the reader for the chunks, should not be <code>null</code>.
+       */
+      DecryptingInputStream(ChunkReader reader) {
+         _reader = reader;
+         _buffer = new byte[0];
+      }
+
+      /**
+       * The reader for the chunks. Never <code>null</code>.
+       */
+      private final ChunkReader _reader;
+
+      /**
+       * The decrypted bytes that are ready to be read.
+       * Never <code>null</code>.
+       */
+      private byte[] _buffer;
+
+      /**
+       * The position of the next byte to read from <code>_buffer</code>.
+       */
+      private int _position;
+
+      @Override
+      public int read() throws IOException {
+         if (! fill()) {
+            return -1;
+         }
+         return _buffer[_position++] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         } else if (! fill()) {
+            return -1;
+         }
+         int count = Math.min(len, _buffer.length - _position);
+         System.arraycopy(_buffer, _position, b, off, count);
+         _position += count;
+         return count;
+      }
+
+      /**
+       * Makes sure there are bytes available in the buffer, decrypting the
+       * next chunk if necessary.
+       *
+       * @return
+       *    <code>true</code> if bytes are available,
+       *    <code>false</code> if the end of the stream was reached.
+       *
+       * @throws IOException
+       *    if reading or decrypting the next chunk failed.
+       */
+      private boolean fill() throws IOException {
+         while (_position >= _buffer.length) {
+
+            // Wipe the previous chunk before decrypting the next one
+            Arrays.fill(_buffer, (byte) 0);
+
+            byte[] chunk = _reader.readChunk();
+            if (chunk == null) {
+               _buffer = new byte[0];
+               return false;
+            }
+            _buffer   = chunk;
+            _position = 0;
+         }
+         return true;
+      }
+
+      @Override
+      public void close() throws IOException {
+         Arrays.fill(_buffer, (byte) 0);
+         _reader.close();
+      }
+   }
+}
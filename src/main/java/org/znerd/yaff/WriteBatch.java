@@ -0,0 +1,569 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import org.znerd.yaff.io.IOHelper;
+import org.znerd.yaff.security.Key;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.activation.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+import org.xins.common.text.TextUtils;
+
+/**
+ * Group of new files that are created together. Instances are obtained from
+ * {@link DataContext#newWriteBatch()}.
+ *
+ * <p>Files are first staged using
+ * {@link #createFile(DatabaseType,String,DataSource,Key)}. When the batch is
+ * committed, all files are written to temporary files next to their final
+ * location, then all of them are forced to disk in one go, and only then are
+ * they renamed to their final names. Compared to storing the files one by
+ * one, this requires a single wait for the disk instead of one per file, and
+ * either all files become visible or none of them do.
+ *
+ * <p>A batch can only create files that do not exist yet, as with
+ * {@link FileStoreMode#MUST_NOT_EXIST}. Files are written directly to the
+ * write directory of the database. Before the temporary files are renamed,
+ * each final name is reserved by atomically creating a lock file next to
+ * it, so of two parties that create the same file concurrently, only one
+ * succeeds; the other gets a {@link FileExistsException}. Readers never see
+ * a file before its content is complete. A lock file left behind by a crash
+ * is removed once it is older than {@value #STALE_LOCK_AGE} milliseconds.
+ * If the batch fails, the directories it created are removed again, so no
+ * empty account directories are left behind.
+ *
+ * <p>This class is not thread-safe. A batch can be committed or aborted
+ * only once.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class WriteBatch extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The suffix of the lock file that reserves the name of a file.
+    */
+   private static final String LOCK_SUFFIX = ".lock";
+
+   /**
+    * The age after which a lock file is considered to be left behind by a
+    * crash, in milliseconds (1 minute).
+    */
+   static final long STALE_LOCK_AGE = 60L * 1000L;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>WriteBatch</code>.
+    *
+    * @param context
+    *    the {@link DataContext} the files are created in,
+    *    should not be <code>null</code>.
+    */
+   WriteBatch(DataContext context) {
+      _context     = context;
+      _files       = new ArrayList<StagedFile>();
+      _targets     = new HashSet<String>();
+      _createdDirs = new ArrayList<File>();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The data context the files are created in. Never <code>null</code>.
+    */
+   private final DataContext _context;
+
+   /**
+    * The staged files, in the order they were staged. Never
+    * <code>null</code>.
+    */
+   private final List<StagedFile> _files;
+
+   /**
+    * The database types and translated paths of the staged files, used to
+    * detect duplicates. Never <code>null</code>.
+    */
+   private final Set<String> _targets;
+
+   /**
+    * The directories created while writing the temporary files, removed
+    * again if the batch fails. Never <code>null</code>.
+    */
+   private final List<File> _createdDirs;
+
+   /**
+    * Flag that indicates if this batch has been committed or aborted.
+    */
+   private boolean _done;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Stages a new file. The data is not read until the batch is committed.
+    *
+    * @param dbType
+    *    the type of database to create the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, cannot be <code>null</code>
+    *    and must be a valid file path
+    *    (see {@link Assertions#assertValidFilePath(String)}).
+    *
+    * @param data
+    *    the content of the file, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use, or <code>null</code> if the file
+    *    should not be encrypted.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null || data == null</code>,
+    *    if the <code>path</code> is not valid
+    *    (see {@link Assertions#assertValidFilePath(String)})
+    *    or if the same file has already been staged.
+    *
+    * @throws IllegalStateException
+    *    if this batch has already been committed or aborted.
+    */
+   public void createFile(DatabaseType dbType, String path, DataSource data, Key key)
+   throws IllegalArgumentException, IllegalStateException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType,
+                                     "path",   path,
+                                     "data",   data);
+      checkNotDone();
+
+      ResolvedPath resolved = _context.resolvePath(path);
+      if (! _targets.add(dbType.name() + ':' + resolved.getTranslatedPath())) {
+         throw new IllegalArgumentException("File " + TextUtils.quote(path) + " in " + dbType + " database is already part of this batch.");
+      }
+
+      _files.add(new StagedFile(dbType, resolved, data, key));
+   }
+
+   /**
+    * Returns the number of staged files.
+    *
+    * @return
+    *    the number of files, always &gt;= 0.
+    */
+   public int size() {
+      return _files.size();
+   }
+
+   /**
+    * Discards all staged files. Nothing is written.
+    *
+    * @throws IllegalStateException
+    *    if this batch has already been committed or aborted.
+    */
+   public void abort() throws IllegalStateException {
+      checkNotDone();
+      _done = true;
+      _files.clear();
+   }
+
+   /**
+    * Creates all staged files. Either all files are created or, if this
+    * method throws an exception, none of them.
+    *
+    * @throws IllegalStateException
+    *    if this batch has already been committed or aborted.
+    *
+    * @throws FileExistsException
+    *    if any of the files already exists, or was created concurrently.
+    *
+    * @throws ContentAccessException
+    *    if a database is read-only or if writing a file failed.
+    */
+   public void commit() throws IllegalStateException, FileExistsException, ContentAccessException {
+      checkNotDone();
+      _done = true;
+
+      // Determine the targets, failing early if any of them exists
+      for (StagedFile file : _files) {
+         file.prepare();
+      }
+
+      boolean succeeded = false;
+      try {
+         write();
+         publish();
+         succeeded = true;
+      } finally {
+         for (StagedFile file : _files) {
+            file.deleteTempFile();
+         }
+         if (! succeeded) {
+            deleteCreatedDirectories();
+         }
+      }
+
+      // The files are no longer absent
+      for (StagedFile file : _files) {
+         _context.markPresent(file._dbType, file._path, file._key != null);
+      }
+   }
+
+   /**
+    * Writes all staged files to temporary files and forces them to disk.
+    *
+    * @throws TechnicalContentAccessException
+    *    if writing failed.
+    */
+   private void write() throws TechnicalContentAccessException {
+      List<FileOutputStream> streams = new ArrayList<FileOutputStream>(_files.size());
+      StagedFile current = null;
+      try {
+
+         // Write all files, keeping them open
+         for (StagedFile file : _files) {
+            current = file;
+            streams.add(file.writeTempFile());
+         }
+
+         // Single barrier: wait for the disk once for the whole batch
+         for (int i = 0; i < streams.size(); i++) {
+            current = _files.get(i);
+            streams.get(i).getFD().sync();
+         }
+      } catch (IOException cause) {
+         throw new TechnicalContentAccessException("Failed to write file " + TextUtils.quote(current._target.getPath()) + '.', cause);
+      } finally {
+         for (FileOutputStream out : streams) {
+            IOUtils.closeQuietly(out);
+         }
+      }
+   }
+
+   /**
+    * Reserves the final names of all files and then renames the temporary
+    * files to them. A name is reserved by creating a lock file next to it
+    * with {@link File#createNewFile()}, which fails atomically if the lock
+    * file exists; then the file itself must not exist. If anything fails,
+    * the renamed files are deleted again; files that were created by others
+    * are left alone. The lock files are always deleted.
+    *
+    * @throws FileExistsException
+    *    if any of the files already exists.
+    *
+    * @throws TechnicalContentAccessException
+    *    if reserving or renaming failed.
+    */
+   private void publish() throws FileExistsException, TechnicalContentAccessException {
+      List<File>   locks = new ArrayList<File>(_files.size());
+      List<File> renamed = new ArrayList<File>(_files.size());
+      boolean  succeeded = false;
+      StagedFile current = null;
+      try {
+
+         // Reserve all names first
+         for (StagedFile file : _files) {
+            current = file;
+            File lock = new File(file._target.getParentFile(), '.' + file._target.getName() + LOCK_SUFFIX);
+            if (! reserve(lock)) {
+               throw new FileExistsException(file._database, file._storedPath);
+            }
+            locks.add(lock);
+            if (file._target.exists()) {
+               throw new FileExistsException(file._database, file._storedPath);
+            } else if (file._alternative != null && file._alternative.exists()) {
+               throw new FileExistsException(file._database, file._alternativePath);
+            }
+         }
+
+         // Move the complete files into place
+         for (StagedFile file : _files) {
+            current = file;
+            if (! file._temp.renameTo(file._target)) {
+               throw new TechnicalContentAccessException("Failed to rename " + TextUtils.quote(file._temp.getPath()) + " to " + TextUtils.quote(file._target.getPath()) + '.');
+            }
+            renamed.add(file._target);
+            file._temp = null;
+         }
+         succeeded = true;
+
+      } catch (IOException cause) {
+         throw new TechnicalContentAccessException("Failed to create file " + TextUtils.quote(current._target.getPath()) + '.', cause);
+
+      // Roll back and release the names
+      } finally {
+         if (! succeeded) {
+            for (File target : renamed) {
+               if (! target.delete()) {
+                  Utils.logWarning("Failed to delete file " + TextUtils.quote(target.getPath()) + " while rolling back batch.");
+               }
+            }
+         }
+         for (File lock : locks) {
+            if (! lock.delete()) {
+               Utils.logWarning("Failed to delete lock file " + TextUtils.quote(lock.getPath()) + '.');
+            }
+         }
+      }
+   }
+
+   /**
+    * Creates a lock file. A lock file that is older than
+    * {@link #STALE_LOCK_AGE} was left behind by a crash; it is replaced.
+    *
+    * @param lock
+    *    the lock file, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the lock file was created,
+    *    <code>false</code> if it is held by someone else.
+    *
+    * @throws IOException
+    *    if the lock file could not be created.
+    */
+   private static boolean reserve(File lock) throws IOException {
+      if (lock.createNewFile()) {
+         return true;
+      }
+
+      long modified = lock.lastModified();
+      if (modified != 0L && System.currentTimeMillis() - modified > STALE_LOCK_AGE && lock.delete()) {
+         Utils.logWarning("Removed stale lock file " + TextUtils.quote(lock.getPath()) + '.');
+         return lock.createNewFile();
+      }
+      return false;
+   }
+
+   /**
+    * Deletes the directories that were created for this batch, deepest
+    * first. Directories that are not empty, for example because another
+    * party created a file in them in the meantime, are left alone.
+    */
+   private void deleteCreatedDirectories() {
+      for (int i = _createdDirs.size() - 1; i >= 0; i--) {
+         File dir = _createdDirs.get(i);
+         if (! dir.delete() && dir.exists()) {
+            Utils.logDebug("Kept directory " + TextUtils.quote(dir.getPath()) + " while rolling back batch, it is not empty.");
+         }
+      }
+   }
+
+   /**
+    * Checks that this batch has not been committed or aborted yet.
+    *
+    * @throws IllegalStateException
+    *    if this batch has already been committed or aborted.
+    */
+   private void checkNotDone() throws IllegalStateException {
+      if (_done) {
+         throw new IllegalStateException("Batch has already been committed or aborted.");
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "Batch of " + _files.size() + " file(s) in " + _context;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * File that is part of a batch.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private final class StagedFile extends Object {
+
+      /**
+       * Constructs a new <code>StagedFile</code>.
+       *
+       * @param dbType
+       *    the type of database, should not be <code>null</code>.
+       *
+       * @param path
+       *    the resolved path, should not be <code>null</code>.
+       *
+       * @param data
+       *    the content, should not be <code>null</code>.
+       *
+       * @param key
+       *    the encryption key, or <code>null</code>.
+       */
+      StagedFile(DatabaseType dbType, ResolvedPath path, DataSource data, Key key) {
+         _dbType = dbType;
+         _path   = path;
+         _data   = data;
+         _key    = key;
+      }
+
+      /**
+       * The type of database. Never <code>null</code>.
+       */
+      final DatabaseType _dbType;
+
+      /**
+       * The resolved path. Never <code>null</code>.
+       */
+      final ResolvedPath _path;
+
+      /**
+       * The content, not encrypted. Never <code>null</code>.
+       */
+      private final DataSource _data;
+
+      /**
+       * The encryption key, or <code>null</code>.
+       */
+      final Key _key;
+
+      /**
+       * The database the file is created in. Set by {@link #prepare()}.
+       */
+      Database _database;
+
+      /**
+       * The stored path of the file, relative to the {@link DataHub}. Set by
+       * {@link #prepare()}.
+       */
+      String _storedPath;
+
+      /**
+       * The final location of the file. Set by {@link #prepare()}.
+       */
+      File _target;
+
+      /**
+       * The location of the same file in the XML format, which must not
+       * exist either, or <code>null</code> if the file is not encrypted.
+       * Set by {@link #prepare()}.
+       */
+      File _alternative;
+
+      /**
+       * The stored path of {@link #_alternative}, or <code>null</code>.
+       * Set by {@link #prepare()}.
+       */
+      String _alternativePath;
+
+      /**
+       * The temporary file, or <code>null</code> if there is none (anymore).
+       */
+      File _temp;
+
+      /**
+       * Determines the final location of the file and checks that the
+       * database is writable and that the file does not exist yet.
+       *
+       * @throws FileExistsException
+       *    if the file already exists.
+       *
+       * @throws ContentAccessException
+       *    if the database is read-only.
+       */
+      void prepare() throws FileExistsException, ContentAccessException {
+         Database database = _context.getDatabase(_dbType);
+         if (! database.isWritable()) {
+            throw new TechnicalContentAccessException("Cannot create file " + TextUtils.quote(_path.getPath()) + ", " + _dbType + " database is read-only.");
+         }
+
+         // Encrypted files are created in the binary format, but must not
+         // exist in the XML format either; this check fails early, while the
+         // reservation in publish() guards against concurrent creation
+         String translatedPath = _path.getTranslatedPath();
+         String     storedPath = (_key == null) ? translatedPath : translatedPath + DataContext.BINARY_VAULT_SUFFIX;
+         if (DataContext.fileExists(database, storedPath)) {
+            throw new FileExistsException(database, storedPath);
+         } else if (_key != null && DataContext.fileExists(database, translatedPath + DataContext.XML_VAULT_SUFFIX)) {
+            throw new FileExistsException(database, translatedPath + DataContext.XML_VAULT_SUFFIX);
+         }
+
+         _database   = database;
+         _storedPath = storedPath;
+         _target     = new File(database.getWriteDir(), storedPath);
+         if (_key != null) {
+            _alternativePath = translatedPath + DataContext.XML_VAULT_SUFFIX;
+            _alternative     = new File(database.getWriteDir(), _alternativePath);
+         }
+      }
+
+      /**
+       * Writes the content to a temporary file in the target directory,
+       * creating the directory if needed.
+       *
+       * @return
+       *    the open stream to the temporary file, flushed but not synced,
+       *    never <code>null</code>.
+       *
+       * @throws IOException
+       *    if writing failed.
+       */
+      FileOutputStream writeTempFile() throws IOException {
+         // Remember which directories are created, outermost first
+         File              dir = _target.getParentFile();
+         List<File> createdDirs = new ArrayList<File>();
+         for (File d = dir; d != null && ! d.exists(); d = d.getParentFile()) {
+            createdDirs.add(0, d);
+         }
+         IOHelper.mkdirs(dir, true, true);
+         _createdDirs.addAll(createdDirs);
+         _temp = File.createTempFile('.' + _target.getName() + '.', ".tmp", dir);
+
+         DataSource data = (_key == null)
+                         ? _data
+                         : VaultStream.encrypt(_path.getTranslatedPath(), _data, _key);
+
+         FileOutputStream out = new FileOutputStream(_temp);
+         boolean ok = false;
+         try {
+            InputStream in = data.getInputStream();
+            try {
+               IOUtils.copy(in, out);
+            } finally {
+               in.close();
+            }
+            out.flush();
+            ok = true;
+         } finally {
+            if (! ok) {
+               IOUtils.closeQuietly(out);
+            }
+         }
+         return out;
+      }
+
+      /**
+       * Deletes the temporary file, if there is one.
+       */
+      void deleteTempFile() {
+         if (_temp != null && _temp.exists() && ! _temp.delete()) {
+            Utils.logWarning("Failed to delete temporary file " + TextUtils.quote(_temp.getPath()) + '.');
+         }
+         _temp = null;
+      }
+   }
+}
@@ -0,0 +1,761 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff;
+
+import org.znerd.yaff.security.Key;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.activation.DataSource;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.Utils;
+import org.xins.common.text.TextUtils;
+
+/**
+ * Bounded in-memory queue of files to be stored in the background. Files
+ * are stored in batches by a single daemon thread, in the order they were
+ * queued. This queue is used by
+ * {@link DataContext#storeFile(DatabaseType,ResolvedPath,DataSource,FileStoreMode,Key,Durability)}
+ * for {@link Durability#WRITE_BEHIND}, if the data context provides one, see
+ * {@link DataContext#getWriteBehindQueue()}.
+ *
+ * <p>When a file is queued while an earlier version of the same file is
+ * still waiting, the two are coalesced: only the latest content is written,
+ * with its key, but using the {@link FileStoreMode} of the earliest version,
+ * since that is the precondition that holds for the file on disk.
+ *
+ * <p>Until a file has been stored, its queued content is returned by
+ * {@link #getQueuedData(DatabaseType,ResolvedPath,Key)}, which
+ * {@link DataContext#getFile(DatabaseType,ResolvedPath,Key)} uses so that
+ * reads see the queued content. That method does not lock the queue.
+ *
+ * <p>When the queue is full, the queuing thread waits until the background
+ * thread has made room. On shutdown, either explicit or when the JVM exits,
+ * all queued files are written first.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class WriteBehindQueue extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default maximum number of queued files.
+    */
+   public static final int DEFAULT_CAPACITY = 1024;
+
+   /**
+    * The default maximum number of files stored in one batch.
+    */
+   public static final int DEFAULT_BATCH_SIZE = 64;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>WriteBehindQueue</code>. The background thread
+    * is started when the first file is queued.
+    *
+    * @param name
+    *    the name of this queue, used in {@link #toString()} and in the name
+    *    of the background thread, cannot be <code>null</code>.
+    *
+    * @param capacity
+    *    the maximum number of queued files, must be &gt; 0.
+    *
+    * @param batchSize
+    *    the maximum number of files stored in one batch, must be &gt; 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>name == null || capacity &lt; 1 || batchSize &lt; 1</code>.
+    */
+   public WriteBehindQueue(String name, int capacity, int batchSize)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("name", name);
+      if (capacity < 1) {
+         throw new IllegalArgumentException("capacity (" + capacity + ") < 1");
+      } else if (batchSize < 1) {
+         throw new IllegalArgumentException("batchSize (" + batchSize + ") < 1");
+      }
+
+      // Initialize fields
+      _name      = name;
+      _capacity  = capacity;
+      _batchSize = batchSize;
+      _pending   = new LinkedHashMap<Location,Write>();
+      _visible   = new ConcurrentHashMap<Location,Write>();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of this queue. Never <code>null</code>.
+    */
+   private final String _name;
+
+   /**
+    * The maximum number of queued files. Always &gt; 0.
+    */
+   private final int _capacity;
+
+   /**
+    * The maximum number of files stored in one batch. Always &gt; 0.
+    */
+   private final int _batchSize;
+
+   /**
+    * The files that are queued or currently being stored, for lookups by
+    * {@link #getQueuedData(DatabaseType,ResolvedPath,Key)} without locking.
+    * Never <code>null</code>. Only modified while holding the lock on this
+    * object.
+    */
+   private final ConcurrentHashMap<Location,Write> _visible;
+
+   /**
+    * The queued files, in the order they were queued. Never
+    * <code>null</code>. All access to this and the following fields is
+    * synchronized on this object.
+    */
+   private final LinkedHashMap<Location,Write> _pending;
+
+   /**
+    * The background thread, or <code>null</code> if it has not been started.
+    */
+   private Thread _thread;
+
+   /**
+    * The shutdown hook, or <code>null</code> if it is not registered.
+    */
+   private Thread _shutdownHook;
+
+   /**
+    * Flag that indicates if this queue has been shut down.
+    */
+   private boolean _shutdown;
+
+   /**
+    * The number of files in the batch that is currently being stored.
+    */
+   private int _inFlight;
+
+   /**
+    * The highest number of queued files so far.
+    */
+   private int _maxDepth;
+
+   /**
+    * The number of files that were coalesced with an already queued file.
+    */
+   private long _coalescedCount;
+
+   /**
+    * The number of times a thread had to wait because the queue was full.
+    */
+   private long _backpressureCount;
+
+   /**
+    * The number of files stored successfully.
+    */
+   private long _writeCount;
+
+   /**
+    * The number of files that could not be stored.
+    */
+   private long _failureCount;
+
+   /**
+    * The number of batches stored.
+    */
+   private long _batchCount;
+
+   /**
+    * The time it took to store the last batch, in milliseconds.
+    */
+   private long _lastFlushLatency;
+
+   /**
+    * The longest time it took to store a batch, in milliseconds.
+    */
+   private long _maxFlushLatency;
+
+   /**
+    * The total time spent storing batches, in milliseconds.
+    */
+   private long _totalFlushLatency;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Queues a file to be stored. If the queue is full, this method waits
+    * until there is room. The data source is read when the file is stored,
+    * so it must remain readable until then.
+    *
+    * @param context
+    *    the {@link DataContext} to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param dbType
+    *    the type of database to store the file in,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path to the file, as returned by
+    *    {@link DataContext#resolvePath(String)} on <code>context</code>,
+    *    cannot be <code>null</code>.
+    *
+    * @param data
+    *    the data, cannot be <code>null</code>.
+    *
+    * @param mode
+    *    the {@link FileStoreMode}, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} to use, or <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the file was queued, <code>false</code> if this
+    *    queue has been shut down.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>context == null
+    *          || dbType  == null
+    *          || path    == null
+    *          || data    == null
+    *          || mode    == null</code>.
+    */
+   public synchronized boolean enqueue(DataContext   context,
+                                       DatabaseType  dbType,
+                                       ResolvedPath  path,
+                                       DataSource    data,
+                                       FileStoreMode mode,
+                                       Key           key)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("context", context,
+                                     "dbType",  dbType,
+                                     "path",    path,
+                                     "data",    data);
+      MandatoryArgumentChecker.check("mode", mode);
+
+      if (_shutdown) {
+         return false;
+      }
+
+      // Coalesce with a queued version of the same file
+      Location location = new Location(dbType, path);
+      Write    existing = _pending.get(location);
+      if (existing != null) {
+         coalesce(location, existing, data, key);
+         return true;
+      }
+
+      // Apply backpressure while the queue is full
+      boolean interrupted = false;
+      if (_pending.size() >= _capacity) {
+         _backpressureCount++;
+         do {
+            try {
+               wait();
+            } catch (InterruptedException cause) {
+               interrupted = true;
+            }
+         } while (_pending.size() >= _capacity && ! _shutdown);
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      if (_shutdown) {
+         return false;
+      }
+
+      // Another version may have been queued while waiting
+      existing = _pending.get(location);
+      if (existing != null) {
+         coalesce(location, existing, data, key);
+      } else {
+         Write write = new Write(context, dbType, path, data, mode, key);
+         _pending.put(location, write);
+         _visible.put(location, write);
+         _maxDepth = Math.max(_maxDepth, _pending.size());
+      }
+
+      startThread();
+      notifyAll();
+      return true;
+   }
+
+   /**
+    * Replaces a queued file with a later version. The queued file keeps its
+    * position in the queue and its {@link FileStoreMode}. Must be called
+    * while holding the lock on this object.
+    *
+    * @param location
+    *    the location of the file, should not be <code>null</code>.
+    *
+    * @param existing
+    *    the queued version, should not be <code>null</code>.
+    *
+    * @param data
+    *    the data of the later version, should not be <code>null</code>.
+    *
+    * @param key
+    *    the encryption key of the later version, or <code>null</code>.
+    */
+   private void coalesce(Location location, Write existing, DataSource data, Key key) {
+      Write write = new Write(existing._context, existing._dbType, existing._path, data, existing._mode, key);
+      _pending.put(location, write);
+      _visible.put(location, write);
+      _coalescedCount++;
+   }
+
+   /**
+    * Returns the content of a file that is queued or currently being
+    * stored, so reads can see it before it has been written. This method
+    * does not lock this queue, so it is cheap to call on every read.
+    *
+    * @param dbType
+    *    the type of database, cannot be <code>null</code>.
+    *
+    * @param path
+    *    the resolved path, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the encryption {@link Key} the file is read with,
+    *    or <code>null</code>.
+    *
+    * @return
+    *    the queued content, or <code>null</code> if the file is not queued,
+    *    or if it is queued with a different key.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dbType == null || path == null</code>.
+    */
+   public DataSource getQueuedData(DatabaseType dbType, ResolvedPath path, Key key)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("dbType", dbType, "path", path);
+
+      if (_visible.isEmpty()) {
+         return null;
+      }
+
+      Write write = _visible.get(new Location(dbType, path));
+      if (write == null || (key == null ? write._key != null : ! key.equals(write._key))) {
+         return null;
+      }
+      return write._data;
+   }
+
+   /**
+    * Starts the background thread and registers the shutdown hook, if that
+    * has not been done yet. Must be called while holding the lock on this
+    * object.
+    */
+   private void startThread() {
+      if (_thread != null) {
+         return;
+      }
+
+      _thread = new Thread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      }, "YAFF write-behind " + _name);
+      _thread.setDaemon(true);
+      _thread.start();
+
+      _shutdownHook = new Thread(new Runnable() {
+         public void run() {
+            shutdown();
+         }
+      }, "YAFF write-behind shutdown " + _name);
+      Runtime.getRuntime().addShutdownHook(_shutdownHook);
+   }
+
+   /**
+    * Stores batches of queued files until this queue has been shut down and
+    * all queued files have been stored. Called by the background thread.
+    */
+   private void flushLoop() {
+      while (true) {
+
+         // Take the next batch
+         List<Write> batch;
+         synchronized (this) {
+            while (_pending.isEmpty() && ! _shutdown) {
+               try {
+                  wait();
+               } catch (InterruptedException cause) {
+                  // ignore, only shutdown stops this thread
+               }
+            }
+            if (_pending.isEmpty()) {
+               return;
+            }
+
+            batch = new ArrayList<Write>(Math.min(_batchSize, _pending.size()));
+            Iterator<Write> it = _pending.values().iterator();
+            while (it.hasNext() && batch.size() < _batchSize) {
+               batch.add(it.next());
+               it.remove();
+            }
+            _inFlight = batch.size();
+
+            // There is room again
+            notifyAll();
+         }
+
+         // Store the batch
+         long start = System.currentTimeMillis();
+         int failures = 0;
+         for (Write write : batch) {
+            try {
+               write._context.storeFile(write._dbType, write._path, write._data, write._mode, write._key, Durability.NO_SYNC);
+            } catch (Throwable cause) {
+               failures++;
+               Utils.logError(toString() + ": Failed to store file " + TextUtils.quote(write._path.getPath()) + " in " + write._dbType + " database of " + write._context + '.', cause);
+            }
+         }
+         long latency = System.currentTimeMillis() - start;
+
+         synchronized (this) {
+
+            // Files queued again in the meantime remain visible
+            for (Write write : batch) {
+               _visible.remove(new Location(write._dbType, write._path), write);
+            }
+            _inFlight            = 0;
+            _writeCount         += batch.size() - failures;
+            _failureCount       += failures;
+            _batchCount++;
+            _lastFlushLatency    = latency;
+            _maxFlushLatency     = Math.max(_maxFlushLatency, latency);
+            _totalFlushLatency  += latency;
+            notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Waits until all files that are currently queued have been stored.
+    */
+   public synchronized void flush() {
+      boolean interrupted = false;
+      while ((! _pending.isEmpty() || _inFlight > 0) && _thread != null && _thread.isAlive()) {
+         try {
+            wait();
+         } catch (InterruptedException cause) {
+            interrupted = true;
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Shuts down this queue. All queued files are stored before this method
+    * returns; files queued afterwards are refused. Calling this method more
+    * than once has no effect.
+    */
+   public void shutdown() {
+      Thread thread;
+      Thread hook;
+      synchronized (this) {
+         _shutdown     = true;
+         thread        = _thread;
+         hook          = _shutdownHook;
+         _shutdownHook = null;
+         notifyAll();
+      }
+
+      // Unregister the hook, unless it is the one running this method
+      if (hook != null && hook != Thread.currentThread()) {
+         try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+         } catch (IllegalStateException cause) {
+            // JVM is shutting down already
+         }
+      }
+
+      // Wait for the queued files to be stored
+      if (thread != null && thread != Thread.currentThread()) {
+         boolean interrupted = false;
+         while (thread.isAlive()) {
+            try {
+               thread.join();
+            } catch (InterruptedException cause) {
+               interrupted = true;
+            }
+         }
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * Returns the number of files currently waiting to be stored, excluding
+    * the batch that is being stored.
+    *
+    * @return
+    *    the queue depth, always &gt;= 0.
+    */
+   public synchronized int getDepth() {
+      return _pending.size();
+   }
+
+   /**
+    * Returns the highest number of files that were waiting at the same time.
+    *
+    * @return
+    *    the maximum queue depth, always &gt;= 0.
+    */
+   public synchronized int getMaxDepth() {
+      return _maxDepth;
+   }
+
+   /**
+    * Returns the maximum number of queued files.
+    *
+    * @return
+    *    the capacity, always &gt; 0.
+    */
+   public int getCapacity() {
+      return _capacity;
+   }
+
+   /**
+    * Returns the number of files that replaced an already queued version of
+    * the same file.
+    *
+    * @return
+    *    the coalesced count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getCoalescedCount() {
+      return _coalescedCount;
+   }
+
+   /**
+    * Returns the number of times a thread had to wait because the queue was
+    * full.
+    *
+    * @return
+    *    the backpressure count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getBackpressureCount() {
+      return _backpressureCount;
+   }
+
+   /**
+    * Returns the number of files stored successfully.
+    *
+    * @return
+    *    the write count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getWriteCount() {
+      return _writeCount;
+   }
+
+   /**
+    * Returns the number of files that could not be stored.
+    *
+    * @return
+    *    the failure count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getFailureCount() {
+      return _failureCount;
+   }
+
+   /**
+    * Returns the number of batches stored.
+    *
+    * @return
+    *    the batch count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getBatchCount() {
+      return _batchCount;
+   }
+
+   /**
+    * Returns the time it took to store the last batch.
+    *
+    * @return
+    *    the latency in milliseconds, always &gt;= <code>0L</code>;
+    *    <code>0L</code> if no batch has been stored yet.
+    */
+   public synchronized long getLastFlushLatency() {
+      return _lastFlushLatency;
+   }
+
+   /**
+    * Returns the longest time it took to store a batch.
+    *
+    * @return
+    *    the latency in milliseconds, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getMaxFlushLatency() {
+      return _maxFlushLatency;
+   }
+
+   /**
+    * Returns the average time it took to store a batch.
+    *
+    * @return
+    *    the latency in milliseconds, always &gt;= <code>0.0</code>;
+    *    <code>0.0</code> if no batch has been stored yet.
+    */
+   public synchronized double getAverageFlushLatency() {
+      return (_batchCount == 0L) ? 0.0 : ((double) _totalFlushLatency) / ((double) _batchCount);
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "Write-behind queue \"" + _name + "\" (" + _pending.size() + '/' + _capacity + " queued, " + _writeCount + " written, " + _failureCount + " failed, " + _batchCount + " batches)";
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Location of a queued file: a database type and a resolved path, which
+    * includes the data context.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class Location extends Object {
+
+      /**
+       * Constructs a new <code>Location</code>.
+       *
+       * @param dbType
+       *    the type of database, should not be <code>null</code>.
+       *
+       * @param path
+       *    the resolved path, should not be <code>null</code>.
+       */
+      Location(DatabaseType dbType, ResolvedPath path) {
+         _dbType = dbType;
+         _path   = path;
+      }
+
+      /**
+       * The type of database. Never <code>null</code>.
+       */
+      private final DatabaseType _dbType;
+
+      /**
+       * The resolved path. Never <code>null</code>.
+       */
+      private final ResolvedPath _path;
+
+      @Override
+      public boolean equals(Object obj) {
+         if (! (obj instanceof Location)) {
+            return false;
+         }
+
+         Location that = (Location) obj;
+         return _dbType == that._dbType && _path.equals(that._path);
+      }
+
+      @Override
+      public int hashCode() {
+         return _dbType.hashCode() ^ _path.hashCode();
+      }
+   }
+
+   /**
+    * Queued file. Immutable; a later version of the same file replaces
+    * the whole object, so lookups without locking see a consistent version.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class Write extends Object {
+
+      /**
+       * Constructs a new <code>Write</code>.
+       *
+       * @param context
+       *    the data context, should not be <code>null</code>.
+       *
+       * @param dbType
+       *    the type of database, should not be <code>null</code>.
+       *
+       * @param path
+       *    the resolved path, should not be <code>null</code>.
+       *
+       * @param data
+       *    the data, should not be <code>null</code>.
+       *
+       * @param mode
+       *    the store mode, should not be <code>null</code>.
+       *
+       * @param key
+       *    the encryption key, or <code>null</code>.
+       */
+      Write(DataContext   context,
+            DatabaseType  dbType,
+            ResolvedPath  path,
+            DataSource    data,
+            FileStoreMode mode,
+            Key           key) {
+         _context = context;
+         _dbType  = dbType;
+         _path    = path;
+         _data    = data;
+         _mode    = mode;
+         _key     = key;
+      }
+
+      /**
+       * The data context. Never <code>null</code>.
+       */
+      final DataContext _context;
+
+      /**
+       * The type of database. Never <code>null</code>.
+       */
+      final DatabaseType _dbType;
+
+      /**
+       * The resolved path. Never <code>null</code>.
+       */
+      final ResolvedPath _path;
+
+      /**
+       * The data. Never <code>null</code>.
+       */
+      final DataSource _data;
+
+      /**
+       * The store mode. Never <code>null</code>.
+       */
+      final FileStoreMode _mode;
+
+      /**
+       * The encryption key, or <code>null</code>.
+       */
+      final Key _key;
+   }
+}
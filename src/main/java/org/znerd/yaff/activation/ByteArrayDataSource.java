@@ -85,6 +85,39 @@ public final class ByteArrayDataSource implements XDataSource {
     *          || contentType.length() == 0</code>.
     */
    public ByteArrayDataSource(String name, byte[] data, String contentType)
+   throws IllegalArgumentException {
+      this(name, data, contentType, System.currentTimeMillis());
+   }
+
+   /**
+    * Constructs a new <code>ByteArrayDataSource</code> with the specified
+    * last modified time stamp.
+    *
+    * @param name
+    *    the name, cannot be <code>null</code>
+    *    and cannot be an empty string.
+    *
+    * @param data
+    *    the data, as a byte array, cannot be <code>null</code>;
+    *    the array is copied.
+    *
+    * @param contentType
+    *    the MIME content type,
+    *    cannot be <code>null</code>
+    *    and cannot be an empty string.
+    *
+    * @param lastModified
+    *    the last modified time stamp, must be &gt; <code>0L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>name                 == null
+    *          || name.length()        == 0</code>.
+    *          || data                 == null
+    *          || contentType          == null
+    *          || contentType.length() == 0
+    *          || lastModified         &lt;= 0L</code>.
+    */
+   public ByteArrayDataSource(String name, byte[] data, String contentType, long lastModified)
    throws IllegalArgumentException {
 
       // Check preconditions
@@ -95,13 +128,15 @@ public final class ByteArrayDataSource implements XDataSource {
          throw new IllegalArgumentException("name.length() == 0");
       } else if (contentType.length() < 1) {
          throw new IllegalArgumentException("contentType.length() == 0");
+      } else if (lastModified <= 0L) {
+         throw new IllegalArgumentException("lastModified (" + lastModified + "L) <= 0L");
       }
 
       // Populate fields
       _name         = name;
       _data         = new byte[data.length];
       _contentType  = contentType;
-      _lastModified = System.currentTimeMillis();
+      _lastModified = lastModified;
 
       System.arraycopy(data, 0, _data, 0, data.length);
    }
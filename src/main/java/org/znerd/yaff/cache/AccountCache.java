@@ -0,0 +1,268 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.znerd.yaff.security.Key;
+
+import org.xins.common.MandatoryArgumentChecker;
+
+/**
+ * Cache of the accounts within a realm that have been loaded, keyed by
+ * account ID. Entries are evicted when the cache is full, least recently
+ * used first, and they expire a fixed time after they were stored.
+ *
+ * <p>The cache does not hold <code>Account</code> objects, since those are
+ * not immutable and must not be shared between requests. It only records
+ * that an account was found and could be opened with a certain
+ * {@link Key}, so that on a hit the realm can construct a new
+ * <code>Account</code> object without loading the account again.
+ *
+ * <p>Each entry is bound to the {@link Key} that was used to load the
+ * account, if any; a lookup with a different key is a miss. Each entry also
+ * records whether the account was disabled when it was loaded; a lookup
+ * with a different disabled state is a miss, so changes to the set of
+ * disabled accounts take effect right away.
+ *
+ * <p>Writers should call {@link #invalidate(String)} whenever they change
+ * or delete the data of an account, both before and after writing. Each
+ * invalidation bumps the version of the account. A loader takes the version
+ * with {@link #getVersion(String)} before it starts loading and passes it
+ * to {@link #put(String,Key,boolean,long)}. If the account was
+ * invalidated in the meantime, the entry is stale and is never returned.
+ * The versions are kept in a fixed number of stripes, shared by the
+ * account IDs with the same hash, so an invalidation can also cause a miss
+ * for another account.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class AccountCache
+extends BoundedCache<String,AccountCache.CachedAccount> {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default maximum number of entries.
+    */
+   public static final int DEFAULT_MAX_SIZE = 1024;
+
+   /**
+    * The default time after which an entry expires, in milliseconds
+    * (5 minutes).
+    */
+   public static final long DEFAULT_TIME_TO_LIVE = 5L * 60L * 1000L;
+
+   /**
+    * The number of version stripes. Must be a power of 2.
+    */
+   private static final int VERSION_STRIPES = 1024;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>AccountCache</code>.
+    *
+    * @param name
+    *    the name of this cache, cannot be <code>null</code>.
+    *
+    * @param maxSize
+    *    the maximum number of entries, must be &gt; 0.
+    *
+    * @param timeToLive
+    *    the time after which an entry expires, in milliseconds, or
+    *    <code>0L</code> if entries do not expire; must be &gt;= <code>0L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>name == null || maxSize &lt;= 0 || timeToLive &lt; 0L</code>.
+    */
+   public AccountCache(String name, int maxSize, long timeToLive)
+   throws IllegalArgumentException {
+      super(name, maxSize, timeToLive);
+      _versions = new AtomicLongArray(VERSION_STRIPES);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The version per stripe of account IDs. Never <code>null</code>.
+    */
+   private final AtomicLongArray _versions;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the stripe that holds the version of an account.
+    *
+    * @param accountID
+    *    the account ID, should not be <code>null</code>.
+    *
+    * @return
+    *    the index of the stripe.
+    */
+   private static int stripe(String accountID) {
+      int h = accountID.hashCode();
+      return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+   }
+
+   /**
+    * Returns the current version of an account. A loader should call this
+    * before it starts loading the account.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code>.
+    *
+    * @return
+    *    the version.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>.
+    */
+   public long getVersion(String accountID)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("accountID", accountID);
+      return _versions.get(stripe(accountID));
+   }
+
+   /**
+    * Determines if an account has been loaded with the specified key and
+    * disabled state.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the {@link Key} the caller would use to load the account,
+    *    or <code>null</code> if none.
+    *
+    * @param disabled
+    *    whether the account is currently disabled.
+    *
+    * @return
+    *    <code>true</code> if there is an entry for the account, or
+    *    <code>false</code> if there is no entry, if it has expired, if the
+    *    account has been invalidated since it was loaded, or if it was
+    *    loaded with a different key or a different disabled state.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>.
+    */
+   public boolean contains(String accountID, Key key, boolean disabled)
+   throws IllegalArgumentException {
+      CachedAccount cached = get(accountID, getVersion(accountID));
+      if (cached == null) {
+         return false;
+      }
+
+      // A different key is a miss, but the entry remains valid for its own
+      // key; a different disabled state makes the entry stale
+      boolean sameKey = (key == null) ? cached._key == null : key.equals(cached._key);
+      if (! sameKey) {
+         return false;
+      } else if (cached._disabled != disabled) {
+         remove(accountID);
+         return false;
+      }
+
+      return true;
+   }
+
+   /**
+    * Records that an account was loaded, starting at the specified
+    * version. If the account has been invalidated since, nothing is
+    * recorded.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code>.
+    *
+    * @param key
+    *    the {@link Key} that was used to load the account,
+    *    or <code>null</code> if none.
+    *
+    * @param disabled
+    *    whether the account was disabled when it was loaded.
+    *
+    * @param version
+    *    the version of the account before loading started, as returned by
+    *    {@link #getVersion(String)}.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>.
+    */
+   public void put(String accountID, Key key, boolean disabled, long version)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("accountID", accountID);
+
+      // An entry stored with an old version is stale for get(K,long), even
+      // if the account is invalidated between this check and the put
+      if (getVersion(accountID) == version) {
+         put(accountID, new CachedAccount(key, disabled), 1L, version);
+      }
+   }
+
+   /**
+    * Bumps the version of the specified account and drops its entry, if
+    * any. Accounts that were being loaded when this method was called are
+    * not cached.
+    *
+    * @param accountID
+    *    the account ID, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>accountID == null</code>.
+    */
+   public void invalidate(String accountID)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("accountID", accountID);
+      _versions.incrementAndGet(stripe(accountID));
+      remove(accountID);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Entry for a loaded account: the key that loaded it and its disabled
+    * state at that time.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   public static final class CachedAccount extends Object {
+
+      /**
+       * Constructs a new <code>CachedAccount</code>.
+       *
+       * @param key
+       *    the key that loaded the account, or <code>null</code>.
+       *
+       * @param disabled
+       *    whether the account was disabled.
+       */
+      CachedAccount(Key key, boolean disabled) {
+         _key      = key;
+         _disabled = disabled;
+      }
+
+      /**
+       * The key that loaded the account. Can be <code>null</code>.
+       */
+      private final Key _key;
+
+      /**
+       * Whether the account was disabled when it was loaded.
+       */
+      private final boolean _disabled;
+   }
+}
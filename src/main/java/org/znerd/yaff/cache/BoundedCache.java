@@ -0,0 +1,575 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xins.common.MandatoryArgumentChecker;
+
+/**
+ * Thread-safe cache with a bounded total weight. When adding an entry would
+ * make the total weight exceed the maximum, the least recently used entries
+ * are evicted first.
+ *
+ * <p>Each entry can optionally carry a version stamp, typically a
+ * modification time. A lookup with {@link #get(Object,long)} only succeeds if
+ * the stamp of the cached entry matches; otherwise the entry is dropped and
+ * the lookup counts as a miss.
+ *
+ * <p>Optionally, entries expire a fixed time after they were stored, see
+ * {@link #BoundedCache(String,long,long)}. Expired entries are dropped on
+ * lookup, and the lookup counts as a miss.
+ *
+ * <p>Subclasses can override {@link #entryRemoved(Object,Object,boolean)} to
+ * act on entries that leave the cache, for example to wipe sensitive data.
+ *
+ * @param <K>
+ *    the type of the keys.
+ *
+ * @param <V>
+ *    the type of the cached values.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public class BoundedCache<K,V> extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>BoundedCache</code>.
+    *
+    * @param name
+    *    the name of this cache, used in {@link #toString()},
+    *    cannot be <code>null</code>.
+    *
+    * @param maxWeight
+    *    the maximum total weight of all entries, must be &gt; <code>0L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>name == null || maxWeight &lt;= 0L</code>.
+    */
+   public BoundedCache(String name, long maxWeight)
+   throws IllegalArgumentException {
+      this(name, maxWeight, 0L);
+   }
+
+   /**
+    * Constructs a new <code>BoundedCache</code> with entries that expire.
+    *
+    * @param name
+    *    the name of this cache, used in {@link #toString()},
+    *    cannot be <code>null</code>.
+    *
+    * @param maxWeight
+    *    the maximum total weight of all entries, must be &gt; <code>0L</code>.
+    *
+    * @param timeToLive
+    *    the time after which an entry expires, in milliseconds since it was
+    *    stored, or <code>0L</code> if entries do not expire;
+    *    must be &gt;= <code>0L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>name == null || maxWeight &lt;= 0L || timeToLive &lt; 0L</code>.
+    */
+   public BoundedCache(String name, long maxWeight, long timeToLive)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("name", name);
+      if (maxWeight <= 0L) {
+         throw new IllegalArgumentException("maxWeight (" + maxWeight + "L) <= 0L");
+      } else if (timeToLive < 0L) {
+         throw new IllegalArgumentException("timeToLive (" + timeToLive + "L) < 0L");
+      }
+
+      // Initialize fields
+      _name       = name;
+      _maxWeight  = maxWeight;
+      _timeToLive = timeToLive;
+      _entries    = new LinkedHashMap<K,Entry<V>>(16, 0.75f, true);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of this cache. Never <code>null</code>.
+    */
+   private final String _name;
+
+   /**
+    * The maximum total weight. Always &gt; <code>0L</code>.
+    */
+   private final long _maxWeight;
+
+   /**
+    * The time after which an entry expires, in milliseconds, or
+    * <code>0L</code> if entries do not expire.
+    */
+   private final long _timeToLive;
+
+   /**
+    * The entries, in access order (least recently used first).
+    * Never <code>null</code>. All access is synchronized on this object.
+    */
+   private final LinkedHashMap<K,Entry<V>> _entries;
+
+   /**
+    * The current total weight of all entries.
+    */
+   private long _weight;
+
+   /**
+    * The number of successful lookups.
+    */
+   private long _hitCount;
+
+   /**
+    * The number of failed lookups, including lookups of stale entries.
+    */
+   private long _missCount;
+
+   /**
+    * The number of entries evicted to stay within the maximum weight.
+    */
+   private long _evictionCount;
+
+   /**
+    * The number of entries dropped because they expired.
+    */
+   private long _expirationCount;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Looks up a value, regardless of its version stamp.
+    *
+    * @param key
+    *    the key, cannot be <code>null</code>.
+    *
+    * @return
+    *    the cached value, or <code>null</code> if there is none.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null</code>.
+    */
+   public V get(K key) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("key", key);
+
+      Entry<V> expired;
+      synchronized (this) {
+         Entry<V> entry = _entries.get(key);
+         if (entry == null) {
+            _missCount++;
+            return null;
+         } else if (! isExpired(entry)) {
+            _hitCount++;
+            return entry._value;
+         }
+
+         // Drop the expired entry
+         _missCount++;
+         _expirationCount++;
+         _entries.remove(key);
+         _weight -= entry._weight;
+         expired = entry;
+      }
+
+      entryRemoved(key, expired._value, false);
+      return null;
+   }
+
+   /**
+    * Determines if the specified entry has expired. Should be called while
+    * holding the lock on this object.
+    *
+    * @param entry
+    *    the entry, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the entry has expired,
+    *    <code>false</code> otherwise.
+    */
+   private boolean isExpired(Entry<V> entry) {
+      return _timeToLive > 0L && System.currentTimeMillis() - entry._stored >= _timeToLive;
+   }
+
+   /**
+    * Looks up a value with a specific version stamp. If an entry exists, but
+    * with a different version stamp, then it is considered stale and it is
+    * removed.
+    *
+    * @param key
+    *    the key, cannot be <code>null</code>.
+    *
+    * @param version
+    *    the required version stamp, for example a modification time.
+    *
+    * @return
+    *    the cached value, or <code>null</code> if there is no entry with the
+    *    specified version stamp.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null</code>.
+    */
+   public V get(K key, long version) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("key", key);
+
+      Entry<V> stale;
+      synchronized (this) {
+         Entry<V> entry = _entries.get(key);
+         if (entry == null) {
+            _missCount++;
+            return null;
+         } else if (entry._version == version && ! isExpired(entry)) {
+            _hitCount++;
+            return entry._value;
+         }
+
+         // Drop the stale or expired entry
+         _missCount++;
+         if (entry._version == version) {
+            _expirationCount++;
+         }
+         _entries.remove(key);
+         _weight -= entry._weight;
+         stale = entry;
+      }
+
+      entryRemoved(key, stale._value, false);
+      return null;
+   }
+
+   /**
+    * Stores a value without a version stamp.
+    *
+    * @param key
+    *    the key, cannot be <code>null</code>.
+    *
+    * @param value
+    *    the value, cannot be <code>null</code>.
+    *
+    * @param weight
+    *    the weight of the value, must be &gt;= <code>1L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null || value == null || weight &lt; 1L</code>.
+    */
+   public void put(K key, V value, long weight)
+   throws IllegalArgumentException {
+      put(key, value, weight, 0L);
+   }
+
+   /**
+    * Stores a value with a version stamp. Entries that are heavier than the
+    * maximum weight of this cache are not stored at all.
+    *
+    * @param key
+    *    the key, cannot be <code>null</code>.
+    *
+    * @param value
+    *    the value, cannot be <code>null</code>.
+    *
+    * @param weight
+    *    the weight of the value, must be &gt;= <code>1L</code>.
+    *
+    * @param version
+    *    the version stamp of the value, for example a modification time.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null || value == null || weight &lt; 1L</code>.
+    */
+   public void put(K key, V value, long weight, long version)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("key", key, "value", value);
+      if (weight < 1L) {
+         throw new IllegalArgumentException("weight (" + weight + "L) < 1L");
+      }
+
+      V             replaced = null;
+      List<K>    evictedKeys = new ArrayList<K>();
+      List<V>  evictedValues = new ArrayList<V>();
+      synchronized (this) {
+
+         // Replace any existing entry
+         Entry<V> old = _entries.remove(key);
+         if (old != null) {
+            _weight -= old._weight;
+            if (old._value != value) {
+               replaced = old._value;
+            }
+         }
+
+         // Evict the least recently used entries until the new one fits
+         if (weight <= _maxWeight) {
+            Iterator<Map.Entry<K,Entry<V>>> it = _entries.entrySet().iterator();
+            while (_weight + weight > _maxWeight && it.hasNext()) {
+               Map.Entry<K,Entry<V>> eldest = it.next();
+               it.remove();
+               _weight -= eldest.getValue()._weight;
+               _evictionCount++;
+               evictedKeys.add(eldest.getKey());
+               evictedValues.add(eldest.getValue()._value);
+            }
+
+            _entries.put(key, new Entry<V>(value, weight, version, System.currentTimeMillis()));
+            _weight += weight;
+         }
+      }
+
+      // Notify outside of the lock
+      if (replaced != null) {
+         entryRemoved(key, replaced, false);
+      }
+      for (int i = 0; i < evictedKeys.size(); i++) {
+         entryRemoved(evictedKeys.get(i), evictedValues.get(i), true);
+      }
+   }
+
+   /**
+    * Removes an entry.
+    *
+    * @param key
+    *    the key, cannot be <code>null</code>.
+    *
+    * @return
+    *    the removed value, or <code>null</code> if there was none.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null</code>.
+    */
+   public V remove(K key) throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("key", key);
+
+      Entry<V> entry;
+      synchronized (this) {
+         entry = _entries.remove(key);
+         if (entry == null) {
+            return null;
+         }
+         _weight -= entry._weight;
+      }
+
+      entryRemoved(key, entry._value, false);
+      return entry._value;
+   }
+
+   /**
+    * Removes all entries.
+    */
+   public void clear() {
+      Map<K,Entry<V>> removed;
+      synchronized (this) {
+         removed = new LinkedHashMap<K,Entry<V>>(_entries);
+         _entries.clear();
+         _weight = 0L;
+      }
+
+      for (Map.Entry<K,Entry<V>> e : removed.entrySet()) {
+         entryRemoved(e.getKey(), e.getValue()._value, false);
+      }
+   }
+
+   /**
+    * Returns a snapshot of all keys currently in this cache.
+    *
+    * @return
+    *    a new {@link List} containing the keys, least recently used first,
+    *    never <code>null</code>.
+    */
+   public synchronized List<K> getKeys() {
+      return new ArrayList<K>(_entries.keySet());
+   }
+
+   /**
+    * Callback method invoked when an entry leaves this cache. This method is
+    * never called while the cache lock is held.
+    *
+    * <p>The implementation of this method in class
+    * <code>BoundedCache</code> does nothing.
+    *
+    * @param key
+    *    the key of the entry, never <code>null</code>.
+    *
+    * @param value
+    *    the value of the entry, never <code>null</code>.
+    *
+    * @param evicted
+    *    <code>true</code> if the entry was evicted to stay within the
+    *    maximum weight, <code>false</code> if it was removed, replaced or
+    *    found to be stale.
+    */
+   protected void entryRemoved(K key, V value, boolean evicted) {
+      // empty
+   }
+
+   /**
+    * Returns the number of entries.
+    *
+    * @return
+    *    the number of entries, always &gt;= 0.
+    */
+   public synchronized int getSize() {
+      return _entries.size();
+   }
+
+   /**
+    * Returns the current total weight of all entries.
+    *
+    * @return
+    *    the total weight, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getWeight() {
+      return _weight;
+   }
+
+   /**
+    * Returns the maximum total weight.
+    *
+    * @return
+    *    the maximum total weight, always &gt; <code>0L</code>.
+    */
+   public long getMaxWeight() {
+      return _maxWeight;
+   }
+
+   /**
+    * Returns the number of successful lookups.
+    *
+    * @return
+    *    the hit count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getHitCount() {
+      return _hitCount;
+   }
+
+   /**
+    * Returns the number of failed lookups, including lookups of stale
+    * entries.
+    *
+    * @return
+    *    the miss count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getMissCount() {
+      return _missCount;
+   }
+
+   /**
+    * Returns the number of entries that were evicted to stay within the
+    * maximum weight.
+    *
+    * @return
+    *    the eviction count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getEvictionCount() {
+      return _evictionCount;
+   }
+
+   /**
+    * Returns the number of entries that were dropped because they expired.
+    *
+    * @return
+    *    the expiration count, always &gt;= <code>0L</code>.
+    */
+   public synchronized long getExpirationCount() {
+      return _expirationCount;
+   }
+
+   /**
+    * Returns the time after which an entry expires.
+    *
+    * @return
+    *    the time to live, in milliseconds, or <code>0L</code> if entries do
+    *    not expire.
+    */
+   public long getTimeToLive() {
+      return _timeToLive;
+   }
+
+   /**
+    * Returns the fraction of lookups that succeeded.
+    *
+    * @return
+    *    the hit ratio, between <code>0.0</code> and <code>1.0</code>
+    *    (inclusive); <code>0.0</code> if there were no lookups yet.
+    */
+   public synchronized double getHitRatio() {
+      long lookups = _hitCount + _missCount;
+      return (lookups == 0L) ? 0.0 : ((double) _hitCount) / ((double) lookups);
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "Cache \"" + _name + "\" (" + _entries.size() + " entries, weight " + _weight + '/' + _maxWeight + ", " + _hitCount + " hits, " + _missCount + " misses, " + _evictionCount + " evictions)";
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Cache entry.
+    *
+    * @param <V>
+    *    the type of the cached value.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   private static final class Entry<V> extends Object {
+
+      /**
+       * Constructs a new <code>Entry</code>.
+       *
+       * @param value
+       *    the value, should not be <code>null</code>.
+       *
+       * @param weight
+       *    the weight, should be &gt;= <code>1L</code>.
+       *
+       * @param version
+       *    the version stamp.
+       *
+       * @param stored
+       *    the time the entry was stored, in milliseconds since the Epoch.
+       */
+      Entry(V value, long weight, long version, long stored) {
+         _value   = value;
+         _weight  = weight;
+         _version = version;
+         _stored  = stored;
+      }
+
+      /**
+       * The value. Never <code>null</code>.
+       */
+      final V _value;
+
+      /**
+       * The weight. Always &gt;= <code>1L</code>.
+       */
+      final long _weight;
+
+      /**
+       * The version stamp.
+       */
+      final long _version;
+
+      /**
+       * The time the entry was stored, in milliseconds since the Epoch.
+       */
+      final long _stored;
+   }
+}
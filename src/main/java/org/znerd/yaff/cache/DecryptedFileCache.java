@@ -0,0 +1,384 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff.cache;
+
+import org.znerd.yaff.activation.ByteArrayDataSource;
+import org.znerd.yaff.activation.XDataSource;
+import org.znerd.yaff.security.Key;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.activation.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.text.TextUtils;
+
+/**
+ * Cache for the decrypted content of encrypted files. Entries are keyed by
+ * the database and the path of the encrypted file and are only returned as
+ * long as the modification time of the encrypted file is unchanged. The
+ * weight of an entry is the size of the plaintext, in bytes.
+ *
+ * <p>Each entry is bound to the {@link Key} that was used to decrypt it; a
+ * lookup with a different key is a miss. Callers always receive a copy of
+ * the plaintext, never the cached buffer itself, and the cached buffer is
+ * overwritten with zeroes as soon as the entry leaves the cache.
+ *
+ * <p>Since modification times have a limited resolution, writers should
+ * additionally call {@link #invalidate(Object,String)} whenever they
+ * replace or delete an encrypted file.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class DecryptedFileCache
+extends BoundedCache<DecryptedFileCache.Location,DecryptedFileCache.Content> {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default maximum total size of the cached plaintext, in bytes
+    * (4 MiB).
+    */
+   public static final long DEFAULT_MAX_WEIGHT = 4L * 1024L * 1024L;
+
+   /**
+    * The content type used when the decrypted data source does not specify
+    * one.
+    */
+   private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>DecryptedFileCache</code>.
+    *
+    * @param maxWeight
+    *    the maximum total size of the cached plaintext, in bytes,
+    *    must be &gt; <code>0L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>maxWeight &lt;= 0L</code>.
+    */
+   public DecryptedFileCache(long maxWeight)
+   throws IllegalArgumentException {
+      super("Decrypted files", maxWeight);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Looks up the decrypted content of an encrypted file.
+    *
+    * @param database
+    *    the database that contains the encrypted file,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path of the encrypted file within the database,
+    *    cannot be <code>null</code>.
+    *
+    * @param key
+    *    the {@link Key} the caller would use to decrypt the file,
+    *    cannot be <code>null</code>.
+    *
+    * @param lastModified
+    *    the current modification time of the encrypted file.
+    *
+    * @return
+    *    a new data source containing a copy of the decrypted content,
+    *    or <code>null</code> if there is no up-to-date entry that was
+    *    decrypted with the same key.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>database == null || path == null || key == null</code>.
+    */
+   public XDataSource get(Object database, String path, Key key, long lastModified)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("database", database,
+                                     "path",     path,
+                                     "key",      key);
+
+      Content content = get(new Location(database, path), lastModified);
+      if (content == null || ! content._key.equals(key)) {
+         return null;
+      }
+
+      // Returns null if the entry was wiped concurrently
+      return content.toDataSource();
+   }
+
+   /**
+    * Reads the decrypted content of an encrypted file and stores it in this
+    * cache. Content that is larger than the maximum weight of this cache is
+    * not stored.
+    *
+    * @param database
+    *    the database that contains the encrypted file,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path of the encrypted file within the database,
+    *    cannot be <code>null</code>.
+    *
+    * @param key
+    *    the {@link Key} that was used to decrypt the file,
+    *    cannot be <code>null</code>.
+    *
+    * @param lastModified
+    *    the modification time of the encrypted file, as determined
+    *    <em>before</em> it was read.
+    *
+    * @param decrypted
+    *    the decrypted content, cannot be <code>null</code>.
+    *
+    * @return
+    *    a new data source containing a copy of the decrypted content,
+    *    never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>database  == null
+    *          || path      == null
+    *          || key       == null
+    *          || decrypted == null</code>.
+    *
+    * @throws IOException
+    *    if the decrypted content could not be read.
+    */
+   public XDataSource put(Object     database,
+                          String     path,
+                          Key        key,
+                          long       lastModified,
+                          DataSource decrypted)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("database",  database,
+                                     "path",      path,
+                                     "key",       key,
+                                     "decrypted", decrypted);
+
+      // Read the plaintext
+      byte[] data;
+      InputStream in = decrypted.getInputStream();
+      try {
+         data = IOUtils.toByteArray(in);
+      } finally {
+         in.close();
+      }
+
+      // Determine the meta data
+      String name = decrypted.getName();
+      if (TextUtils.isEmpty(name)) {
+         name = path;
+      }
+      String contentType = decrypted.getContentType();
+      if (TextUtils.isEmpty(contentType)) {
+         contentType = DEFAULT_CONTENT_TYPE;
+      }
+      long modified = (decrypted instanceof XDataSource)
+                    ? ((XDataSource) decrypted).lastModified()
+                    : lastModified;
+      if (modified <= 0L) {
+         modified = System.currentTimeMillis();
+      }
+
+      // Copy the plaintext before it becomes visible to other threads
+      Content     content = new Content(key, name, contentType, modified, data);
+      XDataSource  result = content.toDataSource();
+      long         weight = Math.max(1L, data.length);
+
+      // Plaintext that does not fit is not retained either
+      if (weight > getMaxWeight()) {
+         content.wipe();
+      } else {
+         put(new Location(database, path), content, weight, lastModified);
+      }
+
+      return result;
+   }
+
+   /**
+    * Removes the entry for an encrypted file, if there is one.
+    *
+    * @param database
+    *    the database that contains the encrypted file,
+    *    cannot be <code>null</code>.
+    *
+    * @param path
+    *    the path of the encrypted file within the database,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>database == null || path == null</code>.
+    */
+   public void invalidate(Object database, String path)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("database", database, "path", path);
+      remove(new Location(database, path));
+   }
+
+   @Override
+   protected void entryRemoved(Location key, Content value, boolean evicted) {
+      value.wipe();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Location of an encrypted file: a database and a path within it.
+    * Databases are compared by identity.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   public static final class Location extends Object {
+
+      /**
+       * Constructs a new <code>Location</code>.
+       *
+       * @param database
+       *    the database, should not be <code>null</code>.
+       *
+       * @param path
+       *    the path within the database, should not be <code>null</code>.
+       */
+      Location(Object database, String path) {
+         _database = database;
+         _path     = path;
+      }
+
+      /**
+       * The database. Never <code>null</code>.
+       */
+      private final Object _database;
+
+      /**
+       * The path within the database. Never <code>null</code>.
+       */
+      private final String _path;
+
+      @Override
+      public boolean equals(Object obj) {
+         if (! (obj instanceof Location)) {
+            return false;
+         }
+
+         Location that = (Location) obj;
+         return _database == that._database && _path.equals(that._path);
+      }
+
+      @Override
+      public int hashCode() {
+         return System.identityHashCode(_database) ^ _path.hashCode();
+      }
+
+      @Override
+      public String toString() {
+         return TextUtils.quote(_path);
+      }
+   }
+
+   /**
+    * Decrypted content of a file, bound to the key that decrypted it.
+    *
+    * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+    */
+   public static final class Content extends Object {
+
+      /**
+       * Constructs a new <code>Content</code>.
+       *
+       * @param key
+       *    the key that decrypted the content, should not be
+       *    <code>null</code>.
+       *
+       * @param name
+       *    the name of the content, should not be <code>null</code> and
+       *    should not be an empty string.
+       *
+       * @param contentType
+       *    the MIME content type, should not be <code>null</code> and
+       *    should not be an empty string.
+       *
+       * @param lastModified
+       *    the last modified time stamp, should be &gt; <code>0L</code>.
+       *
+       * @param data
+       *    the plaintext, should not be <code>null</code>; it is not copied.
+       */
+      Content(Key key, String name, String contentType, long lastModified, byte[] data) {
+         _key          = key;
+         _name         = name;
+         _contentType  = contentType;
+         _lastModified = lastModified;
+         _data         = data;
+      }
+
+      /**
+       * The key that decrypted the content. Never <code>null</code>.
+       */
+      private final Key _key;
+
+      /**
+       * The name of the content. Never <code>null</code>.
+       */
+      private final String _name;
+
+      /**
+       * The MIME content type. Never <code>null</code>.
+       */
+      private final String _contentType;
+
+      /**
+       * The last modified time stamp. Always &gt; <code>0L</code>.
+       */
+      private final long _lastModified;
+
+      /**
+       * The plaintext. Never <code>null</code>. Wiped when the entry leaves
+       * the cache. All access is synchronized on this object.
+       */
+      private final byte[] _data;
+
+      /**
+       * Flag that indicates whether the plaintext has been wiped.
+       */
+      private boolean _wiped;
+
+      /**
+       * Creates a data source with a copy of the plaintext.
+       *
+       * @return
+       *    a new {@link XDataSource}, or <code>null</code> if the plaintext
+       *    has already been wiped.
+       */
+      synchronized XDataSource toDataSource() {
+         if (_wiped) {
+            return null;
+         }
+         return new ByteArrayDataSource(_name, _data, _contentType, _lastModified);
+      }
+
+      /**
+       * Overwrites the plaintext with zeroes.
+       */
+      synchronized void wipe() {
+         Arrays.fill(_data, (byte) 0);
+         _wiped = true;
+      }
+   }
+}
@@ -0,0 +1,141 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff.cache;
+
+import java.io.File;
+
+import org.xins.common.MandatoryArgumentChecker;
+
+/**
+ * Cache that remembers which files were found to be absent, so that repeated
+ * lookups of optional files do not need to hit the file system.
+ *
+ * <p>Each entry is stamped with a directory version, computed from the
+ * modification times of the directories the file would be in, see
+ * {@link #getDirectoryVersion(File[])}. Creating, renaming or deleting a
+ * file in such a directory changes its modification time, which makes the
+ * entry stale. Writes through the owner of this cache should additionally
+ * call {@link #markPresent(String)}.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class MissingFileCache extends BoundedCache<String,Boolean> {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default maximum number of entries.
+    */
+   public static final int DEFAULT_MAX_SIZE = 4096;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Computes the directory version for the specified directories.
+    * Directories that do not exist contribute a modification time of
+    * <code>0L</code>.
+    *
+    * @param dirs
+    *    the directories, cannot be <code>null</code>
+    *    and cannot contain <code>null</code> elements.
+    *
+    * @return
+    *    the directory version.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dirs == null</code>.
+    */
+   public static long getDirectoryVersion(File[] dirs)
+   throws IllegalArgumentException {
+      MandatoryArgumentChecker.check("dirs", dirs);
+
+      long version = 17L;
+      for (File dir : dirs) {
+         version = version * 31L + dir.lastModified();
+      }
+      return version;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>MissingFileCache</code>.
+    *
+    * @param maxSize
+    *    the maximum number of entries, must be &gt; 0.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>maxSize &lt;= 0</code>.
+    */
+   public MissingFileCache(int maxSize)
+   throws IllegalArgumentException {
+      super("Missing files", maxSize);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines if the specified file is known to be absent.
+    *
+    * @param key
+    *    the key that identifies the file, cannot be <code>null</code>.
+    *
+    * @param directoryVersion
+    *    the current directory version for the file,
+    *    see {@link #getDirectoryVersion(File[])}.
+    *
+    * @return
+    *    <code>true</code> if the file was found to be absent and the
+    *    directories have not changed since,
+    *    <code>false</code> if it is unknown whether the file exists.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null</code>.
+    */
+   public boolean isMissing(String key, long directoryVersion)
+   throws IllegalArgumentException {
+      return get(key, directoryVersion) != null;
+   }
+
+   /**
+    * Records that the specified file was found to be absent.
+    *
+    * @param key
+    *    the key that identifies the file, cannot be <code>null</code>.
+    *
+    * @param directoryVersion
+    *    the directory version at the time the file was found to be absent,
+    *    see {@link #getDirectoryVersion(File[])}.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null</code>.
+    */
+   public void markMissing(String key, long directoryVersion)
+   throws IllegalArgumentException {
+      put(key, Boolean.TRUE, 1L, directoryVersion);
+   }
+
+   /**
+    * Records that the specified file may exist (again).
+    *
+    * @param key
+    *    the key that identifies the file, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>key == null</code>.
+    */
+   public void markPresent(String key)
+   throws IllegalArgumentException {
+      remove(key);
+   }
+}
@@ -0,0 +1,107 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff.cache;
+
+import org.znerd.yaff.activation.XDataSource;
+import org.znerd.yaff.activation.XMLDataSource;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.text.ParseException;
+
+/**
+ * Cache for parsed XML files. Entries are keyed by the file they were parsed
+ * from and are only returned as long as the modification time of that file
+ * is unchanged. The weight of an entry is the size of the file, in bytes.
+ *
+ * <p>The cached {@link XMLDataSource} instances are shared between callers;
+ * this is safe since {@link XMLDataSource#getXML()} always returns a copy.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class XMLFileCache extends BoundedCache<File,XMLDataSource> {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The default maximum total size of the cached files, in bytes (16 MiB).
+    */
+   public static final long DEFAULT_MAX_WEIGHT = 16L * 1024L * 1024L;
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>XMLFileCache</code>.
+    *
+    * @param maxWeight
+    *    the maximum total size of the cached files, in bytes,
+    *    must be &gt; <code>0L</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>maxWeight &lt;= 0L</code>.
+    */
+   public XMLFileCache(long maxWeight)
+   throws IllegalArgumentException {
+      super("XML files", maxWeight);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the parsed form of the specified file, from the cache if
+    * possible. If the file is not cached, or if it was modified since it was
+    * cached, then it is parsed and the result is stored in the cache.
+    *
+    * <p>Data sources that are not backed by a {@link File} are always parsed
+    * and never cached.
+    *
+    * @param file
+    *    the {@link XDataSource} to parse, cannot be <code>null</code>.
+    *
+    * @return
+    *    the parsed {@link XMLDataSource}, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>file == null</code>.
+    *
+    * @throws IOException
+    *    if there was an I/O error while reading the file.
+    *
+    * @throws ParseException
+    *    if the file could not be parsed as XML.
+    */
+   public XMLDataSource get(XDataSource file)
+   throws IllegalArgumentException, IOException, ParseException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("file", file);
+
+      // Without an underlying file there is nothing to validate against
+      File key = file.getFile();
+      if (key == null) {
+         return new XMLDataSource(file);
+      }
+
+      // Return the cached entry, if it is still up-to-date
+      long    lastModified = file.lastModified();
+      XMLDataSource cached = get(key, lastModified);
+      if (cached != null) {
+         return cached;
+      }
+
+      // Parse the file and cache the result
+      XMLDataSource parsed = new XMLDataSource(file);
+      put(key, parsed, Math.max(1L, file.length()), lastModified);
+
+      return parsed;
+   }
+}
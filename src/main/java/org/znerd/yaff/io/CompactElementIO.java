@@ -0,0 +1,451 @@
+// See the COPYRIGHT file for copyright and license information
+package org.znerd.yaff.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.xins.common.MandatoryArgumentChecker;
+import org.xins.common.text.ParseException;
+import org.xins.common.xml.Element;
+
+/**
+ * Reads and writes XML elements in a compact, versioned binary format. This
+ * format avoids both the overhead of XML text and the cost of parsing it.
+ * Text that consists of hexadecimal digits only, such as hex-encoded
+ * ciphertext, is stored as raw bytes, which halves its size.
+ *
+ * <p>The format starts with the 4 magic bytes <code>"YCEF"</code>, followed
+ * by a single version byte (currently {@link #VERSION}) and the root element.
+ * An element consists of its namespace prefix, namespace URI and local name,
+ * its attributes and its children. Strings are stored as a 4-byte length
+ * (<code>-1</code> for <code>null</code>) followed by the UTF-8 bytes.
+ *
+ * <p>This format is used for the chunk vaults within encrypted files in the
+ * binary format; it is not used as a file format of its own.
+ *
+ * @author <a href="mailto:ernst@ernstdehaan.com">Ernst de Haan</a>
+ */
+public final class CompactElementIO extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The MIME content type for data in this format.
+    */
+   public static final String CONTENT_TYPE = "application/octet-stream";
+
+   /**
+    * The version of the format that is written.
+    */
+   public static final int VERSION = 1;
+
+   /**
+    * The magic bytes at the start of the format.
+    */
+   private static final byte[] MAGIC = { 'Y', 'C', 'E', 'F' };
+
+   /**
+    * Marker for a child element.
+    */
+   private static final int ELEMENT = 1;
+
+   /**
+    * Marker for text, stored as UTF-8.
+    */
+   private static final int TEXT = 2;
+
+   /**
+    * Marker for text with lowercase hex digits, stored as raw bytes.
+    */
+   private static final int HEX_LOWER = 3;
+
+   /**
+    * Marker for text with uppercase hex digits, stored as raw bytes.
+    */
+   private static final int HEX_UPPER = 4;
+
+   /**
+    * The minimum length of text to consider storing as raw bytes.
+    */
+   private static final int MIN_HEX_LENGTH = 16;
+
+   /**
+    * The lowercase hex digits.
+    */
+   private static final char[] LOWER_DIGITS = "0123456789abcdef".toCharArray();
+
+   /**
+    * The uppercase hex digits.
+    */
+   private static final char[] UPPER_DIGITS = "0123456789ABCDEF".toCharArray();
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Writes the specified element to a byte array.
+    *
+    * @param element
+    *    the element to write, cannot be <code>null</code>.
+    *
+    * @return
+    *    the binary representation of the element, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>element == null</code>.
+    */
+   public static byte[] toByteArray(Element element)
+   throws IllegalArgumentException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("element", element);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+         write(element, out);
+      } catch (IOException cause) {
+         throw new Error("Unexpected I/O error while writing to a byte array.", cause);
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * Writes the specified element to a stream. The stream is flushed, but
+    * not closed.
+    *
+    * @param element
+    *    the element to write, cannot be <code>null</code>.
+    *
+    * @param out
+    *    the stream to write to, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>element == null || out == null</code>.
+    *
+    * @throws IOException
+    *    if writing to the stream failed.
+    */
+   public static void write(Element element, OutputStream out)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("element", element, "out", out);
+
+      DataOutputStream dataOut = new DataOutputStream(out);
+      dataOut.write(MAGIC);
+      dataOut.writeByte(VERSION);
+      writeElement(element, dataOut);
+      dataOut.flush();
+   }
+
+   /**
+    * Writes an element, recursively.
+    *
+    * @param element
+    *    the element to write, should not be <code>null</code>.
+    *
+    * @param out
+    *    the stream to write to, should not be <code>null</code>.
+    *
+    * @throws IOException
+    *    if writing to the stream failed.
+    */
+   private static void writeElement(Element element, DataOutputStream out)
+   throws IOException {
+
+      writeString(element.getNamespacePrefix(), out);
+      writeString(element.getNamespaceURI(),    out);
+      writeString(element.getLocalName(),       out);
+
+      Map<Element.QualifiedName,String> attributes = element.getAttributeMap();
+      out.writeInt(attributes.size());
+      for (Map.Entry<Element.QualifiedName,String> attribute : attributes.entrySet()) {
+         Element.QualifiedName name = attribute.getKey();
+         writeString(name.getNamespacePrefix(), out);
+         writeString(name.getNamespaceURI(),    out);
+         writeString(name.getLocalName(),       out);
+         writeString(attribute.getValue(),      out);
+      }
+
+      List<Object> children = element.getChildren();
+      out.writeInt(children.size());
+      for (Object child : children) {
+         if (child instanceof Element) {
+            out.writeByte(ELEMENT);
+            writeElement((Element) child, out);
+         } else {
+            writeText(String.valueOf(child), out);
+         }
+      }
+   }
+
+   /**
+    * Writes a text child, as raw bytes if it consists of hex digits only.
+    *
+    * @param text
+    *    the text, should not be <code>null</code>.
+    *
+    * @param out
+    *    the stream to write to, should not be <code>null</code>.
+    *
+    * @throws IOException
+    *    if writing to the stream failed.
+    */
+   private static void writeText(String text, DataOutputStream out)
+   throws IOException {
+
+      int length = text.length();
+      int marker = (length < MIN_HEX_LENGTH || length % 2 != 0) ? TEXT
+                 : isHex(text, LOWER_DIGITS)                      ? HEX_LOWER
+                 : isHex(text, UPPER_DIGITS)                      ? HEX_UPPER
+                 :                                                  TEXT;
+      out.writeByte(marker);
+
+      if (marker == TEXT) {
+         writeString(text, out);
+      } else {
+         byte[] bytes = new byte[length / 2];
+         for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(text.charAt(i * 2), 16) << 4)
+                              | Character.digit(text.charAt(i * 2 + 1), 16));
+         }
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+   }
+
+   /**
+    * Checks if the specified text consists only of the specified digits.
+    *
+    * @param text
+    *    the text, should not be <code>null</code>.
+    *
+    * @param digits
+    *    the allowed digits, should not be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if all characters are in <code>digits</code>.
+    */
+   private static boolean isHex(String text, char[] digits) {
+      for (int i = 0, length = text.length(); i < length; i++) {
+         char c = text.charAt(i);
+         if (c >= '0' && c <= '9') {
+            continue;
+         } else if (c < digits[10] || c > digits[15]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Writes a string, which may be <code>null</code>.
+    *
+    * @param s
+    *    the string, can be <code>null</code>.
+    *
+    * @param out
+    *    the stream to write to, should not be <code>null</code>.
+    *
+    * @throws IOException
+    *    if writing to the stream failed.
+    */
+   private static void writeString(String s, DataOutputStream out)
+   throws IOException {
+      if (s == null) {
+         out.writeInt(-1);
+      } else {
+         byte[] bytes = s.getBytes("UTF-8");
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+   }
+
+   /**
+    * Reads an element from a stream. The stream is not closed.
+    *
+    * @param in
+    *    the stream to read from, cannot be <code>null</code>.
+    *
+    * @return
+    *    the element, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>in == null</code>.
+    *
+    * @throws IOException
+    *    if reading from the stream failed.
+    *
+    * @throws ParseException
+    *    if the data is not in the expected format.
+    */
+   public static Element read(InputStream in)
+   throws IllegalArgumentException, IOException, ParseException {
+
+      // Check preconditions
+      MandatoryArgumentChecker.check("in", in);
+
+      DataInputStream dataIn = new DataInputStream(in);
+      try {
+
+         // Check the header
+         for (int i = 0; i < MAGIC.length; i++) {
+            if (dataIn.readByte() != MAGIC[i]) {
+               throw new ParseException("Data does not start with the expected magic bytes.");
+            }
+         }
+         int version = dataIn.readUnsignedByte();
+         if (version != VERSION) {
+            throw new ParseException("Unsupported format version " + version + '.');
+         }
+
+         return readElement(dataIn);
+
+      // Truncated data
+      } catch (EOFException cause) {
+         throw new ParseException("Unexpected end of data.", cause);
+      }
+   }
+
+   /**
+    * Reads an element, recursively.
+    *
+    * @param in
+    *    the stream to read from, should not be <code>null</code>.
+    *
+    * @return
+    *    the element, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if reading from the stream failed.
+    *
+    * @throws ParseException
+    *    if the data is not in the expected format.
+    */
+   private static Element readElement(DataInputStream in)
+   throws IOException, ParseException {
+
+      String prefix    = readString(in);
+      String uri       = readString(in);
+      String localName = readString(in);
+
+      Element element;
+      try {
+         element = new Element(localName);
+         element.setNamespacePrefix(prefix);
+         element.setNamespaceURI(uri);
+
+         int attributeCount = readCount(in);
+         for (int i = 0; i < attributeCount; i++) {
+            String attrPrefix    = readString(in);
+            String attrURI       = readString(in);
+            String attrLocalName = readString(in);
+            String attrValue     = readString(in);
+            element.setAttribute(attrPrefix, attrURI, attrLocalName, attrValue);
+         }
+      } catch (IllegalArgumentException cause) {
+         throw new ParseException("Invalid element or attribute.", cause);
+      }
+
+      int childCount = readCount(in);
+      for (int i = 0; i < childCount; i++) {
+         int marker = in.readUnsignedByte();
+         if (marker == ELEMENT) {
+            element.add(readElement(in));
+         } else if (marker == TEXT) {
+            element.add(readString(in));
+         } else if (marker == HEX_LOWER || marker == HEX_UPPER) {
+            char[] digits = (marker == HEX_LOWER) ? LOWER_DIGITS : UPPER_DIGITS;
+            byte[]  bytes = new byte[readCount(in)];
+            in.readFully(bytes);
+
+            char[] text = new char[bytes.length * 2];
+            for (int j = 0; j < bytes.length; j++) {
+               text[j * 2]     = digits[(bytes[j] >> 4) & 0x0f];
+               text[j * 2 + 1] = digits[ bytes[j]       & 0x0f];
+            }
+            element.add(new String(text));
+         } else {
+            throw new ParseException("Unknown child marker " + marker + '.');
+         }
+      }
+
+      return element;
+   }
+
+   /**
+    * Reads a string, which may be <code>null</code>.
+    *
+    * @param in
+    *    the stream to read from, should not be <code>null</code>.
+    *
+    * @return
+    *    the string, or <code>null</code>.
+    *
+    * @throws IOException
+    *    if reading from the stream failed.
+    *
+    * @throws ParseException
+    *    if the length is invalid.
+    */
+   private static String readString(DataInputStream in)
+   throws IOException, ParseException {
+      int length = in.readInt();
+      if (length == -1) {
+         return null;
+      } else if (length < 0) {
+         throw new ParseException("Invalid string length " + length + '.');
+      }
+
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+   }
+
+   /**
+    * Reads a count or a length.
+    *
+    * @param in
+    *    the stream to read from, should not be <code>null</code>.
+    *
+    * @return
+    *    the count, always &gt;= 0.
+    *
+    * @throws IOException
+    *    if reading from the stream failed.
+    *
+    * @throws ParseException
+    *    if the count is negative.
+    */
+   private static int readCount(DataInputStream in)
+   throws IOException, ParseException {
+      int count = in.readInt();
+      if (count < 0) {
+         throw new ParseException("Invalid count " + count + '.');
+      }
+      return count;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>CompactElementIO</code>.
+    */
+   private CompactElementIO() {
+      // empty
+   }
+}